@@ -22,11 +22,12 @@ import android.car.annotation.FutureFeature;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.JsonWriter;
-import android.util.SparseArray;
-import android.util.SparseIntArray;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -36,6 +37,9 @@ import java.util.Objects;
  */
 @FutureFeature
 public class CarDiagnosticEvent implements Parcelable {
+    /** Bound of property ids and counts accepted by {@link #readFromStream(DataInput)}. */
+    private static final int MAX_STREAM_SENSORS = 1 << 16;
+
     /** Whether this frame represents a live or a freeze frame */
     public final int frameType;
 
@@ -46,16 +50,22 @@ public class CarDiagnosticEvent implements Parcelable {
     public final long timestamp;
 
     /**
-     * Sparse array that contains the mapping of OBD2 diagnostic properties to their values for
-     * integer valued properties
+     * Values of integer valued OBD2 diagnostic properties, indexed by property. Only entries
+     * whose bit is set in {@link #intPresence} are valid.
      */
-    private final SparseIntArray intValues;
+    private final int[] intValues;
+
+    /** Bitmap of properties present in {@link #intValues}, bit i is bit (i % 64) of word i / 64. */
+    private final long[] intPresence;
 
     /**
-     * Sparse array that contains the mapping of OBD2 diagnostic properties to their values for
-     * float valued properties
+     * Values of float valued OBD2 diagnostic properties, indexed by property. Only entries whose
+     * bit is set in {@link #floatPresence} are valid.
      */
-    private final SparseArray<Float> floatValues;
+    private final float[] floatValues;
+
+    /** Bitmap of properties present in {@link #floatValues}. */
+    private final long[] floatPresence;
 
     /**
      * Diagnostic Troubleshooting Code (DTC) that was detected and caused this frame to be stored
@@ -66,20 +76,10 @@ public class CarDiagnosticEvent implements Parcelable {
     public CarDiagnosticEvent(Parcel in) {
         frameType = in.readInt();
         timestamp = in.readLong();
-        int len = in.readInt();
-        floatValues = new SparseArray<>(len);
-        for (int i = 0; i < len; ++i) {
-            int key = in.readInt();
-            float value = in.readFloat();
-            floatValues.put(key, value);
-        }
-        len = in.readInt();
-        intValues = new SparseIntArray(len);
-        for (int i = 0; i < len; ++i) {
-            int key = in.readInt();
-            int value = in.readInt();
-            intValues.put(key, value);
-        }
+        floatValues = in.createFloatArray();
+        floatPresence = in.createLongArray();
+        intValues = in.createIntArray();
+        intPresence = in.createLongArray();
         dtc = (String) in.readValue(String.class.getClassLoader());
         // version 1 up to here
     }
@@ -93,18 +93,10 @@ public class CarDiagnosticEvent implements Parcelable {
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(frameType);
         dest.writeLong(timestamp);
-        dest.writeInt(floatValues.size());
-        for (int i = 0; i < floatValues.size(); ++i) {
-            int key = floatValues.keyAt(i);
-            dest.writeInt(key);
-            dest.writeFloat(floatValues.get(key));
-        }
-        dest.writeInt(intValues.size());
-        for (int i = 0; i < intValues.size(); ++i) {
-            int key = intValues.keyAt(i);
-            dest.writeInt(key);
-            dest.writeInt(intValues.get(key));
-        }
+        dest.writeFloatArray(floatValues);
+        dest.writeLongArray(floatPresence);
+        dest.writeIntArray(intValues);
+        dest.writeLongArray(intPresence);
         dest.writeValue(dtc);
     }
 
@@ -126,19 +118,21 @@ public class CarDiagnosticEvent implements Parcelable {
         jsonWriter.name("timestamp").value(timestamp);
 
         jsonWriter.name("intValues").beginArray();
-        for (int i = 0; i < intValues.size(); ++i) {
+        for (int i = 0; i < intValues.length; ++i) {
+            if (!isSet(intPresence, i)) continue;
             jsonWriter.beginObject();
-            jsonWriter.name("id").value(intValues.keyAt(i));
-            jsonWriter.name("value").value(intValues.valueAt(i));
+            jsonWriter.name("id").value(i);
+            jsonWriter.name("value").value(intValues[i]);
             jsonWriter.endObject();
         }
         jsonWriter.endArray();
 
         jsonWriter.name("floatValues").beginArray();
-        for (int i = 0; i < floatValues.size(); ++i) {
+        for (int i = 0; i < floatValues.length; ++i) {
+            if (!isSet(floatPresence, i)) continue;
             jsonWriter.beginObject();
-            jsonWriter.name("id").value(floatValues.keyAt(i));
-            jsonWriter.name("value").value(floatValues.valueAt(i));
+            jsonWriter.name("id").value(i);
+            jsonWriter.name("value").value(floatValues[i]);
             jsonWriter.endObject();
         }
         jsonWriter.endArray();
@@ -150,6 +144,84 @@ public class CarDiagnosticEvent implements Parcelable {
         jsonWriter.endObject();
     }
 
+    /**
+     * Writes this event to a stream. Unlike the parcel format, the layout is fixed, so that events
+     * can be persisted and read back by {@link #readFromStream(DataInput)}: frame type,
+     * timestamp, number of present integer properties followed by (id, value) pairs, the same
+     * for float properties, and the DTC if any.
+     *
+     * @hide
+     */
+    public void writeToStream(DataOutput out) throws IOException {
+        out.writeInt(frameType);
+        out.writeLong(timestamp);
+        out.writeInt(bitCount(intPresence));
+        for (int i = 0; i < intValues.length; ++i) {
+            if (!isSet(intPresence, i)) continue;
+            out.writeInt(i);
+            out.writeInt(intValues[i]);
+        }
+        out.writeInt(bitCount(floatPresence));
+        for (int i = 0; i < floatValues.length; ++i) {
+            if (!isSet(floatPresence, i)) continue;
+            out.writeInt(i);
+            out.writeFloat(floatValues[i]);
+        }
+        out.writeBoolean(dtc != null);
+        if (dtc != null) {
+            out.writeUTF(dtc);
+        }
+    }
+
+    /**
+     * Reads an event written by {@link #writeToStream(DataOutput)}.
+     *
+     * @throws IOException if the stream cannot be read or does not contain a valid event.
+     * @hide
+     */
+    public static CarDiagnosticEvent readFromStream(DataInput in) throws IOException {
+        Builder builder;
+        int type = in.readInt();
+        switch (type) {
+            case CarDiagnosticManager.FRAME_TYPE_LIVE:
+                builder = Builder.newLiveFrameBuilder();
+                break;
+            case CarDiagnosticManager.FRAME_TYPE_FREEZE:
+                builder = Builder.newFreezeFrameBuilder();
+                break;
+            default:
+                throw new IOException("unknown frameType " + type);
+        }
+        builder.atTimestamp(in.readLong());
+        for (int i = readCount(in); i > 0; --i) {
+            builder.withIntValue(readSensorId(in), in.readInt());
+        }
+        for (int i = readCount(in); i > 0; --i) {
+            builder.withFloatValue(readSensorId(in), in.readFloat());
+        }
+        if (in.readBoolean()) {
+            builder.withDTC(in.readUTF());
+        }
+        return builder.build();
+    }
+
+    private static int readCount(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_STREAM_SENSORS) {
+            throw new IOException("invalid property count " + count);
+        }
+        return count;
+    }
+
+    private static int readSensorId(DataInput in) throws IOException {
+        int id = in.readInt();
+        // Ids size the value arrays, so a corrupted one must not allocate a huge array.
+        if (id < 0 || id >= MAX_STREAM_SENSORS) {
+            throw new IOException("invalid property id " + id);
+        }
+        return id;
+    }
+
     public static final Parcelable.Creator<CarDiagnosticEvent> CREATOR =
             new Parcelable.Creator<CarDiagnosticEvent>() {
                 public CarDiagnosticEvent createFromParcel(Parcel in) {
@@ -164,22 +236,33 @@ public class CarDiagnosticEvent implements Parcelable {
     private CarDiagnosticEvent(
             int frameType,
             long timestamp,
-            SparseArray<Float> floatValues,
-            SparseIntArray intValues,
+            float[] floatValues,
+            long[] floatPresence,
+            int[] intValues,
+            long[] intPresence,
             String dtc) {
         this.frameType = frameType;
         this.timestamp = timestamp;
         this.floatValues = floatValues;
+        this.floatPresence = floatPresence;
         this.intValues = intValues;
+        this.intPresence = intPresence;
         this.dtc = dtc;
     }
 
+    /**
+     * Builds a single event. The arrays of the builder are handed to the event without copying,
+     * so the builder can not be used anymore once {@link #build()} was called.
+     */
     public static class Builder {
         private int mType = CarDiagnosticManager.FRAME_TYPE_LIVE;
         private long mTimestamp = 0;
-        private SparseArray<Float> mFloatValues = new SparseArray<>();
-        private SparseIntArray mIntValues = new SparseIntArray();
+        private float[] mFloatValues = new float[0];
+        private long[] mFloatPresence = new long[0];
+        private int[] mIntValues = new int[0];
+        private long[] mIntPresence = new long[0];
         private String mDtc = null;
+        private boolean mBuilt = false;
 
         private Builder(int type) {
             mType = type;
@@ -194,28 +277,112 @@ public class CarDiagnosticEvent implements Parcelable {
         }
 
         public Builder atTimestamp(long timestamp) {
+            checkNotBuilt();
             mTimestamp = timestamp;
             return this;
         }
 
+        /**
+         * Preallocates storage for the given number of integer and float properties, system and
+         * vendor ones together, so that adding values does not grow the arrays.
+         */
+        public Builder withSensorCounts(int numIntSensors, int numFloatSensors) {
+            checkNotBuilt();
+            if (numIntSensors > mIntValues.length) {
+                mIntValues = Arrays.copyOf(mIntValues, numIntSensors);
+                mIntPresence = Arrays.copyOf(mIntPresence, bitmapSize(numIntSensors));
+            }
+            if (numFloatSensors > mFloatValues.length) {
+                mFloatValues = Arrays.copyOf(mFloatValues, numFloatSensors);
+                mFloatPresence = Arrays.copyOf(mFloatPresence, bitmapSize(numFloatSensors));
+            }
+            return this;
+        }
+
         public Builder withIntValue(int key, int value) {
-            mIntValues.put(key, value);
+            checkNotBuilt();
+            if (key >= mIntValues.length) {
+                int size = Math.max(key + 1, mIntValues.length * 2);
+                mIntValues = Arrays.copyOf(mIntValues, size);
+                mIntPresence = Arrays.copyOf(mIntPresence, bitmapSize(size));
+            }
+            mIntValues[key] = value;
+            set(mIntPresence, key);
             return this;
         }
 
         public Builder withFloatValue(int key, float value) {
-            mFloatValues.put(key, value);
+            checkNotBuilt();
+            if (key >= mFloatValues.length) {
+                int size = Math.max(key + 1, mFloatValues.length * 2);
+                mFloatValues = Arrays.copyOf(mFloatValues, size);
+                mFloatPresence = Arrays.copyOf(mFloatPresence, bitmapSize(size));
+            }
+            mFloatValues[key] = value;
+            set(mFloatPresence, key);
             return this;
         }
 
         public Builder withDTC(String dtc) {
+            checkNotBuilt();
             mDtc = dtc;
             return this;
         }
 
         public CarDiagnosticEvent build() {
-            return new CarDiagnosticEvent(mType, mTimestamp, mFloatValues, mIntValues, mDtc);
+            checkNotBuilt();
+            mBuilt = true;
+            return new CarDiagnosticEvent(mType, mTimestamp,
+                    mFloatValues, mFloatPresence, mIntValues, mIntPresence, mDtc);
+        }
+
+        private void checkNotBuilt() {
+            if (mBuilt) {
+                throw new IllegalStateException("event already built");
+            }
+        }
+    }
+
+    private static int bitmapSize(int bits) {
+        return (bits + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    private static boolean isSet(long[] bitmap, int index) {
+        return (bitmap[index / Long.SIZE] & (1L << (index % Long.SIZE))) != 0;
+    }
+
+    private static void set(long[] bitmap, int index) {
+        bitmap[index / Long.SIZE] |= 1L << (index % Long.SIZE);
+    }
+
+    /**
+     * Keeps only the first {@code count} bits of the bitmap, and drops trailing words which have
+     * no bits set so that equal frames have equal bitmaps.
+     */
+    private static long[] truncate(long[] bitmap, int count) {
+        long[] truncated = Arrays.copyOf(bitmap, bitmapSize(count));
+        if (count % Long.SIZE != 0) {
+            truncated[truncated.length - 1] &= (1L << (count % Long.SIZE)) - 1;
         }
+        return Arrays.copyOf(truncated, bitmapSize(presentCount(truncated)));
+    }
+
+    /** Returns index of the highest bit set plus one. */
+    private static int presentCount(long[] bitmap) {
+        for (int i = bitmap.length - 1; i >= 0; --i) {
+            if (bitmap[i] != 0) {
+                return i * Long.SIZE + Long.SIZE - Long.numberOfLeadingZeros(bitmap[i]);
+            }
+        }
+        return 0;
+    }
+
+    private static int bitCount(long[] bitmap) {
+        int count = 0;
+        for (long word : bitmap) {
+            count += Long.bitCount(word);
+        }
+        return count;
     }
 
     /**
@@ -224,21 +391,14 @@ public class CarDiagnosticEvent implements Parcelable {
      * @hide
      */
     public CarDiagnosticEvent withVendorSensorsRemoved() {
-        SparseIntArray newIntValues = intValues.clone();
-        SparseArray<Float> newFloatValues = floatValues.clone();
-        for (int i = 0; i < intValues.size(); ++i) {
-            int key = intValues.keyAt(i);
-            if (key >= CarDiagnosticSensorIndices.Obd2IntegerSensorIndex.LAST_SYSTEM) {
-                newIntValues.delete(key);
-            }
-        }
-        for (int i = 0; i < floatValues.size(); ++i) {
-            int key = floatValues.keyAt(i);
-            if (key >= CarDiagnosticSensorIndices.Obd2FloatSensorIndex.LAST_SYSTEM) {
-                newFloatValues.delete(key);
-            }
-        }
-        return new CarDiagnosticEvent(frameType, timestamp, newFloatValues, newIntValues, dtc);
+        long[] newIntPresence = truncate(intPresence,
+                CarDiagnosticSensorIndices.Obd2IntegerSensorIndex.LAST_SYSTEM);
+        long[] newFloatPresence = truncate(floatPresence,
+                CarDiagnosticSensorIndices.Obd2FloatSensorIndex.LAST_SYSTEM);
+        return new CarDiagnosticEvent(frameType, timestamp,
+                Arrays.copyOf(floatValues, presentCount(newFloatPresence)), newFloatPresence,
+                Arrays.copyOf(intValues, presentCount(newIntPresence)), newIntPresence,
+                dtc);
     }
 
     public boolean isLiveFrame() {
@@ -250,12 +410,38 @@ public class CarDiagnosticEvent implements Parcelable {
     }
 
     public boolean isEmptyFrame() {
-        boolean empty = (0 == intValues.size());
-        empty &= (0 == floatValues.size());
+        boolean empty = isEmpty(intPresence);
+        empty &= isEmpty(floatPresence);
         if (isFreezeFrame()) empty &= dtc.isEmpty();
         return empty;
     }
 
+    /** Compares bitmaps, missing trailing words count as words without bits set. */
+    private static boolean bitmapsEqual(long[] a, long[] b) {
+        for (int i = 0; i < Math.max(a.length, b.length); ++i) {
+            long wordA = i < a.length ? a[i] : 0;
+            long wordB = i < b.length ? b[i] : 0;
+            if (wordA != wordB) return false;
+        }
+        return true;
+    }
+
+    /** Hash code consistent with {@link #bitmapsEqual(long[], long[])}. */
+    private static int bitmapHashCode(long[] bitmap) {
+        int hash = 1;
+        for (int i = 0; i < bitmapSize(presentCount(bitmap)); ++i) {
+            hash = 31 * hash + Long.hashCode(bitmap[i]);
+        }
+        return hash;
+    }
+
+    private static boolean isEmpty(long[] bitmap) {
+        for (long word : bitmap) {
+            if (word != 0) return false;
+        }
+        return true;
+    }
+
     /** @hide */
     public CarDiagnosticEvent checkLiveFrame() {
         if (!isLiveFrame()) throw new IllegalStateException("frame is not a live frame");
@@ -290,33 +476,20 @@ public class CarDiagnosticEvent implements Parcelable {
             return false;
         if (otherEvent.timestamp != timestamp)
             return false;
-        if (otherEvent.intValues.size() != intValues.size())
-            return false;
-        if (otherEvent.floatValues.size() != floatValues.size())
-            return false;
         if (!Objects.equals(dtc, otherEvent.dtc))
             return false;
-        for (int i = 0; i < intValues.size(); ++i) {
-            int key = intValues.keyAt(i);
-            int otherKey = otherEvent.intValues.keyAt(i);
-            if (key != otherKey) {
-                return false;
-            }
-            int value = intValues.valueAt(i);
-            int otherValue = otherEvent.intValues.valueAt(i);
-            if (value != otherValue) {
-                return false;
-            }
+        // Arrays might be preallocated past the highest present property, so sizes can differ.
+        if (!bitmapsEqual(intPresence, otherEvent.intPresence)
+                || !bitmapsEqual(floatPresence, otherEvent.floatPresence)) {
+            return false;
         }
-        for (int i = 0; i < floatValues.size(); ++i) {
-            int key = floatValues.keyAt(i);
-            int otherKey = otherEvent.floatValues.keyAt(i);
-            if (key != otherKey) {
+        for (int i = 0; i < intValues.length; ++i) {
+            if (isSet(intPresence, i) && intValues[i] != otherEvent.intValues[i]) {
                 return false;
             }
-            float value = floatValues.valueAt(i);
-            float otherValue = otherEvent.floatValues.valueAt(i);
-            if (value != otherValue) {
+        }
+        for (int i = 0; i < floatValues.length; ++i) {
+            if (isSet(floatPresence, i) && floatValues[i] != otherEvent.floatValues[i]) {
                 return false;
             }
         }
@@ -325,33 +498,41 @@ public class CarDiagnosticEvent implements Parcelable {
 
     @Override
     public int hashCode() {
-        Integer[] intKeys = new Integer[intValues.size()];
-        Integer[] floatKeys = new Integer[floatValues.size()];
-        Integer[] intValues = new Integer[intKeys.length];
-        Float[] floatValues = new Float[floatKeys.length];
-        for (int i = 0; i < intKeys.length; ++i) {
-            intKeys[i] = this.intValues.keyAt(i);
-            intValues[i] = this.intValues.valueAt(i);
-        }
-        for (int i = 0; i < floatKeys.length; ++i) {
-            floatKeys[i] = this.floatValues.keyAt(i);
-            floatValues[i] = this.floatValues.valueAt(i);
-        }
-        int intKeysHash = Objects.hash((Object[])intKeys);
-        int intValuesHash = Objects.hash((Object[])intValues);
-        int floatKeysHash = Objects.hash((Object[])floatKeys);
-        int floatValuesHash = Objects.hash((Object[])floatValues);
+        int intValuesHash = 1;
+        for (int i = 0; i < intValues.length; ++i) {
+            if (isSet(intPresence, i)) {
+                intValuesHash = 31 * intValuesHash + intValues[i];
+            }
+        }
+        int floatValuesHash = 1;
+        for (int i = 0; i < floatValues.length; ++i) {
+            if (isSet(floatPresence, i)) {
+                floatValuesHash = 31 * floatValuesHash + Float.floatToIntBits(floatValues[i]);
+            }
+        }
         return Objects.hash(frameType,
                 timestamp,
                 dtc,
-                intKeysHash,
+                bitmapHashCode(intPresence),
                 intValuesHash,
-                floatKeysHash,
+                bitmapHashCode(floatPresence),
                 floatValuesHash);
     }
 
     @Override
     public String toString() {
+        StringBuilder ints = new StringBuilder("{");
+        for (int i = 0; i < intValues.length; ++i) {
+            if (!isSet(intPresence, i)) continue;
+            if (ints.length() > 1) ints.append(", ");
+            ints.append(i).append('=').append(intValues[i]);
+        }
+        StringBuilder floats = new StringBuilder("{");
+        for (int i = 0; i < floatValues.length; ++i) {
+            if (!isSet(floatPresence, i)) continue;
+            if (floats.length() > 1) floats.append(", ");
+            floats.append(i).append('=').append(floatValues[i]);
+        }
         return String.format(
                 "%s diagnostic frame {\n"
                         + "\ttimestamp: %d, "
@@ -361,52 +542,58 @@ public class CarDiagnosticEvent implements Parcelable {
                 isLiveFrame() ? "live" : "freeze",
                 timestamp,
                 dtc,
-                intValues.toString(),
-                floatValues.toString());
+                ints.append('}'),
+                floats.append('}'));
+    }
+
+    /** Returns whether the integer property is present in this frame. */
+    public boolean hasIntegerSensor(int sensor) {
+        return sensor >= 0 && sensor < intValues.length && isSet(intPresence, sensor);
+    }
+
+    /** Returns whether the float property is present in this frame. */
+    public boolean hasFloatSensor(int sensor) {
+        return sensor >= 0 && sensor < floatValues.length && isSet(floatPresence, sensor);
     }
 
     public int getSystemIntegerSensor(
             @CarDiagnosticSensorIndices.IntegerSensorIndex int sensor, int defaultValue) {
-        return intValues.get(sensor, defaultValue);
+        return hasIntegerSensor(sensor) ? intValues[sensor] : defaultValue;
     }
 
     public float getSystemFloatSensor(
             @CarDiagnosticSensorIndices.FloatSensorIndex int sensor, float defaultValue) {
-        return floatValues.get(sensor, defaultValue);
+        return hasFloatSensor(sensor) ? floatValues[sensor] : defaultValue;
     }
 
     public int getVendorIntegerSensor(int sensor, int defaultValue) {
-        return intValues.get(sensor, defaultValue);
+        return hasIntegerSensor(sensor) ? intValues[sensor] : defaultValue;
     }
 
     public float getVendorFloatSensor(int sensor, float defaultValue) {
-        return floatValues.get(sensor, defaultValue);
+        return hasFloatSensor(sensor) ? floatValues[sensor] : defaultValue;
     }
 
     public @Nullable Integer getSystemIntegerSensor(
             @CarDiagnosticSensorIndices.IntegerSensorIndex int sensor) {
-        int index = intValues.indexOfKey(sensor);
-        if (index < 0) return null;
-        return intValues.valueAt(index);
+        if (!hasIntegerSensor(sensor)) return null;
+        return intValues[sensor];
     }
 
     public @Nullable Float getSystemFloatSensor(
             @CarDiagnosticSensorIndices.FloatSensorIndex int sensor) {
-        int index = floatValues.indexOfKey(sensor);
-        if (index < 0) return null;
-        return floatValues.valueAt(index);
+        if (!hasFloatSensor(sensor)) return null;
+        return floatValues[sensor];
     }
 
     public @Nullable Integer getVendorIntegerSensor(int sensor) {
-        int index = intValues.indexOfKey(sensor);
-        if (index < 0) return null;
-        return intValues.valueAt(index);
+        if (!hasIntegerSensor(sensor)) return null;
+        return intValues[sensor];
     }
 
     public @Nullable Float getVendorFloatSensor(int sensor) {
-        int index = floatValues.indexOfKey(sensor);
-        if (index < 0) return null;
-        return floatValues.valueAt(index);
+        if (!hasFloatSensor(sensor)) return null;
+        return floatValues[sensor];
     }
 
     /**
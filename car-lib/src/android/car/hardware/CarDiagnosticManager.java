@@ -37,6 +37,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.function.Consumer;
 
@@ -222,7 +223,8 @@ public final class CarDiagnosticManager implements CarManagerBase {
     }
 
     /**
-     * Return the list of the timestamps for which a freeze frame is currently stored.
+     * Return the list of the timestamps for which a freeze frame is currently stored, oldest
+     * first.
      * @return
      * @throws CarNotConnectedException
      */
@@ -254,6 +256,28 @@ public final class CarDiagnosticManager implements CarManagerBase {
         return null;
     }
 
+    /**
+     * Retrieve up to maxCount freeze frames with timestamps between startTimestamp and
+     * endTimestamp, both included, newest first. To page through all stored frames, pass the
+     * timestamp of the last returned frame minus one as the next endTimestamp.
+     * @param startTimestamp
+     * @param endTimestamp
+     * @param maxCount
+     * @return
+     * @throws CarNotConnectedException
+     */
+    public List<CarDiagnosticEvent> getFreezeFrames(long startTimestamp, long endTimestamp,
+            int maxCount) throws CarNotConnectedException {
+        try {
+            return mService.getFreezeFrames(startTimestamp, endTimestamp, maxCount);
+        } catch (IllegalStateException e) {
+            CarApiUtil.checkCarNotConnectedExceptionFromCarService(e);
+        } catch (RemoteException e) {
+            throw new CarNotConnectedException();
+        }
+        return Collections.emptyList();
+    }
+
     /**
      * Clear the freeze frame information from vehicle memory at the given timestamps.
      * @param timestamps
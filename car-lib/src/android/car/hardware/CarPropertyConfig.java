@@ -38,16 +38,25 @@ import java.lang.reflect.Array;
  */
 @SystemApi
 public class CarPropertyConfig<T> implements Parcelable {
+    /** Value of the property never changes. @hide */
+    public static final int CHANGE_MODE_STATIC = 0;
+    /** Property changes are reported as they happen. @hide */
+    public static final int CHANGE_MODE_ON_CHANGE = 1;
+    /** Property changes continuously and is sampled at a rate. @hide */
+    public static final int CHANGE_MODE_CONTINUOUS = 2;
+
     private final int mPropertyId;
     private final Class<T> mType;
     private final int mAreaType;
+    private final int mChangeMode;
     private final SparseArray<AreaConfig<T>> mSupportedAreas;
 
-    private CarPropertyConfig(Class<T> type, int propertyId, int areaType,
+    private CarPropertyConfig(Class<T> type, int propertyId, int areaType, int changeMode,
             SparseArray<AreaConfig<T>> supportedAreas) {
         mPropertyId = propertyId;
         mType = type;
         mAreaType = areaType;
+        mChangeMode = changeMode;
         mSupportedAreas = supportedAreas;
     }
 
@@ -55,6 +64,14 @@ public class CarPropertyConfig<T> implements Parcelable {
     public Class<T> getPropertyType() { return mType; }
     public @VehicleAreaType.VehicleAreaTypeValue int getAreaType() { return mAreaType; }
 
+    /**
+     * Returns one of {@link #CHANGE_MODE_STATIC}, {@link #CHANGE_MODE_ON_CHANGE} or
+     * {@link #CHANGE_MODE_CONTINUOUS}.
+     *
+     * @hide
+     */
+    public int getChangeMode() { return mChangeMode; }
+
     /** Returns true if this property doesn't hold car area-specific configuration */
     public boolean isGlobalProperty() {
         return mAreaType == VehicleAreaType.VEHICLE_AREA_TYPE_NONE;
@@ -122,6 +139,7 @@ public class CarPropertyConfig<T> implements Parcelable {
         dest.writeInt(mPropertyId);
         dest.writeString(mType.getName());
         dest.writeInt(mAreaType);
+        dest.writeInt(mChangeMode);
         dest.writeInt(mSupportedAreas.size());
         for (int i = 0; i < mSupportedAreas.size(); i++) {
             dest.writeInt(mSupportedAreas.keyAt(i));
@@ -139,6 +157,7 @@ public class CarPropertyConfig<T> implements Parcelable {
             throw new IllegalArgumentException("Class not found: " + className);
         }
         mAreaType = in.readInt();
+        mChangeMode = in.readInt();
         int areaSize = in.readInt();
         mSupportedAreas = new SparseArray<>(areaSize);
         for (int i = 0; i < areaSize; i++) {
@@ -166,6 +185,7 @@ public class CarPropertyConfig<T> implements Parcelable {
                 "mPropertyId=" + mPropertyId +
                 ", mType=" + mType +
                 ", mAreaType=" + mAreaType +
+                ", mChangeMode=" + mChangeMode +
                 ", mSupportedAreas=" + mSupportedAreas +
                 '}';
     }
@@ -239,6 +259,8 @@ public class CarPropertyConfig<T> implements Parcelable {
         private final Class<T> mType;
         private final int mPropertyId;
         private final int mAreaType;
+        /** Continuous unless told otherwise, as it is the only mode not safe to cache. */
+        private int mChangeMode = CHANGE_MODE_CONTINUOUS;
         private final SparseArray<AreaConfig<T>> mAreas;
 
         private Builder(Class<T> type, int propertyId, int areaType, int areaCapacity) {
@@ -272,8 +294,14 @@ public class CarPropertyConfig<T> implements Parcelable {
             return this;
         }
 
+        /** @hide */
+        public Builder<T> setChangeMode(int changeMode) {
+            mChangeMode = changeMode;
+            return this;
+        }
+
         public CarPropertyConfig<T> build() {
-            return new CarPropertyConfig<>(mType, mPropertyId, mAreaType, mAreas);
+            return new CarPropertyConfig<>(mType, mPropertyId, mAreaType, mChangeMode, mAreas);
         }
     }
 }
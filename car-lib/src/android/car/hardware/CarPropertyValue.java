@@ -37,6 +37,19 @@ public class CarPropertyValue<T> implements Parcelable {
 
     private final static Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
 
+    // Types of values parceled without boxing or class lookup. Other values are parceled with
+    // their class name and Parcel#writeValue(Object).
+    private static final int VALUE_TYPE_NULL = 0;
+    private static final int VALUE_TYPE_OTHER = 1;
+    private static final int VALUE_TYPE_INT = 2;
+    private static final int VALUE_TYPE_FLOAT = 3;
+    private static final int VALUE_TYPE_BOOLEAN = 4;
+    private static final int VALUE_TYPE_LONG = 5;
+    private static final int VALUE_TYPE_STRING = 6;
+    private static final int VALUE_TYPE_BYTES = 7;
+    private static final int VALUE_TYPE_INT_ARRAY = 8;
+    private static final int VALUE_TYPE_FLOAT_ARRAY = 9;
+
     private final int mPropertyId;
     private final int mAreaId;
     private final T mValue;
@@ -55,21 +68,52 @@ public class CarPropertyValue<T> implements Parcelable {
     public CarPropertyValue(Parcel in) {
         mPropertyId = in.readInt();
         mAreaId = in.readInt();
-        String valueClassName = in.readString();
-        Class<?> valueClass;
-        try {
-            valueClass = Class.forName(valueClassName);
-        } catch (ClassNotFoundException e) {
-            throw new IllegalArgumentException("Class not found: " + valueClassName);
-        }
+        mValue = (T) readValue(in);
+    }
 
-        if (String.class.equals(valueClass)) {
-            byte[] bytes = in.readBlob();
-            mValue = (T) new String(bytes, DEFAULT_CHARSET);
-        } else if (byte[].class.equals(valueClass)) {
-            mValue = (T) in.readBlob();
-        } else {
-            mValue = (T) in.readValue(valueClass.getClassLoader());
+    private static Object readValue(Parcel in) {
+        int valueType = in.readInt();
+        switch (valueType) {
+            case VALUE_TYPE_NULL:
+                return null;
+            case VALUE_TYPE_INT:
+                return in.readInt();
+            case VALUE_TYPE_FLOAT:
+                return in.readFloat();
+            case VALUE_TYPE_BOOLEAN:
+                return in.readInt() != 0;
+            case VALUE_TYPE_LONG:
+                return in.readLong();
+            case VALUE_TYPE_STRING:
+                return new String(in.readBlob(), DEFAULT_CHARSET);
+            case VALUE_TYPE_BYTES:
+                return in.readBlob();
+            case VALUE_TYPE_INT_ARRAY: {
+                Integer[] values = new Integer[in.readInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.readInt();
+                }
+                return values;
+            }
+            case VALUE_TYPE_FLOAT_ARRAY: {
+                Float[] values = new Float[in.readInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.readFloat();
+                }
+                return values;
+            }
+            case VALUE_TYPE_OTHER: {
+                String valueClassName = in.readString();
+                Class<?> valueClass;
+                try {
+                    valueClass = Class.forName(valueClassName);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalArgumentException("Class not found: " + valueClassName);
+                }
+                return in.readValue(valueClass.getClassLoader());
+            }
+            default:
+                throw new IllegalArgumentException("Unexpected value type: " + valueType);
         }
     }
 
@@ -95,16 +139,49 @@ public class CarPropertyValue<T> implements Parcelable {
         dest.writeInt(mPropertyId);
         dest.writeInt(mAreaId);
 
-        Class<?> valueClass = mValue == null ? null : mValue.getClass();
-        dest.writeString(valueClass == null ? null : valueClass.getName());
+        writeValue(dest, mValue);
+    }
 
+    private static void writeValue(Parcel dest, Object value) {
         // Special handling for String and byte[] to mitigate transaction buffer limitations.
-        if (String.class.equals(valueClass)) {
-            dest.writeBlob(((String)mValue).getBytes(DEFAULT_CHARSET));
-        } else if (byte[].class.equals(valueClass)) {
-            dest.writeBlob((byte[]) mValue);
+        if (value == null) {
+            dest.writeInt(VALUE_TYPE_NULL);
+        } else if (value instanceof Integer) {
+            dest.writeInt(VALUE_TYPE_INT);
+            dest.writeInt((Integer) value);
+        } else if (value instanceof Float) {
+            dest.writeInt(VALUE_TYPE_FLOAT);
+            dest.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            dest.writeInt(VALUE_TYPE_BOOLEAN);
+            dest.writeInt((Boolean) value ? 1 : 0);
+        } else if (value instanceof Long) {
+            dest.writeInt(VALUE_TYPE_LONG);
+            dest.writeLong((Long) value);
+        } else if (value instanceof String) {
+            dest.writeInt(VALUE_TYPE_STRING);
+            dest.writeBlob(((String) value).getBytes(DEFAULT_CHARSET));
+        } else if (value instanceof byte[]) {
+            dest.writeInt(VALUE_TYPE_BYTES);
+            dest.writeBlob((byte[]) value);
+        } else if (value instanceof Integer[]) {
+            Integer[] values = (Integer[]) value;
+            dest.writeInt(VALUE_TYPE_INT_ARRAY);
+            dest.writeInt(values.length);
+            for (Integer v : values) {
+                dest.writeInt(v);
+            }
+        } else if (value instanceof Float[]) {
+            Float[] values = (Float[]) value;
+            dest.writeInt(VALUE_TYPE_FLOAT_ARRAY);
+            dest.writeInt(values.length);
+            for (Float v : values) {
+                dest.writeFloat(v);
+            }
         } else {
-            dest.writeValue(mValue);
+            dest.writeInt(VALUE_TYPE_OTHER);
+            dest.writeString(value.getClass().getName());
+            dest.writeValue(value);
         }
     }
 
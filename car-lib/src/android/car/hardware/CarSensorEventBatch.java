@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.hardware;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact representation of many {@link CarSensorEvent}s sent in one binder transaction.
+ *
+ * <p>Events are grouped by sensor type and value shape. Each group keeps its timestamps, float
+ * values and int values in parallel primitive arrays, so parceling a group costs three array
+ * writes instead of one {@link Parcelable} per event. {@link CarSensorEvent}s are only created
+ * on demand through {@link #createEvent(int, int)}.
+ * @hide
+ */
+public class CarSensorEventBatch implements Parcelable {
+
+    private final Group[] mGroups;
+
+    private CarSensorEventBatch(Group[] groups) {
+        mGroups = groups;
+    }
+
+    /** Packs given events. Order of events of the same sensor type is kept. */
+    public static CarSensorEventBatch create(List<CarSensorEvent> events) {
+        // First pass: count events of each group, there are only a few groups per dispatch.
+        final int size = events.size();
+        int[] groupOfEvent = new int[size];
+        int groupCount = 0;
+        int[] types = new int[size];
+        int[] floatCounts = new int[size];
+        int[] intCounts = new int[size];
+        int[] eventCounts = new int[size];
+        for (int i = 0; i < size; i++) {
+            CarSensorEvent event = events.get(i);
+            int group = 0;
+            while (group < groupCount && !(types[group] == event.sensorType
+                    && floatCounts[group] == event.floatValues.length
+                    && intCounts[group] == event.intValues.length)) {
+                group++;
+            }
+            if (group == groupCount) {
+                types[group] = event.sensorType;
+                floatCounts[group] = event.floatValues.length;
+                intCounts[group] = event.intValues.length;
+                groupCount++;
+            }
+            eventCounts[group]++;
+            groupOfEvent[i] = group;
+        }
+        // Second pass: fill exactly sized arrays.
+        Group[] groups = new Group[groupCount];
+        for (int g = 0; g < groupCount; g++) {
+            groups[g] = new Group(types[g], floatCounts[g], intCounts[g], eventCounts[g]);
+        }
+        for (int i = 0; i < size; i++) {
+            groups[groupOfEvent[i]].add(events.get(i));
+        }
+        return new CarSensorEventBatch(groups);
+    }
+
+    private CarSensorEventBatch(Parcel in) {
+        int groupCount = in.readInt();
+        mGroups = new Group[groupCount];
+        for (int g = 0; g < groupCount; g++) {
+            mGroups[g] = new Group(in);
+        }
+    }
+
+    public int getGroupCount() {
+        return mGroups.length;
+    }
+
+    public int getSensorType(int group) {
+        return mGroups[group].mSensorType;
+    }
+
+    public int getEventCount(int group) {
+        return mGroups[group].mTimestamps.length;
+    }
+
+    /** Total number of events in all groups. */
+    public int getEventCount() {
+        int count = 0;
+        for (Group group : mGroups) {
+            count += group.mTimestamps.length;
+        }
+        return count;
+    }
+
+    public long getTimestamp(int group, int index) {
+        return mGroups[group].mTimestamps[index];
+    }
+
+    /** Creates a new event for given position. Each call returns a new instance. */
+    public CarSensorEvent createEvent(int group, int index) {
+        return mGroups[group].createEvent(index);
+    }
+
+    /** Unpacks all events, grouped by sensor type. */
+    public List<CarSensorEvent> toList() {
+        List<CarSensorEvent> events = new ArrayList<>(getEventCount());
+        for (Group group : mGroups) {
+            for (int i = 0; i < group.mTimestamps.length; i++) {
+                events.add(group.createEvent(i));
+            }
+        }
+        return events;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mGroups.length);
+        for (Group group : mGroups) {
+            group.writeToParcel(dest);
+        }
+    }
+
+    public static final Parcelable.Creator<CarSensorEventBatch> CREATOR =
+            new Parcelable.Creator<CarSensorEventBatch>() {
+        public CarSensorEventBatch createFromParcel(Parcel in) {
+            return new CarSensorEventBatch(in);
+        }
+
+        public CarSensorEventBatch[] newArray(int size) {
+            return new CarSensorEventBatch[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getClass().getName() + "[");
+        for (Group group : mGroups) {
+            sb.append("type:").append(group.mSensorType)
+                    .append(" count:").append(group.mTimestamps.length).append(' ');
+        }
+        return sb.append(']').toString();
+    }
+
+    /** Events of one sensor type which all have the same number of float and int values. */
+    private static class Group {
+        private final int mSensorType;
+        private final int mFloatsPerEvent;
+        private final int mIntsPerEvent;
+        private final long[] mTimestamps;
+        private final float[] mFloatValues;
+        private final int[] mIntValues;
+        /** Only used while building. */
+        private int mSize;
+
+        private Group(int sensorType, int floatsPerEvent, int intsPerEvent, int eventCount) {
+            mSensorType = sensorType;
+            mFloatsPerEvent = floatsPerEvent;
+            mIntsPerEvent = intsPerEvent;
+            mTimestamps = new long[eventCount];
+            mFloatValues = new float[eventCount * floatsPerEvent];
+            mIntValues = new int[eventCount * intsPerEvent];
+        }
+
+        private Group(Parcel in) {
+            mSensorType = in.readInt();
+            mFloatsPerEvent = in.readInt();
+            mIntsPerEvent = in.readInt();
+            mTimestamps = in.createLongArray();
+            mFloatValues = in.createFloatArray();
+            mIntValues = in.createIntArray();
+            mSize = mTimestamps.length;
+        }
+
+        private void add(CarSensorEvent event) {
+            mTimestamps[mSize] = event.timestamp;
+            System.arraycopy(event.floatValues, 0, mFloatValues, mSize * mFloatsPerEvent,
+                    mFloatsPerEvent);
+            System.arraycopy(event.intValues, 0, mIntValues, mSize * mIntsPerEvent,
+                    mIntsPerEvent);
+            mSize++;
+        }
+
+        private CarSensorEvent createEvent(int index) {
+            return new CarSensorEvent(mSensorType, mTimestamps[index],
+                    Arrays.copyOfRange(mFloatValues, index * mFloatsPerEvent,
+                            (index + 1) * mFloatsPerEvent),
+                    Arrays.copyOfRange(mIntValues, index * mIntsPerEvent,
+                            (index + 1) * mIntsPerEvent));
+        }
+
+        private void writeToParcel(Parcel dest) {
+            dest.writeInt(mSensorType);
+            dest.writeInt(mFloatsPerEvent);
+            dest.writeInt(mIntsPerEvent);
+            dest.writeLongArray(mTimestamps);
+            dest.writeFloatArray(mFloatValues);
+            dest.writeIntArray(mIntValues);
+        }
+    }
+}
@@ -25,9 +25,12 @@ import android.car.CarLibLog;
 import android.car.CarManagerBase;
 import android.car.CarNotConnectedException;
 import android.content.Context;
+import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
@@ -39,6 +42,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.function.Consumer;
@@ -196,22 +200,24 @@ public final class CarSensorManager implements CarManagerBase {
     private final SparseArray<CarSensorListeners> mActiveSensorListeners = new SparseArray<>();
 
     /** Handles call back into clients. */
-    private final SingleMessageHandler<CarSensorEvent> mHandlerCallback;
+    private final SingleMessageHandler<CarSensorEventBatch> mHandlerCallback;
 
 
     /** @hide */
     public CarSensorManager(IBinder service, Context context, Handler handler) {
         mService = ICarSensor.Stub.asInterface(service);
-        mHandlerCallback = new SingleMessageHandler<CarSensorEvent>(handler.getLooper(),
+        mHandlerCallback = new SingleMessageHandler<CarSensorEventBatch>(handler.getLooper(),
                 MSG_SENSOR_EVENTS) {
             @Override
-            protected void handleEvent(CarSensorEvent event) {
-                CarSensorListeners listeners;
-                synchronized (mActiveSensorListeners) {
-                    listeners = mActiveSensorListeners.get(event.sensorType);
-                }
-                if (listeners != null) {
-                    listeners.onSensorChanged(event);
+            protected void handleEvent(CarSensorEventBatch batch) {
+                for (int group = 0; group < batch.getGroupCount(); group++) {
+                    CarSensorListeners listeners;
+                    synchronized (mActiveSensorListeners) {
+                        listeners = mActiveSensorListeners.get(batch.getSensorType(group));
+                    }
+                    if (listeners != null) {
+                        listeners.onSensorChanged(batch, group);
+                    }
                 }
             }
         };
@@ -429,6 +435,46 @@ public final class CarSensorManager implements CarManagerBase {
         return null;
     }
 
+    /**
+     * Opens a shared memory ring which receives every event of the given sensors at
+     * {@link #SENSOR_RATE_FASTEST}, without a binder call per event. Only sensors with at most
+     * one float and one int value are written to the ring. Caller should poll the returned reader
+     * and close it when done. Requires the same permissions as
+     * {@link #registerListener(OnSensorChangedListener, int, int)}.
+     * @param sensorTypes sensors to write into the ring.
+     * @param capacity number of records kept in the ring before the oldest are overwritten.
+     * @return null if one of the sensors is not supported.
+     * @throws CarNotConnectedException if the connection to the car service has been lost.
+     * @hide
+     */
+    public CarSensorRingReader openSensorRing(int[] sensorTypes, int capacity)
+            throws CarNotConnectedException {
+        for (int type : sensorTypes) {
+            assertSensorType(type);
+        }
+        IBinder token = new Binder();
+        SharedMemory memory = null;
+        try {
+            memory = mService.openSensorRing(sensorTypes, capacity, token);
+            if (memory == null) {
+                return null;
+            }
+            return new CarSensorRingReader(memory, mService, token);
+        } catch (IllegalStateException e) {
+            CarApiUtil.checkCarNotConnectedExceptionFromCarService(e);
+        } catch (RemoteException e) {
+            handleCarServiceRemoteExceptionAndThrow(e);
+        } catch (ErrnoException e) {
+            Log.w(CarLibLog.TAG_SENSOR, "Cannot map sensor ring", e);
+            memory.close();
+            try {
+                mService.closeSensorRing(token);
+            } catch (RemoteException ignored) {
+            }
+        }
+        return null;
+    }
+
     private void handleCarServiceRemoteExceptionAndThrow(RemoteException e)
             throws CarNotConnectedException {
         if (Log.isLoggable(CarLibLog.TAG_SENSOR, Log.INFO)) {
@@ -445,8 +491,8 @@ public final class CarSensorManager implements CarManagerBase {
         }
     }
 
-    private void handleOnSensorChanged(List<CarSensorEvent> events) {
-        mHandlerCallback.sendEvents(events);
+    private void handleOnSensorChanged(CarSensorEventBatch batch) {
+        mHandlerCallback.sendEvents(Collections.singletonList(batch));
     }
 
     private static class CarSensorEventListenerToService extends ICarSensorEventListener.Stub {
@@ -460,7 +506,15 @@ public final class CarSensorManager implements CarManagerBase {
         public void onSensorChanged(List<CarSensorEvent> events) {
             CarSensorManager manager = mManager.get();
             if (manager != null) {
-                manager.handleOnSensorChanged(events);
+                manager.handleOnSensorChanged(CarSensorEventBatch.create(events));
+            }
+        }
+
+        @Override
+        public void onSensorEventBatch(CarSensorEventBatch batch) {
+            CarSensorManager manager = mManager.get();
+            if (manager != null) {
+                manager.handleOnSensorChanged(batch);
             }
         }
     }
@@ -470,24 +524,33 @@ public final class CarSensorManager implements CarManagerBase {
             super(rate);
         }
 
-        void onSensorChanged(final CarSensorEvent event) {
-            // throw away old sensor data as oneway binder call can change order.
-            long updateTime = event.timestamp;
-            if (updateTime < mLastUpdateTime) {
-                Log.w(CarLibLog.TAG_SENSOR, "dropping old sensor data");
-                return;
-            }
-            mLastUpdateTime = updateTime;
-            List<OnSensorChangedListener> listeners;
-            synchronized (mActiveSensorListeners) {
-                listeners = new ArrayList<>(getListeners());
-            }
-            listeners.forEach(new Consumer<OnSensorChangedListener>() {
-                @Override
-                public void accept(OnSensorChangedListener listener) {
-                    listener.onSensorChanged(event);
+        /**
+         * Delivers events of given batch group. Events are created only for data which is not
+         * dropped.
+         */
+        void onSensorChanged(CarSensorEventBatch batch, int group) {
+            List<OnSensorChangedListener> listeners = null;
+            for (int i = 0; i < batch.getEventCount(group); i++) {
+                // throw away old sensor data as oneway binder call can change order.
+                long updateTime = batch.getTimestamp(group, i);
+                if (updateTime < mLastUpdateTime) {
+                    Log.w(CarLibLog.TAG_SENSOR, "dropping old sensor data");
+                    continue;
+                }
+                mLastUpdateTime = updateTime;
+                if (listeners == null) {
+                    synchronized (mActiveSensorListeners) {
+                        listeners = new ArrayList<>(getListeners());
+                    }
                 }
-            });
+                final CarSensorEvent event = batch.createEvent(group, i);
+                listeners.forEach(new Consumer<OnSensorChangedListener>() {
+                    @Override
+                    public void accept(OnSensorChangedListener listener) {
+                        listener.onSensorChanged(event);
+                    }
+                });
+            }
         }
     }
 }
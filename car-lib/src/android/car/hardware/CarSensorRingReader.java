@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.hardware;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Reads sensor events from a shared memory ring written by car service, without a binder call
+ * per event. Obtained through {@link CarSensorManager#openSensorRing(int[], int)}.
+ *
+ * <p>The ring holds fixed size records for sensors with at most one float and one int value.
+ * Every record carries a sequence number. When the reader falls more than the ring capacity
+ * behind, the oldest records are overwritten; such records are counted in
+ * {@link #getDroppedCount()} instead of being returned.
+ *
+ * <p>Layout, in native byte order: a header of {@link #HEADER_SIZE} bytes followed by
+ * capacity records of {@link #RECORD_SIZE} bytes.
+ *
+ * <p>Records are published with their sequence number, like a sequence lock. The writer of
+ * record {@code n}:
+ * <ol>
+ * <li>stores {@link #INVALID_SEQUENCE} as the record sequence, then a store-store fence,
+ * <li>stores the values,
+ * <li>stores {@code n} as the record sequence with release semantics,
+ * <li>stores {@code n + 1} as the header write sequence with release semantics.
+ * </ol>
+ * The reader loads the header write sequence with acquire semantics. For each record it has not
+ * read yet, it loads the record sequence with acquire semantics, then the values, then a
+ * load-load fence, then the record sequence again. The record is only returned if both
+ * sequences are {@code n}, otherwise the writer updated it in the meantime and it is counted as
+ * dropped. The ordered accesses are done with {@link SensorRingSequences}.
+ *
+ * <p>This class is not thread safe.
+ * @hide
+ */
+public class CarSensorRingReader implements AutoCloseable {
+
+    /** @hide */
+    public static final int MAGIC = 0x43535231;  // "CSR1"
+
+    /** @hide */
+    public static final int HEADER_OFFSET_MAGIC = 0;
+    /** @hide */
+    public static final int HEADER_OFFSET_CAPACITY = 4;
+    /** Number of records written so far, which is also the sequence of the next record. @hide */
+    public static final int HEADER_OFFSET_WRITE_SEQUENCE = 8;
+    /** @hide */
+    public static final int HEADER_SIZE = 16;
+
+    /** Sequence of the record, or {@link #INVALID_SEQUENCE} while it is updated. @hide */
+    public static final int RECORD_OFFSET_SEQUENCE = 0;
+    /** @hide */
+    public static final int RECORD_OFFSET_TIMESTAMP = 8;
+    /** @hide */
+    public static final int RECORD_OFFSET_SENSOR_TYPE = 16;
+    /** Combination of {@link #FLAG_HAS_FLOAT} and {@link #FLAG_HAS_INT}. @hide */
+    public static final int RECORD_OFFSET_FLAGS = 20;
+    /** @hide */
+    public static final int RECORD_OFFSET_FLOAT_VALUE = 24;
+    /** @hide */
+    public static final int RECORD_OFFSET_INT_VALUE = 28;
+    /** @hide */
+    public static final int RECORD_SIZE = 32;
+
+    /** @hide */
+    public static final long INVALID_SEQUENCE = -1;
+    /** @hide */
+    public static final int FLAG_HAS_FLOAT = 0x1;
+    /** @hide */
+    public static final int FLAG_HAS_INT = 0x2;
+
+    /** Returns size of a ring buffer for given number of records. @hide */
+    public static int getBufferSize(int capacity) {
+        return HEADER_SIZE + capacity * RECORD_SIZE;
+    }
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    private final SharedMemory mMemory;
+    private final ICarSensor mService;
+    private final IBinder mToken;
+
+    private long mNextSequence;
+    private long mDroppedCount;
+    private boolean mClosed;
+
+    CarSensorRingReader(SharedMemory memory, ICarSensor service, IBinder token)
+            throws ErrnoException {
+        mMemory = memory;
+        mService = service;
+        mToken = token;
+        mBuffer = memory.mapReadOnly().order(ByteOrder.nativeOrder());
+        mCapacity = readHeader(mBuffer);
+    }
+
+    /** Reads a ring from the given direct buffer, only for testing. @hide */
+    public CarSensorRingReader(ByteBuffer buffer) {
+        mMemory = null;
+        mService = null;
+        mToken = null;
+        mBuffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+        mCapacity = readHeader(mBuffer);
+    }
+
+    private static int readHeader(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE
+                || SensorRingSequences.loadInt(buffer, HEADER_OFFSET_MAGIC) != MAGIC) {
+            throw new IllegalArgumentException("Not a sensor ring buffer");
+        }
+        int capacity = buffer.getInt(HEADER_OFFSET_CAPACITY);
+        if (capacity <= 0 || buffer.capacity() < getBufferSize(capacity)) {
+            throw new IllegalArgumentException("Invalid sensor ring capacity:" + capacity);
+        }
+        return capacity;
+    }
+
+    /**
+     * Adds all events written since the last call to {@code out}, oldest first.
+     *
+     * @return number of events added
+     */
+    public int read(List<CarSensorEvent> out) {
+        if (mClosed) {
+            throw new IllegalStateException("Sensor ring already closed");
+        }
+        long writeSequence = SensorRingSequences.load(mBuffer, HEADER_OFFSET_WRITE_SEQUENCE);
+        if (writeSequence - mNextSequence > mCapacity) {
+            long oldestAvailable = writeSequence - mCapacity;
+            mDroppedCount += oldestAvailable - mNextSequence;
+            mNextSequence = oldestAvailable;
+        }
+        int count = 0;
+        for (; mNextSequence < writeSequence; mNextSequence++) {
+            int offset = HEADER_SIZE + (int) (mNextSequence % mCapacity) * RECORD_SIZE;
+            if (SensorRingSequences.load(mBuffer, offset + RECORD_OFFSET_SEQUENCE)
+                    != mNextSequence) {
+                mDroppedCount++;
+                continue;
+            }
+            long timestamp = mBuffer.getLong(offset + RECORD_OFFSET_TIMESTAMP);
+            int sensorType = mBuffer.getInt(offset + RECORD_OFFSET_SENSOR_TYPE);
+            int flags = mBuffer.getInt(offset + RECORD_OFFSET_FLAGS);
+            float floatValue = mBuffer.getFloat(offset + RECORD_OFFSET_FLOAT_VALUE);
+            int intValue = mBuffer.getInt(offset + RECORD_OFFSET_INT_VALUE);
+            SensorRingSequences.loadLoadFence();
+            // Writer might have overwritten the record while we were reading it.
+            if (mBuffer.getLong(offset + RECORD_OFFSET_SEQUENCE) != mNextSequence) {
+                mDroppedCount++;
+                continue;
+            }
+            CarSensorEvent event = new CarSensorEvent(sensorType, timestamp,
+                    (flags & FLAG_HAS_FLOAT) != 0 ? 1 : 0, (flags & FLAG_HAS_INT) != 0 ? 1 : 0);
+            if (event.floatValues.length > 0) {
+                event.floatValues[0] = floatValue;
+            }
+            if (event.intValues.length > 0) {
+                event.intValues[0] = intValue;
+            }
+            out.add(event);
+            count++;
+        }
+        return count;
+    }
+
+    /** Sequence number of the next record which will be returned by {@link #read(List)}. */
+    public long getNextSequence() {
+        return mNextSequence;
+    }
+
+    /** Number of records which were overwritten before they could be read. */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Stops writing to the ring and releases it. */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mService != null) {
+            try {
+                mService.closeSensorRing(mToken);
+            } catch (RemoteException e) {
+                // car service is gone, nothing to clean up there.
+            }
+        }
+        if (mMemory != null) {
+            SharedMemory.unmap(mBuffer);
+            mMemory.close();
+        }
+    }
+}
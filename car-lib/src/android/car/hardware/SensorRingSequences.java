@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.hardware;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Ordered accesses to the sensor ring. The ring is shared with another process, so there is no
+ * Java object to synchronize on. See {@link CarSensorRingReader} for the protocol.
+ *
+ * <p>Offsets passed here must be aligned to the size of the value, the ring layout keeps them
+ * aligned to the start of the buffer.
+ * @hide
+ */
+public final class SensorRingSequences {
+
+    private static final VarHandle INTS =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private SensorRingSequences() {}
+
+    /** Stores the value once all earlier loads and stores are done. */
+    public static void publishInt(ByteBuffer buffer, int offset, int value) {
+        INTS.setRelease(buffer, offset, value);
+    }
+
+    /** Loads the value before any later load or store. */
+    public static int loadInt(ByteBuffer buffer, int offset) {
+        return (int) INTS.getAcquire(buffer, offset);
+    }
+
+    /** Stores the sequence once all earlier loads and stores are done. */
+    public static void publish(ByteBuffer buffer, int offset, long sequence) {
+        LONGS.setRelease(buffer, offset, sequence);
+    }
+
+    /** Loads the sequence before any later load or store. */
+    public static long load(ByteBuffer buffer, int offset) {
+        return (long) LONGS.getAcquire(buffer, offset);
+    }
+
+    /** Stores before the fence are visible before stores after it. */
+    public static void storeStoreFence() {
+        VarHandle.storeStoreFence();
+    }
+
+    /** Loads before the fence are done before loads after it. */
+    public static void loadLoadFence() {
+        VarHandle.loadLoadFence();
+    }
+}
@@ -51,7 +51,8 @@ public class CarPropertyEvent implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(mEventType);
-        dest.writeParcelable(mCarPropertyValue, flags);
+        // Written inline, the value is always a CarPropertyValue so its class is not needed.
+        mCarPropertyValue.writeToParcel(dest, flags);
     }
 
     public static final Parcelable.Creator<CarPropertyEvent> CREATOR
@@ -75,7 +76,7 @@ public class CarPropertyEvent implements Parcelable {
 
     private CarPropertyEvent(Parcel in) {
         mEventType  = in.readInt();
-        mCarPropertyValue = in.readParcelable(CarPropertyValue.class.getClassLoader());
+        mCarPropertyValue = new CarPropertyValue<>(in);
     }
 
     @Override
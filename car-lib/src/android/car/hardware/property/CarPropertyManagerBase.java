@@ -29,6 +29,8 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.android.internal.annotations.GuardedBy;
 
@@ -49,6 +51,27 @@ public class CarPropertyManagerBase {
     private ICarPropertyEventListener mListenerToService;
     @GuardedBy("mLock")
     private CarPropertyEventCallback mCallback;
+    /** Whether events of all properties are received. */
+    @GuardedBy("mLock")
+    private boolean mAllProperties;
+    /** Areas whose events are received, by property. Area 0 stands for all areas. */
+    @GuardedBy("mLock")
+    private final SparseArray<SparseBooleanArray> mSubscribedAreas = new SparseArray<>();
+
+    /**
+     * Static and on-change properties, whose last event holds their current value. {@code null}
+     * until the property list is read from car service.
+     */
+    @GuardedBy("mLock")
+    @Nullable
+    private SparseBooleanArray mCacheableProps;
+
+    /**
+     * Values of the cacheable properties and areas whose events are received, so that reading
+     * them does not need a call to car service. Continuous properties are not cached, their last
+     * event is outdated by the time it is read.
+     */
+    private final CarPropertyValueCache mValueCache = new CarPropertyValueCache();
 
     private final Object mLock = new Object();
 
@@ -64,6 +87,7 @@ public class CarPropertyManagerBase {
     private final static class EventCallbackHandler extends Handler {
         /** Constants handled in the handler */
         private static final int MSG_GENERIC_EVENT = 0;
+        private static final int MSG_GENERIC_EVENTS = 1;
 
         private final WeakReference<CarPropertyManagerBase> mMgr;
 
@@ -73,6 +97,7 @@ public class CarPropertyManagerBase {
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_GENERIC_EVENT:
@@ -81,6 +106,14 @@ public class CarPropertyManagerBase {
                         mgr.dispatchEventToClient((CarPropertyEvent) msg.obj);
                     }
                     break;
+                case MSG_GENERIC_EVENTS:
+                    mgr = mMgr.get();
+                    if (mgr != null) {
+                        for (CarPropertyEvent event : (List<CarPropertyEvent>) msg.obj) {
+                            mgr.dispatchEventToClient(event);
+                        }
+                    }
+                    break;
                 default:
                     Log.e("EventtCallbackHandler", "Event type not handled:  " + msg);
                     break;
@@ -101,36 +134,180 @@ public class CarPropertyManagerBase {
 
     public void registerCallback(CarPropertyEventCallback callback)
             throws CarNotConnectedException {
+        ICarPropertyEventListener listenerToService;
         synchronized (mLock) {
             if (mCallback != null) {
                 throw new IllegalStateException("Callback is already registered.");
             }
+            listenerToService = getOrCreateListenerLocked(callback);
+        }
 
-            mCallback = callback;
-            mListenerToService = new ICarPropertyEventListener.Stub() {
-                @Override
-                public void onEvent(CarPropertyEvent event) throws RemoteException {
-                    handleEvent(event);
-                }
-            };
+        loadCacheablePropertiesIfNeeded();
+        try {
+            mService.registerListener(listenerToService);
+        } catch (RemoteException ex) {
+            Log.e(mTag, "Could not connect: ", ex);
+            throw new CarNotConnectedException(ex);
+        } catch (IllegalStateException ex) {
+            Car.checkCarNotConnectedExceptionFromCarService(ex);
+            return;
+        }
+        synchronized (mLock) {
+            mAllProperties = true;
         }
+    }
 
+    /**
+     * Subscribes the callback to changes of one area of a property only, instead of all
+     * properties as {@link #registerCallback(CarPropertyEventCallback)} does. The property is
+     * only subscribed in the vehicle HAL while some client needs it.
+     *
+     * @param callback Callback of this manager, all subscriptions share the same callback.
+     * @param propertyId Property ID to subscribe to
+     * @param areaId Area to subscribe to, or 0 for all areas of the property
+     * @param rate Sampling rate in Hz for continuous properties
+     */
+    public void subscribe(CarPropertyEventCallback callback, int propertyId, int areaId,
+            float rate) throws CarNotConnectedException {
+        if (mDbg) {
+            Log.d(mTag, "subscribe, propId: 0x" + toHexString(propertyId)
+                    + ", area: 0x" + toHexString(areaId) + ", rate: " + rate);
+        }
+        ICarPropertyEventListener listenerToService;
+        synchronized (mLock) {
+            if (mCallback != null && mCallback != callback) {
+                throw new IllegalStateException("Another callback is already registered.");
+            }
+            listenerToService = getOrCreateListenerLocked(callback);
+        }
+
+        loadCacheablePropertiesIfNeeded();
         try {
-            mService.registerListener(mListenerToService);
+            mService.subscribe(listenerToService, propertyId, areaId, rate);
         } catch (RemoteException ex) {
             Log.e(mTag, "Could not connect: ", ex);
             throw new CarNotConnectedException(ex);
         } catch (IllegalStateException ex) {
             Car.checkCarNotConnectedExceptionFromCarService(ex);
+            return;
+        }
+        synchronized (mLock) {
+            SparseBooleanArray areas = mSubscribedAreas.get(propertyId);
+            if (areas == null) {
+                areas = new SparseBooleanArray();
+                mSubscribedAreas.put(propertyId, areas);
+            }
+            areas.put(areaId, true);
+        }
+    }
+
+    /**
+     * Stops getting changes of the area of a property subscribed with
+     * {@link #subscribe(CarPropertyEventCallback, int, int, float)}.
+     */
+    public void unsubscribe(int propertyId, int areaId) {
+        ICarPropertyEventListener listenerToService;
+        synchronized (mLock) {
+            listenerToService = mListenerToService;
+            SparseBooleanArray areas = mSubscribedAreas.get(propertyId);
+            if (areas != null) {
+                areas.delete(areaId);
+                if (areas.size() == 0) {
+                    mSubscribedAreas.delete(propertyId);
+                }
+            }
+            if (!isReceivingEventsLocked(propertyId, areaId)) {
+                mValueCache.removeProperty(propertyId);
+            }
+        }
+
+        if (listenerToService == null) {
+            Log.w(mTag, "unsubscribe: listener was not registered");
+            return;
+        }
+
+        try {
+            mService.unsubscribe(listenerToService, propertyId, areaId);
+        } catch (RemoteException ex) {
+            Log.e(mTag, "Failed to unsubscribe", ex);
+            //ignore
+        } catch (IllegalStateException ex) {
+            Car.hideCarNotConnectedExceptionFromCarService(ex);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private boolean isReceivingEventsLocked(int propertyId, int areaId) {
+        if (mAllProperties) {
+            return true;
+        }
+        SparseBooleanArray areas = mSubscribedAreas.get(propertyId);
+        return areas != null && (areas.get(areaId) || areas.get(0));
+    }
+
+    /** Returns whether the value of the property area is kept from its events. */
+    private boolean isCached(int propertyId, int areaId) {
+        synchronized (mLock) {
+            return mCacheableProps != null && mCacheableProps.get(propertyId)
+                    && isReceivingEventsLocked(propertyId, areaId);
+        }
+    }
+
+    private void loadCacheablePropertiesIfNeeded() throws CarNotConnectedException {
+        synchronized (mLock) {
+            if (mCacheableProps != null) {
+                return;
+            }
+        }
+        List<CarPropertyConfig> configs;
+        try {
+            configs = mService.getPropertyList();
+        } catch (RemoteException ex) {
+            Log.e(mTag, "Could not connect: ", ex);
+            throw new CarNotConnectedException(ex);
+        }
+        SparseBooleanArray cacheableProps = new SparseBooleanArray();
+        for (CarPropertyConfig config : configs) {
+            int changeMode = config.getChangeMode();
+            if (changeMode == CarPropertyConfig.CHANGE_MODE_STATIC
+                    || changeMode == CarPropertyConfig.CHANGE_MODE_ON_CHANGE) {
+                cacheableProps.put(config.getPropertyId(), true);
+            }
+        }
+        synchronized (mLock) {
+            mCacheableProps = cacheableProps;
         }
     }
 
+    @GuardedBy("mLock")
+    private ICarPropertyEventListener getOrCreateListenerLocked(
+            CarPropertyEventCallback callback) {
+        if (mListenerToService == null) {
+            mCallback = callback;
+            mListenerToService = new ICarPropertyEventListener.Stub() {
+                @Override
+                public void onEvent(CarPropertyEvent event) throws RemoteException {
+                    handleEvent(event);
+                }
+
+                @Override
+                public void onEvents(List<CarPropertyEvent> events) throws RemoteException {
+                    handleEvents(events);
+                }
+            };
+        }
+        return mListenerToService;
+    }
+
     public void unregisterCallback() {
         ICarPropertyEventListener listenerToService;
         synchronized (mLock) {
             listenerToService = mListenerToService;
             mCallback = null;
             mListenerToService = null;
+            mAllProperties = false;
+            mSubscribedAreas.clear();
+            mValueCache.clear();
         }
 
         if (listenerToService == null) {
@@ -204,14 +381,23 @@ public class CarPropertyManagerBase {
             Log.d(mTag, "getProperty, propId: 0x" + toHexString(propId)
                     + ", area: 0x" + toHexString(area) + ", class: " + clazz);
         }
+        boolean cached = isCached(propId, area);
+        long generation = 0;
+        if (cached) {
+            CarPropertyValue<E> propVal = (CarPropertyValue<E>) mValueCache.get(propId, area);
+            if (propVal != null) {
+                checkPropertyType(propVal, clazz);
+                return propVal;
+            }
+            generation = mValueCache.getGeneration();
+        }
         try {
             CarPropertyValue<E> propVal = mService.getProperty(propId, area);
-            if (propVal != null && propVal.getValue() != null) {
-                Class<?> actualClass = propVal.getValue().getClass();
-                if (actualClass != clazz) {
-                    throw new IllegalArgumentException("Invalid property type. " + "Expected: "
-                            + clazz + ", but was: " + actualClass);
-                }
+            if (propVal != null && cached) {
+                mValueCache.putIfUnchanged(propVal, generation);
+            }
+            if (propVal != null) {
+                checkPropertyType(propVal, clazz);
             }
             return propVal;
         } catch (RemoteException e) {
@@ -221,6 +407,16 @@ public class CarPropertyManagerBase {
         }
     }
 
+    private static void checkPropertyType(CarPropertyValue<?> propVal, Class<?> clazz) {
+        if (propVal.getValue() != null) {
+            Class<?> actualClass = propVal.getValue().getClass();
+            if (actualClass != clazz) {
+                throw new IllegalArgumentException("Invalid property type. " + "Expected: "
+                        + clazz + ", but was: " + actualClass);
+            }
+        }
+    }
+
     public <E> void setProperty(Class<E> clazz, int propId, int area, E val)
             throws CarNotConnectedException {
         if (mDbg) {
@@ -232,6 +428,9 @@ public class CarPropertyManagerBase {
         } catch (RemoteException e) {
             Log.e(mTag, "setProperty failed with " + e.toString(), e);
             throw new CarNotConnectedException(e);
+        } finally {
+            // The new value is read back from car service, or comes with the next event.
+            mValueCache.remove(propId, area);
         }
     }
 
@@ -281,9 +480,30 @@ public class CarPropertyManagerBase {
     }
 
     private void handleEvent(CarPropertyEvent event) {
+        cacheEvent(event);
         mHandler.sendMessage(mHandler.obtainMessage(EventCallbackHandler.MSG_GENERIC_EVENT, event));
     }
 
+    private void handleEvents(List<CarPropertyEvent> events) {
+        for (int i = 0; i < events.size(); i++) {
+            cacheEvent(events.get(i));
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(EventCallbackHandler.MSG_GENERIC_EVENTS,
+                events));
+    }
+
+    // Cache before dispatching, so that the value can be read as soon as it is received.
+    private void cacheEvent(CarPropertyEvent event) {
+        CarPropertyValue propVal = event.getCarPropertyValue();
+        if (event.getEventType() == CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE) {
+            if (isCached(propVal.getPropertyId(), propVal.getAreaId())) {
+                mValueCache.putEvent(propVal);
+            }
+        } else {
+            mValueCache.remove(propVal.getPropertyId(), propVal.getAreaId());
+        }
+    }
+
     /** @hide */
     public void onCarDisconnected() {
 
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.hardware.property;
+
+import android.annotation.Nullable;
+import android.car.hardware.CarPropertyValue;
+import android.util.LongSparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.Objects;
+
+/**
+ * Last known value of properties by (property, area), kept up to date from the event stream.
+ *
+ * <p>Values read with a get call may race with events and with sets. To not cache a value which is
+ * already outdated, readers take {@link #getGeneration()} before the get call and insert the
+ * result with {@link #putIfUnchanged(CarPropertyValue, long)}, which fails if the cache was
+ * changed in between.
+ *
+ * @hide
+ */
+public class CarPropertyValueCache {
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final LongSparseArray<Entry> mEntries = new LongSparseArray<>();
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    private static class Entry {
+        final CarPropertyValue<?> mValue;
+        /** Whether the value was received as an event, not read with a get call. */
+        final boolean mFromEvent;
+
+        Entry(CarPropertyValue<?> value, boolean fromEvent) {
+            mValue = value;
+            mFromEvent = fromEvent;
+        }
+    }
+
+    private static long key(int propertyId, int areaId) {
+        return ((long) propertyId << 32) | (areaId & 0xffffffffL);
+    }
+
+    @Nullable
+    public CarPropertyValue<?> get(int propertyId, int areaId) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(key(propertyId, areaId));
+            return entry != null ? entry.mValue : null;
+        }
+    }
+
+    public long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Stores the value of an event. Returns {@code false} if the previous event already had the
+     * same value, meaning the event does not carry a change.
+     */
+    public boolean putEvent(CarPropertyValue<?> value) {
+        long key = key(value.getPropertyId(), value.getAreaId());
+        synchronized (mLock) {
+            mGeneration++;
+            Entry previous = mEntries.get(key);
+            mEntries.put(key, new Entry(value, true));
+            return previous == null || !previous.mFromEvent
+                    || !Objects.deepEquals(previous.mValue.getValue(), value.getValue());
+        }
+    }
+
+    /**
+     * Stores a value read with a get call, unless the cache changed since {@code generation} was
+     * taken with {@link #getGeneration()}.
+     */
+    public boolean putIfUnchanged(CarPropertyValue<?> value, long generation) {
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                return false;
+            }
+            mEntries.put(key(value.getPropertyId(), value.getAreaId()), new Entry(value, false));
+            return true;
+        }
+    }
+
+    public void remove(int propertyId, int areaId) {
+        synchronized (mLock) {
+            mGeneration++;
+            mEntries.remove(key(propertyId, areaId));
+        }
+    }
+
+    /** Removes values of all areas of the property. */
+    public void removeProperty(int propertyId) {
+        synchronized (mLock) {
+            mGeneration++;
+            for (int i = mEntries.size() - 1; i >= 0; i--) {
+                if ((int) (mEntries.keyAt(i) >> 32) == propertyId) {
+                    mEntries.removeAt(i);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (mLock) {
+            mGeneration++;
+            mEntries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (mLock) {
+            return mEntries.size();
+        }
+    }
+}
@@ -20,7 +20,6 @@ import android.car.annotation.FutureFeature;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.util.Objects;
 
 /**
  * A VMS Layer which can be subscribed to by VMS clients.
@@ -64,7 +63,7 @@ public final class VmsLayer implements Parcelable {
             return false;
         }
         VmsLayer p = (VmsLayer) o;
-        return Objects.equals(p.mId, mId) && Objects.equals(p.mVersion, mVersion);
+        return p.mId == mId && p.mVersion == mVersion;
     }
 
     /**
@@ -74,7 +73,8 @@ public final class VmsLayer implements Parcelable {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(mId, mVersion);
+        // Same value as Objects.hash(mId, mVersion), without boxing.
+        return 31 * (31 + mId) + mVersion;
     }
 
     @Override
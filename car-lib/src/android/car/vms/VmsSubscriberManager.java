@@ -25,9 +25,12 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
 import android.util.Log;
 import com.android.internal.annotations.GuardedBy;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -123,6 +126,22 @@ public final class VmsSubscriberManager implements CarManagerBase {
                             vmsDataMessage));
             }
 
+            @Override
+            public void onVmsSharedMessageReceived(VmsLayer layer, SharedMemory payload,
+                    int length) {
+                byte[] bytes;
+                try {
+                    bytes = readSharedPayload(payload, length);
+                } catch (ErrnoException | RuntimeException e) {
+                    Log.e(TAG, "Unable to read message for layer: " + layer, e);
+                    return;
+                }
+                mHandler.sendMessage(
+                        mHandler.obtainMessage(
+                            VmsEventHandler.ON_RECEIVE_MESSAGE_EVENT,
+                            new VmsDataMessage(layer, bytes)));
+            }
+
             @Override
             public void onLayersAvailabilityChange(List<VmsLayer> availableLayers) {
                 mHandler.sendMessage(
@@ -316,6 +335,23 @@ public final class VmsSubscriberManager implements CarManagerBase {
         listener.onCarDisconnected();
     }
 
+    /** Copies a payload out of shared memory, which is closed afterwards. */
+    private static byte[] readSharedPayload(SharedMemory payload, int length)
+            throws ErrnoException {
+        try {
+            ByteBuffer buffer = payload.mapReadOnly();
+            try {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                return bytes;
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+        } finally {
+            payload.close();
+        }
+    }
+
     private static final class VmsDataMessage {
         private final VmsLayer mLayer;
         private final byte[] mPayload;
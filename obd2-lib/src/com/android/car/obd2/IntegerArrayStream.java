@@ -23,24 +23,33 @@ import java.util.function.Function;
  * consumption of the array data
  */
 public class IntegerArrayStream {
-    private final int[] mData;
+    private int[] mData;
+    private int mLength;
     private int mIndex;
 
     public IntegerArrayStream(int[] data) {
+        reset(data, data.length);
+    }
+
+    /** Restarts the stream over the first {@code length} elements of {@code data}. */
+    void reset(int[] data, int length) {
         mData = data;
+        mLength = length;
         mIndex = 0;
     }
 
     public int peek() {
+        if (mIndex >= mLength) throw new ArrayIndexOutOfBoundsException(mIndex);
         return mData[mIndex];
     }
 
     public int consume() {
+        if (mIndex >= mLength) throw new ArrayIndexOutOfBoundsException(mIndex);
         return mData[mIndex++];
     }
 
     public int residualLength() {
-        return mData.length - mIndex;
+        return mLength - mIndex;
     }
 
     public boolean isEmpty() {
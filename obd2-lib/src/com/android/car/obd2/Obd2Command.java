@@ -33,6 +33,7 @@ import com.android.car.obd2.commands.Speed;
 import com.android.car.obd2.commands.ThrottlePosition;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
@@ -150,20 +151,100 @@ public abstract class Obd2Command<ValueType> {
     public static class LiveFrameCommand<ValueType> extends Obd2Command<ValueType> {
         private static final int RESPONSE_MARKER = 0x41;
 
+        private final String mRequest;
+
         LiveFrameCommand(OutputSemanticHandler<ValueType> semanticHandler) {
             super(LIVE_FRAME, semanticHandler);
+            mRequest = String.format("%02X%02X", mMode, mSemanticHandler.getPid());
         }
 
         public Optional<ValueType> run(Obd2Connection connection)
                 throws IOException, InterruptedException {
-            String command = String.format("%02X%02X", mMode, mSemanticHandler.getPid());
-            int[] data = connection.run(command);
-            IntegerArrayStream stream = new IntegerArrayStream(data);
+            IntegerArrayStream stream = connection.runForStream(mRequest);
             if (stream.expect(RESPONSE_MARKER, mSemanticHandler.getPid())) {
                 return mSemanticHandler.consume(stream);
             }
             return Optional.empty();
         }
+
+        /**
+         * Runs up to {@link Obd2Connection#MAX_PIDS_PER_REQUEST} commands with a single request,
+         * and returns their results in the order of the commands. PIDs missing from the combined
+         * response are requested on their own, and if the vehicle does not answer combined
+         * requests, the connection goes back to one request per PID. A combined request without
+         * any answer, for example NO DATA, counts as not answered if PIDs requested on their own
+         * are answered.
+         */
+        public static Optional<?>[] runBatch(
+                Obd2Connection connection, List<? extends LiveFrameCommand<?>> commands)
+                throws IOException, InterruptedException {
+            if (commands.size() > Obd2Connection.MAX_PIDS_PER_REQUEST) {
+                throw new IllegalArgumentException("too many commands: " + commands.size());
+            }
+            Optional<?>[] results = new Optional<?>[commands.size()];
+            boolean batchUnanswered = false;
+            if (commands.size() > 1 && connection.isMultiPidRequestsSupported()) {
+                StringBuilder request = new StringBuilder(String.format("%02X", LIVE_FRAME));
+                for (LiveFrameCommand<?> command : commands) {
+                    request.append(String.format("%02X", command.getPid()));
+                }
+                IntegerArrayStream stream = connection.runForStream(request.toString());
+                // "?" means the adapter rejected the request, a single answer that only the first
+                // PID of the request was understood.
+                boolean rejected = stream.residualLength() == 1 && stream.peek() == 0;
+                int answered = parseBatchResponse(stream, commands, results);
+                if (rejected || answered == 1) {
+                    connection.setMultiPidRequestsSupported(false);
+                } else if (answered == 0) {
+                    batchUnanswered = true;
+                }
+            }
+            boolean answeredAlone = false;
+            for (int i = 0; i < results.length; ++i) {
+                if (results[i] == null) {
+                    results[i] = commands.get(i).run(connection);
+                    answeredAlone |= results[i].isPresent();
+                }
+            }
+            // When nothing answers on its own either, the vehicle is not answering at all, as
+            // with the ignition off, so combined requests are kept.
+            if (batchUnanswered && answeredAlone) {
+                connection.setMultiPidRequestsSupported(false);
+            }
+            return results;
+        }
+
+        /**
+         * Splits a response to a request for multiple PIDs, which contains each PID followed by
+         * its data, between the commands. Returns the number of commands with a result.
+         */
+        static int parseBatchResponse(
+                IntegerArrayStream stream,
+                List<? extends LiveFrameCommand<?>> commands,
+                Optional<?>[] results) {
+            if (!stream.expect(RESPONSE_MARKER)) return 0;
+            int answered = 0;
+            while (!stream.isEmpty()) {
+                int pid = stream.consume();
+                int index = indexOfPid(commands, pid);
+                if (index < 0) {
+                    // responses from multiple ECUs each start with the marker
+                    if (pid == RESPONSE_MARKER) continue;
+                    // the length of an unknown PID is not known, nothing after it can be read
+                    break;
+                }
+                if (results[index] == null) ++answered;
+                results[index] = commands.get(index).mSemanticHandler.consume(stream);
+            }
+            return answered;
+        }
+
+        private static int indexOfPid(List<? extends LiveFrameCommand<?>> commands, int pid) {
+            for (int i = 0; i < commands.size(); ++i) {
+                if (commands.get(i).getPid() == pid) return i;
+            }
+            return -1;
+        }
     }
 
     /**
@@ -174,19 +255,18 @@ public abstract class Obd2Command<ValueType> {
     public static class FreezeFrameCommand<ValueType> extends Obd2Command<ValueType> {
         private static final int RESPONSE_MARKER = 0x42;
 
-        private int mFrameId;
+        private final int mFrameId;
+        private final String mRequest;
 
         FreezeFrameCommand(OutputSemanticHandler<ValueType> semanticHandler, int frameId) {
             super(FREEZE_FRAME, semanticHandler);
             mFrameId = frameId;
+            mRequest = String.format("%02X%02X %02X", mMode, mSemanticHandler.getPid(), mFrameId);
         }
 
         public Optional<ValueType> run(Obd2Connection connection)
                 throws IOException, InterruptedException {
-            String command =
-                    String.format("%02X%02X %02X", mMode, mSemanticHandler.getPid(), mFrameId);
-            int[] data = connection.run(command);
-            IntegerArrayStream stream = new IntegerArrayStream(data);
+            IntegerArrayStream stream = connection.runForStream(mRequest);
             if (stream.expect(RESPONSE_MARKER, mSemanticHandler.getPid(), mFrameId)) {
                 return mSemanticHandler.consume(stream);
             }
@@ -16,11 +16,14 @@
 
 package com.android.car.obd2;
 
+import android.os.SystemClock;
 import android.util.Log;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
@@ -47,13 +50,39 @@ public class Obd2Connection {
         OutputStream getOutputStream();
     }
 
+    /** Maximum number of PIDs in one mode 01 request, as ELM327 adapters accept on CAN. */
+    public static final int MAX_PIDS_PER_REQUEST = 6;
+
+    /**
+     * Time to wait for the prompt ending a response. Generous, as the first request after a
+     * protocol change makes the adapter search for the vehicle protocol.
+     */
+    private static final long DEFAULT_RESPONSE_TIMEOUT_MS = 10000;
+
     private final UnderlyingTransport mConnection;
+    private final long mResponseTimeoutMs;
+    private ResponseReader mReader;
+    private final Obd2ResponseParser mParser = new Obd2ResponseParser();
+    /** Stream over the data of the last response, reused across requests. */
+    private final IntegerArrayStream mResponseStream = new IntegerArrayStream(new int[0]);
+    private byte[] mRequest = new byte[16];
+    /** Cleared once the vehicle does not answer a request for multiple PIDs. */
+    private boolean mMultiPidRequestsSupported = true;
 
     private static final String[] initCommands =
             new String[] {"ATD", "ATZ", "AT E0", "AT L0", "AT S0", "AT H0", "AT SP 0"};
 
     public Obd2Connection(UnderlyingTransport connection) {
+        this(connection, DEFAULT_RESPONSE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param responseTimeoutMs time to wait for the prompt ending a response, after which the
+     *     request fails with an {@link IOException}
+     */
+    public Obd2Connection(UnderlyingTransport connection, long responseTimeoutMs) {
         mConnection = Objects.requireNonNull(connection);
+        mResponseTimeoutMs = responseTimeoutMs;
         runInitCommands();
     }
 
@@ -64,7 +93,7 @@ public class Obd2Connection {
     private void runInitCommands() {
         for (final String initCommand : initCommands) {
             try {
-                runImpl(initCommand);
+                runImpl(initCommand, null);
             } catch (IOException | InterruptedException e) {
             }
         }
@@ -72,6 +101,8 @@ public class Obd2Connection {
 
     public boolean reconnect() {
         if (!mConnection.reconnect()) return false;
+        mReader = null;
+        mMultiPidRequestsSupported = true;
         runInitCommands();
         return true;
     }
@@ -80,43 +111,12 @@ public class Obd2Connection {
         return mConnection.isConnected();
     }
 
-    static int toDigitValue(char c) {
-        if ((c >= '0') && (c <= '9')) return c - '0';
-        switch (c) {
-            case 'a':
-            case 'A':
-                return 10;
-            case 'b':
-            case 'B':
-                return 11;
-            case 'c':
-            case 'C':
-                return 12;
-            case 'd':
-            case 'D':
-                return 13;
-            case 'e':
-            case 'E':
-                return 14;
-            case 'f':
-            case 'F':
-                return 15;
-            default:
-                throw new IllegalArgumentException(c + " is not a valid hex digit");
-        }
-    }
-
-    int[] toHexValues(String buffer) {
-        int[] values = new int[buffer.length() / 2];
-        for (int i = 0; i < values.length; ++i) {
-            values[i] =
-                    16 * toDigitValue(buffer.charAt(2 * i))
-                            + toDigitValue(buffer.charAt(2 * i + 1));
-        }
-        return values;
-    }
-
-    private String runImpl(String command) throws IOException, InterruptedException {
+    /**
+     * Sends the command and reads its response up to the prompt. The response is decoded by
+     * {@code parser}, or ignored if it is {@code null}.
+     */
+    private void runImpl(String command, Obd2ResponseParser parser)
+            throws IOException, InterruptedException {
         InputStream in = Objects.requireNonNull(mConnection.getInputStream());
         OutputStream out = Objects.requireNonNull(mConnection.getOutputStream());
 
@@ -124,87 +124,122 @@ public class Obd2Connection {
             Log.i(TAG, "runImpl(" + command + ")");
         }
 
-        out.write((command + "\r").getBytes());
+        int length = command.length();
+        if (mRequest.length < length + 1) {
+            mRequest = new byte[length + 1];
+        }
+        for (int i = 0; i < length; ++i) {
+            mRequest[i] = (byte) command.charAt(i);
+        }
+        mRequest[length] = '\r';
+        out.write(mRequest, 0, length + 1);
         out.flush();
 
-        StringBuilder response = new StringBuilder();
-        while (true) {
-            int value = in.read();
-            if (value < 0) continue;
-            char c = (char) value;
-            // this is the prompt, stop here
-            if (c == '>') break;
-            if (c == '\r' || c == '\n' || c == ' ' || c == '\t' || c == '.') continue;
-            response.append(c);
+        if (mReader == null || mReader.mIn != in) {
+            mReader = new ResponseReader(in);
         }
-
-        String responseValue = response.toString();
-
-        if (DBG) {
-            Log.i(TAG, "runImpl() returned " + responseValue);
+        if (parser != null) {
+            parser.start(command);
         }
+        mReader.readResponse(SystemClock.elapsedRealtime() + mResponseTimeoutMs, parser);
+    }
 
-        return responseValue;
+    boolean isMultiPidRequestsSupported() {
+        return mMultiPidRequestsSupported;
     }
 
-    String removeSideData(String response, String... patterns) {
-        for (String pattern : patterns) {
-            if (response.contains(pattern)) response = response.replaceAll(pattern, "");
+    void setMultiPidRequestsSupported(boolean supported) {
+        if (DBG || mMultiPidRequestsSupported != supported) {
+            Log.i(TAG, "multiple PID requests supported: " + supported);
         }
-        return response;
+        mMultiPidRequestsSupported = supported;
     }
 
-    String unpackLongFrame(String response) {
-        // long frames come back to us containing colon separated portions
-        if (response.indexOf(':') < 0) return response;
+    /**
+     * Reads responses from the transport up to the prompt. Bytes are read in blocks of whatever
+     * the transport has available rather than one at a time, and bytes past the prompt are kept
+     * for the next response.
+     *
+     * <p>The reader only reads what the transport reports as available, and polls for more until
+     * the deadline. A read is therefore never blocked on an adapter which stopped answering, and
+     * adapters that keep sending without ever reaching the prompt are bounded as well.
+     */
+    static class ResponseReader {
+        private static final int BUFFER_SIZE = 256;
+        /** Short compared to the time an adapter takes to answer, a few ms at 38400 baud. */
+        private static final long POLL_INTERVAL_MS = 5;
+
+        private final InputStream mIn;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mPosition;
+        private int mLimit;
+
+        ResponseReader(InputStream in) {
+            mIn = in;
+        }
 
-        // remove everything until the first colon
-        response = response.substring(response.indexOf(':') + 1);
+        /** Reads the response up to the prompt into {@code parser}, which may be {@code null}. */
+        void readResponse(long deadlineMs, Obd2ResponseParser parser)
+                throws IOException, InterruptedException {
+            while (true) {
+                if (mPosition == mLimit) {
+                    fill(deadlineMs);
+                }
+                while (mPosition < mLimit) {
+                    int c = mBuffer[mPosition++] & 0xFF;
+                    // this is the prompt, stop here
+                    if (c == '>') {
+                        if (parser != null) parser.finish();
+                        return;
+                    }
+                    if (parser != null) parser.accept(c);
+                }
+            }
+        }
 
-        // then remove the <digit>: portions (sequential frame parts)
-        //TODO(egranata): maybe validate the sequence of digits is progressive
-        return response.replaceAll("[0-9]:", "");
+        private void fill(long deadlineMs) throws IOException, InterruptedException {
+            int available;
+            while ((available = mIn.available()) <= 0) {
+                if (SystemClock.elapsedRealtime() > deadlineMs) {
+                    throw new IOException("timed out waiting for OBD2 response");
+                }
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            int count = mIn.read(mBuffer, 0, Math.min(available, BUFFER_SIZE));
+            if (count < 0) {
+                throw new EOFException("end of stream before OBD2 prompt");
+            }
+            mPosition = 0;
+            mLimit = count;
+        }
     }
 
     public int[] run(String command) throws IOException, InterruptedException {
-        String responseValue = runImpl(command);
-        String originalResponseValue = responseValue;
-        String unspacedCommand = command.replaceAll(" ", "");
-        if (responseValue.startsWith(unspacedCommand))
-            responseValue = responseValue.substring(unspacedCommand.length());
-        responseValue = unpackLongFrame(responseValue);
+        runForStream(command);
+        return Arrays.copyOf(mParser.getData(), mParser.getDataLength());
+    }
 
+    /**
+     * Runs the command and returns its decoded response, without allocating. The stream and its
+     * data are reused, and only valid until the next command.
+     */
+    IntegerArrayStream runForStream(String command) throws IOException, InterruptedException {
+        runImpl(command, mParser);
         if (DBG) {
-            Log.i(TAG, "post-processed response " + responseValue);
+            Log.i(
+                    TAG,
+                    "decoded response "
+                            + Arrays.toString(
+                                    Arrays.copyOf(mParser.getData(), mParser.getDataLength())));
         }
-
-        //TODO(egranata): should probably handle these intelligently
-        responseValue =
-                removeSideData(
-                        responseValue,
-                        "SEARCHING",
-                        "ERROR",
-                        "BUS INIT",
-                        "BUSINIT",
-                        "BUS ERROR",
-                        "BUSERROR",
-                        "STOPPED");
-        if (responseValue.equals("OK")) return new int[] {1};
-        if (responseValue.equals("?")) return new int[] {0};
-        if (responseValue.equals("NODATA")) return new int[] {};
-        if (responseValue.equals("UNABLETOCONNECT")) throw new IOException("connection failure");
-        if (responseValue.equals("CANERROR")) throw new IOException("CAN bus error");
         try {
-            return toHexValues(responseValue);
+            mParser.checkResult();
         } catch (IllegalArgumentException e) {
-            Log.e(
-                    TAG,
-                    String.format(
-                            "conversion error: command: '%s', original response: '%s'"
-                                    + ", processed response: '%s'",
-                            command, originalResponseValue, responseValue));
+            Log.e(TAG, e.getMessage());
             throw e;
         }
+        mResponseStream.reset(mParser.getData(), mParser.getDataLength());
+        return mResponseStream;
     }
 
     static class FourByteBitSet {
@@ -322,8 +357,7 @@ public class Obd2Connection {
 
     public List<String> getDiagnosticTroubleCodes() throws IOException, InterruptedException {
         List<String> result = new ArrayList<>();
-        int[] response = run("03");
-        IntegerArrayStream stream = new IntegerArrayStream(response);
+        IntegerArrayStream stream = runForStream("03");
         if (stream.isEmpty()) return result;
         if (!stream.expect(0x43))
             throw new IllegalArgumentException("data from remote end not a mode 3 response");
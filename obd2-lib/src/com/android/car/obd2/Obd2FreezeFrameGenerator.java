@@ -21,6 +21,8 @@ import android.util.JsonWriter;
 import android.util.Log;
 import com.android.car.obd2.Obd2Command.FreezeFrameCommand;
 import com.android.car.obd2.Obd2Command.OutputSemanticHandler;
+import com.android.car.vehiclehal.DiagnosticFrameSink;
+import com.android.car.vehiclehal.DiagnosticJsonWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -118,25 +120,29 @@ public class Obd2FreezeFrameGenerator {
 
     public JsonWriter generate(JsonWriter jsonWriter, long timestamp)
             throws IOException, InterruptedException {
+        generate(new DiagnosticJsonWriter(jsonWriter), timestamp);
+        return jsonWriter;
+    }
+
+    public void generate(DiagnosticFrameSink sink) throws IOException, InterruptedException {
+        generate(sink, SystemClock.elapsedRealtimeNanos());
+    }
+
+    public void generate(DiagnosticFrameSink sink, long timestamp)
+            throws IOException, InterruptedException {
         List<String> currentDtcs = mConnection.getDiagnosticTroubleCodes();
         List<FreezeFrameIdentity> newDtcs = discoverNewDtcs(currentDtcs);
         mPreviousDtcs = currentDtcs;
         for (FreezeFrameIdentity freezeFrame : newDtcs) {
-            jsonWriter.beginObject();
-            jsonWriter.name("type").value(FRAME_TYPE_FREEZE);
-            jsonWriter.name("timestamp").value(timestamp);
-            jsonWriter.name("stringValue").value(freezeFrame.dtc);
-            jsonWriter.name("intValues").beginArray();
+            sink.beginFrame(FRAME_TYPE_FREEZE, timestamp);
+            sink.dtc(freezeFrame.dtc);
             for (OutputSemanticHandler<Integer> handler : mIntegerCommands) {
                 FreezeFrameCommand<Integer> command =
                         Obd2Command.getFreezeFrameCommand(handler, freezeFrame.id);
                 try {
                     Optional<Integer> result = command.run(mConnection);
                     if (result.isPresent()) {
-                        jsonWriter.beginObject();
-                        jsonWriter.name("id").value(command.getPid());
-                        jsonWriter.name("value").value(result.get());
-                        jsonWriter.endObject();
+                        sink.intValue(command.getPid(), result.get());
                     }
                 } catch (IOException | InterruptedException e) {
                     Log.w(
@@ -147,18 +153,13 @@ public class Obd2FreezeFrameGenerator {
                     // skip this entry
                 }
             }
-            jsonWriter.endArray();
-            jsonWriter.name("floatValues").beginArray();
             for (OutputSemanticHandler<Float> handler : mFloatCommands) {
                 FreezeFrameCommand<Float> command =
                         Obd2Command.getFreezeFrameCommand(handler, freezeFrame.id);
                 try {
                     Optional<Float> result = command.run(mConnection);
                     if (result.isPresent()) {
-                        jsonWriter.beginObject();
-                        jsonWriter.name("id").value(command.getPid());
-                        jsonWriter.name("value").value(result.get());
-                        jsonWriter.endObject();
+                        sink.floatValue(command.getPid(), result.get());
                     }
                 } catch (IOException | InterruptedException e) {
                     Log.w(
@@ -169,9 +170,7 @@ public class Obd2FreezeFrameGenerator {
                     // skip this entry
                 }
             }
-            jsonWriter.endArray();
-            jsonWriter.endObject();
+            sink.endFrame();
         }
-        return jsonWriter;
     }
 }
@@ -20,8 +20,11 @@ import android.os.SystemClock;
 import android.util.JsonWriter;
 import android.util.Log;
 import com.android.car.obd2.Obd2Command.LiveFrameCommand;
+import com.android.car.vehiclehal.DiagnosticFrameSink;
+import com.android.car.vehiclehal.DiagnosticJsonWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -73,51 +76,84 @@ public class Obd2LiveFrameGenerator {
     }
 
     public JsonWriter generate(JsonWriter jsonWriter, long timestamp) throws IOException {
-        jsonWriter.beginObject();
-        jsonWriter.name("type").value(FRAME_TYPE_LIVE);
-        jsonWriter.name("timestamp").value(timestamp);
-        jsonWriter.name("intValues").beginArray();
-        for (LiveFrameCommand<Integer> command : mIntegerCommands) {
-            try {
-                Optional<Integer> result = command.run(mConnection);
-                if (result.isPresent()) {
-                    jsonWriter.beginObject();
-                    jsonWriter.name("id").value(command.getPid());
-                    jsonWriter.name("value").value(result.get());
-                    jsonWriter.endObject();
-                }
-            } catch (IOException | InterruptedException e) {
-                Log.w(
-                        TAG,
-                        String.format(
-                                "unable to retrieve OBD2 pid %d due to exception: %s",
-                                command.getPid(), e));
-                // skip this entry
+        generate(new DiagnosticJsonWriter(jsonWriter), timestamp);
+        return jsonWriter;
+    }
+
+    public void generate(DiagnosticFrameSink sink) throws IOException {
+        generate(sink, SystemClock.elapsedRealtimeNanos());
+    }
+
+    public void generate(DiagnosticFrameSink sink, long timestamp) throws IOException {
+        // Integer and float commands share requests.
+        List<LiveFrameCommand<?>> commands = new ArrayList<>(mIntegerCommands);
+        commands.addAll(mFloatCommands);
+        Optional<?>[] results = runCommands(commands);
+
+        sink.beginFrame(FRAME_TYPE_LIVE, timestamp);
+        for (int i = 0; i < commands.size(); ++i) {
+            if (results[i].isPresent()) {
+                writeValue(sink, commands.get(i).getPid(), (Number) results[i].get());
             }
         }
-        jsonWriter.endArray();
+        sink.endFrame();
+    }
+
+    /** Returns a scheduler polling the PIDs of this generator at their default rates. */
+    public Obd2PollingScheduler createPollingScheduler() {
+        List<LiveFrameCommand<?>> commands = new ArrayList<>(mIntegerCommands);
+        commands.addAll(mFloatCommands);
+        return new Obd2PollingScheduler(mConnection, commands);
+    }
 
-        jsonWriter.name("floatValues").beginArray();
-        for (LiveFrameCommand<Float> command : mFloatCommands) {
+    /**
+     * Writes a live frame with the values read in one cycle of {@code scheduler}, instead of all
+     * PIDs. Nothing is written if no value was read.
+     */
+    public void generate(DiagnosticFrameSink sink, Obd2PollingScheduler scheduler, long budgetMs)
+            throws IOException {
+        long timestamp = SystemClock.elapsedRealtimeNanos();
+        List<Obd2PollingScheduler.Sample> samples = scheduler.runCycle(budgetMs);
+        if (samples.isEmpty()) return;
+
+        sink.beginFrame(FRAME_TYPE_LIVE, timestamp);
+        for (Obd2PollingScheduler.Sample sample : samples) {
+            writeValue(sink, sample.pid, sample.value);
+        }
+        sink.endFrame();
+    }
+
+    /**
+     * Runs the commands, batching PIDs into as few requests as possible. Results of commands which
+     * failed are empty.
+     */
+    private Optional<?>[] runCommands(List<LiveFrameCommand<?>> commands) {
+        Optional<?>[] results = new Optional<?>[commands.size()];
+        for (int start = 0; start < commands.size(); start += Obd2Connection.MAX_PIDS_PER_REQUEST) {
+            int end = Math.min(commands.size(), start + Obd2Connection.MAX_PIDS_PER_REQUEST);
+            List<LiveFrameCommand<?>> batch = commands.subList(start, end);
             try {
-                Optional<Float> result = command.run(mConnection);
-                if (result.isPresent()) {
-                    jsonWriter.beginObject();
-                    jsonWriter.name("id").value(command.getPid());
-                    jsonWriter.name("value").value(result.get());
-                    jsonWriter.endObject();
-                }
+                Optional<?>[] batchResults = LiveFrameCommand.runBatch(mConnection, batch);
+                System.arraycopy(batchResults, 0, results, start, batchResults.length);
             } catch (IOException | InterruptedException e) {
                 Log.w(
                         TAG,
                         String.format(
-                                "unable to retrieve OBD2 pid %d due to exception: %s",
-                                command.getPid(), e));
-                // skip this entry
+                                "unable to retrieve OBD2 pids %s due to exception: %s",
+                                batch, e));
+                // skip these entries
+                Arrays.fill(results, start, end, Optional.empty());
             }
         }
-        jsonWriter.endArray();
+        return results;
+    }
 
-        return jsonWriter.endObject();
+    private static void writeValue(DiagnosticFrameSink sink, int pid, Number value)
+            throws IOException {
+        if (value instanceof Float) {
+            sink.floatValue(pid, value.floatValue());
+        } else {
+            sink.intValue(pid, value.intValue());
+        }
     }
 }
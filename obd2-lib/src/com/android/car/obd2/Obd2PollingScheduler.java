@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.android.car.obd2.Obd2Command.LiveFrameCommand;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides which live frame PIDs to poll in each cycle, so that fast changing values are read more
+ * often than slow changing ones.
+ *
+ * <p>Each PID has a target rate and a priority. A cycle polls the PIDs which are due, highest
+ * priority first, in batches of {@link Obd2Connection#MAX_PIDS_PER_REQUEST}, and stops once the
+ * bus time budget of the cycle is spent. PIDs which are overdue gain one priority level per
+ * missed period, so that low priority PIDs are not starved. PIDs which return no data {@link
+ * #MAX_CONSECUTIVE_NO_DATA} times in a row are dropped.
+ *
+ * <p>This class is not thread safe.
+ */
+public class Obd2PollingScheduler {
+    public static final String TAG = Obd2PollingScheduler.class.getSimpleName();
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_MEDIUM = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    public static final int MAX_CONSECUTIVE_NO_DATA = 5;
+
+    /** Weight of the newest interval in the achieved rate. */
+    private static final float RATE_SMOOTHING = 0.2f;
+
+    private static final HashMap<Integer, Float> DEFAULT_RATES = new HashMap<>();
+    private static final HashMap<Integer, Integer> DEFAULT_PRIORITIES = new HashMap<>();
+
+    private static void addDefault(float rateHz, int priority, int... pids) {
+        for (int pid : pids) {
+            DEFAULT_RATES.put(pid, rateHz);
+            DEFAULT_PRIORITIES.put(pid, priority);
+        }
+    }
+
+    static {
+        // RPM, speed, throttle position
+        addDefault(5f, PRIORITY_HIGH, 0x0C, 0x0D, 0x11);
+        // engine load, fuel trims, fuel pressure, fuel system status
+        addDefault(1f, PRIORITY_MEDIUM, 0x04, 0x06, 0x07, 0x08, 0x09, 0x0A, 0x03);
+        // temperatures, fuel tank level, engine runtime
+        addDefault(0.1f, PRIORITY_LOW, 0x05, 0x5C, 0x46, 0x2F, 0x1F);
+    }
+
+    private static final float DEFAULT_RATE_HZ = 1f;
+    private static final int DEFAULT_PRIORITY = PRIORITY_MEDIUM;
+
+    /** A value read in a cycle. */
+    public static class Sample {
+        public final int pid;
+        public final Number value;
+
+        Sample(int pid, Number value) {
+            this.pid = pid;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("0x%02X=%s", pid, value);
+        }
+    }
+
+    private static class PidSchedule {
+        final LiveFrameCommand<?> mCommand;
+        long mPeriodMs;
+        int mPriority;
+        long mNextDueMs;
+        int mConsecutiveNoData;
+        boolean mDropped;
+        long mLastSampleMs = -1;
+        /** Smoothed interval between samples, or 0 until two samples were read. */
+        float mAverageIntervalMs;
+
+        PidSchedule(LiveFrameCommand<?> command, float rateHz, int priority) {
+            mCommand = command;
+            setRate(rateHz, priority);
+        }
+
+        void setRate(float rateHz, int priority) {
+            mPeriodMs = Math.max(1, (long) (1000 / rateHz));
+            mPriority = priority;
+        }
+
+        int getUrgency(long nowMs) {
+            return mPriority + (int) ((nowMs - mNextDueMs) / mPeriodMs);
+        }
+
+        void onPolled(long nowMs) {
+            mNextDueMs += mPeriodMs;
+            if (mNextDueMs <= nowMs) {
+                // fell behind by more than a period, do not try to catch up
+                mNextDueMs = nowMs + mPeriodMs;
+            }
+        }
+
+        void onSample(long nowMs) {
+            mConsecutiveNoData = 0;
+            if (mLastSampleMs >= 0) {
+                long intervalMs = nowMs - mLastSampleMs;
+                mAverageIntervalMs =
+                        mAverageIntervalMs == 0
+                                ? intervalMs
+                                : mAverageIntervalMs
+                                        + RATE_SMOOTHING * (intervalMs - mAverageIntervalMs);
+            }
+            mLastSampleMs = nowMs;
+        }
+
+        float getAchievedRate() {
+            return mAverageIntervalMs > 0 ? 1000 / mAverageIntervalMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "0x%02X: target %.2fHz, achieved %.2fHz, priority %d%s",
+                    mCommand.getPid(),
+                    1000f / mPeriodMs,
+                    getAchievedRate(),
+                    mPriority,
+                    mDropped ? ", dropped (no data)" : "");
+        }
+    }
+
+    private final Obd2Connection mConnection;
+    private final LongSupplier mClock;
+    private final HashMap<Integer, PidSchedule> mSchedules = new HashMap<>();
+
+    public Obd2PollingScheduler(
+            Obd2Connection connection, Collection<? extends LiveFrameCommand<?>> commands) {
+        this(connection, commands, SystemClock::elapsedRealtime);
+    }
+
+    /** @param clock time source in milliseconds. */
+    public Obd2PollingScheduler(
+            Obd2Connection connection,
+            Collection<? extends LiveFrameCommand<?>> commands,
+            LongSupplier clock) {
+        mConnection = connection;
+        mClock = clock;
+        for (LiveFrameCommand<?> command : commands) {
+            int pid = command.getPid();
+            mSchedules.put(
+                    pid,
+                    new PidSchedule(
+                            command,
+                            DEFAULT_RATES.getOrDefault(pid, DEFAULT_RATE_HZ),
+                            DEFAULT_PRIORITIES.getOrDefault(pid, DEFAULT_PRIORITY)));
+        }
+    }
+
+    /** Overrides the default target rate and priority of a PID. */
+    public void setRate(int pid, float rateHz, int priority) {
+        if (rateHz <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rateHz);
+        }
+        PidSchedule schedule = mSchedules.get(pid);
+        if (schedule == null) {
+            throw new IllegalArgumentException(String.format("unknown pid 0x%02X", pid));
+        }
+        schedule.setRate(rateHz, priority);
+    }
+
+    /**
+     * Polls the PIDs which are due, until {@code budgetMs} of bus time is spent. At least one
+     * request is made if any PID is due. Returns the values read, which is empty if no PID was due.
+     */
+    public List<Sample> runCycle(long budgetMs) {
+        long startMs = mClock.getAsLong();
+        List<PidSchedule> due = new ArrayList<>();
+        for (PidSchedule schedule : mSchedules.values()) {
+            if (!schedule.mDropped && schedule.mNextDueMs <= startMs) {
+                due.add(schedule);
+            }
+        }
+        due.sort(
+                (a, b) -> {
+                    int urgency = Integer.compare(b.getUrgency(startMs), a.getUrgency(startMs));
+                    return urgency != 0 ? urgency : Long.compare(a.mNextDueMs, b.mNextDueMs);
+                });
+
+        List<Sample> samples = new ArrayList<>();
+        for (int start = 0; start < due.size(); start += Obd2Connection.MAX_PIDS_PER_REQUEST) {
+            if (start > 0 && mClock.getAsLong() - startMs >= budgetMs) break;
+            List<PidSchedule> batch =
+                    due.subList(
+                            start,
+                            Math.min(due.size(), start + Obd2Connection.MAX_PIDS_PER_REQUEST));
+            List<LiveFrameCommand<?>> commands = new ArrayList<>(batch.size());
+            for (PidSchedule schedule : batch) {
+                commands.add(schedule.mCommand);
+            }
+            Optional<?>[] results;
+            try {
+                results = LiveFrameCommand.runBatch(mConnection, commands);
+            } catch (IOException e) {
+                Log.w(
+                        TAG,
+                        String.format(
+                                "unable to retrieve OBD2 pids %s due to exception: %s",
+                                commands, e));
+                for (PidSchedule schedule : batch) {
+                    schedule.onPolled(startMs);
+                }
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            long nowMs = mClock.getAsLong();
+            for (int i = 0; i < batch.size(); ++i) {
+                PidSchedule schedule = batch.get(i);
+                schedule.onPolled(startMs);
+                if (results[i].isPresent()) {
+                    schedule.onSample(nowMs);
+                    samples.add(new Sample(schedule.mCommand.getPid(), (Number) results[i].get()));
+                } else if (++schedule.mConsecutiveNoData >= MAX_CONSECUTIVE_NO_DATA) {
+                    schedule.mDropped = true;
+                    Log.i(
+                            TAG,
+                            String.format(
+                                    "dropping pid 0x%02X, no data", schedule.mCommand.getPid()));
+                }
+            }
+        }
+        return samples;
+    }
+
+    public boolean isDropped(int pid) {
+        PidSchedule schedule = mSchedules.get(pid);
+        return schedule != null && schedule.mDropped;
+    }
+
+    /** Returns the rate at which values of the PID were actually read, in Hz. */
+    public float getAchievedRate(int pid) {
+        PidSchedule schedule = mSchedules.get(pid);
+        return schedule != null ? schedule.getAchievedRate() : 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(TAG).append(':');
+        mSchedules
+                .keySet()
+                .stream()
+                .sorted()
+                .forEach(pid -> builder.append('\n').append(mSchedules.get(pid)));
+        return builder.toString();
+    }
+}
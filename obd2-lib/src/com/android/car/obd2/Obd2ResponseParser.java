@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decodes responses of an ELM327 adapter as their bytes arrive, without building strings.
+ *
+ * <p>Bytes are collected one line at a time, without whitespace and dots, in a buffer which is
+ * reused across responses. Each line is then decoded in a single pass: the echo of the command is
+ * skipped, status lines ("OK", "?", "NO DATA", "CAN ERROR"...) are recognized, progress messages
+ * ("SEARCHING...", "BUS INIT: ...OK"...) are dropped and hex digits are decoded into a reused
+ * array. ISO-TP multi frame responses are unpacked: everything before the first segment index,
+ * which is the length of the message, and the "N:" segment indices are dropped.
+ *
+ * <p>Parsing never throws, so that the whole response is always read up to the prompt. Errors are
+ * reported by {@link #checkResult()} once the response is complete.
+ *
+ * <p>This class is not thread safe.
+ */
+class Obd2ResponseParser {
+    private static final int INITIAL_LINE_CAPACITY = 64;
+    private static final int INITIAL_DATA_CAPACITY = 64;
+
+    private static final int STATUS_NONE = 0;
+    private static final int STATUS_OK = 1;
+    private static final int STATUS_REJECTED = 2;
+    private static final int STATUS_NO_DATA = 3;
+    private static final int STATUS_UNABLE_TO_CONNECT = 4;
+    private static final int STATUS_CAN_ERROR = 5;
+    private static final int STATUS_BUS_ERROR = 6;
+    private static final int STATUS_INVALID = 7;
+
+    private static final byte[] OK = bytes("OK");
+    private static final byte[] REJECTED = bytes("?");
+    private static final byte[] NO_DATA = bytes("NODATA");
+    private static final byte[] UNABLE_TO_CONNECT = bytes("UNABLETOCONNECT");
+    private static final byte[] CAN_ERROR = bytes("CANERROR");
+    private static final byte[] BUS_ERROR = bytes("BUSERROR");
+    /** Dropped with the rest of their line. */
+    private static final byte[] BUS_INIT = bytes("BUSINIT");
+    private static final byte[] ERROR = bytes("ERROR");
+    /** Side data dropped wherever it appears. */
+    private static final byte[][] SIDE_DATA = {bytes("SEARCHING"), bytes("STOPPED")};
+
+    private byte[] mLine = new byte[INITIAL_LINE_CAPACITY];
+    private int mLineLength;
+    private int[] mData = new int[INITIAL_DATA_CAPACITY];
+    private int mDataLength;
+    /** High nibble of the byte being decoded, or -1. */
+    private int mPendingNibble;
+    private String mCommand;
+    private boolean mFirstLine;
+    private boolean mSeenSegment;
+    private int mStatus;
+    /** First line which could not be decoded, only kept for errors. */
+    private String mInvalidLine;
+
+    private static byte[] bytes(String token) {
+        return token.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Prepares for the response to {@code command}. */
+    void start(String command) {
+        mCommand = command;
+        mLineLength = 0;
+        mDataLength = 0;
+        mPendingNibble = -1;
+        mFirstLine = true;
+        mSeenSegment = false;
+        mStatus = STATUS_NONE;
+        mInvalidLine = null;
+    }
+
+    /** Consumes one byte of the response, not including the prompt. */
+    void accept(int c) {
+        switch (c) {
+            case '\r':
+            case '\n':
+                endLine();
+                break;
+            case ' ':
+            case '\t':
+            case '.':
+                break;
+            default:
+                if (mLineLength == mLine.length) {
+                    mLine = Arrays.copyOf(mLine, 2 * mLine.length);
+                }
+                mLine[mLineLength++] = (byte) c;
+        }
+    }
+
+    /** Ends the response, once the prompt is seen. */
+    void finish() {
+        endLine();
+        if (mDataLength > 0) return;
+        // status lines only stand for the response if no data came with them
+        if (mStatus == STATUS_OK) {
+            append(1);
+        } else if (mStatus == STATUS_REJECTED) {
+            append(0);
+        }
+    }
+
+    /** Throws if the response reported an error or could not be decoded. */
+    void checkResult() throws IOException {
+        switch (mStatus) {
+            case STATUS_UNABLE_TO_CONNECT:
+                throw new IOException("connection failure");
+            case STATUS_CAN_ERROR:
+                throw new IOException("CAN bus error");
+            case STATUS_BUS_ERROR:
+                throw new IOException("bus error");
+            case STATUS_INVALID:
+                throw new IllegalArgumentException(
+                        String.format(
+                                "conversion error: command: '%s', response line: '%s'",
+                                mCommand, mInvalidLine));
+        }
+    }
+
+    /** Decoded bytes of the response, valid up to {@link #getDataLength()}. */
+    int[] getData() {
+        return mData;
+    }
+
+    int getDataLength() {
+        return mDataLength;
+    }
+
+    private void endLine() {
+        int length = mLineLength;
+        mLineLength = 0;
+        if (length == 0) return;
+        int start = 0;
+        if (mFirstLine) {
+            mFirstLine = false;
+            start = skipEcho(length);
+        }
+        if (start == length) return;
+
+        int status = matchStatus(start, length);
+        if (status != STATUS_NONE) {
+            setStatus(status);
+            return;
+        }
+        if (regionMatches(start, length, BUS_INIT) || lineEquals(start, length, ERROR)) return;
+
+        int i = start;
+        while (i < length) {
+            int skip = matchSideData(i, length);
+            if (skip > 0) {
+                i += skip;
+                continue;
+            }
+            int c = mLine[i];
+            if (i + 1 < length && mLine[i + 1] == ':' && c >= '0' && c <= '9') {
+                if (!mSeenSegment) {
+                    // the message length comes before the first segment
+                    mSeenSegment = true;
+                    mDataLength = 0;
+                }
+                // the index of the segment is not part of the data
+                mPendingNibble = -1;
+                i += 2;
+                continue;
+            }
+            if (c == ':') {
+                // no segment index, drop everything before it all the same
+                if (!mSeenSegment) {
+                    mSeenSegment = true;
+                    mDataLength = 0;
+                }
+                mPendingNibble = -1;
+                ++i;
+                continue;
+            }
+            int digit = toDigitValue(c);
+            if (digit < 0) {
+                setInvalid(start, length);
+                return;
+            }
+            if (mPendingNibble < 0) {
+                mPendingNibble = digit;
+            } else {
+                append(16 * mPendingNibble + digit);
+                mPendingNibble = -1;
+            }
+            ++i;
+        }
+    }
+
+    /** Returns the offset of the line after the echo of the command, if any. */
+    private int skipEcho(int length) {
+        int i = 0;
+        for (int j = 0; j < mCommand.length(); ++j) {
+            char c = mCommand.charAt(j);
+            if (c == ' ') continue;
+            if (i == length || mLine[i] != c) return 0;
+            ++i;
+        }
+        return i;
+    }
+
+    private int matchStatus(int start, int length) {
+        int c = mLine[start];
+        // cheap check of the first byte, as most lines are data
+        if (c != 'O' && c != '?' && c != 'N' && c != 'U' && c != 'C' && c != 'B') {
+            return STATUS_NONE;
+        }
+        if (lineEquals(start, length, OK)) return STATUS_OK;
+        if (lineEquals(start, length, REJECTED)) return STATUS_REJECTED;
+        if (lineEquals(start, length, NO_DATA)) return STATUS_NO_DATA;
+        if (lineEquals(start, length, UNABLE_TO_CONNECT)) return STATUS_UNABLE_TO_CONNECT;
+        if (lineEquals(start, length, CAN_ERROR)) return STATUS_CAN_ERROR;
+        if (lineEquals(start, length, BUS_ERROR)) return STATUS_BUS_ERROR;
+        return STATUS_NONE;
+    }
+
+    private int matchSideData(int start, int length) {
+        int c = mLine[start];
+        if (c != 'S') return 0;
+        for (byte[] token : SIDE_DATA) {
+            if (regionMatches(start, length, token)) return token.length;
+        }
+        return 0;
+    }
+
+    private boolean lineEquals(int start, int length, byte[] token) {
+        return length - start == token.length && regionMatches(start, length, token);
+    }
+
+    private boolean regionMatches(int start, int length, byte[] token) {
+        if (length - start < token.length) return false;
+        for (int i = 0; i < token.length; ++i) {
+            if (mLine[start + i] != token[i]) return false;
+        }
+        return true;
+    }
+
+    private void setStatus(int status) {
+        // errors win over other statuses
+        if (mStatus < status) mStatus = status;
+    }
+
+    private void setInvalid(int start, int length) {
+        if (mInvalidLine == null) {
+            mInvalidLine = new String(mLine, start, length - start, StandardCharsets.US_ASCII);
+        }
+        setStatus(STATUS_INVALID);
+    }
+
+    private void append(int value) {
+        if (mDataLength == mData.length) {
+            mData = Arrays.copyOf(mData, 2 * mData.length);
+        }
+        mData[mDataLength++] = value;
+    }
+
+    private static int toDigitValue(int c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+}
@@ -28,7 +28,6 @@ import android.bluetooth.BluetoothUuid;
 import android.car.hardware.CarPropertyValue;
 import android.car.hardware.CarSensorEvent;
 import android.car.hardware.CarSensorManager;
-import android.car.hardware.ICarSensorEventListener;
 import android.car.hardware.cabin.CarCabinManager;
 import android.car.hardware.property.CarPropertyEvent;
 import android.car.hardware.property.ICarPropertyEventListener;
@@ -561,7 +560,12 @@ public class BluetoothDeviceConnectionPolicy {
         // Setting up a listener for events from CarCabinService
         // For now, we listen to door unlock signal coming from {@link CarCabinService},
         // and Ignition state START from {@link CarSensorService}
-        mCarCabinService.registerListener(mCabinEventListener);
+        try {
+            mCarCabinService.subscribe(mCabinEventListener, CarCabinManager.ID_DOOR_LOCK,
+                    CarPropertyServiceBase.ALL_AREAS, 0f);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Door lock not supported, not connecting on door unlock", e);
+        }
         mCarSensorService.registerOrUpdateSensorListener(
                 CarSensorManager.SENSOR_TYPE_IGNITION_STATE, 0, mCarSensorEventListener);
         mUserServiceHelper.registerServiceCallback(mServiceCallback);
@@ -596,6 +600,13 @@ public class BluetoothDeviceConnectionPolicy {
                 }
             }
         }
+
+        @Override
+        public void onEvents(List<CarPropertyEvent> events) throws RemoteException {
+            for (CarPropertyEvent event : events) {
+                onEvent(event);
+            }
+        }
     }
 
     /**
@@ -604,7 +615,7 @@ public class BluetoothDeviceConnectionPolicy {
      * Upon receiving the event that is of interest, initiate a connection attempt by calling
      * the policy {@link BluetoothDeviceConnectionPolicy}
      */
-    private class CarSensorEventListener extends ICarSensorEventListener.Stub {
+    private class CarSensorEventListener extends LocalSensorEventListener {
         @Override
         public void onSensorChanged(List<CarSensorEvent> events) throws RemoteException {
             if (events != null & !events.isEmpty()) {
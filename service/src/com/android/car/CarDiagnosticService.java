@@ -25,7 +25,11 @@ import android.car.hardware.CarDiagnosticManager;
 import android.car.hardware.ICarDiagnostic;
 import android.car.hardware.ICarDiagnosticEventListener;
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
 import android.os.RemoteException;
 import android.util.ArrayMap;
 import android.util.Log;
@@ -34,6 +38,7 @@ import com.android.car.internal.CarPermission;
 import com.android.car.Listeners.ClientWithRate;
 import com.android.car.hal.DiagnosticHalService;
 import com.android.internal.annotations.GuardedBy;
+import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -65,10 +70,28 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
     @GuardedBy("mDiagnosticLock")
     private final LiveFrameRecord mLiveFrameDiagnosticRecord = new LiveFrameRecord(mDiagnosticLock);
 
-    /** the latest freeze frame data (key: DTC) */
+    /** stored freeze frames, sorted by timestamp */
     @GuardedBy("mDiagnosticLock")
-    private final FreezeFrameRecord mFreezeFrameDiagnosticRecords = new FreezeFrameRecord(
-        mDiagnosticLock);
+    private final FreezeFrameRecord mFreezeFrameDiagnosticRecords;
+
+    /** Name of the file in car service's files directory which keeps freeze frames. */
+    private static final String FREEZE_FRAME_FILE = "freeze_frames";
+
+    /**
+     * Delay before saving freeze frames after a change, so that bursts of frames and clears are
+     * written once.
+     */
+    private static final long FREEZE_FRAME_SAVE_DELAY_MS = 5000;
+
+    /** Kernel boot id, identifies the boot saved freeze frames belong to. */
+    @Nullable
+    private final String mBootId;
+
+    /** Writes freeze frames to storage, away from the vehicle HAL thread and the lock. */
+    @GuardedBy("mDiagnosticLock")
+    private HandlerThread mSaveThread;
+    @GuardedBy("mDiagnosticLock")
+    private FreezeFrameSaveHandler mSaveHandler;
 
     private final DiagnosticHalService mDiagnosticHal;
 
@@ -84,12 +107,21 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
         mDiagnosticReadPermission = new CarPermission(mContext, Car.PERMISSION_CAR_DIAGNOSTIC_READ);
         mDiagnosticClearPermission = new CarPermission(mContext,
                 Car.PERMISSION_CAR_DIAGNOSTIC_CLEAR);
+        mFreezeFrameDiagnosticRecords = new FreezeFrameRecord(mDiagnosticLock,
+                new FreezeFrameStore(
+                        context.getResources().getInteger(R.integer.maxStoredFreezeFrames),
+                        context.getResources().getInteger(R.integer.maxFreezeFrameAgeMs),
+                        new File(context.getFilesDir(), FREEZE_FRAME_FILE)));
+        mBootId = FreezeFrameStore.readBootId();
     }
 
     @Override
     public void init() {
         mDiagnosticLock.lock();
         try {
+            mSaveThread = new HandlerThread(CarDiagnosticService.class.getSimpleName());
+            mSaveThread.start();
+            mSaveHandler = new FreezeFrameSaveHandler(mSaveThread.getLooper());
             mDiagnosticHal.setDiagnosticListener(this);
             setInitialLiveFrame();
             setInitialFreezeFrames();
@@ -108,14 +140,28 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
     }
 
     private void setInitialFreezeFrames() {
+        FreezeFrameStore store = mFreezeFrameDiagnosticRecords.getStore();
         if(mDiagnosticHal.getDiagnosticCapabilities().isFreezeFrameSupported() &&
             mDiagnosticHal.getDiagnosticCapabilities().isFreezeFrameInfoSupported()) {
+            // Frames saved before a restart of car service only need to be checked against the
+            // HAL, not read again.
+            store.load(mBootId);
             long[] timestamps = mDiagnosticHal.getFreezeFrameTimestamps();
             if (timestamps != null) {
-                for (long timestamp : timestamps) {
-                    setRecentmostFreezeFrame(mDiagnosticHal.getFreezeFrame(timestamp));
+                store.retain(timestamps);
+                // Newest first, frames which would be evicted right away are not read at all.
+                long[] sorted = timestamps.clone();
+                Arrays.sort(sorted);
+                int oldest = Math.max(0, sorted.length - store.getCapacity());
+                for (int i = sorted.length - 1; i >= oldest && !store.isExpired(sorted[i]); --i) {
+                    if (!store.contains(sorted[i])) {
+                        setRecentmostFreezeFrame(mDiagnosticHal.getFreezeFrame(sorted[i]));
+                    }
                 }
             }
+            scheduleFreezeFrameSaveLocked();
+        } else {
+            store.clear();
         }
     }
 
@@ -135,8 +181,52 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
         return null;
     }
 
+    /** Saves freeze frames after a delay, unless a save is already pending. */
+    private void scheduleFreezeFrameSaveLocked() {
+        if (mSaveHandler != null && !mSaveHandler.hasMessages(FreezeFrameSaveHandler.MSG_SAVE)) {
+            mSaveHandler.sendEmptyMessageDelayed(FreezeFrameSaveHandler.MSG_SAVE,
+                    FREEZE_FRAME_SAVE_DELAY_MS);
+        }
+    }
+
+    private void saveFreezeFrames() {
+        byte[] data;
+        mDiagnosticLock.lock();
+        try {
+            data = mFreezeFrameDiagnosticRecords.getStore().marshall();
+        } finally {
+            mDiagnosticLock.unlock();
+        }
+        // Only the save thread writes the file, so writes never overlap.
+        mFreezeFrameDiagnosticRecords.getStore().write(mBootId, data);
+    }
+
     @Override
     public void release() {
+        HandlerThread saveThread;
+        mDiagnosticLock.lock();
+        try {
+            saveThread = mSaveThread;
+            if (mSaveHandler != null
+                    && mSaveHandler.hasMessages(FreezeFrameSaveHandler.MSG_SAVE)) {
+                // Write pending changes now, before frames are cleared from memory.
+                mSaveHandler.removeMessages(FreezeFrameSaveHandler.MSG_SAVE);
+                mSaveHandler.sendEmptyMessage(FreezeFrameSaveHandler.MSG_SAVE);
+            }
+            mSaveThread = null;
+            mSaveHandler = null;
+        } finally {
+            mDiagnosticLock.unlock();
+        }
+        if (saveThread != null) {
+            // The save takes the lock, so wait for it without holding the lock.
+            saveThread.quitSafely();
+            try {
+                saveThread.join(1000);
+            } catch (InterruptedException e) {
+                Log.e(CarLog.TAG_DIAGNOSTIC, "Timeout while waiting for save thread to join.");
+            }
+        }
         mDiagnosticLock.lock();
         try {
             mDiagnosticListeners.forEach(
@@ -157,6 +247,7 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
 
         Listeners<DiagnosticClient> listeners = null;
 
+        boolean freezeFrameReceived = false;
         mDiagnosticLock.lock();
         for (CarDiagnosticEvent event : events) {
             if (event.isLiveFrame()) {
@@ -165,6 +256,7 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
                 listeners = mDiagnosticListeners.get(CarDiagnosticManager.FRAME_TYPE_LIVE);
             } else if (event.isFreezeFrame()) {
                 setRecentmostFreezeFrame(event);
+                freezeFrameReceived = true;
                 listeners = mDiagnosticListeners.get(CarDiagnosticManager.FRAME_TYPE_FREEZE);
             } else {
                 Log.w(
@@ -175,6 +267,10 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
 
             if (null != listeners) {
                 for (ClientWithRate<DiagnosticClient> clientWithRate : listeners.getClients()) {
+                    // Live frames are periodic, freeze frames are events which all clients need.
+                    if (event.isLiveFrame() && !clientWithRate.shouldDispatch(event.timestamp)) {
+                        continue;
+                    }
                     DiagnosticClient client = clientWithRate.getClient();
                     List<CarDiagnosticEvent> clientEvents = eventsByClient.computeIfAbsent(client,
                             (DiagnosticClient diagnosticClient) -> new LinkedList<>());
@@ -182,6 +278,9 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
                 }
             }
         }
+        if (freezeFrameReceived) {
+            scheduleFreezeFrameSaveLocked();
+        }
         mDiagnosticLock.unlock();
 
         for (ArrayMap.Entry<CarDiagnosticService.DiagnosticClient, List<CarDiagnosticEvent>> entry :
@@ -431,6 +530,16 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
         return timestamps;
     }
 
+    @Override
+    public List<CarDiagnosticEvent> getFreezeFrames(long startTimestamp, long endTimestamp,
+            int maxCount) {
+        mFreezeFrameDiagnosticRecords.lock();
+        List<CarDiagnosticEvent> freezeFrames = mFreezeFrameDiagnosticRecords.getStore()
+                .getFrames(startTimestamp, endTimestamp, maxCount);
+        mFreezeFrameDiagnosticRecords.unlock();
+        return freezeFrames;
+    }
+
     @Override
     @Nullable
     public CarDiagnosticEvent getFreezeFrame(long timestamp) {
@@ -446,7 +555,8 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
         if (mDiagnosticHal.getDiagnosticCapabilities().isFreezeFrameClearSupported()) {
             mFreezeFrameDiagnosticRecords.lock();
             mDiagnosticHal.clearFreezeFrames(timestamps);
-            mFreezeFrameDiagnosticRecords.clearEvents();
+            mFreezeFrameDiagnosticRecords.getStore().remove(timestamps);
+            scheduleFreezeFrameSaveLocked();
             mFreezeFrameDiagnosticRecords.unlock();
             return true;
         }
@@ -620,12 +730,32 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
         }
     }
 
+    private class FreezeFrameSaveHandler extends Handler {
+        private static final int MSG_SAVE = 0;
+
+        private FreezeFrameSaveHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_SAVE:
+                    saveFreezeFrames();
+                    break;
+                default:
+                    Log.w(CarLog.TAG_DIAGNOSTIC, "Unknown message: " + msg.what);
+            }
+        }
+    }
+
     private static class FreezeFrameRecord extends DiagnosticRecord {
         /** Store the timestamp --> freeze frame mapping. */
-        HashMap<Long, CarDiagnosticEvent> mEvents = new HashMap<>();
+        private final FreezeFrameStore mEvents;
 
-        FreezeFrameRecord(ReentrantLock lock) {
+        FreezeFrameRecord(ReentrantLock lock, FreezeFrameStore store) {
             super(lock);
+            mEvents = store;
         }
 
         @Override
@@ -642,12 +772,12 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
 
         @Override
         CarDiagnosticEvent update(@NonNull CarDiagnosticEvent newEvent) {
-            mEvents.put(newEvent.timestamp, newEvent);
+            mEvents.put(newEvent);
             return newEvent;
         }
 
         long[] getFreezeFrameTimestamps() {
-            return mEvents.keySet().stream().mapToLong(Long::longValue).toArray();
+            return mEvents.getTimestamps();
         }
 
         CarDiagnosticEvent getEvent(long timestamp) {
@@ -655,7 +785,11 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
         }
 
         Iterable<CarDiagnosticEvent> getEvents() {
-            return mEvents.values();
+            return mEvents.getFrames();
+        }
+
+        FreezeFrameStore getStore() {
+            return mEvents;
         }
     }
 
@@ -667,7 +801,11 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
             writer.println("last live frame event: ");
             writer.println(mLiveFrameDiagnosticRecord.getLastEvent());
         }
-        writer.println("freeze frame events: ");
+        FreezeFrameStore store = mFreezeFrameDiagnosticRecords.getStore();
+        writer.println(String.format(
+                "freeze frame events: %d stored, capacity:%d, evicted:%d, expired:%d",
+                store.size(), store.getCapacity(), store.getEvictedCount(),
+                store.getExpiredCount()));
         mFreezeFrameDiagnosticRecords.getEvents().forEach(writer::println);
         writer.println("**clients**");
         try {
@@ -49,7 +49,7 @@ public class CarNightService implements CarServiceBase {
     private CarSensorService mCarSensorService;
 
     private final ICarSensorEventListener mICarSensorEventListener =
-            new ICarSensorEventListener.Stub() {
+            new LocalSensorEventListener() {
         @Override
         public void onSensorChanged(List<CarSensorEvent> events) {
             if (!events.isEmpty()) {
@@ -16,6 +16,7 @@
 
 package com.android.car;
 
+import android.annotation.Nullable;
 import android.car.Car;
 import android.car.hardware.CarPropertyConfig;
 import android.car.hardware.CarPropertyValue;
@@ -25,33 +26,57 @@ import android.car.hardware.property.ICarPropertyEventListener;
 import android.content.Context;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.util.ArrayMap;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.car.hal.PropertyHalServiceBase;
+import com.android.internal.annotations.GuardedBy;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class implements the binder interface for ICarProperty.aidl to make it easier to create
  * multiple managers that deal with Vehicle Properties. To create a new service, simply extend
  * this class and call the super() constructor with the appropriate arguments for the new service.
  * {@link CarHvacService} shows the basic usage.
+ *
+ * <p>Listeners either get events of all properties through {@link #registerListener}, or only
+ * events of the (property, area) pairs they subscribed to through {@link #subscribe}. Properties
+ * are subscribed in the vehicle HAL only while some listener needs them. Subscriptions are
+ * computed under the lock and applied to the vehicle HAL after releasing it, as that makes binder
+ * calls.
  */
 public class CarPropertyServiceBase extends ICarProperty.Stub
         implements CarServiceBase, PropertyHalServiceBase.PropertyHalListener {
+    /** Area id to subscribe to all areas of a property. */
+    public static final int ALL_AREAS = 0;
+
     private final Context mContext;
     private final boolean mDbg;
-    private final Map<IBinder, PropertyDeathRecipient> mDeathRecipientMap =
-            new ConcurrentHashMap<>();
     private final PropertyHalServiceBase mHal;
-    private final Map<IBinder, ICarPropertyEventListener> mListenersMap = new ConcurrentHashMap<>();
     private final String mPermission;
     private final String mTag;
 
     private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final Map<IBinder, Client> mClients = new HashMap<>();
+    /** Rebuilt under {@link #mLock} on every change, read without lock for dispatching. */
+    private volatile DispatchTable mDispatchTable = new DispatchTable(
+            new ICarPropertyEventListener[0], new SparseArray<>());
+    /** Incremented on every change of subscriptions. */
+    @GuardedBy("mLock")
+    private int mSubscriptionsVersion;
+
+    /** Orders updates of the vehicle HAL, which are made without holding {@link #mLock}. */
+    private final Object mHalLock = new Object();
+    /** Version of the subscriptions last applied to the vehicle HAL. */
+    @GuardedBy("mHalLock")
+    private int mAppliedSubscriptionsVersion;
 
     public CarPropertyServiceBase(Context context, PropertyHalServiceBase hal, String permission,
             boolean dbg, String tag) {
@@ -62,11 +87,18 @@ public class CarPropertyServiceBase extends ICarProperty.Stub
         mTag = tag + ".service";
     }
 
-    class PropertyDeathRecipient implements IBinder.DeathRecipient {
-        private IBinder mListenerBinder;
-
-        PropertyDeathRecipient(IBinder listenerBinder) {
-            mListenerBinder = listenerBinder;
+    /** A registered listener and what it subscribed to. */
+    private class Client implements IBinder.DeathRecipient {
+        private final ICarPropertyEventListener mListener;
+        private final IBinder mListenerBinder;
+        /** Whether the listener gets events of all properties. */
+        private boolean mAllProperties;
+        /** Requested rate by area, by property. */
+        private final SparseArray<SparseArray<Float>> mSubscriptions = new SparseArray<>();
+
+        Client(ICarPropertyEventListener listener) {
+            mListener = listener;
+            mListenerBinder = listener.asBinder();
         }
 
         /**
@@ -78,7 +110,12 @@ public class CarPropertyServiceBase extends ICarProperty.Stub
             if (mDbg) {
                 Log.d(mTag, "binderDied " + mListenerBinder);
             }
-            CarPropertyServiceBase.this.unregisterListenerLocked(mListenerBinder);
+            HalSubscriptions subscriptions;
+            synchronized (mLock) {
+                subscriptions =
+                        CarPropertyServiceBase.this.unregisterListenerLocked(mListenerBinder);
+            }
+            applyHalSubscriptions(subscriptions);
         }
 
         void release() {
@@ -86,21 +123,91 @@ public class CarPropertyServiceBase extends ICarProperty.Stub
         }
     }
 
+    /** Listeners of one property. */
+    private static class PropertyListeners {
+        private final ICarPropertyEventListener[] mListeners;
+        /** Subscribed areas of each listener, {@code null} if it subscribed to all areas. */
+        private final int[][] mAreas;
+
+        PropertyListeners(ICarPropertyEventListener[] listeners, int[][] areas) {
+            mListeners = listeners;
+            mAreas = areas;
+        }
+
+        boolean isSubscribed(int index, int area) {
+            int[] areas = mAreas[index];
+            if (areas == null) {
+                return true;
+            }
+            for (int subscribedArea : areas) {
+                if (subscribedArea == area) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Subscriptions to apply to the vehicle HAL, computed under {@link #mLock}. */
+    private static class HalSubscriptions {
+        private final int mVersion;
+        private final boolean mHasListeners;
+        /** Rate by manager property id, {@code null} to subscribe to all properties. */
+        @Nullable
+        private final SparseArray<Float> mRates;
+
+        HalSubscriptions(int version, boolean hasListeners, @Nullable SparseArray<Float> rates) {
+            mVersion = version;
+            mHasListeners = hasListeners;
+            mRates = rates;
+        }
+    }
+
+    /** Immutable snapshot of listeners used to dispatch events. */
+    private static class DispatchTable {
+        private final ICarPropertyEventListener[] mAllPropertyListeners;
+        private final SparseArray<PropertyListeners> mPropertyListeners;
+
+        DispatchTable(ICarPropertyEventListener[] allPropertyListeners,
+                SparseArray<PropertyListeners> propertyListeners) {
+            mAllPropertyListeners = allPropertyListeners;
+            mPropertyListeners = propertyListeners;
+        }
+    }
+
     @Override
     public void init() {
     }
 
     @Override
     public void release() {
-        for (PropertyDeathRecipient recipient : mDeathRecipientMap.values()) {
-            recipient.release();
+        HalSubscriptions subscriptions;
+        synchronized (mLock) {
+            for (Client client : mClients.values()) {
+                client.release();
+            }
+            mClients.clear();
+            subscriptions = updateSubscriptionsLocked();
         }
-        mDeathRecipientMap.clear();
-        mListenersMap.clear();
+        applyHalSubscriptions(subscriptions);
     }
 
     @Override
     public void dump(PrintWriter writer) {
+        writer.println(mTag);
+        synchronized (mLock) {
+            for (Client client : mClients.values()) {
+                StringBuilder sb = new StringBuilder("  listener:").append(client.mListenerBinder);
+                if (client.mAllProperties) {
+                    sb.append(" all properties");
+                }
+                for (int i = 0; i < client.mSubscriptions.size(); i++) {
+                    sb.append(" 0x").append(Integer.toHexString(client.mSubscriptions.keyAt(i)))
+                            .append(client.mSubscriptions.valueAt(i));
+                }
+                writer.println(sb.toString());
+            }
+        }
     }
 
     @Override
@@ -114,29 +221,17 @@ public class CarPropertyServiceBase extends ICarProperty.Stub
             throw new IllegalArgumentException("listener cannot be null.");
         }
 
-        IBinder listenerBinder = listener.asBinder();
-
+        HalSubscriptions subscriptions;
         synchronized (mLock) {
-            if (mListenersMap.containsKey(listenerBinder)) {
+            Client client = getOrCreateClientLocked(listener);
+            if (client.mAllProperties) {
                 // Already registered, nothing to do.
                 return;
             }
-
-            PropertyDeathRecipient deathRecipient = new PropertyDeathRecipient(listenerBinder);
-            try {
-                listenerBinder.linkToDeath(deathRecipient, 0);
-            } catch (RemoteException e) {
-                Log.e(mTag, "Failed to link death for recipient. " + e);
-                throw new IllegalStateException(Car.CAR_NOT_CONNECTED_EXCEPTION_MSG);
-            }
-            mDeathRecipientMap.put(listenerBinder, deathRecipient);
-
-            if (mListenersMap.isEmpty()) {
-                mHal.setListener(this);
-            }
-
-            mListenersMap.put(listenerBinder, listener);
+            client.mAllProperties = true;
+            subscriptions = updateSubscriptionsLocked();
         }
+        applyHalSubscriptions(subscriptions);
     }
 
     @Override
@@ -151,26 +246,181 @@ public class CarPropertyServiceBase extends ICarProperty.Stub
         }
 
         IBinder listenerBinder = listener.asBinder();
+        HalSubscriptions subscriptions;
         synchronized (mLock) {
-            if (!mListenersMap.containsKey(listenerBinder)) {
+            if (!mClients.containsKey(listenerBinder)) {
                 Log.e(mTag, "unregisterListener: Listener was not previously registered.");
             }
-            unregisterListenerLocked(listenerBinder);
+            subscriptions = unregisterListenerLocked(listenerBinder);
+        }
+        applyHalSubscriptions(subscriptions);
+    }
+
+    @Override
+    public void subscribe(ICarPropertyEventListener listener, int prop, int area, float rate) {
+        if (mDbg) {
+            Log.d(mTag, "subscribe, prop: 0x" + Integer.toHexString(prop) + ", area: 0x"
+                    + Integer.toHexString(area) + ", rate: " + rate);
+        }
+        ICarImpl.assertPermission(mContext, mPermission);
+        if (listener == null) {
+            Log.e(mTag, "subscribe: Listener is null.");
+            throw new IllegalArgumentException("listener cannot be null.");
+        }
+        // Properties are only known once the vehicle HAL is initialized. Until then, the
+        // subscription is kept and unsupported properties are skipped when it is applied.
+        if (mHal.hasProperties() && !mHal.isPropertySupported(prop)) {
+            throw new IllegalArgumentException("Invalid property Id : 0x"
+                    + Integer.toHexString(prop));
+        }
+
+        HalSubscriptions subscriptions;
+        synchronized (mLock) {
+            Client client = getOrCreateClientLocked(listener);
+            SparseArray<Float> areaRates = client.mSubscriptions.get(prop);
+            if (areaRates == null) {
+                areaRates = new SparseArray<>();
+                client.mSubscriptions.put(prop, areaRates);
+            }
+            areaRates.put(area, rate);
+            subscriptions = updateSubscriptionsLocked();
+        }
+        applyHalSubscriptions(subscriptions);
+    }
+
+    @Override
+    public void unsubscribe(ICarPropertyEventListener listener, int prop, int area) {
+        if (mDbg) {
+            Log.d(mTag, "unsubscribe, prop: 0x" + Integer.toHexString(prop) + ", area: 0x"
+                    + Integer.toHexString(area));
+        }
+        ICarImpl.assertPermission(mContext, mPermission);
+        if (listener == null) {
+            Log.e(mTag, "unsubscribe: Listener is null.");
+            throw new IllegalArgumentException("Listener is null");
+        }
+
+        HalSubscriptions subscriptions;
+        synchronized (mLock) {
+            Client client = mClients.get(listener.asBinder());
+            SparseArray<Float> areaRates =
+                    client != null ? client.mSubscriptions.get(prop) : null;
+            if (areaRates == null || areaRates.indexOfKey(area) < 0) {
+                Log.e(mTag, "unsubscribe: Listener was not subscribed.");
+                return;
+            }
+            areaRates.delete(area);
+            if (areaRates.size() == 0) {
+                client.mSubscriptions.delete(prop);
+            }
+            if (!client.mAllProperties && client.mSubscriptions.size() == 0) {
+                subscriptions = unregisterListenerLocked(client.mListenerBinder);
+            } else {
+                subscriptions = updateSubscriptionsLocked();
+            }
         }
+        applyHalSubscriptions(subscriptions);
+    }
+
+    @GuardedBy("mLock")
+    private Client getOrCreateClientLocked(ICarPropertyEventListener listener) {
+        IBinder listenerBinder = listener.asBinder();
+        Client client = mClients.get(listenerBinder);
+        if (client != null) {
+            return client;
+        }
+        client = new Client(listener);
+        try {
+            listenerBinder.linkToDeath(client, 0);
+        } catch (RemoteException e) {
+            Log.e(mTag, "Failed to link death for recipient. " + e);
+            throw new IllegalStateException(Car.CAR_NOT_CONNECTED_EXCEPTION_MSG);
+        }
+        mClients.put(listenerBinder, client);
+        return client;
     }
 
     // Removes the listenerBinder from the current state.
-    // The function assumes that binder will exist both in listeners and death recipients list.
-    private void unregisterListenerLocked(IBinder listenerBinder) {
-        boolean found = mListenersMap.remove(listenerBinder) != null;
+    @GuardedBy("mLock")
+    private HalSubscriptions unregisterListenerLocked(IBinder listenerBinder) {
+        Client client = mClients.remove(listenerBinder);
+        if (client != null) {
+            client.release();
+        }
+        return updateSubscriptionsLocked();
+    }
 
-        if (found) {
-            mDeathRecipientMap.get(listenerBinder).release();
-            mDeathRecipientMap.remove(listenerBinder);
+    /**
+     * Rebuilds the dispatch table and returns the properties to subscribe in the HAL, to be
+     * applied with {@link #applyHalSubscriptions} once the lock is released.
+     */
+    @GuardedBy("mLock")
+    private HalSubscriptions updateSubscriptionsLocked() {
+        List<ICarPropertyEventListener> allPropertyListeners = new ArrayList<>();
+        SparseArray<List<Client>> propertyClients = new SparseArray<>();
+        SparseArray<Float> halRates = new SparseArray<>();
+        for (Client client : mClients.values()) {
+            if (client.mAllProperties) {
+                // Gets all events anyway, so it is not added to the property listeners.
+                allPropertyListeners.add(client.mListener);
+                continue;
+            }
+            for (int i = 0; i < client.mSubscriptions.size(); i++) {
+                int prop = client.mSubscriptions.keyAt(i);
+                List<Client> clients = propertyClients.get(prop);
+                if (clients == null) {
+                    clients = new ArrayList<>();
+                    propertyClients.put(prop, clients);
+                }
+                clients.add(client);
+                SparseArray<Float> areaRates = client.mSubscriptions.valueAt(i);
+                float rate = halRates.get(prop, 0f);
+                for (int j = 0; j < areaRates.size(); j++) {
+                    rate = Math.max(rate, areaRates.valueAt(j));
+                }
+                halRates.put(prop, rate);
+            }
         }
 
-        if (mListenersMap.isEmpty()) {
-            mHal.setListener(null);
+        SparseArray<PropertyListeners> propertyListeners = new SparseArray<>();
+        for (int i = 0; i < propertyClients.size(); i++) {
+            int prop = propertyClients.keyAt(i);
+            List<Client> clients = propertyClients.valueAt(i);
+            ICarPropertyEventListener[] listeners = new ICarPropertyEventListener[clients.size()];
+            int[][] areas = new int[clients.size()][];
+            for (int j = 0; j < clients.size(); j++) {
+                Client client = clients.get(j);
+                listeners[j] = client.mListener;
+                SparseArray<Float> areaRates = client.mSubscriptions.get(prop);
+                if (areaRates.indexOfKey(ALL_AREAS) < 0) {
+                    areas[j] = new int[areaRates.size()];
+                    for (int k = 0; k < areaRates.size(); k++) {
+                        areas[j][k] = areaRates.keyAt(k);
+                    }
+                }
+            }
+            propertyListeners.put(prop, new PropertyListeners(listeners, areas));
+        }
+        mDispatchTable = new DispatchTable(
+                allPropertyListeners.toArray(new ICarPropertyEventListener[0]),
+                propertyListeners);
+
+        return new HalSubscriptions(++mSubscriptionsVersion, !mClients.isEmpty(),
+                allPropertyListeners.isEmpty() ? halRates : null);
+    }
+
+    /**
+     * Applies subscriptions to the vehicle HAL. Updates racing each other may get here out of
+     * order, an update older than the applied one is skipped as it is already superseded.
+     */
+    private void applyHalSubscriptions(HalSubscriptions subscriptions) {
+        synchronized (mHalLock) {
+            if (subscriptions.mVersion - mAppliedSubscriptionsVersion <= 0) {
+                return;
+            }
+            mAppliedSubscriptionsVersion = subscriptions.mVersion;
+            mHal.setListener(subscriptions.mHasListeners ? this : null);
+            mHal.setSubscriptions(subscriptions.mRates);
         }
     }
 
@@ -192,37 +442,94 @@ public class CarPropertyServiceBase extends ICarProperty.Stub
         mHal.setProperty(prop);
     }
 
-    private ICarPropertyEventListener[] getListeners() {
-        synchronized (mLock) {
-            int size = mListenersMap.values().size();
-            return mListenersMap.values().toArray(new ICarPropertyEventListener[size]);
-        }
-    }
-
     // Implement PropertyHalListener interface
     @Override
-    public void onPropertyChange(CarPropertyEvent event) {
-        for (ICarPropertyEventListener listener : getListeners()) {
-            try {
-                listener.onEvent(event);
-            } catch (RemoteException ex) {
-                // If we could not send a record, its likely the connection snapped. Let the binder
-                // death handle the situation.
-                Log.e(mTag, "onEvent calling failed: " + ex);
+    public void onPropertyChange(List<CarPropertyEvent> events) {
+        if (events.size() == 1) {
+            CarPropertyEvent event = events.get(0);
+            CarPropertyValue value = event.getCarPropertyValue();
+            dispatchEvent(event, value.getPropertyId(), value.getAreaId());
+            return;
+        }
+
+        // Each listener gets its events of the batch in one call.
+        DispatchTable table = mDispatchTable;
+        for (ICarPropertyEventListener listener : table.mAllPropertyListeners) {
+            sendEvents(listener, events);
+        }
+        if (table.mPropertyListeners.size() == 0) {
+            return;
+        }
+        ArrayMap<ICarPropertyEventListener, List<CarPropertyEvent>> listenerEvents =
+                new ArrayMap<>();
+        for (int i = 0; i < events.size(); i++) {
+            CarPropertyEvent event = events.get(i);
+            CarPropertyValue value = event.getCarPropertyValue();
+            PropertyListeners propertyListeners =
+                    table.mPropertyListeners.get(value.getPropertyId());
+            if (propertyListeners == null) {
+                continue;
+            }
+            for (int j = 0; j < propertyListeners.mListeners.length; j++) {
+                if (propertyListeners.isSubscribed(j, value.getAreaId())) {
+                    ICarPropertyEventListener listener = propertyListeners.mListeners[j];
+                    List<CarPropertyEvent> eventsOfListener = listenerEvents.get(listener);
+                    if (eventsOfListener == null) {
+                        eventsOfListener = new ArrayList<>();
+                        listenerEvents.put(listener, eventsOfListener);
+                    }
+                    eventsOfListener.add(event);
+                }
             }
         }
+        for (int i = 0; i < listenerEvents.size(); i++) {
+            sendEvents(listenerEvents.keyAt(i), listenerEvents.valueAt(i));
+        }
     }
 
     @Override
     public void onPropertySetError(int property, int area) {
-        for (ICarPropertyEventListener listener : getListeners()) {
-            try {
-                listener.onEvent(createErrorEvent(property, area));
-            } catch (RemoteException ex) {
-                // If we could not send a record, its likely the connection snapped. Let the binder
-                // death handle the situation.
-                Log.e(mTag, "onEvent calling failed: " + ex);
+        // Errors carry the HAL property id, listeners subscribed with the manager property id.
+        dispatchEvent(createErrorEvent(property, area), mHal.toManagerPropId(property), area);
+    }
+
+    private void dispatchEvent(CarPropertyEvent event, int prop, int area) {
+        DispatchTable table = mDispatchTable;
+        for (ICarPropertyEventListener listener : table.mAllPropertyListeners) {
+            sendEvent(listener, event);
+        }
+        PropertyListeners propertyListeners = table.mPropertyListeners.get(prop);
+        if (propertyListeners == null) {
+            return;
+        }
+        for (int i = 0; i < propertyListeners.mListeners.length; i++) {
+            if (propertyListeners.isSubscribed(i, area)) {
+                sendEvent(propertyListeners.mListeners[i], event);
+            }
+        }
+    }
+
+    private void sendEvent(ICarPropertyEventListener listener, CarPropertyEvent event) {
+        try {
+            listener.onEvent(event);
+        } catch (RemoteException ex) {
+            // If we could not send a record, its likely the connection snapped. Let the binder
+            // death handle the situation.
+            Log.e(mTag, "onEvent calling failed: " + ex);
+        }
+    }
+
+    private void sendEvents(ICarPropertyEventListener listener, List<CarPropertyEvent> events) {
+        try {
+            if (events.size() == 1) {
+                listener.onEvent(events.get(0));
+            } else {
+                listener.onEvents(events);
             }
+        } catch (RemoteException ex) {
+            // If we could not send a record, its likely the connection snapped. Let the binder
+            // death handle the situation.
+            Log.e(mTag, "onEvents calling failed: " + ex);
         }
     }
 
@@ -17,30 +17,80 @@
 package com.android.car;
 
 import android.car.hardware.CarSensorEvent;
+import android.util.Pools.SynchronizedPool;
 
-//TODO add memory pool and recycling
+/**
+ * Creates {@link CarSensorEvent}s for single value sensors. Events are taken from a bounded pool
+ * and should be given back with {@link #returnToPool(CarSensorEvent)} by the final owner once
+ * nobody can access them anymore, see {@link CarSensorService}.
+ */
 public class CarSensorEventFactory {
 
+    /** Enough to cover events in flight for a dozen sensors at 100Hz. */
+    private static final int MAX_POOL_SIZE = 64;
+
+    /** Pool for events with 0 float and 1 int value: boolean and int sensors. */
+    private static final SynchronizedPool<CarSensorEvent> sIntEventPool =
+            new SynchronizedPool<>(MAX_POOL_SIZE);
+    /** Pool for events with 1 float and 0 int value. */
+    private static final SynchronizedPool<CarSensorEvent> sFloatEventPool =
+            new SynchronizedPool<>(MAX_POOL_SIZE);
+
     public static CarSensorEvent createBooleanEvent(int sensorType, long timestamp,
             boolean value) {
-        CarSensorEvent event = new CarSensorEvent(sensorType, timestamp, 0, 1);
-        event.intValues[0] = value ? 1 : 0;
-        return event;
+        return createIntEvent(sensorType, timestamp, value ? 1 : 0);
     }
 
     public static CarSensorEvent createIntEvent(int sensorType, long timestamp, int value) {
-        CarSensorEvent event = new CarSensorEvent(sensorType, timestamp, 0, 1);
+        CarSensorEvent event = sIntEventPool.acquire();
+        if (event == null) {
+            event = new CarSensorEvent(sensorType, timestamp, 0, 1);
+        } else {
+            event.sensorType = sensorType;
+            event.timestamp = timestamp;
+        }
         event.intValues[0] = value;
         return event;
     }
 
     public static CarSensorEvent createFloatEvent(int sensorType, long timestamp, float value) {
-        CarSensorEvent event = new CarSensorEvent(sensorType, timestamp, 1, 0);
+        CarSensorEvent event = sFloatEventPool.acquire();
+        if (event == null) {
+            event = new CarSensorEvent(sensorType, timestamp, 1, 0);
+        } else {
+            event.sensorType = sensorType;
+            event.timestamp = timestamp;
+        }
         event.floatValues[0] = value;
         return event;
     }
 
+    /** Returns a copy of the event, taken from the pool if the event has a pooled shape. */
+    public static CarSensorEvent copyOf(CarSensorEvent event) {
+        if (event.floatValues.length == 0 && event.intValues.length == 1) {
+            return createIntEvent(event.sensorType, event.timestamp, event.intValues[0]);
+        } else if (event.floatValues.length == 1 && event.intValues.length == 0) {
+            return createFloatEvent(event.sensorType, event.timestamp, event.floatValues[0]);
+        }
+        CarSensorEvent copy = new CarSensorEvent(event.sensorType, event.timestamp,
+                event.floatValues.length, event.intValues.length);
+        System.arraycopy(event.floatValues, 0, copy.floatValues, 0, event.floatValues.length);
+        System.arraycopy(event.intValues, 0, copy.intValues, 0, event.intValues.length);
+        return copy;
+    }
+
+    /**
+     * Makes the event available for future create calls. Events with a shape which is not
+     * produced by this factory are left to GC. Caller must not use the event after this call.
+     */
     public static void returnToPool(CarSensorEvent event) {
-        //TODO
+        if (event == null) {
+            return;
+        }
+        if (event.floatValues.length == 0 && event.intValues.length == 1) {
+            sIntEventPool.release(event);
+        } else if (event.floatValues.length == 1 && event.intValues.length == 0) {
+            sFloatEventPool.release(event);
+        }
     }
 }
@@ -16,8 +16,10 @@
 
 package com.android.car;
 
+import android.annotation.Nullable;
 import android.car.Car;
 import android.car.hardware.CarSensorEvent;
+import android.car.hardware.CarSensorEventBatch;
 import android.car.hardware.CarSensorManager;
 import android.car.hardware.ICarSensor;
 import android.car.hardware.ICarSensorEventListener;
@@ -31,7 +33,9 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SharedMemory;
 import android.os.SystemClock;
+import android.system.ErrnoException;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
@@ -45,8 +49,10 @@ import com.google.android.collect.Lists;
 import com.android.car.hal.SensorHalService;
 import com.android.car.hal.SensorHalServiceBase;
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.LinkedList;
@@ -93,6 +99,12 @@ public class CarSensorService extends ICarSensor.Stub
      */
     private static final boolean ENABLE_DISPATCHING_LIMIT = false;
 
+    /** Capacity of the queue of {@link SensorDispatchHandler}. */
+    private static final int SENSOR_DISPATCH_QUEUE_SIZE = 256;
+
+    /** Upper bound for {@link #openSensorRing(int[], int, IBinder)}, 128KB of records. */
+    private static final int MAX_SENSOR_RING_CAPACITY = 4096;
+
     /** {@link #mSensorLock} is not waited forever for handling disconnection */
     private static final long MAX_SENSOR_LOCK_WAIT_MS = 1000;
 
@@ -108,9 +120,13 @@ public class CarSensorService extends ICarSensor.Stub
     /** key: sensor type. */
     @GuardedBy("mSensorLock")
     private final SparseArray<SensorRecord> mSensorRecords = new SparseArray<>();
+    /** Shared memory rings, key: client token. */
+    @GuardedBy("mSensorLock")
+    private final ArrayMap<IBinder, SensorRingClient> mSensorRings = new ArrayMap<>();
 
     private final SensorHalService mSensorHal;
-    private int[] mCarProvidedSensors;
+    /** Set in {@link #init()}, also read without {@link #mSensorLock} by event producers. */
+    private volatile int[] mCarProvidedSensors;
     private int[] mSupportedSensors;
     private final AtomicBoolean mSensorDiscovered = new AtomicBoolean(false);
 
@@ -123,13 +139,27 @@ public class CarSensorService extends ICarSensor.Stub
 
     private final HandlerThread mHandlerThread;
     private final SensorDispatchHandler mSensorDispatchHandler;
+    /** See {@link #shouldCoalesce(int, int)}. */
+    private final boolean mCoalesceContinuousSensorEvents;
 
     public CarSensorService(Context context, SensorHalService sensorHal) {
+        this(context, sensorHal, context.getResources().getBoolean(
+                R.bool.coalesceContinuousSensorEvents));
+    }
+
+    @VisibleForTesting
+    public CarSensorService(Context context, SensorHalService sensorHal,
+            boolean coalesceContinuousSensorEvents) {
         mContext = context;
-        if (ENABLE_DISPATCHING_LIMIT) {
+        mCoalesceContinuousSensorEvents = coalesceContinuousSensorEvents;
+        // Coalescing needs dispatch windows to be meaningful, HAL batches are usually tiny. Events
+        // for coalesced clients are queued and dispatched together at most once per dispatch
+        // interval, other clients get them right away.
+        if (ENABLE_DISPATCHING_LIMIT || mCoalesceContinuousSensorEvents) {
             mHandlerThread = new HandlerThread("SENSOR", Process.THREAD_PRIORITY_AUDIO);
             mHandlerThread.start();
-            mSensorDispatchHandler = new SensorDispatchHandler(mHandlerThread.getLooper());
+            mSensorDispatchHandler = new SensorDispatchHandler(mHandlerThread.getLooper(),
+                    context.getResources().getInteger(R.integer.sensorDispatchOverflowPolicy));
         } else {
             mHandlerThread = null;
             mSensorDispatchHandler = null;
@@ -230,6 +260,10 @@ public class CarSensorService extends ICarSensor.Stub
             mSensorListeners.clear();
             mSensorRecords.clear();
             mClients.clear();
+            for (int i = mSensorRings.size() - 1; i >= 0; --i) {
+                mSensorRings.valueAt(i).release();
+            }
+            mSensorRings.clear();
         } finally {
             releaseSensorLockSafely();
         }
@@ -249,6 +283,49 @@ public class CarSensorService extends ICarSensor.Stub
         }
     }
 
+    /**
+     * Whether given client should only get the newest event of the sensor in each dispatch
+     * window. Applies to continuous sensors for clients which did not ask for more than UI rate.
+     */
+    private boolean shouldCoalesce(int sensorType, int clientRate) {
+        return mCoalesceContinuousSensorEvents
+                && clientRate >= CarSensorManager.SENSOR_RATE_UI
+                && isContinuousSensor(sensorType);
+    }
+
+    /**
+     * Whether events of the sensor are sent to given client from {@link SensorDispatchHandler}
+     * rather than from the thread which produced them.
+     */
+    private boolean isDispatchedFromQueue(int sensorType, int clientRate) {
+        return mSensorDispatchHandler != null
+                && (ENABLE_DISPATCHING_LIMIT || shouldCoalesce(sensorType, clientRate));
+    }
+
+    /**
+     * Continuous sensors are sent to each client at its own rate. Other sensors report changes,
+     * so every event is sent.
+     */
+    private static boolean isContinuousSensor(int sensorType) {
+        return sensorType == CarSensorManager.SENSOR_TYPE_CAR_SPEED
+                || sensorType == CarSensorManager.SENSOR_TYPE_RPM;
+    }
+
+    /**
+     * Replaces an event of the same sensor type in the list with given event. Returns
+     * {@code false} if the list does not have an event of that type.
+     */
+    private static boolean replaceEventOfSameType(List<CarSensorEvent> events,
+            CarSensorEvent event) {
+        for (int i = events.size() - 1; i >= 0; i--) {
+            if (events.get(i).sensorType == event.sensorType) {
+                events.set(i, event);
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void notifyDefaultPoliciesLocked() {
         if (mUseDefaultDrivingPolicy) {
             mDrivingStatePolicy.onSensorServiceReady();
@@ -258,20 +335,42 @@ public class CarSensorService extends ICarSensor.Stub
         }
     }
 
+    /**
+     * Dispatches events to clients which are not dispatched from the queue, and queues copies of
+     * events for the others. Takes ownership of the events: each of them either becomes the last
+     * event of its sensor record or is given back to {@link CarSensorEventFactory}.
+     *
+     * <p>Only events of sensors provided by the car are recycled. Those are produced by
+     * {@link SensorHalService} from a single thread, so a replaced last event can not be in the
+     * middle of dispatching in another thread. Logical sensors are left to GC. The queue gets its
+     * own copies, as it is dispatched from another thread.
+     */
     private void processSensorData(List<CarSensorEvent> events) {
         ArrayMap<SensorClient, List<CarSensorEvent>> eventsByClient = new ArrayMap<>();
+        // Replaced last events, recycled once dispatching of this batch is done.
+        ArrayList<CarSensorEvent> eventsToRecycle = null;
+        ArrayList<CarSensorEvent> eventsToQueue = null;
 
         mSensorLock.lock();
         for (CarSensorEvent event: events) {
             SensorRecord record = mSensorRecords.get(event.sensorType);
             if (record != null) {
+                boolean recyclable = isSensorReal(event.sensorType);
                 if (record.lastEvent == null) {
                     record.lastEvent = event;
                 } else if (record.lastEvent.timestamp < event.timestamp) {
+                    if (recyclable) {
+                        if (eventsToRecycle == null) {
+                            eventsToRecycle = new ArrayList<>();
+                        }
+                        eventsToRecycle.add(record.lastEvent);
+                    }
                     record.lastEvent = event;
-                    //TODO recycle event, bug: 32094595
                 } else { // wrong timestamp, throw away this.
-                    //TODO recycle new event, bug: 32094595
+                    if (recyclable) {
+                        // Never shared with anybody, so safe to recycle right away.
+                        CarSensorEventFactory.returnToPool(event);
+                    }
                     continue;
                 }
 
@@ -280,24 +379,94 @@ public class CarSensorService extends ICarSensor.Stub
                     continue;
                 }
 
+                boolean continuous = isContinuousSensor(event.sensorType);
+                boolean queue = false;
                 for (ClientWithRate<SensorClient> clientWithRate : listeners.getClients()) {
-                    SensorClient client = clientWithRate.getClient();
+                    if (isDispatchedFromQueue(event.sensorType, clientWithRate.getRate())) {
+                        queue = true;
+                        continue;
+                    }
+                    if (continuous && !clientWithRate.shouldDispatch(event.timestamp)) {
+                        continue;
+                    }
+                    addClientEvent(eventsByClient, clientWithRate.getClient(), event);
+                }
+                if (queue) {
+                    if (eventsToQueue == null) {
+                        eventsToQueue = new ArrayList<>();
+                    }
+                    eventsToQueue.add(event);
+                }
+            }
+        }
+        mSensorLock.unlock();
+
+        dispatchToClients(eventsByClient);
+        // Before recycling, replaced events of this batch might be queued.
+        if (eventsToQueue != null) {
+            mSensorDispatchHandler.handleSensorEvents(eventsToQueue);
+        }
+        if (eventsToRecycle != null) {
+            for (CarSensorEvent event : eventsToRecycle) {
+                CarSensorEventFactory.returnToPool(event);
+            }
+        }
+    }
+
+    /**
+     * Dispatches events taken from the queue to clients which are dispatched from the queue.
+     * Events are copies owned by the queue, they are all given back to
+     * {@link CarSensorEventFactory} once dispatched.
+     */
+    private void processQueuedSensorData(List<CarSensorEvent> events) {
+        ArrayMap<SensorClient, List<CarSensorEvent>> eventsByClient = new ArrayMap<>();
+
+        mSensorLock.lock();
+        for (CarSensorEvent event : events) {
+            Listeners<SensorClient> listeners = mSensorListeners.get(event.sensorType);
+            if (listeners == null) {
+                continue;
+            }
+            boolean continuous = isContinuousSensor(event.sensorType);
+            for (ClientWithRate<SensorClient> clientWithRate : listeners.getClients()) {
+                int rate = clientWithRate.getRate();
+                if (!isDispatchedFromQueue(event.sensorType, rate)
+                        || (continuous && !clientWithRate.shouldDispatch(event.timestamp))) {
+                    continue;
+                }
+                SensorClient client = clientWithRate.getClient();
+                if (shouldCoalesce(event.sensorType, rate)) {
                     List<CarSensorEvent> clientEvents = eventsByClient.get(client);
-                    if (clientEvents == null) {
-                        clientEvents = new LinkedList<>();
-                        eventsByClient.put(client, clientEvents);
+                    if (clientEvents != null && replaceEventOfSameType(clientEvents, event)) {
+                        continue;
                     }
-                    clientEvents.add(event);
                 }
+                addClientEvent(eventsByClient, client, event);
             }
         }
         mSensorLock.unlock();
 
-        for (ArrayMap.Entry<SensorClient, List<CarSensorEvent>> entry : eventsByClient.entrySet()) {
-            SensorClient client = entry.getKey();
-            List<CarSensorEvent> clientEvents = entry.getValue();
+        dispatchToClients(eventsByClient);
+        for (CarSensorEvent event : events) {
+            CarSensorEventFactory.returnToPool(event);
+        }
+    }
 
-            client.dispatchSensorUpdate(clientEvents);
+    private static void addClientEvent(
+            ArrayMap<SensorClient, List<CarSensorEvent>> eventsByClient, SensorClient client,
+            CarSensorEvent event) {
+        List<CarSensorEvent> clientEvents = eventsByClient.get(client);
+        if (clientEvents == null) {
+            clientEvents = new ArrayList<>();
+            eventsByClient.put(client, clientEvents);
+        }
+        clientEvents.add(event);
+    }
+
+    private static void dispatchToClients(
+            ArrayMap<SensorClient, List<CarSensorEvent>> eventsByClient) {
+        for (ArrayMap.Entry<SensorClient, List<CarSensorEvent>> entry : eventsByClient.entrySet()) {
+            entry.getKey().dispatchSensorUpdate(entry.getValue());
         }
     }
 
@@ -306,11 +475,7 @@ public class CarSensorService extends ICarSensor.Stub
      */
     @Override
     public void onSensorEvents(List<CarSensorEvent> events) {
-        if (ENABLE_DISPATCHING_LIMIT) {
-            mSensorDispatchHandler.handleSensorEvents(events);
-        } else {
-            processSensorData(events);
-        }
+        processSensorData(events);
     }
 
     @Override
@@ -559,6 +724,69 @@ public class CarSensorService extends ICarSensor.Stub
         }
     }
 
+    @Override
+    public SharedMemory openSensorRing(int[] sensorTypes, int capacity, IBinder token) {
+        if (capacity <= 0 || capacity > MAX_SENSOR_RING_CAPACITY) {
+            throw new IllegalArgumentException("Invalid sensor ring capacity:" + capacity);
+        }
+        SensorRingClient ring;
+        try {
+            ring = SensorRingClient.create(this, token, sensorTypes, capacity);
+        } catch (ErrnoException e) {
+            Log.w(CarLog.TAG_SENSOR, "Cannot create sensor ring", e);
+            return null;
+        }
+        mSensorLock.lock();
+        try {
+            if (mSensorRings.containsKey(token)) {
+                ring.release();
+                throw new IllegalArgumentException("Sensor ring already opened for token");
+            }
+            mSensorRings.put(token, ring);
+        } finally {
+            mSensorLock.unlock();
+        }
+        SharedMemory memory = null;
+        try {
+            token.linkToDeath(ring, 0);
+            for (int sensorType : sensorTypes) {
+                // Permissions are checked against the calling client.
+                if (!registerOrUpdateSensorListener(sensorType,
+                        CarSensorManager.SENSOR_RATE_FASTEST, ring)) {
+                    return null;
+                }
+            }
+            // Binder dups the descriptor when writing the reply.
+            memory = ring.getSharedMemory();
+            return memory;
+        } catch (RemoteException e) {
+            Log.w(CarLog.TAG_SENSOR, "Cannot open sensor ring", e);
+            return null;
+        } finally {
+            if (memory == null) {
+                closeSensorRing(token);
+            }
+        }
+    }
+
+    @Override
+    public void closeSensorRing(IBinder token) {
+        SensorRingClient ring;
+        mSensorLock.lock();
+        try {
+            ring = mSensorRings.remove(token);
+        } finally {
+            mSensorLock.unlock();
+        }
+        if (ring == null) {
+            return;
+        }
+        for (int sensorType : ring.getSensorTypes()) {
+            unregisterSensorListener(sensorType, ring);
+        }
+        ring.release();
+    }
+
     private void stopSensor(SensorRecord record, int sensorType) {
         if (Log.isLoggable(CarLog.TAG_SENSOR, Log.DEBUG)) {
             Log.d(CarLog.TAG_SENSOR, "stopSensor " + sensorType);
@@ -604,19 +832,39 @@ public class CarSensorService extends ICarSensor.Stub
 
     @Override
     public CarSensorEvent getLatestSensorEvent(int sensorType) {
-        SensorRecord record = null;
         mSensorLock.lock();
         try {
-            record = mSensorRecords.get(sensorType);
+            SensorRecord record = mSensorRecords.get(sensorType);
+            if (record != null) {
+                // Return a copy as last event is recycled once replaced by a newer one.
+                return copyOf(record.lastEvent);
+            }
         } finally {
             mSensorLock.unlock();
         }
-        if (record != null) {
-            return record.lastEvent;
-        }
         return null;
     }
 
+    @Nullable
+    private static CarSensorEvent copyOf(@Nullable CarSensorEvent event) {
+        if (event == null) {
+            return null;
+        }
+        CarSensorEvent copy = new CarSensorEvent(event.sensorType, event.timestamp,
+                event.floatValues.length, event.intValues.length);
+        System.arraycopy(event.floatValues, 0, copy.floatValues, 0, event.floatValues.length);
+        System.arraycopy(event.intValues, 0, copy.intValues, 0, event.intValues.length);
+        return copy;
+    }
+
+    private static List<CarSensorEvent> copyOf(List<CarSensorEvent> events) {
+        List<CarSensorEvent> copies = new ArrayList<>(events.size());
+        for (CarSensorEvent event : events) {
+            copies.add(copyOf(event));
+        }
+        return copies;
+    }
+
     private int[] refreshSupportedSensorsLocked() {
         int numCarSensors = (mCarProvidedSensors == null) ? 0 : mCarProvidedSensors.length;
         for (int i = 0; i < numCarSensors; i++) {
@@ -660,9 +908,11 @@ public class CarSensorService extends ICarSensor.Stub
         return supportedSensors;
     }
 
-    private boolean isSensorRealLocked(int sensorType) {
-        if (mCarProvidedSensors != null) {
-            for (int sensor : mCarProvidedSensors) {
+    /** Whether the sensor is provided by the car. Its events come from the event pool. */
+    private boolean isSensorReal(int sensorType) {
+        final int[] carProvidedSensors = mCarProvidedSensors;
+        if (carProvidedSensors != null) {
+            for (int sensor : carProvidedSensors) {
                 if (sensor == sensorType ) {
                     return true;
                 }
@@ -705,30 +955,35 @@ public class CarSensorService extends ICarSensor.Stub
 
         private static final int MSG_SENSOR_DATA = 0;
 
+        private final SensorEventRingBuffer mQueue;
+        /** Only accessed from the handler thread. */
+        private final ArrayList<CarSensorEvent> mEventsToDispatch =
+                new ArrayList<>(SENSOR_DISPATCH_QUEUE_SIZE);
+
         private long mLastSensorDispatchTime = -1;
-        private int mFreeListIndex = 0;
-        private final LinkedList<CarSensorEvent>[] mSensorDataList = new LinkedList[2];
 
-        private SensorDispatchHandler(Looper looper) {
+        /**
+         * @param overflowPolicy what to drop when dispatching falls behind and the queue is full,
+         *        one of the {@code OVERFLOW_*} policies of {@link SensorEventRingBuffer}
+         */
+        private SensorDispatchHandler(Looper looper, int overflowPolicy) {
             super(looper);
-            for (int i = 0; i < mSensorDataList.length; i++) {
-                mSensorDataList[i] = new LinkedList<CarSensorEvent>();
-            }
-        }
-
-        private synchronized void handleSensorEvents(List<CarSensorEvent> data) {
-            LinkedList<CarSensorEvent> list = mSensorDataList[mFreeListIndex];
-            list.addAll(data);
-            requestDispatchLocked();
+            mQueue = new SensorEventRingBuffer(SENSOR_DISPATCH_QUEUE_SIZE, overflowPolicy);
         }
 
-        private synchronized void handleSensorEvent(CarSensorEvent event) {
-            LinkedList<CarSensorEvent> list = mSensorDataList[mFreeListIndex];
-            list.add(event);
-            requestDispatchLocked();
+        /** Queues copies of the events, the events themselves are not retained. */
+        private void handleSensorEvents(List<CarSensorEvent> data) {
+            final int size = data.size();
+            for (int i = 0; i < size; i++) {
+                mQueue.offer(CarSensorEventFactory.copyOf(data.get(i)), true /* recyclable */);
+            }
+            requestDispatch();
         }
 
-        private void requestDispatchLocked() {
+        private synchronized void requestDispatch() {
+            if (hasMessages(MSG_SENSOR_DATA)) {
+                return;
+            }
             Message msg = obtainMessage(MSG_SENSOR_DATA);
             long now = SystemClock.uptimeMillis();
             long delta = now - mLastSensorDispatchTime;
@@ -751,37 +1006,37 @@ public class CarSensorService extends ICarSensor.Stub
         }
 
         private void doHandleSensorData() {
-            List<CarSensorEvent> listToDispatch = null;
             synchronized (this) {
                 mLastSensorDispatchTime = SystemClock.uptimeMillis();
-                int nonFreeListIndex = mFreeListIndex ^ 0x1;
-                List<CarSensorEvent> nonFreeList = mSensorDataList[nonFreeListIndex];
-                List<CarSensorEvent> freeList = mSensorDataList[mFreeListIndex];
-                if (nonFreeList.size() > 0) {
-                    Log.w(CarLog.TAG_SENSOR, "non free list not empty");
-                    // copy again, but this should not be normal case
-                    nonFreeList.addAll(freeList);
-                    listToDispatch = nonFreeList;
-                    freeList.clear();
-                } else if (freeList.size() > 0) {
-                    listToDispatch = freeList;
-                    mFreeListIndex = nonFreeListIndex;
-                }
             }
-            // leave this part outside lock so that time-taking dispatching can be done without
-            // blocking sensor event notification.
-            if (listToDispatch != null) {
-                processSensorData(listToDispatch);
-                listToDispatch.clear();
+            // Dispatching is done without holding the queue so that time-taking dispatching
+            // does not block sensor event notification.
+            if (mQueue.drainTo(mEventsToDispatch) > 0) {
+                processQueuedSensorData(mEventsToDispatch);
+                mEventsToDispatch.clear();
             }
         }
 
+        private void dump(PrintWriter writer) {
+            writer.println("dispatch queue size:" + mQueue.size() + "/" + mQueue.capacity()
+                    + ", overruns:" + mQueue.getOverrunCount());
+        }
     }
 
     /** internal instance for pending client request */
     private class SensorClient implements Listeners.IListener {
         /** callback for sensor events */
         private final ICarSensorEventListener mListener;
+        /**
+         * Listeners in other processes get events packed into {@link CarSensorEventBatch} which
+         * is much cheaper to parcel than a list of events.
+         */
+        private final boolean mIsRemote;
+        /**
+         * In-process listeners get pooled events, only valid during the call, unless they declare
+         * with {@link LocalSensorEventListener#retainsEvents()} that they keep them.
+         */
+        private final boolean mRetainsEvents;
         private final SparseBooleanArray mActiveSensors = new SparseBooleanArray();
 
         /** when false, it is already released */
@@ -789,6 +1044,9 @@ public class CarSensorService extends ICarSensor.Stub
 
         SensorClient(ICarSensorEventListener listener) {
             this.mListener = listener;
+            this.mIsRemote = !(listener.asBinder() instanceof Binder);
+            this.mRetainsEvents = listener instanceof LocalSensorEventListener
+                    && ((LocalSensorEventListener) listener).retainsEvents();
         }
 
         @Override
@@ -843,7 +1101,13 @@ public class CarSensorService extends ICarSensor.Stub
             }
             if (mActive) {
                 try {
-                    mListener.onSensorChanged(events);
+                    if (mIsRemote) {
+                        mListener.onSensorEventBatch(CarSensorEventBatch.create(events));
+                    } else if (mRetainsEvents) {
+                        mListener.onSensorChanged(copyOf(events));
+                    } else {
+                        mListener.onSensorChanged(events);
+                    }
                 } catch (RemoteException e) {
                     //ignore. crash will be handled by death handler
                 }
@@ -930,6 +1194,18 @@ public class CarSensorService extends ICarSensor.Stub
         }  catch  (ConcurrentModificationException e) {
             writer.println("concurrent modification happened");
         }
+        if (mSensorDispatchHandler != null) {
+            mSensorDispatchHandler.dump(writer);
+        }
+        writer.println("**sensor rings**");
+        try {
+            for (int i = 0; i < mSensorRings.size(); i++) {
+                mSensorRings.valueAt(i).dump(writer);
+            }
+        } catch (ConcurrentModificationException | IndexOutOfBoundsException e) {
+            writer.println("concurrent modification happened");
+        }
+        writer.println("mCoalesceContinuousSensorEvents:" + mCoalesceContinuousSensorEvents);
         writer.println("mUseDefaultDrivingPolicy:" + mUseDefaultDrivingPolicy +
                 ",mUseDefaultDayNightModePolicy" + mUseDefaultDayNightModePolicy);
         writer.println("**driving policy**");
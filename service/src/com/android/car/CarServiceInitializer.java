@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs an action, like {@link CarServiceBase#init()}, on all car services, running services which
+ * do not depend on each other in parallel on a bounded pool of threads.
+ *
+ * <p>Services are added with the services they depend on, which must have been added before. So
+ * the order in which services are added is a valid order to run them one at a time, and its
+ * reverse a valid order to release them.
+ */
+public class CarServiceInitializer {
+    private static final String TAG = CarLog.TAG_SERVICE;
+
+    private final int mThreadCount;
+    private final List<Node> mNodes = new ArrayList<>();
+    private final Map<CarServiceBase, Node> mNodesByService = new IdentityHashMap<>();
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private String mLastPhase;
+    @GuardedBy("mLock")
+    private long mLastRunDurationMs;
+
+    private static class Node {
+        final CarServiceBase mService;
+        final List<Node> mDependents = new ArrayList<>();
+        int mDependencyCount;
+        /** Dependencies not run yet in the current run. */
+        int mPendingDependencies;
+        /** Duration of the action in the last run. */
+        @GuardedBy("mLock")
+        long mDurationMs;
+
+        Node(CarServiceBase service) {
+            mService = service;
+        }
+    }
+
+    /** @param threadCount maximum number of services running at the same time. */
+    public CarServiceInitializer(int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount should be positive: " + threadCount);
+        }
+        mThreadCount = threadCount;
+    }
+
+    /** Adds a service, which is run after all its dependencies are done. */
+    public void add(CarServiceBase service, CarServiceBase... dependencies) {
+        if (mNodesByService.containsKey(service)) {
+            throw new IllegalArgumentException("Service added twice: " + service);
+        }
+        Node node = new Node(service);
+        for (CarServiceBase dependency : dependencies) {
+            Node dependencyNode = mNodesByService.get(dependency);
+            if (dependencyNode == null) {
+                throw new IllegalArgumentException(
+                        "Dependency of " + service + " not added before: " + dependency);
+            }
+            dependencyNode.mDependents.add(node);
+            node.mDependencyCount++;
+        }
+        mNodes.add(node);
+        mNodesByService.put(service, node);
+    }
+
+    /** Returns services in the order they were added. */
+    public CarServiceBase[] getServices() {
+        CarServiceBase[] services = new CarServiceBase[mNodes.size()];
+        for (int i = 0; i < services.length; i++) {
+            services[i] = mNodes.get(i).mService;
+        }
+        return services;
+    }
+
+    /**
+     * Runs the action on all services, each after its dependencies, and returns once all are
+     * done. If the action throws for a service, services which have not started yet are skipped
+     * and the exception is thrown again once running services are done.
+     *
+     * @param phase name of the action, for logs and dump.
+     */
+    public void run(String phase, Consumer<CarServiceBase> action) {
+        long startMs = SystemClock.elapsedRealtime();
+        Run run = new Run(action);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mThreadCount, Math.max(1, mNodes.size())), new ThreadFactory(phase));
+        try {
+            run.start(executor);
+            run.await();
+        } finally {
+            executor.shutdown();
+        }
+        long durationMs = SystemClock.elapsedRealtime() - startMs;
+        synchronized (mLock) {
+            mLastPhase = phase;
+            mLastRunDurationMs = durationMs;
+        }
+        Log.i(TAG, phase + " of " + mNodes.size() + " services took " + durationMs + "ms");
+        RuntimeException failure = run.getFailure();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public long getDurationMs(CarServiceBase service) {
+        Node node = mNodesByService.get(service);
+        if (node == null) {
+            throw new IllegalArgumentException("Unknown service: " + service);
+        }
+        synchronized (mLock) {
+            return node.mDurationMs;
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("*CarServiceInitializer* last run: " + mLastPhase + " took "
+                    + mLastRunDurationMs + "ms, threads:" + mThreadCount);
+            for (Node node : mNodes) {
+                writer.println("  " + node.mService.getClass().getSimpleName() + ": "
+                        + node.mDurationMs + "ms");
+            }
+        }
+    }
+
+    /** State of one {@link #run(String, Consumer)}. */
+    private class Run {
+        private final Consumer<CarServiceBase> mAction;
+        @GuardedBy("this")
+        private int mRemaining;
+        @GuardedBy("this")
+        private RuntimeException mFailure;
+        private ExecutorService mExecutor;
+
+        Run(Consumer<CarServiceBase> action) {
+            mAction = action;
+        }
+
+        synchronized void start(ExecutorService executor) {
+            mExecutor = executor;
+            mRemaining = mNodes.size();
+            for (Node node : mNodes) {
+                node.mPendingDependencies = node.mDependencyCount;
+            }
+            for (Node node : mNodes) {
+                if (node.mPendingDependencies == 0) {
+                    submitLocked(node);
+                }
+            }
+        }
+
+        @GuardedBy("this")
+        private void submitLocked(Node node) {
+            mExecutor.execute(() -> runNode(node));
+        }
+
+        private void runNode(Node node) {
+            synchronized (this) {
+                if (mFailure != null) {
+                    // Not run, but counted as done so that waiting for the run ends.
+                    completeLocked(node);
+                    return;
+                }
+            }
+            long startMs = SystemClock.elapsedRealtime();
+            RuntimeException failure = null;
+            try {
+                mAction.accept(node.mService);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to run " + node.mService, e);
+                failure = e;
+            } catch (Error e) {
+                // Still completes the node, so that the caller does not wait forever.
+                Log.e(TAG, "Failed to run " + node.mService, e);
+                failure = new RuntimeException(e);
+            }
+            long durationMs = SystemClock.elapsedRealtime() - startMs;
+            synchronized (mLock) {
+                node.mDurationMs = durationMs;
+            }
+            synchronized (this) {
+                if (failure != null && mFailure == null) {
+                    mFailure = failure;
+                }
+                completeLocked(node);
+            }
+        }
+
+        @GuardedBy("this")
+        private void completeLocked(Node node) {
+            mRemaining--;
+            for (Node dependent : node.mDependents) {
+                dependent.mPendingDependencies--;
+                if (dependent.mPendingDependencies == 0) {
+                    submitLocked(dependent);
+                }
+            }
+            if (mRemaining == 0) {
+                notifyAll();
+            }
+        }
+
+        synchronized RuntimeException getFailure() {
+            return mFailure;
+        }
+
+        synchronized void await() {
+            boolean interrupted = false;
+            while (mRemaining > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Services cannot be left half initialized, keep waiting.
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class ThreadFactory implements java.util.concurrent.ThreadFactory {
+        private final String mPhase;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        ThreadFactory(String phase) {
+            mPhase = phase;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "CarService-" + mPhase + "-" + mCount.getAndIncrement());
+        }
+    }
+}
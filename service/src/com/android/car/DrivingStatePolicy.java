@@ -45,7 +45,7 @@ public class DrivingStatePolicy extends CarSensorService.LogicalSensor {
     private static final int[] SUPPORTED_SENSORS = { CarSensorManager.SENSOR_TYPE_DRIVING_STATUS };
 
     private final ICarSensorEventListener mICarSensorEventListener =
-            new ICarSensorEventListener.Stub() {
+            new LocalSensorEventListener() {
         @Override
         public void onSensorChanged(List<CarSensorEvent> events) {
             for (CarSensorEvent event: events) {
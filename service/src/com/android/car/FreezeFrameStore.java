@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.annotation.Nullable;
+import android.car.annotation.FutureFeature;
+import android.car.hardware.CarDiagnosticEvent;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded store of freeze frames sorted by timestamp.
+ *
+ * <p>When more than the capacity of frames are stored, the oldest frames are evicted. Frames
+ * older than the maximum age are evicted as well, whenever frames are added or queried. The store
+ * can be saved to a file, so that frames survive restarts of car service without reading every
+ * frame from the vehicle HAL again. Freeze frame timestamps are relative to boot, so a saved store
+ * is only loaded back during the same boot, as told by the kernel boot id.
+ *
+ * <p>The file holds the format version, the boot id, the number of frames and the frames as
+ * written by {@link CarDiagnosticEvent#writeToStream}. Files of other versions are ignored.
+ *
+ * <p>Saving is split in {@link #marshall()}, which needs the same synchronization as the other
+ * methods, and {@link #write(String, byte[])}, which only touches the file and can run on another
+ * thread, as long as writes do not run concurrently.
+ *
+ * <p>This class is not thread safe.
+ */
+@FutureFeature
+public class FreezeFrameStore {
+
+    private static final int FILE_VERSION = 3;
+    /** Random id generated by the kernel at each boot. */
+    private static final String BOOT_ID_FILE = "/proc/sys/kernel/random/boot_id";
+
+    private final int mCapacity;
+    private final long mMaxAgeNanos;
+    private final TreeMap<Long, CarDiagnosticEvent> mFrames = new TreeMap<>();
+    @Nullable
+    private final AtomicFile mFile;
+    private long mEvictedCount;
+    private long mExpiredCount;
+
+    /**
+     * @param capacity maximum number of frames kept.
+     * @param maxAgeMs maximum age of frames kept, or 0 to keep frames regardless of their age.
+     * @param file file to persist frames to, or {@code null} to keep them only in memory.
+     */
+    public FreezeFrameStore(int capacity, long maxAgeMs, @Nullable File file) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity should be positive: " + capacity);
+        }
+        if (maxAgeMs < 0) {
+            throw new IllegalArgumentException("maxAgeMs should not be negative: " + maxAgeMs);
+        }
+        mCapacity = capacity;
+        mMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+        mFile = file != null ? new AtomicFile(file) : null;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return mFrames.size();
+    }
+
+    /** Number of frames evicted because the store was full. */
+    public long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /** Number of frames evicted because they were older than the maximum age. */
+    public long getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    /** Returns whether a frame with given timestamp is too old to be kept. */
+    public boolean isExpired(long timestamp) {
+        return mMaxAgeNanos > 0 && timestamp < SystemClock.elapsedRealtimeNanos() - mMaxAgeNanos;
+    }
+
+    /**
+     * Adds the frame, replacing a frame with the same timestamp and evicting the oldest and
+     * expired ones.
+     */
+    public void put(CarDiagnosticEvent frame) {
+        mFrames.put(frame.timestamp, frame);
+        while (mFrames.size() > mCapacity) {
+            mFrames.pollFirstEntry();
+            mEvictedCount++;
+        }
+        evictExpired();
+    }
+
+    @Nullable
+    public CarDiagnosticEvent get(long timestamp) {
+        evictExpired();
+        return mFrames.get(timestamp);
+    }
+
+    public boolean contains(long timestamp) {
+        evictExpired();
+        return mFrames.containsKey(timestamp);
+    }
+
+    /** Returns timestamps of all frames, oldest first. */
+    public long[] getTimestamps() {
+        evictExpired();
+        long[] timestamps = new long[mFrames.size()];
+        int i = 0;
+        for (Long timestamp : mFrames.keySet()) {
+            timestamps[i++] = timestamp;
+        }
+        return timestamps;
+    }
+
+    /**
+     * Returns up to {@code maxCount} frames with timestamps in
+     * [{@code startTimestamp}, {@code endTimestamp}], newest first. Callers page backwards by
+     * passing the timestamp of the last returned frame minus one as the next end.
+     */
+    public List<CarDiagnosticEvent> getFrames(long startTimestamp, long endTimestamp,
+            int maxCount) {
+        List<CarDiagnosticEvent> frames = new ArrayList<>();
+        if (startTimestamp > endTimestamp || maxCount <= 0) {
+            return frames;
+        }
+        evictExpired();
+        NavigableMap<Long, CarDiagnosticEvent> range =
+                mFrames.subMap(startTimestamp, true, endTimestamp, true).descendingMap();
+        for (CarDiagnosticEvent frame : range.values()) {
+            if (frames.size() >= maxCount) {
+                break;
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /** Returns all frames, oldest first. */
+    public Collection<CarDiagnosticEvent> getFrames() {
+        evictExpired();
+        return mFrames.values();
+    }
+
+    /** Removes frames with given timestamps, or all frames if no timestamps are given. */
+    public void remove(long... timestamps) {
+        if (timestamps == null || timestamps.length == 0) {
+            mFrames.clear();
+            return;
+        }
+        for (long timestamp : timestamps) {
+            mFrames.remove(timestamp);
+        }
+    }
+
+    /** Removes all frames whose timestamp is not in the given list. */
+    public void retain(long[] timestamps) {
+        long[] sorted = timestamps.clone();
+        Arrays.sort(sorted);
+        Iterator<Map.Entry<Long, CarDiagnosticEvent>> it = mFrames.entrySet().iterator();
+        while (it.hasNext()) {
+            if (Arrays.binarySearch(sorted, it.next().getKey()) < 0) {
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        mFrames.clear();
+    }
+
+    /** Frames are sorted by timestamp, so expired ones are always the first ones. */
+    private void evictExpired() {
+        while (!mFrames.isEmpty() && isExpired(mFrames.firstKey())) {
+            mFrames.pollFirstEntry();
+            mExpiredCount++;
+        }
+    }
+
+    /** Returns the id of the current boot, or {@code null} if it cannot be read. */
+    @Nullable
+    public static String readBootId() {
+        try (BufferedReader reader = new BufferedReader(new FileReader(BOOT_ID_FILE))) {
+            String bootId = reader.readLine();
+            return bootId != null ? bootId.trim() : null;
+        } catch (IOException e) {
+            Log.w(CarLog.TAG_DIAGNOSTIC, "Cannot read boot id", e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces frames in memory with the saved ones if they were saved during the boot with given
+     * id. Returns whether frames were loaded.
+     */
+    public boolean load(@Nullable String bootId) {
+        if (mFile == null || bootId == null) {
+            return false;
+        }
+        List<CarDiagnosticEvent> frames = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(mFile.openRead())) {
+            if (in.readInt() != FILE_VERSION) {
+                return false;
+            }
+            if (!bootId.equals(in.readUTF())) {
+                // Saved during another boot, timestamps are meaningless now.
+                return false;
+            }
+            for (int i = in.readInt(); i > 0; --i) {
+                frames.add(CarDiagnosticEvent.readFromStream(in));
+            }
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.w(CarLog.TAG_DIAGNOSTIC, "Cannot read saved freeze frames", e);
+            return false;
+        }
+        mFrames.clear();
+        for (CarDiagnosticEvent frame : frames) {
+            put(frame);
+        }
+        return true;
+    }
+
+    /** Saves all frames, tagged with the boot they belong to. */
+    public void save(@Nullable String bootId) {
+        write(bootId, marshall());
+    }
+
+    /** Returns all frames in the format expected by {@link #write(String, byte[])}. */
+    public byte[] marshall() {
+        evictExpired();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(mFrames.size());
+            for (CarDiagnosticEvent frame : mFrames.values()) {
+                frame.writeToStream(out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Not thrown when writing to memory.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes frames returned by {@link #marshall()} to the file, tagged with the boot they belong
+     * to. Nothing is written when the boot id is not known.
+     */
+    public void write(@Nullable String bootId, byte[] data) {
+        if (mFile == null || bootId == null) {
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(FILE_VERSION);
+            dataOut.writeUTF(bootId);
+            dataOut.write(data);
+            dataOut.flush();
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(CarLog.TAG_DIAGNOSTIC, "Cannot save freeze frames", e);
+            mFile.failWrite(out);
+        }
+    }
+}
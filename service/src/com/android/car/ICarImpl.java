@@ -40,9 +40,7 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.internal.car.ICarServiceHelper;
 
 import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 public class ICarImpl extends ICar.Stub {
 
@@ -50,6 +48,9 @@ public class ICarImpl extends ICar.Stub {
     public static final String INTERNAL_SYSTEM_ACTIVITY_MONITORING_SERVICE =
             "system_activity_monitoring";
 
+    /** Maximum number of services initialized at the same time. */
+    private static final int MAX_INIT_THREADS = 4;
+
     private final Context mContext;
     private final VehicleHal mHal;
 
@@ -75,11 +76,14 @@ public class ICarImpl extends ICar.Stub {
     @FutureFeature
     private CarDiagnosticService mCarDiagnosticService;
     @FutureFeature
+    private VmsDeliveryEngine mVmsDeliveryEngine;
+    @FutureFeature
     private VmsSubscriberService mVmsSubscriberService;
     @FutureFeature
     private VmsPublisherService mVmsPublisherService;
 
     private final CarServiceBase[] mAllServices;
+    private final CarServiceInitializer mServiceInitializer;
 
     /** Test only service. Populate it only when necessary. */
     @GuardedBy("this")
@@ -119,46 +123,52 @@ public class ICarImpl extends ICar.Stub {
         mCarBluetoothService = new CarBluetoothService(serviceContext, mCarCabinService,
                 mCarSensorService, mPerUserCarServiceHelper);
         if (FeatureConfiguration.ENABLE_VEHICLE_MAP_SERVICE) {
-            mVmsSubscriberService = new VmsSubscriberService(serviceContext, mHal.getVmsHal());
-            mVmsPublisherService = new VmsPublisherService(serviceContext, mHal.getVmsHal());
+            mVmsDeliveryEngine = new VmsDeliveryEngine(serviceContext);
+            mVmsSubscriberService = new VmsSubscriberService(serviceContext, mHal.getVmsHal(),
+                    mVmsDeliveryEngine);
+            mVmsPublisherService = new VmsPublisherService(serviceContext, mHal.getVmsHal(),
+                    mVmsDeliveryEngine);
         }
         mCarDiagnosticService = new CarDiagnosticService(serviceContext, mHal.getDiagnosticHal());
 
-        // Be careful with order. Service depending on other service should be inited later.
-        List<CarServiceBase> allServices = new ArrayList<>(Arrays.asList(
-                mSystemActivityMonitoringService,
-                mCarPowerManagementService,
-                mCarSensorService,
-                mCarPackageManagerService,
-                mCarInputService,
-                mGarageModeService,
-                mCarInfoService,
-                mAppFocusService,
-                mCarAudioService,
-                mCarCabinService,
-                mCarHvacService,
-                mCarRadioService,
-                mCarNightService,
-                mInstrumentClusterService,
-                mCarProjectionService,
-                mSystemStateControllerService,
-                mCarVendorExtensionService,
-                mCarBluetoothService,
-                mCarDiagnosticService,
-                mPerUserCarServiceHelper
-        ));
+        // Services are inited in parallel once the services they use are inited. Services have
+        // to be added after their dependencies, and are released in reverse order.
+        mServiceInitializer = new CarServiceInitializer(
+                Math.min(MAX_INIT_THREADS, Runtime.getRuntime().availableProcessors()));
+        CarServiceInitializer init = mServiceInitializer;
+        init.add(mSystemActivityMonitoringService);
+        init.add(mCarPowerManagementService);
+        init.add(mCarSensorService);
+        init.add(mCarPackageManagerService, mCarSensorService, mSystemActivityMonitoringService);
+        init.add(mCarInputService);
+        init.add(mGarageModeService, mCarPowerManagementService);
+        init.add(mCarInfoService);
+        init.add(mAppFocusService, mSystemActivityMonitoringService);
+        init.add(mCarAudioService, mCarInputService);
+        init.add(mCarCabinService);
+        init.add(mCarHvacService);
+        init.add(mCarRadioService);
+        init.add(mCarNightService, mCarSensorService);
+        init.add(mInstrumentClusterService, mAppFocusService, mCarInputService);
+        init.add(mCarProjectionService, mCarInputService);
+        init.add(mSystemStateControllerService, mCarPowerManagementService, mCarAudioService);
+        init.add(mCarVendorExtensionService);
+        // Only registers a callback with PerUserCarServiceHelper, which calls it on the main
+        // thread once it is connected.
+        init.add(mCarBluetoothService, mCarCabinService, mCarSensorService);
+        init.add(mCarDiagnosticService);
+        init.add(mPerUserCarServiceHelper);
         if (FeatureConfiguration.ENABLE_VEHICLE_MAP_SERVICE) {
-            allServices.add(mVmsSubscriberService);
-            allServices.add(mVmsPublisherService);
+            init.add(mVmsDeliveryEngine);
+            init.add(mVmsSubscriberService, mVmsDeliveryEngine);
+            init.add(mVmsPublisherService, mVmsDeliveryEngine);
         }
-        mAllServices = allServices.toArray(new CarServiceBase[0]);
+        mAllServices = init.getServices();
     }
 
     public void init() {
         mHal.init();
-        for (CarServiceBase service : mAllServices) {
-            service.init();
-        }
+        mServiceInitializer.run("init", CarServiceBase::init);
     }
 
     public void release() {
@@ -171,9 +181,7 @@ public class ICarImpl extends ICar.Stub {
 
     public void vehicleHalReconnected(IVehicle vehicle) {
         mHal.vehicleHalReconnected(vehicle);
-        for (CarServiceBase service : mAllServices) {
-            service.vehicleHalReconnected();
-        }
+        mServiceInitializer.run("vehicleHalReconnected", CarServiceBase::vehicleHalReconnected);
     }
 
     @Override
@@ -330,6 +338,7 @@ public class ICarImpl extends ICar.Stub {
         for (CarServiceBase service : mAllServices) {
             service.dump(writer);
         }
+        mServiceInitializer.dump(writer);
         if (mCarTestService != null) {
             mCarTestService.dump(writer);
         }
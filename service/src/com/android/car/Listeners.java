@@ -34,6 +34,9 @@ public class Listeners<ClientType extends com.android.car.Listeners.IListener> {
         private final ClientType mClient;
         /** rate requested from client */
         private int mRate;
+        /** timestamp of the last event which was sent to this client */
+        private long mLastDispatchTimestampNs;
+        private boolean mHasDispatched;
 
         ClientWithRate(ClientType client, int rate) {
             mClient = client;
@@ -63,11 +66,34 @@ public class Listeners<ClientType extends com.android.car.Listeners.IListener> {
             mRate = rate;
         }
 
+        /**
+         * Decides whether an event with given timestamp should be sent to this client so that
+         * the client gets events no faster than its own rate, even when another client asked
+         * for a faster rate. Should be called only for continuous events, in timestamp order.
+         * Returns {@code true} and records the event as dispatched if it should be sent.
+         */
+        boolean shouldDispatch(long timestampNs) {
+            long intervalNs = getMinDispatchIntervalNs(mRate);
+            if (mHasDispatched && intervalNs > 0) {
+                long elapsedNs = timestampNs - mLastDispatchTimestampNs;
+                // Tolerate HAL jitter, otherwise a source at exactly the client's rate would be
+                // cut in half. Timestamps going backwards are treated as a new source.
+                if (elapsedNs >= 0 && elapsedNs < intervalNs - intervalNs / 8) {
+                    return false;
+                }
+            }
+            mLastDispatchTimestampNs = timestampNs;
+            mHasDispatched = true;
+            return true;
+        }
+
         ClientType getClient() {
             return mClient;
         }
     }
 
+    private static final long NANOS_PER_MILLI = 1000000L;
+
     private final LinkedList<ClientWithRate<ClientType>> mClients = new LinkedList<>();
     /** rate sent to car */
     private int mRate;
@@ -84,6 +110,24 @@ public class Listeners<ClientType extends com.android.car.Listeners.IListener> {
         mRate = rate;
     }
 
+    /**
+     * Minimum interval between two events sent to a client which requested given rate. Matches
+     * sampling rates which {@link com.android.car.hal.SensorHalService} asks from vehicle HAL.
+     */
+    static long getMinDispatchIntervalNs(int rate) {
+        switch (rate) {
+            case CarSensorManager.SENSOR_RATE_FASTEST:
+                return 0;
+            case CarSensorManager.SENSOR_RATE_FAST:
+                return 100 * NANOS_PER_MILLI;  // 10Hz
+            case CarSensorManager.SENSOR_RATE_UI:
+                return 200 * NANOS_PER_MILLI;  // 5Hz
+            case CarSensorManager.SENSOR_RATE_NORMAL:
+            default:
+                return 1000 * NANOS_PER_MILLI; // 1Hz
+        }
+    }
+
     /** update rate from existing clients and return true if rate is changed. */
     boolean updateRate() {
         //TODO(egranata): we might need to support other rate ranges
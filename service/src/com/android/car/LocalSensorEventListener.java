@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.hardware.CarSensorEventBatch;
+import android.car.hardware.ICarSensorEventListener;
+import android.os.RemoteException;
+
+/**
+ * Base class for sensor listeners living inside car service. {@link CarSensorService} calls
+ * in-process listeners with {@link #onSensorChanged(java.util.List)} directly, so batches are
+ * only unpacked here for completeness.
+ *
+ * <p>Events given to in-process listeners are pooled, and only valid during the call. Listeners
+ * keeping them longer should return {@code true} from {@link #retainsEvents()}.
+ */
+public abstract class LocalSensorEventListener extends ICarSensorEventListener.Stub {
+
+    /**
+     * Returns whether events are kept after {@link #onSensorChanged(java.util.List)} returns, in
+     * which case the listener gets copies. Read once, when the listener is registered.
+     */
+    public boolean retainsEvents() {
+        return false;
+    }
+
+    @Override
+    public void onSensorEventBatch(CarSensorEventBatch batch) throws RemoteException {
+        onSensorChanged(batch.toList());
+    }
+}
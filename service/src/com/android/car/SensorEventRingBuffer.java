@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.hardware.CarSensorEvent;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.List;
+
+/**
+ * Bounded, preallocated queue of {@link CarSensorEvent}s between sensor event producers and the
+ * sensor dispatching thread.
+ *
+ * <p>Events are stored in a fixed size ring, so queueing never allocates. With
+ * {@link #OVERFLOW_KEEP_LATEST_PER_TYPE} the ring holds at most one event per sensor type, which
+ * is overwritten in place by newer events of that type. Events which are dropped or overwritten
+ * are given back to {@link CarSensorEventFactory} as the queue owns them, but only if they were
+ * queued as recyclable. Other events, like those of logical sensors, are left to GC.
+ *
+ * <p>Producers can be called from several threads (HAL and logical sensors), so both sides use
+ * this object's monitor. Critical sections are short and do not call out.
+ */
+public class SensorEventRingBuffer {
+
+    /**
+     * Only the newest event of each sensor type is kept: a new event replaces the queued event
+     * of the same type, in its slot. When the queue is full with events of other types, the
+     * oldest event is dropped.
+     */
+    public static final int OVERFLOW_KEEP_LATEST_PER_TYPE = 0;
+    /** When full, the oldest queued event is dropped. */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+
+    /** Sensor types up to this one have their slot in an array, others in a sparse array. */
+    private static final int MAX_INDEXED_SENSOR_TYPE = 63;
+    private static final int NO_SLOT = -1;
+
+    private final int mOverflowPolicy;
+    @GuardedBy("this")
+    private final CarSensorEvent[] mEvents;
+    /** Whether the event at the same index came from {@link CarSensorEventFactory}. */
+    @GuardedBy("this")
+    private final boolean[] mRecyclable;
+    /**
+     * Index of the queued event of each sensor type plus one, zero if there is none. Only used
+     * with {@link #OVERFLOW_KEEP_LATEST_PER_TYPE}.
+     */
+    @GuardedBy("this")
+    private final int[] mSlotByType = new int[MAX_INDEXED_SENSOR_TYPE + 1];
+    /** Same as {@link #mSlotByType} for other sensor types, like vendor extensions. */
+    @GuardedBy("this")
+    private final SparseIntArray mSlotByOtherType = new SparseIntArray();
+    /** Index of the oldest event. */
+    @GuardedBy("this")
+    private int mHead;
+    @GuardedBy("this")
+    private int mSize;
+    @GuardedBy("this")
+    private long mOverrunCount;
+
+    public SensorEventRingBuffer(int capacity, int overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity should be positive: " + capacity);
+        }
+        if (overflowPolicy != OVERFLOW_KEEP_LATEST_PER_TYPE
+                && overflowPolicy != OVERFLOW_DROP_OLDEST) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + overflowPolicy);
+        }
+        mEvents = new CarSensorEvent[capacity];
+        mRecyclable = new boolean[capacity];
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /** Queues an event which is left to GC if dropped. */
+    public void offer(CarSensorEvent event) {
+        offer(event, false);
+    }
+
+    /**
+     * Queues the event. Takes ownership of the event.
+     *
+     * @param recyclable whether the event came from {@link CarSensorEventFactory} and can be given
+     *        back to it when dropped
+     */
+    public synchronized void offer(CarSensorEvent event, boolean recyclable) {
+        boolean keepLatest = mOverflowPolicy == OVERFLOW_KEEP_LATEST_PER_TYPE;
+        if (keepLatest) {
+            int slot = getSlotLocked(event.sensorType);
+            if (slot != NO_SLOT) {
+                recycleLocked(slot);
+                mEvents[slot] = event;
+                mRecyclable[slot] = recyclable;
+                return;
+            }
+        }
+        if (mSize == mEvents.length) {
+            mOverrunCount++;
+            recycleLocked(mHead);
+            removeLocked(mHead);
+            mHead = (mHead + 1) % mEvents.length;
+            mSize--;
+        }
+        int index = (mHead + mSize) % mEvents.length;
+        mEvents[index] = event;
+        mRecyclable[index] = recyclable;
+        if (keepLatest) {
+            setSlotLocked(event.sensorType, index);
+        }
+        mSize++;
+    }
+
+    /**
+     * Moves all queued events into {@code out} in the order of their slots. Ownership of the
+     * events is passed to the caller.
+     *
+     * @return number of moved events
+     */
+    public synchronized int drainTo(List<CarSensorEvent> out) {
+        final int count = mSize;
+        for (int i = 0; i < count; i++) {
+            int index = (mHead + i) % mEvents.length;
+            out.add(mEvents[index]);
+            removeLocked(index);
+        }
+        mHead = 0;
+        mSize = 0;
+        return count;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mEvents.length;
+    }
+
+    /** Number of events which were dropped because the queue was full. */
+    public synchronized long getOverrunCount() {
+        return mOverrunCount;
+    }
+
+    @GuardedBy("this")
+    private int getSlotLocked(int sensorType) {
+        if (sensorType >= 0 && sensorType <= MAX_INDEXED_SENSOR_TYPE) {
+            return mSlotByType[sensorType] - 1;
+        }
+        return mSlotByOtherType.get(sensorType, 0) - 1;
+    }
+
+    /** Sets the slot of the sensor type, {@link #NO_SLOT} removes it. */
+    @GuardedBy("this")
+    private void setSlotLocked(int sensorType, int index) {
+        if (sensorType >= 0 && sensorType <= MAX_INDEXED_SENSOR_TYPE) {
+            mSlotByType[sensorType] = index + 1;
+        } else if (index == NO_SLOT) {
+            mSlotByOtherType.delete(sensorType);
+        } else {
+            mSlotByOtherType.put(sensorType, index + 1);
+        }
+    }
+
+    /** Clears the slot at given index, the event is not recycled. */
+    @GuardedBy("this")
+    private void removeLocked(int index) {
+        if (mOverflowPolicy == OVERFLOW_KEEP_LATEST_PER_TYPE) {
+            setSlotLocked(mEvents[index].sensorType, NO_SLOT);
+        }
+        mEvents[index] = null;
+        mRecyclable[index] = false;
+    }
+
+    @GuardedBy("this")
+    private void recycleLocked(int index) {
+        if (mRecyclable[index]) {
+            CarSensorEventFactory.returnToPool(mEvents[index]);
+        }
+    }
+}
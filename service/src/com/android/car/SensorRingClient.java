@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.hardware.CarSensorEvent;
+import android.car.hardware.CarSensorRingReader;
+import android.os.IBinder;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Shared memory sensor ring opened by one client, see
+ * {@link CarSensorService#openSensorRing(int[], int, IBinder)}.
+ *
+ * <p>The ring is an ashmem region, so nothing is written back to storage. Car service maps it
+ * writable once, then restricts the region to reads, so the client can only map it read only.
+ */
+class SensorRingClient extends LocalSensorEventListener implements IBinder.DeathRecipient {
+
+    private final CarSensorService mSensorService;
+    private final IBinder mToken;
+    private final int[] mSensorTypes;
+    private final SensorRingWriter mWriter;
+    private final SharedMemory mMemory;
+
+    private SensorRingClient(CarSensorService sensorService, IBinder token, int[] sensorTypes,
+            SensorRingWriter writer, SharedMemory memory) {
+        mSensorService = sensorService;
+        mToken = token;
+        mSensorTypes = sensorTypes;
+        mWriter = writer;
+        mMemory = memory;
+    }
+
+    static SensorRingClient create(CarSensorService sensorService, IBinder token,
+            int[] sensorTypes, int capacity) throws ErrnoException {
+        SharedMemory memory = SharedMemory.create("car_sensor_ring",
+                CarSensorRingReader.getBufferSize(capacity));
+        try {
+            ByteBuffer buffer = memory.mapReadWrite();
+            // Only applies to new mappings, the one above stays writable.
+            if (!memory.setProtect(OsConstants.PROT_READ)) {
+                throw new ErrnoException("setProtect", OsConstants.EPERM);
+            }
+            return new SensorRingClient(sensorService, token, sensorTypes.clone(),
+                    new SensorRingWriter(buffer, capacity), memory);
+        } catch (ErrnoException e) {
+            memory.close();
+            throw e;
+        }
+    }
+
+    int[] getSensorTypes() {
+        return mSensorTypes;
+    }
+
+    /** Returns the ring for the client, which can only be mapped read only. */
+    SharedMemory getSharedMemory() {
+        return mMemory;
+    }
+
+    @Override
+    public void onSensorChanged(List<CarSensorEvent> events) {
+        // Called synchronously from sensor dispatching, events are only valid during this call.
+        for (int i = 0; i < events.size(); i++) {
+            mWriter.write(events.get(i));
+        }
+    }
+
+    @Override
+    public void binderDied() {
+        mSensorService.closeSensorRing(mToken);
+    }
+
+    /**
+     * Releases the service side descriptor. The mapping is kept until garbage collection, as
+     * sensor dispatching might still be writing into it.
+     */
+    void release() {
+        try {
+            mToken.unlinkToDeath(this, 0);
+        } catch (NoSuchElementException e) {
+            // not linked yet or token already dead.
+        }
+        mMemory.close();
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("sensor ring: sensors:" + Arrays.toString(mSensorTypes)
+                + " capacity:" + mWriter.getCapacity()
+                + " written:" + mWriter.getWriteSequence()
+                + " unsupported:" + mWriter.getUnsupportedCount());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import static android.car.hardware.CarSensorRingReader.FLAG_HAS_FLOAT;
+import static android.car.hardware.CarSensorRingReader.FLAG_HAS_INT;
+import static android.car.hardware.CarSensorRingReader.HEADER_OFFSET_CAPACITY;
+import static android.car.hardware.CarSensorRingReader.HEADER_OFFSET_MAGIC;
+import static android.car.hardware.CarSensorRingReader.HEADER_OFFSET_WRITE_SEQUENCE;
+import static android.car.hardware.CarSensorRingReader.HEADER_SIZE;
+import static android.car.hardware.CarSensorRingReader.INVALID_SEQUENCE;
+import static android.car.hardware.CarSensorRingReader.MAGIC;
+import static android.car.hardware.CarSensorRingReader.RECORD_OFFSET_FLAGS;
+import static android.car.hardware.CarSensorRingReader.RECORD_OFFSET_FLOAT_VALUE;
+import static android.car.hardware.CarSensorRingReader.RECORD_OFFSET_INT_VALUE;
+import static android.car.hardware.CarSensorRingReader.RECORD_OFFSET_SENSOR_TYPE;
+import static android.car.hardware.CarSensorRingReader.RECORD_OFFSET_SEQUENCE;
+import static android.car.hardware.CarSensorRingReader.RECORD_OFFSET_TIMESTAMP;
+import static android.car.hardware.CarSensorRingReader.RECORD_SIZE;
+
+import android.car.hardware.CarSensorEvent;
+import android.car.hardware.CarSensorRingReader;
+import android.car.hardware.SensorRingSequences;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes sensor events into a shared memory ring read by {@link CarSensorRingReader}. Writing
+ * never blocks on readers; records which readers did not consume in time are overwritten.
+ * Records are published with release stores of their sequence number, see the protocol in
+ * {@link CarSensorRingReader}.
+ */
+public class SensorRingWriter {
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+
+    @GuardedBy("this")
+    private long mNextSequence;
+    @GuardedBy("this")
+    private long mUnsupportedCount;
+
+    /**
+     * @param buffer direct buffer of at least {@link CarSensorRingReader#getBufferSize(int)}
+     *        bytes, which is initialized by this call.
+     */
+    public SensorRingWriter(ByteBuffer buffer, int capacity) {
+        if (capacity <= 0 || buffer.capacity() < CarSensorRingReader.getBufferSize(capacity)) {
+            throw new IllegalArgumentException("Invalid sensor ring capacity:" + capacity);
+        }
+        mBuffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+        mCapacity = capacity;
+        for (int i = 0; i < capacity; i++) {
+            mBuffer.putLong(HEADER_SIZE + i * RECORD_SIZE + RECORD_OFFSET_SEQUENCE,
+                    INVALID_SEQUENCE);
+        }
+        mBuffer.putInt(HEADER_OFFSET_CAPACITY, capacity);
+        mBuffer.putLong(HEADER_OFFSET_WRITE_SEQUENCE, 0);
+        SensorRingSequences.publishInt(mBuffer, HEADER_OFFSET_MAGIC, MAGIC);
+    }
+
+    /**
+     * Writes the event. The event is not retained. Returns {@code false} if the event has more
+     * values than fit into a record.
+     */
+    public synchronized boolean write(CarSensorEvent event) {
+        if (event.floatValues.length > 1 || event.intValues.length > 1) {
+            mUnsupportedCount++;
+            return false;
+        }
+        long sequence = mNextSequence;
+        int offset = HEADER_SIZE + (int) (sequence % mCapacity) * RECORD_SIZE;
+        // Readers which already saw the old sequence see it changed once values are updated.
+        mBuffer.putLong(offset + RECORD_OFFSET_SEQUENCE, INVALID_SEQUENCE);
+        SensorRingSequences.storeStoreFence();
+        int flags = 0;
+        mBuffer.putLong(offset + RECORD_OFFSET_TIMESTAMP, event.timestamp);
+        mBuffer.putInt(offset + RECORD_OFFSET_SENSOR_TYPE, event.sensorType);
+        if (event.floatValues.length > 0) {
+            flags |= FLAG_HAS_FLOAT;
+            mBuffer.putFloat(offset + RECORD_OFFSET_FLOAT_VALUE, event.floatValues[0]);
+        }
+        if (event.intValues.length > 0) {
+            flags |= FLAG_HAS_INT;
+            mBuffer.putInt(offset + RECORD_OFFSET_INT_VALUE, event.intValues[0]);
+        }
+        mBuffer.putInt(offset + RECORD_OFFSET_FLAGS, flags);
+        SensorRingSequences.publish(mBuffer, offset + RECORD_OFFSET_SEQUENCE, sequence);
+        mNextSequence = sequence + 1;
+        SensorRingSequences.publish(mBuffer, HEADER_OFFSET_WRITE_SEQUENCE, mNextSequence);
+        return true;
+    }
+
+    /** Number of records written so far. */
+    public synchronized long getWriteSequence() {
+        return mNextSequence;
+    }
+
+    /** Number of events which could not be written as they have too many values. */
+    public synchronized long getUnsupportedCount() {
+        return mUnsupportedCount;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.annotation.FutureFeature;
+import android.car.vms.IVmsSubscriberClient;
+import android.car.vms.VmsLayer;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Delivers VMS messages to subscribers asynchronously.
+ *
+ * <p>Every receiver, either a subscriber client or a {@link MessageSink} like the vehicle HAL,
+ * gets its own bounded queue. Queues are drained by a small set of delivery threads, so a
+ * publisher only enqueues messages and a slow receiver only delays itself. Messages for one
+ * receiver are delivered in the order they were published. When a queue is full, messages are
+ * dropped according to the drop policy and counted. Queues are only created for subscribers
+ * registered with {@link #addSubscriber(IVmsSubscriberClient)}, so a message racing with the
+ * removal of its subscriber does not leave a queue behind.
+ *
+ * <p>All receivers share the same {@link VmsPayload}. Payloads of at least
+ * {@link #SHARED_MEMORY_MIN_PAYLOAD_SIZE} bytes are sent to remote subscribers as shared memory.
+ */
+@FutureFeature
+public class VmsDeliveryEngine implements CarServiceBase {
+    private static final boolean DBG = false;
+    private static final String TAG = "VmsDeliveryEngine";
+
+    /** When a queue is full, the oldest message of the queue is dropped. */
+    public static final int POLICY_DROP_OLDEST = 0;
+    /**
+     * A queued message is replaced by a newer message for the same layer. When a queue is full
+     * of messages for distinct layers, the oldest message is dropped.
+     */
+    public static final int POLICY_KEEP_LATEST_PER_LAYER = 1;
+
+    /**
+     * Smallest payload sent to remote subscribers as shared memory. Below this, creating the
+     * shared memory costs more than marshalling the payload for every subscriber.
+     */
+    public static final int SHARED_MEMORY_MIN_PAYLOAD_SIZE = 16 * 1024;
+
+    /** Maximum messages delivered in one go, so that queues sharing a thread take turns. */
+    private static final int MAX_MESSAGES_PER_DRAIN = 16;
+
+    /** Receiver of messages which is not a subscriber client, e.g. the vehicle HAL. */
+    public interface MessageSink {
+        void onMessage(VmsLayer layer, byte[] payload);
+    }
+
+    private final int mQueueCapacity;
+    private final int mDropPolicy;
+    private final int mThreadCount;
+
+    /** Queues by subscriber binder or {@link MessageSink}. */
+    private final Map<Object, DeliveryQueue> mQueues = new ConcurrentHashMap<>();
+
+    private final Object mLock = new Object();
+    /** Binders of registered subscribers. */
+    @GuardedBy("mLock")
+    private final Set<IBinder> mSubscribers = new HashSet<>();
+    @GuardedBy("mLock")
+    private HandlerThread[] mThreads;
+    @GuardedBy("mLock")
+    private Handler[] mHandlers;
+    @GuardedBy("mLock")
+    private int mNextHandler;
+
+    public VmsDeliveryEngine(Context context) {
+        this(context.getResources());
+    }
+
+    private VmsDeliveryEngine(Resources res) {
+        this(res.getInteger(R.integer.vmsSubscriberQueueSize),
+                res.getBoolean(R.bool.vmsKeepLatestMessagePerLayer)
+                        ? POLICY_KEEP_LATEST_PER_LAYER : POLICY_DROP_OLDEST,
+                res.getInteger(R.integer.vmsDeliveryThreads));
+    }
+
+    /**
+     * @param queueCapacity maximum number of queued messages per receiver.
+     * @param dropPolicy {@link #POLICY_DROP_OLDEST} or {@link #POLICY_KEEP_LATEST_PER_LAYER}.
+     * @param threadCount number of delivery threads.
+     */
+    public VmsDeliveryEngine(int queueCapacity, int dropPolicy, int threadCount) {
+        if (queueCapacity <= 0 || threadCount <= 0) {
+            throw new IllegalArgumentException("Invalid queue capacity:" + queueCapacity
+                    + " or thread count:" + threadCount);
+        }
+        if (dropPolicy != POLICY_DROP_OLDEST && dropPolicy != POLICY_KEEP_LATEST_PER_LAYER) {
+            throw new IllegalArgumentException("Unknown drop policy:" + dropPolicy);
+        }
+        mQueueCapacity = queueCapacity;
+        mDropPolicy = dropPolicy;
+        mThreadCount = threadCount;
+    }
+
+    @Override
+    public void init() {
+        synchronized (mLock) {
+            mThreads = new HandlerThread[mThreadCount];
+            mHandlers = new Handler[mThreadCount];
+            for (int i = 0; i < mThreadCount; i++) {
+                mThreads[i] = new HandlerThread("VMS-DELIVERY-" + i);
+                mThreads[i].start();
+                mHandlers[i] = new Handler(mThreads[i].getLooper());
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (mLock) {
+            if (mThreads != null) {
+                for (HandlerThread thread : mThreads) {
+                    thread.quitSafely();
+                }
+            }
+            mThreads = null;
+            mHandlers = null;
+            mSubscribers.clear();
+        }
+        for (DeliveryQueue queue : mQueues.values()) {
+            queue.clear();
+        }
+        mQueues.clear();
+    }
+
+    /**
+     * Queues the message for all given subscribers. Subscribers which are not registered are
+     * skipped.
+     */
+    public void deliver(VmsLayer layer, VmsPayload payload, IVmsSubscriberClient[] subscribers) {
+        // Keeps shared memory of the payload while the first receivers already finish.
+        payload.acquire();
+        try {
+            for (IVmsSubscriberClient subscriber : subscribers) {
+                DeliveryQueue queue = mQueues.get(subscriber.asBinder());
+                if (queue == null) {
+                    queue = getOrCreateQueue(subscriber.asBinder(),
+                            new SubscriberQueue(subscriber), true /* isSubscriber */);
+                }
+                if (queue != null) {
+                    queue.enqueue(layer, payload);
+                }
+            }
+        } finally {
+            payload.release();
+        }
+    }
+
+    /** Queues the message for the given sink. */
+    public void deliver(VmsLayer layer, VmsPayload payload, MessageSink sink) {
+        DeliveryQueue queue = mQueues.get(sink);
+        if (queue == null) {
+            queue = getOrCreateQueue(sink, new SinkQueue(sink), false /* isSubscriber */);
+        }
+        if (queue != null) {
+            queue.enqueue(layer, payload);
+        }
+    }
+
+    /** Allows messages to be queued for the subscriber. */
+    public void addSubscriber(IVmsSubscriberClient subscriber) {
+        synchronized (mLock) {
+            mSubscribers.add(subscriber.asBinder());
+        }
+    }
+
+    /** Drops queued messages and counters of a subscriber which is gone. */
+    public void removeSubscriber(IVmsSubscriberClient subscriber) {
+        DeliveryQueue queue;
+        synchronized (mLock) {
+            mSubscribers.remove(subscriber.asBinder());
+            queue = mQueues.remove(subscriber.asBinder());
+        }
+        // A delivery which got the queue before its removal finds it cleared.
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    /** Number of messages queued but not delivered to the subscriber yet. */
+    public int getPendingCount(IVmsSubscriberClient subscriber) {
+        DeliveryQueue queue = mQueues.get(subscriber.asBinder());
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.mPending.size();
+        }
+    }
+
+    /**
+     * Number of messages dropped for the subscriber because its queue was full. Messages replaced
+     * with {@link #POLICY_KEEP_LATEST_PER_LAYER} while there was room are not counted.
+     */
+    public long getDroppedCount(IVmsSubscriberClient subscriber) {
+        DeliveryQueue queue = mQueues.get(subscriber.asBinder());
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.mDroppedCount;
+        }
+    }
+
+    /** Number of messages delivered to the subscriber. */
+    public long getDeliveredCount(IVmsSubscriberClient subscriber) {
+        DeliveryQueue queue = mQueues.get(subscriber.asBinder());
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.mDeliveredCount;
+        }
+    }
+
+    /**
+     * Returns the queue of the receiver, or {@code null} if messages cannot be queued for it
+     * because the engine is not initialized or the subscriber is not registered.
+     */
+    private DeliveryQueue getOrCreateQueue(Object key, DeliveryQueue newQueue,
+            boolean isSubscriber) {
+        synchronized (mLock) {
+            DeliveryQueue queue = mQueues.get(key);
+            if (queue != null) {
+                return queue;
+            }
+            if (mHandlers == null) {
+                Log.w(TAG, "Not initialized, dropping message for " + newQueue.getName());
+                return null;
+            }
+            if (isSubscriber && !mSubscribers.contains(key)) {
+                if (DBG) {
+                    Log.d(TAG, "Dropping message for removed " + newQueue.getName());
+                }
+                return null;
+            }
+            newQueue.mHandler = mHandlers[mNextHandler];
+            mNextHandler = (mNextHandler + 1) % mHandlers.length;
+            mQueues.put(key, newQueue);
+            return newQueue;
+        }
+    }
+
+    @Override
+    public void dump(PrintWriter writer) {
+        writer.println("*" + TAG + "*");
+        writer.println("queue capacity:" + mQueueCapacity + ", policy:"
+                + (mDropPolicy == POLICY_DROP_OLDEST ? "drop oldest" : "keep latest per layer")
+                + ", threads:" + mThreadCount);
+        long now = SystemClock.elapsedRealtime();
+        for (DeliveryQueue queue : mQueues.values()) {
+            synchronized (queue) {
+                PendingMessage oldest = queue.mPending.peekFirst();
+                writer.println(String.format(
+                        "%s: pending:%d, max pending:%d, lag ms:%d, max lag ms:%d, "
+                                + "enqueued:%d, delivered:%d, replaced:%d, dropped:%d, "
+                                + "failed:%d",
+                        queue.getName(), queue.mPending.size(), queue.mMaxPendingCount,
+                        oldest != null ? now - oldest.mEnqueueTimeMs : 0, queue.mMaxLagMs,
+                        queue.mEnqueuedCount, queue.mDeliveredCount, queue.mReplacedCount,
+                        queue.mDroppedCount, queue.mFailedCount));
+            }
+        }
+    }
+
+    private static class PendingMessage {
+        private final VmsLayer mLayer;
+        private VmsPayload mPayload;
+        private long mEnqueueTimeMs;
+
+        private PendingMessage(VmsLayer layer, VmsPayload payload, long enqueueTimeMs) {
+            mLayer = layer;
+            mPayload = payload;
+            mEnqueueTimeMs = enqueueTimeMs;
+        }
+    }
+
+    /**
+     * Bounded message queue of one receiver. Counters and pending messages are guarded by the
+     * queue itself; messages are delivered without holding the lock.
+     */
+    private abstract class DeliveryQueue implements Runnable {
+        private Handler mHandler;
+        private final ArrayDeque<PendingMessage> mPending = new ArrayDeque<>();
+        /** Queued message per layer, only used with {@link #POLICY_KEEP_LATEST_PER_LAYER}. */
+        private final Map<VmsLayer, PendingMessage> mLatestByLayer = new HashMap<>();
+        private boolean mScheduled;
+        private boolean mCleared;
+
+        private long mEnqueuedCount;
+        private long mDeliveredCount;
+        /** Messages replaced by a newer one for the same layer, not counted as dropped. */
+        private long mReplacedCount;
+        /** Messages dropped because the queue was full. */
+        private long mDroppedCount;
+        private long mFailedCount;
+        private int mMaxPendingCount;
+        private long mMaxLagMs;
+
+        abstract void deliverMessage(VmsLayer layer, VmsPayload payload)
+                throws RemoteException, ErrnoException;
+
+        abstract String getName();
+
+        void enqueue(VmsLayer layer, VmsPayload payload) {
+            long now = SystemClock.elapsedRealtime();
+            synchronized (this) {
+                if (mCleared) {
+                    return;
+                }
+                mEnqueuedCount++;
+                if (mDropPolicy == POLICY_KEEP_LATEST_PER_LAYER) {
+                    PendingMessage queued = mLatestByLayer.get(layer);
+                    if (queued != null) {
+                        // Keep the position in the queue, so a busy layer does not starve others.
+                        payload.acquire();
+                        queued.mPayload.release();
+                        queued.mPayload = payload;
+                        mReplacedCount++;
+                        return;
+                    }
+                }
+                if (mPending.size() >= mQueueCapacity) {
+                    PendingMessage dropped = mPending.pollFirst();
+                    forget(dropped);
+                    dropped.mPayload.release();
+                    mDroppedCount++;
+                }
+                payload.acquire();
+                PendingMessage message = new PendingMessage(layer, payload, now);
+                mPending.addLast(message);
+                if (mDropPolicy == POLICY_KEEP_LATEST_PER_LAYER) {
+                    mLatestByLayer.put(layer, message);
+                }
+                if (mPending.size() > mMaxPendingCount) {
+                    mMaxPendingCount = mPending.size();
+                }
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mHandler.post(this);
+        }
+
+        void clear() {
+            synchronized (this) {
+                mCleared = true;
+                for (PendingMessage message : mPending) {
+                    message.mPayload.release();
+                }
+                mPending.clear();
+                mLatestByLayer.clear();
+            }
+        }
+
+        private void forget(PendingMessage message) {
+            if (mDropPolicy == POLICY_KEEP_LATEST_PER_LAYER
+                    && mLatestByLayer.get(message.mLayer) == message) {
+                mLatestByLayer.remove(message.mLayer);
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_MESSAGES_PER_DRAIN; i++) {
+                PendingMessage message;
+                synchronized (this) {
+                    message = mPending.pollFirst();
+                    if (message == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                    forget(message);
+                    long lag = SystemClock.elapsedRealtime() - message.mEnqueueTimeMs;
+                    if (lag > mMaxLagMs) {
+                        mMaxLagMs = lag;
+                    }
+                }
+                boolean delivered = false;
+                try {
+                    deliverMessage(message.mLayer, message.mPayload);
+                    delivered = true;
+                } catch (RemoteException | ErrnoException | RuntimeException e) {
+                    // A dead subscriber is removed by its binder death recipient.
+                    Log.e(TAG, "Failed to deliver message to " + getName(), e);
+                } finally {
+                    message.mPayload.release();
+                }
+                synchronized (this) {
+                    if (delivered) {
+                        mDeliveredCount++;
+                    } else {
+                        mFailedCount++;
+                    }
+                }
+            }
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    mScheduled = false;
+                    return;
+                }
+            }
+            // Let other queues of this thread run before continuing.
+            mHandler.post(this);
+        }
+    }
+
+    private class SubscriberQueue extends DeliveryQueue {
+        private final IVmsSubscriberClient mSubscriber;
+        /** In-process subscribers get the payload array itself, nothing is marshalled. */
+        private final boolean mIsRemote;
+
+        private SubscriberQueue(IVmsSubscriberClient subscriber) {
+            mSubscriber = subscriber;
+            mIsRemote = !(subscriber.asBinder() instanceof Binder);
+        }
+
+        @Override
+        void deliverMessage(VmsLayer layer, VmsPayload payload)
+                throws RemoteException, ErrnoException {
+            if (DBG) {
+                Log.d(TAG, "Delivering message for layer " + layer + " to " + mSubscriber);
+            }
+            if (mIsRemote && payload.size() >= SHARED_MEMORY_MIN_PAYLOAD_SIZE) {
+                mSubscriber.onVmsSharedMessageReceived(layer, payload.getSharedMemory(),
+                        payload.size());
+            } else {
+                mSubscriber.onVmsMessageReceived(layer, payload.getBytes());
+            }
+        }
+
+        @Override
+        String getName() {
+            return "subscriber " + mSubscriber.asBinder();
+        }
+    }
+
+    private class SinkQueue extends DeliveryQueue {
+        private final MessageSink mSink;
+
+        private SinkQueue(MessageSink sink) {
+            mSink = sink;
+        }
+
+        @Override
+        void deliverMessage(VmsLayer layer, VmsPayload payload) {
+            mSink.onMessage(layer, payload.getBytes());
+        }
+
+        @Override
+        String getName() {
+            return "sink " + mSink;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import android.car.vms.VmsLayerDependency;
 import android.car.vms.VmsLayersOffering;
 import android.util.Log;
 import com.android.internal.annotations.GuardedBy;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -30,7 +31,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Manages VMS availability for layers.
@@ -38,45 +38,126 @@ import java.util.stream.Collectors;
  * Each VMS publisher sets its layers offering which are a list of layers the publisher claims
  * it might publish. VmsLayersAvailability calculates from all the offering what are the
  * available layers.
+ *
+ * A layer is available if, for one of its offered dependency sets, all layers of the set are
+ * available. Layers which only depend on each other in a cycle are not available.
+ *
+ * Availability is maintained incrementally: every offered dependency set counts its layers which
+ * are not available yet, and every layer counts its satisfied dependency sets. A change of one
+ * offering only visits the layers depending on the changed layers. When a layer loses a
+ * dependency set, the layers depending on it are marked unavailable first and then derived again
+ * from the layers which are still available, so support through cycles is not kept by mistake.
  */
 
 @FutureFeature
 public class VmsLayersAvailability {
 
-    private static final boolean DBG = true;
+    private static final boolean DBG = false;
     private static final String TAG = "VmsLayersAvailability";
 
+    /** Changes of availability caused by one update. */
+    public static class Delta {
+        private final Set<VmsLayer> mAddedLayers;
+        private final Set<VmsLayer> mRemovedLayers;
+
+        private Delta(Set<VmsLayer> addedLayers, Set<VmsLayer> removedLayers) {
+            mAddedLayers = Collections.unmodifiableSet(addedLayers);
+            mRemovedLayers = Collections.unmodifiableSet(removedLayers);
+        }
+
+        /** Layers which became available. */
+        public Set<VmsLayer> getAddedLayers() {
+            return mAddedLayers;
+        }
+
+        /** Layers which are not available anymore. */
+        public Set<VmsLayer> getRemovedLayers() {
+            return mRemovedLayers;
+        }
+
+        public boolean isEmpty() {
+            return mAddedLayers.isEmpty() && mRemovedLayers.isEmpty();
+        }
+    }
+
+    /** One offered dependency set of a layer. */
+    private static class Rule {
+        private final LayerNode mLayer;
+        private final LayerNode[] mDependencies;
+        /** Number of dependencies which are not available. */
+        private int mMissing;
+
+        private Rule(LayerNode layer, LayerNode[] dependencies) {
+            mLayer = layer;
+            mDependencies = dependencies;
+        }
+    }
+
+    private static class LayerNode {
+        private final VmsLayer mLayer;
+        /** Rules which depend on this layer. */
+        private final List<Rule> mDependents = new ArrayList<>();
+        /** Number of rules offering this layer. */
+        private int mRuleCount;
+        /** Number of rules offering this layer with all dependencies available. */
+        private int mSatisfiedRuleCount;
+        private boolean mAvailable;
+
+        private LayerNode(VmsLayer layer) {
+            mLayer = layer;
+        }
+    }
+
     private final Object mLock = new Object();
     @GuardedBy("mLock")
-    private final Map<VmsLayer, Set<Set<VmsLayer>>> mPotentialLayersAndDependencies =
-        new HashMap<>();
+    private final Map<VmsLayer, LayerNode> mNodes = new HashMap<>();
     @GuardedBy("mLock")
-    private final Set<VmsLayer> mCyclicAvoidanceSet = new HashSet<>();
+    private final Map<Object, List<Rule>> mPublisherRules = new HashMap<>();
+    /** Availability before the current update, for layers whose availability was changed. */
+    @GuardedBy("mLock")
+    private final Map<VmsLayer, Boolean> mChangedLayers = new HashMap<>();
     @GuardedBy("mLock")
     private Set<VmsLayer> mAvailableLayers = Collections.EMPTY_SET;
     @GuardedBy("mLock")
     private Set<VmsLayer> mUnavailableLayers = Collections.EMPTY_SET;
+    /** Whether the snapshots above need to be rebuilt. */
+    @GuardedBy("mLock")
+    private boolean mSnapshotsStale;
 
     /**
-     * Setting the current layers offerings as reported by publishers.
+     * Setting the current layers offerings as reported by publishers. Replaces all offerings set
+     * before, including ones set with {@link #setPublisherOffering(Object, VmsLayersOffering)}.
      */
     public void setPublishersOffering(Collection<VmsLayersOffering> publishersLayersOfferings) {
         synchronized (mLock) {
             reset();
-
+            int publisher = 0;
             for (VmsLayersOffering offering : publishersLayersOfferings) {
-                for (VmsLayerDependency dependency : offering.getDependencies()) {
-                    VmsLayer layer = dependency.getLayer();
-                    Set<Set<VmsLayer>> curDependencies =
-                        mPotentialLayersAndDependencies.get(layer);
-                    if (curDependencies == null) {
-                        curDependencies = new HashSet<>();
-                        mPotentialLayersAndDependencies.put(layer, curDependencies);
-                    }
-                    curDependencies.add(dependency.getDependencies());
-                }
+                addRulesLocked(publisher++, offering);
             }
-            calculateLayers();
+            finishUpdateLocked();
+        }
+    }
+
+    /**
+     * Replaces the offering of one publisher and updates availability of the affected layers.
+     *
+     * @param publisher key identifying the publisher, e.g. its binder token.
+     * @return changes of availability.
+     */
+    public Delta setPublisherOffering(Object publisher, VmsLayersOffering offering) {
+        synchronized (mLock) {
+            removeRulesLocked(publisher);
+            addRulesLocked(publisher, offering);
+            return finishUpdateLocked();
+        }
+    }
+
+    /** Removes the offering of a publisher, e.g. when it went away. */
+    public Delta removePublisherOffering(Object publisher) {
+        synchronized (mLock) {
+            removeRulesLocked(publisher);
+            return finishUpdateLocked();
         }
     }
 
@@ -85,6 +166,7 @@ public class VmsLayersAvailability {
      */
     public Set<VmsLayer> getAvailableLayers() {
         synchronized (mLock) {
+            updateSnapshotsLocked();
             return mAvailableLayers;
         }
     }
@@ -95,78 +177,202 @@ public class VmsLayersAvailability {
      */
     public Set<VmsLayer> getUnavailableLayers() {
         synchronized (mLock) {
+            updateSnapshotsLocked();
             return mUnavailableLayers;
         }
     }
 
     private void reset() {
         synchronized (mLock) {
-            mCyclicAvoidanceSet.clear();
-            mPotentialLayersAndDependencies.clear();
+            mNodes.clear();
+            mPublisherRules.clear();
+            mChangedLayers.clear();
             mAvailableLayers = Collections.EMPTY_SET;
             mUnavailableLayers = Collections.EMPTY_SET;
+            mSnapshotsStale = false;
         }
     }
 
-    private void calculateLayers() {
-        synchronized (mLock) {
-            final Set<VmsLayer> availableLayers = new HashSet<>();
-
-            availableLayers.addAll(
-                mPotentialLayersAndDependencies.keySet()
-                    .stream()
-                    .filter(layer -> isLayerSupportedLocked(layer, availableLayers))
-                    .collect(Collectors.toSet()));
+    @GuardedBy("mLock")
+    private LayerNode getNodeLocked(VmsLayer layer) {
+        LayerNode node = mNodes.get(layer);
+        if (node == null) {
+            node = new LayerNode(layer);
+            mNodes.put(layer, node);
+        }
+        return node;
+    }
 
-            mAvailableLayers = Collections.unmodifiableSet(availableLayers);
-            mUnavailableLayers = Collections.unmodifiableSet(
-                mPotentialLayersAndDependencies.keySet()
-                    .stream()
-                    .filter(layer -> !availableLayers.contains(layer))
-                    .collect(Collectors.toSet()));
+    @GuardedBy("mLock")
+    private void addRulesLocked(Object publisher, VmsLayersOffering offering) {
+        List<Rule> rules = new ArrayList<>();
+        for (VmsLayerDependency dependency : offering.getDependencies()) {
+            LayerNode layer = getNodeLocked(dependency.getLayer());
+            Set<VmsLayer> dependencyLayers = dependency.getDependencies();
+            LayerNode[] dependencies = new LayerNode[dependencyLayers.size()];
+            int i = 0;
+            for (VmsLayer dependencyLayer : dependencyLayers) {
+                dependencies[i++] = getNodeLocked(dependencyLayer);
+            }
+            Rule rule = new Rule(layer, dependencies);
+            for (LayerNode node : dependencies) {
+                node.mDependents.add(rule);
+                if (!node.mAvailable) {
+                    rule.mMissing++;
+                }
+            }
+            layer.mRuleCount++;
+            rules.add(rule);
+            if (rule.mMissing == 0) {
+                // Propagate right away, missing counts of the next rules rely on it.
+                ArrayDeque<LayerNode> newlyAvailable = new ArrayDeque<>();
+                satisfyLocked(rule, newlyAvailable);
+                propagateAvailableLocked(newlyAvailable);
+            }
         }
+        if (!rules.isEmpty()) {
+            mPublisherRules.put(publisher, rules);
+        }
+        // Unavailable layers may have been added even if nothing became available.
+        mSnapshotsStale = true;
     }
 
-    private boolean isLayerSupportedLocked(VmsLayer layer, Set<VmsLayer> currentAvailableLayers) {
-        if (DBG) {
-            Log.d(TAG, "isLayerSupported: checking layer: " + layer);
-        }
-        // If we already know that this layer is supported then we are done.
-        if (currentAvailableLayers.contains(layer)) {
-            return true;
-        }
-        // If there is no offering for this layer we're done.
-        if (!mPotentialLayersAndDependencies.containsKey(layer)) {
-            return false;
-        }
-        // Avoid cyclic dependency.
-        if (mCyclicAvoidanceSet.contains(layer)) {
-            Log.e(TAG, "Detected a cyclic dependency: " + mCyclicAvoidanceSet + " -> " + layer);
-            return false;
-        }
-        for (Set<VmsLayer> dependencies : mPotentialLayersAndDependencies.get(layer)) {
-            // If layer does not have any dependencies then add to supported.
-            if (dependencies == null || dependencies.isEmpty()) {
-                currentAvailableLayers.add(layer);
-                return true;
+    @GuardedBy("mLock")
+    private void removeRulesLocked(Object publisher) {
+        List<Rule> rules = mPublisherRules.remove(publisher);
+        if (rules == null) {
+            return;
+        }
+        mSnapshotsStale = true;
+        ArrayDeque<LayerNode> lostSupport = new ArrayDeque<>();
+        for (Rule rule : rules) {
+            LayerNode layer = rule.mLayer;
+            for (LayerNode node : rule.mDependencies) {
+                node.mDependents.remove(rule);
+                removeNodeIfUnusedLocked(node);
+            }
+            layer.mRuleCount--;
+            if (rule.mMissing == 0) {
+                layer.mSatisfiedRuleCount--;
+                if (layer.mAvailable) {
+                    lostSupport.add(layer);
+                }
             }
-            // Add the layer to cyclic avoidance set
-            mCyclicAvoidanceSet.add(layer);
-
-            boolean isSupported = true;
-            for (VmsLayer dependency : dependencies) {
-                if (!isLayerSupportedLocked(dependency, currentAvailableLayers)) {
-                    isSupported = false;
-                    break;
+            removeNodeIfUnusedLocked(layer);
+        }
+        if (lostSupport.isEmpty()) {
+            return;
+        }
+
+        // Remaining satisfied rules of these layers might only be satisfied through the layers
+        // themselves, so mark every layer depending on them unavailable...
+        List<LayerNode> overDeleted = new ArrayList<>();
+        while (!lostSupport.isEmpty()) {
+            LayerNode node = lostSupport.poll();
+            if (!node.mAvailable) {
+                continue;
+            }
+            setAvailableLocked(node, false);
+            overDeleted.add(node);
+            for (Rule dependent : node.mDependents) {
+                if (dependent.mMissing++ == 0) {
+                    dependent.mLayer.mSatisfiedRuleCount--;
+                }
+                if (dependent.mLayer.mAvailable) {
+                    lostSupport.add(dependent.mLayer);
                 }
             }
-            mCyclicAvoidanceSet.remove(layer);
+        }
+        // ...and derive them again from the layers which are still available.
+        ArrayDeque<LayerNode> rederived = new ArrayDeque<>();
+        for (LayerNode node : overDeleted) {
+            if (node.mSatisfiedRuleCount > 0 && !node.mAvailable) {
+                setAvailableLocked(node, true);
+                rederived.add(node);
+            }
+        }
+        propagateAvailableLocked(rederived);
+    }
 
-            if (isSupported) {
-                currentAvailableLayers.add(layer);
-                return true;
+    @GuardedBy("mLock")
+    private void removeNodeIfUnusedLocked(LayerNode node) {
+        if (node.mRuleCount == 0 && node.mDependents.isEmpty()) {
+            mNodes.remove(node.mLayer);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void satisfyLocked(Rule rule, ArrayDeque<LayerNode> newlyAvailable) {
+        LayerNode layer = rule.mLayer;
+        layer.mSatisfiedRuleCount++;
+        if (!layer.mAvailable) {
+            setAvailableLocked(layer, true);
+            newlyAvailable.add(layer);
+        }
+    }
+
+    /** Updates rules depending on layers which became available. */
+    @GuardedBy("mLock")
+    private void propagateAvailableLocked(ArrayDeque<LayerNode> newlyAvailable) {
+        while (!newlyAvailable.isEmpty()) {
+            LayerNode node = newlyAvailable.poll();
+            for (Rule dependent : node.mDependents) {
+                if (--dependent.mMissing == 0) {
+                    satisfyLocked(dependent, newlyAvailable);
+                }
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void setAvailableLocked(LayerNode node, boolean available) {
+        if (!mChangedLayers.containsKey(node.mLayer)) {
+            mChangedLayers.put(node.mLayer, node.mAvailable);
+        }
+        node.mAvailable = available;
+    }
+
+    @GuardedBy("mLock")
+    private Delta finishUpdateLocked() {
+        Set<VmsLayer> added = new HashSet<>();
+        Set<VmsLayer> removed = new HashSet<>();
+        for (Map.Entry<VmsLayer, Boolean> entry : mChangedLayers.entrySet()) {
+            // The node might have been replaced when the layer was removed and offered again.
+            LayerNode node = mNodes.get(entry.getKey());
+            boolean available = node != null && node.mAvailable;
+            boolean wasAvailable = entry.getValue();
+            if (available && !wasAvailable) {
+                added.add(entry.getKey());
+            } else if (!available && wasAvailable) {
+                removed.add(entry.getKey());
+            }
+        }
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            mSnapshotsStale = true;
+        }
+        mChangedLayers.clear();
+        if (DBG) {
+            Log.d(TAG, "Availability changed, added: " + added + " removed: " + removed);
+        }
+        return new Delta(added, removed);
+    }
+
+    @GuardedBy("mLock")
+    private void updateSnapshotsLocked() {
+        if (!mSnapshotsStale) {
+            return;
+        }
+        Set<VmsLayer> availableLayers = new HashSet<>();
+        Set<VmsLayer> unavailableLayers = new HashSet<>();
+        for (LayerNode node : mNodes.values()) {
+            if (node.mAvailable) {
+                availableLayers.add(node.mLayer);
+            } else if (node.mRuleCount > 0) {
+                unavailableLayers.add(node.mLayer);
             }
         }
-        return false;
+        mAvailableLayers = Collections.unmodifiableSet(availableLayers);
+        mUnavailableLayers = Collections.unmodifiableSet(unavailableLayers);
+        mSnapshotsStale = false;
     }
 }
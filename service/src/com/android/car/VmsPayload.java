@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.annotation.FutureFeature;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Payload of one VMS message, shared by all receivers of the message without copying.
+ *
+ * <p>For large payloads, remote subscribers get the payload as shared memory, see
+ * {@link #getSharedMemory()}, so it is copied once for all of them instead of being marshalled
+ * for every subscriber. The shared memory is created on first use and released when the last
+ * receiver is done with the payload, which receivers signal by pairing {@link #acquire()} with
+ * {@link #release()}. The shared memory is made read only before it is handed out, so a
+ * subscriber cannot change the message seen by the others.
+ *
+ * <p>The byte array is never modified once the payload is created.
+ */
+@FutureFeature
+public class VmsPayload {
+    private final byte[] mBytes;
+
+    @GuardedBy("this")
+    private int mRefCount;
+    @GuardedBy("this")
+    private SharedMemory mSharedMemory;
+
+    public VmsPayload(byte[] bytes) {
+        mBytes = bytes;
+    }
+
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    public int size() {
+        return mBytes.length;
+    }
+
+    public synchronized void acquire() {
+        mRefCount++;
+    }
+
+    /** Releases shared memory once all receivers released the payload. */
+    public synchronized void release() {
+        if (mRefCount <= 0) {
+            throw new IllegalStateException("VMS payload released more often than acquired");
+        }
+        mRefCount--;
+        if (mRefCount == 0) {
+            closeSharedMemory();
+        }
+    }
+
+    /**
+     * Returns read only shared memory holding the payload. The memory is owned by this payload
+     * and stays valid until the payload is released; binder duplicates its descriptor for the
+     * receiving process, which can only map it read only.
+     */
+    public synchronized SharedMemory getSharedMemory() throws ErrnoException {
+        if (mRefCount <= 0) {
+            throw new IllegalStateException("VMS payload not acquired");
+        }
+        if (mSharedMemory == null) {
+            SharedMemory memory = SharedMemory.create("vms_payload", mBytes.length);
+            ByteBuffer buffer = null;
+            try {
+                buffer = memory.mapReadWrite();
+                buffer.put(mBytes);
+                // Applies to every later mapping, including the ones of subscribers.
+                if (!memory.setProtect(OsConstants.PROT_READ)) {
+                    throw new IllegalStateException("Cannot make VMS payload read only");
+                }
+            } catch (ErrnoException | RuntimeException e) {
+                memory.close();
+                throw e;
+            } finally {
+                if (buffer != null) {
+                    SharedMemory.unmap(buffer);
+                }
+            }
+            mSharedMemory = memory;
+        }
+        return mSharedMemory;
+    }
+
+    @GuardedBy("this")
+    private void closeSharedMemory() {
+        if (mSharedMemory == null) {
+            return;
+        }
+        mSharedMemory.close();
+        mSharedMemory = null;
+    }
+}
@@ -60,12 +60,28 @@ public class VmsPublisherService extends IVmsPublisherService.Stub
 
     private final Context mContext;
     private final VmsHalService mHal;
+    private final VmsDeliveryEngine mDeliveryEngine;
     private final VmsPublisherManager mPublisherManager;
     private Set<String> mSafePermissions;
 
-    public VmsPublisherService(Context context, VmsHalService hal) {
+    /** Sends messages to the HAL from the delivery engine, not from the publisher's thread. */
+    private final VmsDeliveryEngine.MessageSink mHalSink = new VmsDeliveryEngine.MessageSink() {
+        @Override
+        public void onMessage(VmsLayer layer, byte[] payload) {
+            mHal.setDataMessage(layer, payload);
+        }
+
+        @Override
+        public String toString() {
+            return "vehicle HAL";
+        }
+    };
+
+    public VmsPublisherService(Context context, VmsHalService hal,
+            VmsDeliveryEngine deliveryEngine) {
         mContext = context;
         mHal = hal;
+        mDeliveryEngine = deliveryEngine;
         mPublisherManager = new VmsPublisherManager(this);
     }
 
@@ -115,25 +131,22 @@ public class VmsPublisherService extends IVmsPublisherService.Stub
         }
         ICarImpl.assertVmsPublisherPermission(mContext);
 
-        // Send the message to application listeners.
-        Set<IVmsSubscriberClient> listeners = mHal.getListeners(layer);
+        // Queue the message for application listeners, all of them share the payload.
+        VmsPayload sharedPayload = new VmsPayload(payload);
+        IVmsSubscriberClient[] listeners = mHal.getListenerArray(layer);
 
         if (DBG) {
-            Log.d(TAG, "Number of subscribed apps: " + listeners.size());
-        }
-        for (IVmsSubscriberClient listener : listeners) {
-            try {
-                listener.onVmsMessageReceived(layer, payload);
-            } catch (RemoteException ex) {
-                Log.e(TAG, "unable to publish to listener: " + listener);
-            }
+            Log.d(TAG, "Number of subscribed apps: " + listeners.length);
         }
+        mDeliveryEngine.deliver(layer, sharedPayload, listeners);
 
-        // Send the message to HAL
+        // Queue the message for HAL
         if (mHal.isHalSubscribed(layer)) {
-            Log.d(TAG, "HAL is subscribed");
-            mHal.setDataMessage(layer, payload);
-        } else {
+            if (DBG) {
+                Log.d(TAG, "HAL is subscribed");
+            }
+            mDeliveryEngine.deliver(layer, sharedPayload, mHalSink);
+        } else if (DBG) {
             Log.d(TAG, "HAL is NOT subscribed");
         }
     }
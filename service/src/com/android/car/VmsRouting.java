@@ -22,6 +22,7 @@ import android.car.vms.VmsLayer;
 import android.car.vms.VmsSubscriptionState;
 import com.android.internal.annotations.GuardedBy;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -52,6 +53,8 @@ public class VmsRouting {
     // modifying the list of promiscuous subscribers does not affect the subscription state.
     @GuardedBy("mLock")
     private int mSequenceNumber = 0;
+    // Snapshot of the subscriptions for the message path, rebuilt under mLock on every change.
+    private volatile RoutingIndex mIndex = RoutingIndex.EMPTY;
 
     /**
      * Add a listener subscription to a data messages from layer + version.
@@ -72,6 +75,7 @@ public class VmsRouting {
             }
             // Add the listener to the list.
             listeners.add(listener);
+            updateIndexLocked();
         }
     }
 
@@ -84,6 +88,7 @@ public class VmsRouting {
         synchronized (mLock) {
             ++mSequenceNumber;
             mPromiscuousSubscribers.add(listener);
+            updateIndexLocked();
         }
     }
 
@@ -109,6 +114,7 @@ public class VmsRouting {
             if (listeners.isEmpty()) {
                 mLayerSubscriptions.remove(layer);
             }
+            updateIndexLocked();
         }
     }
 
@@ -121,6 +127,7 @@ public class VmsRouting {
         synchronized (mLock) {
             ++mSequenceNumber;
             mPromiscuousSubscribers.remove(listener);
+            updateIndexLocked();
         }
     }
 
@@ -131,8 +138,8 @@ public class VmsRouting {
      */
     public void removeDeadListener(IVmsSubscriberClient listener) {
         synchronized (mLock) {
-            // Remove the listener from all the routes.
-            for (VmsLayer layer : mLayerSubscriptions.keySet()) {
+            // Remove the listener from all the routes. Copy the keys as empty routes are removed.
+            for (VmsLayer layer : new ArrayList<>(mLayerSubscriptions.keySet())) {
                 removeSubscription(listener, layer);
             }
             // Remove the listener from the loggers.
@@ -160,6 +167,18 @@ public class VmsRouting {
         return listeners;
     }
 
+    /**
+     * Returns all the listeners for a layer and version, like {@link #getListeners(VmsLayer)}.
+     * Does not allocate or lock, intended for every published message. The returned array is
+     * shared and must not be modified.
+     *
+     * @param layer to get listeners to.
+     * @return the listeners, an empty array if there are none.
+     */
+    public IVmsSubscriberClient[] getListenerArray(VmsLayer layer) {
+        return mIndex.getListeners(toKey(layer));
+    }
+
     /**
      * Returns a list with all the listeners.
      */
@@ -201,6 +220,7 @@ public class VmsRouting {
         synchronized (mLock) {
             ++mSequenceNumber;
             mHalSubscriptions.add(layer);
+            updateIndexLocked();
         }
     }
 
@@ -212,6 +232,7 @@ public class VmsRouting {
         synchronized (mLock) {
             ++mSequenceNumber;
             mHalSubscriptions.remove(layer);
+            updateIndexLocked();
         }
     }
 
@@ -221,9 +242,8 @@ public class VmsRouting {
      * @return true if the HAL is subscribed to layer.
      */
     public boolean isHalSubscribed(VmsLayer layer) {
-        synchronized (mLock) {
-            return mHalSubscriptions.contains(layer);
-        }
+        // Called for every published message, so answered from the index without locking.
+        return mIndex.isHalSubscribed(toKey(layer));
     }
 
     /**
@@ -248,4 +268,67 @@ public class VmsRouting {
             return new VmsSubscriptionState(mSequenceNumber, layers);
         }
     }
-}
\ No newline at end of file
+
+    /** Packs layer id and version into a single routing key. */
+    static long toKey(VmsLayer layer) {
+        return ((long) layer.getId() << 32) | (layer.getVersion() & 0xffffffffL);
+    }
+
+    @GuardedBy("mLock")
+    private void updateIndexLocked() {
+        IVmsSubscriberClient[] promiscuous = mPromiscuousSubscribers.toArray(
+                new IVmsSubscriberClient[mPromiscuousSubscribers.size()]);
+        long[] keys = new long[mLayerSubscriptions.size()];
+        int i = 0;
+        for (VmsLayer layer : mLayerSubscriptions.keySet()) {
+            keys[i++] = toKey(layer);
+        }
+        Arrays.sort(keys);
+        IVmsSubscriberClient[][] listeners = new IVmsSubscriberClient[keys.length][];
+        for (Map.Entry<VmsLayer, Set<IVmsSubscriberClient>> entry
+                : mLayerSubscriptions.entrySet()) {
+            Set<IVmsSubscriberClient> layerListeners = new HashSet<>(entry.getValue());
+            layerListeners.addAll(mPromiscuousSubscribers);
+            listeners[Arrays.binarySearch(keys, toKey(entry.getKey()))] = layerListeners.toArray(
+                    new IVmsSubscriberClient[layerListeners.size()]);
+        }
+        long[] halKeys = new long[mHalSubscriptions.size()];
+        i = 0;
+        for (VmsLayer layer : mHalSubscriptions) {
+            halKeys[i++] = toKey(layer);
+        }
+        Arrays.sort(halKeys);
+        mIndex = new RoutingIndex(keys, listeners, promiscuous, halKeys);
+    }
+
+    /**
+     * Immutable routing table keyed by {@link #toKey(VmsLayer)}. Listener arrays of each layer
+     * already include the promiscuous subscribers.
+     */
+    private static final class RoutingIndex {
+        static final RoutingIndex EMPTY = new RoutingIndex(new long[0],
+                new IVmsSubscriberClient[0][], new IVmsSubscriberClient[0], new long[0]);
+
+        private final long[] mKeys;
+        private final IVmsSubscriberClient[][] mListeners;
+        private final IVmsSubscriberClient[] mPromiscuousListeners;
+        private final long[] mHalKeys;
+
+        RoutingIndex(long[] keys, IVmsSubscriberClient[][] listeners,
+                IVmsSubscriberClient[] promiscuousListeners, long[] halKeys) {
+            mKeys = keys;
+            mListeners = listeners;
+            mPromiscuousListeners = promiscuousListeners;
+            mHalKeys = halKeys;
+        }
+
+        IVmsSubscriberClient[] getListeners(long key) {
+            int index = Arrays.binarySearch(mKeys, key);
+            return index >= 0 ? mListeners[index] : mPromiscuousListeners;
+        }
+
+        boolean isHalSubscribed(long key) {
+            return Arrays.binarySearch(mHalKeys, key) >= 0;
+        }
+    }
+}
@@ -50,6 +50,7 @@ public class VmsSubscriberService extends IVmsSubscriberService.Stub
 
     private final Context mContext;
     private final VmsHalService mHal;
+    private final VmsDeliveryEngine mDeliveryEngine;
 
     @GuardedBy("mSubscriberServiceLock")
     private final VmsListenerManager mMessageReceivedManager = new VmsListenerManager();
@@ -92,6 +93,7 @@ public class VmsSubscriberService extends IVmsSubscriberService.Stub
                 if (listener != null) {
                     Log.d(TAG, "Removing subscriptions for dead listener: " + listener);
                     mHal.removeDeadListener(listener);
+                    mDeliveryEngine.removeSubscriber(listener);
                 } else {
                     Log.d(TAG, "Handling dead binder with no matching listener");
 
@@ -194,9 +196,11 @@ public class VmsSubscriberService extends IVmsSubscriberService.Stub
         }
     }
 
-    public VmsSubscriberService(Context context, VmsHalService hal) {
+    public VmsSubscriberService(Context context, VmsHalService hal,
+            VmsDeliveryEngine deliveryEngine) {
         mContext = context;
         mHal = hal;
+        mDeliveryEngine = deliveryEngine;
     }
 
     // Implements CarServiceBase interface.
@@ -221,6 +225,7 @@ public class VmsSubscriberService extends IVmsSubscriberService.Stub
         synchronized (mSubscriberServiceLock) {
             // Add the listener so it can subscribe.
             mMessageReceivedManager.add(listener);
+            mDeliveryEngine.addSubscriber(listener);
 
             // Add the subscription for the layer.
             mHal.addSubscription(listener, layer);
@@ -236,6 +241,7 @@ public class VmsSubscriberService extends IVmsSubscriberService.Stub
             // Remove the listener if it has no more subscriptions.
             if (!mHal.containsListener(listener)) {
                 mMessageReceivedManager.remove(listener);
+                mDeliveryEngine.removeSubscriber(listener);
             }
         }
     }
@@ -244,6 +250,7 @@ public class VmsSubscriberService extends IVmsSubscriberService.Stub
     public void addVmsSubscriberClientPassiveListener(IVmsSubscriberClient listener) {
         synchronized (mSubscriberServiceLock) {
             mMessageReceivedManager.add(listener);
+            mDeliveryEngine.addSubscriber(listener);
             mHal.addSubscription(listener);
         }
     }
@@ -257,6 +264,7 @@ public class VmsSubscriberService extends IVmsSubscriberService.Stub
             // Remove the listener if it has no more subscriptions.
             if (!mHal.containsListener(listener)) {
                 mMessageReceivedManager.remove(listener);
+                mDeliveryEngine.removeSubscriber(listener);
             }
         }
     }
@@ -281,17 +289,7 @@ public class VmsSubscriberService extends IVmsSubscriberService.Stub
             Log.d(TAG, "Publishing a message for layer: " + layer);
         }
 
-        Set<IVmsSubscriberClient> listeners = mHal.getListeners(layer);
-
-        for (IVmsSubscriberClient subscriber : listeners) {
-            try {
-                subscriber.onVmsMessageReceived(layer, payload);
-            } catch (RemoteException e) {
-                // If we could not send a record, its likely the connection snapped. Let the binder
-                // death handle the situation.
-                Log.e(TAG, "onVmsMessageReceived calling failed: ", e);
-            }
-        }
+        mDeliveryEngine.deliver(layer, new VmsPayload(payload), mHal.getListenerArray(layer));
     }
 
     @Override
@@ -26,6 +26,7 @@ import android.hardware.automotive.vehicle.V2_0.VehicleArea;
 import android.hardware.automotive.vehicle.V2_0.VehicleAreaConfig;
 import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
 import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropertyChangeMode;
 import android.hardware.automotive.vehicle.V2_0.VehiclePropertyType;
 
 import java.util.Collections;
@@ -56,9 +57,14 @@ import java.util.List;
             byte[] halData = toByteArray(v.bytes);
             return new CarPropertyValue<>(propertyId, areaId, halData);
         } else /* All list properties */ {
-            Object[] values = getRawValueList(clazz, v).toArray();
-            return new CarPropertyValue<>(propertyId, areaId,
-                    values.length == 1 ? values[0] : values);
+            List<?> values = getRawValueList(clazz, v);
+            if (values.size() == 1) {
+                return new CarPropertyValue<>(propertyId, areaId, values.get(0));
+            }
+            // Typed arrays, so that they are parceled without per element type information.
+            Object[] array = classMatched(Integer.class, clazz)
+                    ? new Integer[values.size()] : new Float[values.size()];
+            return new CarPropertyValue<>(propertyId, areaId, values.toArray(array));
         }
     }
 
@@ -103,14 +109,17 @@ import java.util.List;
         int areaType = getVehicleAreaType(p.prop & VehicleArea.MASK);
 
         Class<?> clazz = getJavaClass(p.prop & VehiclePropertyType.MASK);
+        int changeMode = getChangeMode(p.changeMode);
         if (p.areaConfigs.isEmpty()) {
             return CarPropertyConfig
                     .newBuilder(clazz, propertyId, areaType, /* capacity */ 1)
+                    .setChangeMode(changeMode)
                     .addAreas(areas)
                     .build();
         } else {
             CarPropertyConfig.Builder builder = CarPropertyConfig
-                    .newBuilder(clazz, propertyId, areaType, /* capacity */  p.areaConfigs.size());
+                    .newBuilder(clazz, propertyId, areaType, /* capacity */  p.areaConfigs.size())
+                    .setChangeMode(changeMode);
 
             for (VehicleAreaConfig area : p.areaConfigs) {
                 if (classMatched(Integer.class, clazz)) {
@@ -127,6 +136,17 @@ import java.util.List;
         }
     }
 
+    private static int getChangeMode(int halChangeMode) {
+        switch (halChangeMode) {
+            case VehiclePropertyChangeMode.STATIC:
+                return CarPropertyConfig.CHANGE_MODE_STATIC;
+            case VehiclePropertyChangeMode.ON_CHANGE:
+                return CarPropertyConfig.CHANGE_MODE_ON_CHANGE;
+            default:
+                return CarPropertyConfig.CHANGE_MODE_CONTINUOUS;
+        }
+    }
+
     private static @VehicleAreaType.VehicleAreaTypeValue int getVehicleAreaType(int halArea) {
         switch (halArea) {
             case VehicleArea.GLOBAL:
@@ -169,7 +189,7 @@ import java.util.List;
         }
     }
 
-    private static List getRawValueList(Class<?> clazz, VehiclePropValue.RawValue value) {
+    private static List<?> getRawValueList(Class<?> clazz, VehiclePropValue.RawValue value) {
         if (classMatched(Float.class, clazz)) {
             return value.floatValues;
         } else if (classMatched(Integer.class, clazz)) {
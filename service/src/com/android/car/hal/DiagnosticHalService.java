@@ -30,12 +30,10 @@ import android.hardware.automotive.vehicle.V2_1.VehicleProperty;
 import android.util.Log;
 import android.util.SparseArray;
 import com.android.car.CarLog;
-import com.android.car.CarServiceUtils;
 import com.android.car.vehiclehal.VehiclePropValueBuilder;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -168,19 +166,21 @@ public class DiagnosticHalService extends SensorHalServiceBase {
                                 : CarDiagnosticEvent.Builder.newLiveFrameBuilder())
                         .atTimestamp(value.timestamp);
 
-        BitSet bitset = BitSet.valueOf(CarServiceUtils.toByteArray(value.value.bytes));
+        // Bitmap of present values, integer properties first. Read in place, LSB first.
+        ArrayList<Byte> bitmap = value.value.bytes;
 
         int numIntegerProperties = getNumIntegerSensors(value.prop);
         int numFloatProperties = getNumFloatSensors(value.prop);
+        builder.withSensorCounts(numIntegerProperties, numFloatProperties);
 
         for (int i = 0; i < numIntegerProperties; ++i) {
-            if (bitset.get(i)) {
+            if (isBitSet(bitmap, i)) {
                 builder.withIntValue(i, value.value.int32Values.get(i));
             }
         }
 
         for (int i = 0; i < numFloatProperties; ++i) {
-            if (bitset.get(numIntegerProperties + i)) {
+            if (isBitSet(bitmap, numIntegerProperties + i)) {
                 builder.withFloatValue(i, value.value.floatValues.get(i));
             }
         }
@@ -190,6 +190,12 @@ public class DiagnosticHalService extends SensorHalServiceBase {
         return builder.build();
     }
 
+    private static boolean isBitSet(ArrayList<Byte> bitmap, int index) {
+        int byteIndex = index / Byte.SIZE;
+        return byteIndex < bitmap.size()
+                && (bitmap.get(byteIndex) & (1 << (index % Byte.SIZE))) != 0;
+    }
+
     /** Listener for monitoring diagnostic event. */
     public interface DiagnosticListener {
         /**
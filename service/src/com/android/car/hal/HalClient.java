@@ -29,20 +29,32 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import com.android.car.CarLog;
+import com.android.internal.annotations.GuardedBy;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Vehicle HAL client. Interacts directly with Vehicle HAL interface {@link IVehicle}. Contains
  * some logic for retriable properties, redirects Vehicle notifications into given looper thread.
+ *
+ * <p>Asynchronous sets and gets run on the request looper, which retries them while vehicle HAL
+ * answers {@link StatusCode#TRY_AGAIN} without blocking the caller. A set waiting to be sent is
+ * replaced by a later set of the same property and area, so only the latest value is sent.
+ * Blocking sets and gets also run on the request looper, the calling thread only waits for their
+ * result. Blocking sets and gets made from a {@link ResultCallback} are tried once directly on
+ * the request looper, as it cannot run other requests while the callback waits.
  */
 class  HalClient {
     /**
      * If call to vehicle HAL returns StatusCode.TRY_AGAIN, than {@link HalClient} will retry to
-     * invoke that method again for this amount of milliseconds.
+     * invoke blocking methods again for this amount of milliseconds.
      */
     private static final int WAIT_CAP_FOR_RETRIABLE_RESULT_MS = 2000;
 
@@ -52,17 +64,43 @@ class  HalClient {
 
     private final IVehicleCallback mInternalCallback;
 
+    private final Handler mRequestHandler;
+
+    private final Object mRequestLock = new Object();
+    /** Sets not sent yet, or waiting for a retry, by property and area. */
+    @GuardedBy("mRequestLock")
+    private final LongSparseArray<Request> mPendingSets = new LongSparseArray<>();
+    /** Sets being sent to vehicle HAL, by property and area. */
+    @GuardedBy("mRequestLock")
+    private final LongSparseArray<Request> mInFlightSets = new LongSparseArray<>();
+
+    /**
+     * Result of an asynchronous set or get, called on the request looper, or on the calling thread
+     * if the request looper has quit.
+     */
+    interface ResultCallback {
+        /**
+         * @param status {@link StatusCode} of the request, {@link StatusCode#TRY_AGAIN} if the
+         *               deadline passed before vehicle HAL accepted it.
+         * @param value value got, or value set, which may be a later value of the same property
+         *              and area that replaced the requested one. {@code null} if a get failed.
+         */
+        void onResult(int status, VehiclePropValue value);
+    }
+
     /**
      * Create HalClient object
      *
      * @param vehicle interface to the vehicle HAL
      * @param looper looper that will be used to propagate notifications from vehicle HAL
+     * @param requestLooper looper that runs asynchronous sets and gets
      * @param callback to propagate notifications from Vehicle HAL in the provided looper thread
      */
-    HalClient(IVehicle vehicle, Looper looper, IVehicleCallback callback) {
+    HalClient(IVehicle vehicle, Looper looper, Looper requestLooper, IVehicleCallback callback) {
         mVehicle = vehicle;
         Handler handler = new CallbackHandler(looper, callback);
         mInternalCallback = new VehicleCallback(handler);
+        mRequestHandler = new Handler(requestLooper);
     }
 
     ArrayList<VehiclePropConfig> getAllPropConfigs() throws RemoteException {
@@ -77,15 +115,24 @@ class  HalClient {
         mVehicle.unsubscribe(mInternalCallback, prop);
     }
 
+    /**
+     * Sets the value, blocking until vehicle HAL accepted it. Ordered with asynchronous sets of
+     * the same property and area.
+     */
     public void setValue(VehiclePropValue propValue) throws PropertyTimeoutException {
-        int status = invokeRetriable(() -> {
-            try {
-                return mVehicle.set(propValue);
-            } catch (RemoteException e) {
-                Log.e(CarLog.TAG_HAL, "Failed to set value", e);
-                return StatusCode.TRY_AGAIN;
-            }
-        }, WAIT_CAP_FOR_RETRIABLE_RESULT_MS, SLEEP_BETWEEN_RETRIABLE_INVOKES_MS);
+        int status;
+        if (isOnRequestLooper()) {
+            status = setOnRequestLooper(propValue);
+        } else {
+            long deadline = elapsedRealtime() + WAIT_CAP_FOR_RETRIABLE_RESULT_MS;
+            CountDownLatch latch = new CountDownLatch(1);
+            final ObjectWrapper<Integer> statusWrapper = new ObjectWrapper<>();
+            setValueAsync(propValue, deadline, (resultStatus, value) -> {
+                statusWrapper.object = resultStatus;
+                latch.countDown();
+            });
+            status = awaitResult(latch, statusWrapper, deadline);
+        }
 
         if (StatusCode.INVALID_ARG == status) {
             throw new IllegalArgumentException(
@@ -104,13 +151,74 @@ class  HalClient {
         }
     }
 
+    /**
+     * Sets the value without blocking. If a set of the same property and area is still waiting to
+     * be sent, its value is replaced by this one and both callbacks get the result.
+     *
+     * @param deadlineMs {@link android.os.SystemClock#elapsedRealtime()} after which the set is
+     *                   not tried anymore.
+     */
+    void setValueAsync(VehiclePropValue propValue, long deadlineMs, ResultCallback callback) {
+        long key = key(propValue.prop, propValue.areaId);
+        synchronized (mRequestLock) {
+            Request pending = mPendingSets.get(key);
+            if (pending != null) {
+                pending.mValue = propValue;
+                pending.mDeadlineMs = deadlineMs;
+                pending.mCallbacks.add(callback);
+                return;
+            }
+            Request request = new Request(true /* isSet */, key, propValue, deadlineMs);
+            request.mCallbacks.add(callback);
+            mPendingSets.put(key, request);
+            if (mRequestHandler.post(request)) {
+                return;
+            }
+            mPendingSets.remove(key);
+        }
+        Log.w(CarLog.TAG_HAL, "Request looper has quit, cannot set: 0x"
+                + Integer.toHexString(propValue.prop));
+        callback.onResult(StatusCode.TRY_AGAIN, propValue);
+    }
+
+    /**
+     * Gets the value without blocking, after sets of the same property and area requested before.
+     *
+     * @param deadlineMs {@link android.os.SystemClock#elapsedRealtime()} after which the get is
+     *                   not tried anymore.
+     */
+    void getValueAsync(VehiclePropValue requestedPropValue, long deadlineMs,
+            ResultCallback callback) {
+        long key = key(requestedPropValue.prop, requestedPropValue.areaId);
+        Request request = new Request(false /* isSet */, key, requestedPropValue, deadlineMs);
+        request.mCallbacks.add(callback);
+        if (!mRequestHandler.post(request)) {
+            Log.w(CarLog.TAG_HAL, "Request looper has quit, cannot get: 0x"
+                    + Integer.toHexString(requestedPropValue.prop));
+            callback.onResult(StatusCode.TRY_AGAIN, null);
+        }
+    }
+
     VehiclePropValue getValue(VehiclePropValue requestedPropValue) throws PropertyTimeoutException {
         final ObjectWrapper<VehiclePropValue> valueWrapper = new ObjectWrapper<>();
-        int status = invokeRetriable(() -> {
+        int status;
+        if (isOnRequestLooper()) {
             ValueResult res = internalGet(requestedPropValue);
             valueWrapper.object = res.propValue;
-            return res.status;
-        }, WAIT_CAP_FOR_RETRIABLE_RESULT_MS, SLEEP_BETWEEN_RETRIABLE_INVOKES_MS);
+            status = res.status;
+        } else {
+            long deadline = elapsedRealtime() + WAIT_CAP_FOR_RETRIABLE_RESULT_MS;
+            // Do not read a value older than one set before.
+            awaitSets(key(requestedPropValue.prop, requestedPropValue.areaId), deadline);
+            CountDownLatch latch = new CountDownLatch(1);
+            final ObjectWrapper<Integer> statusWrapper = new ObjectWrapper<>();
+            getValueAsync(requestedPropValue, deadline, (resultStatus, value) -> {
+                valueWrapper.object = value;
+                statusWrapper.object = resultStatus;
+                latch.countDown();
+            });
+            status = awaitResult(latch, statusWrapper, deadline);
+        }
 
         int propId = requestedPropValue.prop;
         int areaId = requestedPropValue.areaId;
@@ -148,25 +256,158 @@ class  HalClient {
         return result;
     }
 
-    interface RetriableCallback {
-        /** Returns {@link StatusCode} */
-        int action();
+    private int internalSet(VehiclePropValue propValue) {
+        try {
+            return mVehicle.set(propValue);
+        } catch (RemoteException e) {
+            Log.e(CarLog.TAG_HAL, "Failed to set value", e);
+            return StatusCode.TRY_AGAIN;
+        }
     }
 
-    private static int invokeRetriable(RetriableCallback callback, long timeoutMs, long sleepMs) {
-        int status = callback.action();
-        long startTime = elapsedRealtime();
-        while (StatusCode.TRY_AGAIN == status && (elapsedRealtime() - startTime) < timeoutMs) {
-            try {
-                Thread.sleep(sleepMs);
-            } catch (InterruptedException e) {
-                Log.e(CarLog.TAG_HAL, "Thread was interrupted while waiting for vehicle HAL.", e);
-                break;
+    private boolean isOnRequestLooper() {
+        return mRequestHandler.getLooper().isCurrentThread();
+    }
+
+    /**
+     * Sets the value from a {@link ResultCallback}, where waiting for the request looper would
+     * only time out. Not retried, which would hold up all other requests.
+     */
+    private int setOnRequestLooper(VehiclePropValue propValue) {
+        synchronized (mRequestLock) {
+            Request pending = mPendingSets.get(key(propValue.prop, propValue.areaId));
+            if (pending != null) {
+                // Requested before, but sent after this value, which it must not overwrite.
+                pending.mValue = propValue;
             }
+        }
+        return internalSet(propValue);
+    }
+
+    private static long key(int prop, int areaId) {
+        return ((long) prop << 32) | (areaId & 0xffffffffL);
+    }
 
-            status = callback.action();
+    private void awaitSets(long key, long deadlineMs) {
+        if (isOnRequestLooper()) {
+            // Sets cannot complete while a callback waits for them on the request looper.
+            return;
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        synchronized (mRequestLock) {
+            Request request = mPendingSets.get(key);
+            if (request == null) {
+                request = mInFlightSets.get(key);
+            }
+            if (request == null) {
+                return;
+            }
+            request.mCallbacks.add((status, value) -> latch.countDown());
+        }
+        awaitResult(latch, null, deadlineMs);
+    }
+
+    private static int awaitResult(CountDownLatch latch, ObjectWrapper<Integer> statusWrapper,
+            long deadlineMs) {
+        try {
+            // A call to vehicle HAL may still be running at the deadline, its result is then
+            // only seen by asynchronous callers.
+            if (!latch.await(deadlineMs - elapsedRealtime(), TimeUnit.MILLISECONDS)) {
+                return StatusCode.TRY_AGAIN;
+            }
+        } catch (InterruptedException e) {
+            Log.e(CarLog.TAG_HAL, "Thread was interrupted while waiting for vehicle HAL.", e);
+            Thread.currentThread().interrupt();
+            return StatusCode.TRY_AGAIN;
+        }
+        return statusWrapper != null ? statusWrapper.object : StatusCode.OK;
+    }
+
+    /** Set or get run on the request looper, posted again for retries. */
+    private final class Request implements Runnable {
+        private final boolean mIsSet;
+        private final long mKey;
+        @GuardedBy("mRequestLock")
+        private VehiclePropValue mValue;
+        @GuardedBy("mRequestLock")
+        private long mDeadlineMs;
+        @GuardedBy("mRequestLock")
+        private final List<ResultCallback> mCallbacks = new ArrayList<>();
+
+        Request(boolean isSet, long key, VehiclePropValue value, long deadlineMs) {
+            mIsSet = isSet;
+            mKey = key;
+            mValue = value;
+            mDeadlineMs = deadlineMs;
+        }
+
+        @Override
+        public void run() {
+            VehiclePropValue value;
+            long deadlineMs;
+            synchronized (mRequestLock) {
+                value = mValue;
+                deadlineMs = mDeadlineMs;
+                if (mIsSet) {
+                    // Later sets do not replace the value being sent, they are sent after it.
+                    mPendingSets.remove(mKey);
+                    mInFlightSets.put(mKey, this);
+                }
+            }
+
+            long now = elapsedRealtime();
+            int status = StatusCode.TRY_AGAIN;
+            VehiclePropValue result = null;
+            if (now < deadlineMs) {
+                if (mIsSet) {
+                    status = internalSet(value);
+                    result = value;
+                } else {
+                    ValueResult res = internalGet(value);
+                    status = res.status;
+                    result = res.propValue;
+                }
+            }
+
+            if (status == StatusCode.TRY_AGAIN
+                    && elapsedRealtime() + SLEEP_BETWEEN_RETRIABLE_INVOKES_MS < deadlineMs) {
+                scheduleRetry();
+                return;
+            }
+            complete(status, result);
+        }
+
+        private void scheduleRetry() {
+            synchronized (mRequestLock) {
+                if (mIsSet) {
+                    mInFlightSets.remove(mKey);
+                    Request later = mPendingSets.get(mKey);
+                    if (later != null) {
+                        // Replaced by a later set, which completes the callbacks of both.
+                        later.mCallbacks.addAll(mCallbacks);
+                        mCallbacks.clear();
+                        return;
+                    }
+                    // Later sets replace the value of this one until it is retried.
+                    mPendingSets.put(mKey, this);
+                }
+                mRequestHandler.postDelayed(this, SLEEP_BETWEEN_RETRIABLE_INVOKES_MS);
+            }
+        }
+
+        private void complete(int status, VehiclePropValue result) {
+            ResultCallback[] callbacks;
+            synchronized (mRequestLock) {
+                if (mIsSet && mInFlightSets.get(mKey) == this) {
+                    mInFlightSets.remove(mKey);
+                }
+                callbacks = mCallbacks.toArray(new ResultCallback[mCallbacks.size()]);
+                mCallbacks.clear();
+            }
+            for (ResultCallback callback : callbacks) {
+                callback.onResult(status, result);
+            }
         }
-        return status;
     }
 
     private static class ObjectWrapper<T> {
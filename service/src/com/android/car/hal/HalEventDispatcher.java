@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import android.annotation.Nullable;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import com.android.car.CarLog;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans out batches of vehicle HAL events to per-service dispatch queues.
+ *
+ * <p>Every {@link HalServiceBase} gets its own {@link ServiceQueue} backed by a dedicated looper
+ * thread, so a slow {@link HalServiceBase#handleHalEvents(List)} only delays events of that
+ * service. Events of one service are always delivered in the order they were received from the
+ * vehicle HAL, which also keeps per-property ordering since a property is owned by exactly one
+ * service. The producer side only posts messages and updates atomic counters; it never takes a
+ * lock shared with other services.
+ */
+class HalEventDispatcher {
+
+    private static final boolean DBG = false;
+
+    private final ServiceQueue[] mQueues;
+
+    /**
+     * @param services all HAL services, the index of a service in this list is used as its
+     *        queue index.
+     * @param createThreads if {@code false}, events are delivered synchronously in the caller's
+     *        thread. Used by test-only versions of {@link VehicleHal}.
+     */
+    HalEventDispatcher(List<HalServiceBase> services, boolean createThreads) {
+        mQueues = new ServiceQueue[services.size()];
+        for (int i = 0; i < mQueues.length; i++) {
+            HalServiceBase service = services.get(i);
+            service.setDispatchQueueIndex(i);
+            Looper looper = null;
+            if (createThreads) {
+                HandlerThread thread = new HandlerThread(
+                        "VEHICLE-HAL-" + service.getClass().getSimpleName());
+                thread.start();
+                looper = thread.getLooper();
+            }
+            mQueues[i] = new ServiceQueue(service, looper);
+        }
+    }
+
+    /** Quits the looper threads. Events posted after this are dropped. */
+    void release() {
+        for (ServiceQueue queue : mQueues) {
+            if (queue.mHandler != null) {
+                queue.mHandler.getLooper().quitSafely();
+            }
+        }
+    }
+
+    /** Creates a new batch which splits events by owning service. */
+    Batch newBatch() {
+        return new Batch();
+    }
+
+    /** Returns number of events which were posted to the service but not handled yet. */
+    int getQueueDepth(HalServiceBase service) {
+        int index = service.getDispatchQueueIndex();
+        if (index < 0 || index >= mQueues.length || mQueues[index].mService != service) {
+            return 0;
+        }
+        return mQueues[index].mPendingEvents.get();
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("**HAL event dispatch queues**");
+        for (ServiceQueue queue : mQueues) {
+            writer.println(String.format(
+                    "service:%s, pending:%d, max pending:%d, handled:%d, dropped:%d",
+                    queue.mService.getClass().getSimpleName(), queue.mPendingEvents.get(),
+                    queue.mMaxPendingEvents.get(), queue.mHandledEvents.get(),
+                    queue.mDroppedEvents.get()));
+        }
+    }
+
+    /**
+     * Collects events of one vehicle HAL callback and posts them to the owning service queues.
+     * A batch is used by a single thread and should be discarded after {@link #post()}.
+     */
+    class Batch {
+        private final ArrayList<VehiclePropValue>[] mServiceEvents = newBatchArray(mQueues.length);
+
+        private Batch() {}
+
+        void add(HalServiceBase service, VehiclePropValue value) {
+            int index = service.getDispatchQueueIndex();
+            if (mServiceEvents[index] == null) {
+                mServiceEvents[index] = new ArrayList<>();
+            }
+            mServiceEvents[index].add(value);
+        }
+
+        void post() {
+            for (int i = 0; i < mServiceEvents.length; i++) {
+                if (mServiceEvents[i] != null) {
+                    mQueues[i].post(mServiceEvents[i]);
+                    mServiceEvents[i] = null;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayList<VehiclePropValue>[] newBatchArray(int size) {
+        return (ArrayList<VehiclePropValue>[]) new ArrayList[size];
+    }
+
+    private static class ServiceQueue implements Handler.Callback {
+        private static final int MSG_DISPATCH = 0;
+
+        private final HalServiceBase mService;
+        /** Handler of this queue's looper thread, events are delivered synchronously if null. */
+        @Nullable
+        private final Handler mHandler;
+        private final AtomicInteger mPendingEvents = new AtomicInteger();
+        private final AtomicInteger mMaxPendingEvents = new AtomicInteger();
+        private final AtomicLong mHandledEvents = new AtomicLong();
+        /** Events posted after the looper quit. */
+        private final AtomicLong mDroppedEvents = new AtomicLong();
+
+        private ServiceQueue(HalServiceBase service, @Nullable Looper looper) {
+            mService = service;
+            mHandler = looper != null ? new Handler(looper, this) : null;
+        }
+
+        private void post(ArrayList<VehiclePropValue> batch) {
+            // Counted before sending, the batch might be delivered before sendMessage returns.
+            int pending = mPendingEvents.addAndGet(batch.size());
+            int max = mMaxPendingEvents.get();
+            while (pending > max && !mMaxPendingEvents.compareAndSet(max, pending)) {
+                max = mMaxPendingEvents.get();
+            }
+            if (mHandler == null) {
+                deliver(batch);
+            } else if (!mHandler.sendMessage(mHandler.obtainMessage(MSG_DISPATCH, batch))) {
+                // The looper quit, nothing will deliver the batch.
+                mPendingEvents.addAndGet(-batch.size());
+                mDroppedEvents.addAndGet(batch.size());
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_DISPATCH:
+                    deliver((ArrayList<VehiclePropValue>) msg.obj);
+                    return true;
+                default:
+                    Log.e(CarLog.TAG_HAL, "Unexpected message: " + msg.what);
+                    return false;
+            }
+        }
+
+        private void deliver(ArrayList<VehiclePropValue> batch) {
+            if (DBG) {
+                Log.d(CarLog.TAG_HAL, "deliver " + batch.size() + " events to " + mService);
+            }
+            try {
+                mService.handleHalEvents(batch);
+            } finally {
+                mPendingEvents.addAndGet(-batch.size());
+                mHandledEvents.addAndGet(batch.size());
+            }
+        }
+    }
+}
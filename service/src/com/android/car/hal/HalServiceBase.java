@@ -23,7 +23,6 @@ import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
 
 import java.io.PrintWriter;
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -32,13 +31,17 @@ import java.util.List;
  * and will translate HAL data into car api specific format.
  */
 public abstract class HalServiceBase {
-    /** For dispatching events. Kept here to avoid alloc every time */
-    private final LinkedList<VehiclePropValue> mDispatchList = new LinkedList<VehiclePropValue>();
-
     final static int NOT_SUPPORTED_PROPERTY = -1;
 
-    public List<VehiclePropValue> getDispatchList() {
-        return mDispatchList;
+    /** Index of this service's queue in {@link HalEventDispatcher}. Assigned once. */
+    private int mDispatchQueueIndex = -1;
+
+    final int getDispatchQueueIndex() {
+        return mDispatchQueueIndex;
+    }
+
+    final void setDispatchQueueIndex(int index) {
+        mDispatchQueueIndex = index;
     }
 
     /** initialize */
@@ -62,6 +65,11 @@ public abstract class HalServiceBase {
         return null;
     }
 
+    /**
+     * Handles a batch of events for properties owned by this service. Called from this service's
+     * own dispatch thread, batches are delivered in the order they were received from the vehicle
+     * HAL. The list is owned by the caller and must not be kept after returning.
+     */
     public abstract void handleHalEvents(List<VehiclePropValue> values);
 
     public void handlePropertySetError(int property, int area) {}
@@ -23,9 +23,14 @@ import android.annotation.Nullable;
 import android.car.hardware.CarPropertyConfig;
 import android.car.hardware.CarPropertyValue;
 import android.car.hardware.property.CarPropertyEvent;
+import android.car.hardware.property.CarPropertyValueCache;
+import android.hardware.automotive.vehicle.V2_0.StatusCode;
 import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
 import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropertyChangeMode;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.car.CarLog;
 import com.android.internal.annotations.GuardedBy;
@@ -35,6 +40,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -43,6 +49,9 @@ import java.util.concurrent.ConcurrentHashMap;
  * extend this class.
  */
 public abstract class PropertyHalServiceBase extends HalServiceBase {
+    /** Time given to vehicle HAL to accept a set while it answers TRY_AGAIN. */
+    private static final long SET_TIMEOUT_MS = 2000;
+
     private final boolean mDbg;
     private final ConcurrentHashMap<Integer, CarPropertyConfig<?>> mProps =
             new ConcurrentHashMap<>();
@@ -53,8 +62,28 @@ public abstract class PropertyHalServiceBase extends HalServiceBase {
     private PropertyHalListener mListener;
     private final Object mLock = new Object();
 
+    private final Object mSubscriptionLock = new Object();
+    /** Requested rate by manager property id, {@code null} to subscribe to all properties. */
+    @GuardedBy("mSubscriptionLock")
+    @Nullable
+    private SparseArray<Float> mRequestedRates = new SparseArray<>();
+    /** Rate by HAL property id of properties subscribed in vehicle HAL. */
+    @GuardedBy("mSubscriptionLock")
+    private final SparseArray<Float> mSubscribedRates = new SparseArray<>();
+
+    /**
+     * Last values of properties, by manager property id. Values of STATIC properties are always
+     * valid, values of ON_CHANGE properties only while they are subscribed.
+     */
+    private final CarPropertyValueCache mValueCache = new CarPropertyValueCache();
+    /** HAL property ids of properties whose values are cached. */
+    private final Set<Integer> mCachedProps = ConcurrentHashMap.newKeySet();
+    /** HAL property ids of ON_CHANGE properties, cached while they are subscribed. */
+    private final Set<Integer> mOnChangeProps = ConcurrentHashMap.newKeySet();
+
     public interface PropertyHalListener {
-        void onPropertyChange(CarPropertyEvent event);
+        /** Called with the change events of one batch of HAL events. */
+        void onPropertyChange(List<CarPropertyEvent> events);
         void onPropertySetError(int property, int area);
     }
 
@@ -74,10 +103,91 @@ public abstract class PropertyHalServiceBase extends HalServiceBase {
         }
     }
 
+    /**
+     * Sets the properties to subscribe in vehicle HAL and their sampling rates, replacing the
+     * previous ones. Only the difference to the current subscriptions is applied.
+     *
+     * @param mgrPropRates rate in Hz by manager property id, or {@code null} to subscribe to all
+     *                     properties of this service.
+     */
+    public void setSubscriptions(@Nullable SparseArray<Float> mgrPropRates) {
+        synchronized (mSubscriptionLock) {
+            mRequestedRates = mgrPropRates != null ? mgrPropRates.clone() : null;
+            applySubscriptionsLocked();
+        }
+    }
+
+    @GuardedBy("mSubscriptionLock")
+    private void applySubscriptionsLocked() {
+        SparseArray<Float> halRates = new SparseArray<>();
+        if (mRequestedRates == null) {
+            for (Integer prop : mProps.keySet()) {
+                halRates.put(prop, 0f);
+            }
+        } else {
+            for (int i = 0; i < mRequestedRates.size(); i++) {
+                int mgrPropId = mRequestedRates.keyAt(i);
+                if (!isPropertySupported(mgrPropId)) {
+                    Log.e(mTag, "Cannot subscribe to property: 0x" + toHexString(mgrPropId));
+                    continue;
+                }
+                int halPropId = managerToHalPropId(mgrPropId);
+                halRates.put(halPropId, mRequestedRates.valueAt(i));
+            }
+        }
+
+        for (int i = mSubscribedRates.size() - 1; i >= 0; i--) {
+            int halPropId = mSubscribedRates.keyAt(i);
+            if (halRates.indexOfKey(halPropId) < 0) {
+                mVehicleHal.unsubscribeProperty(this, halPropId);
+                mSubscribedRates.removeAt(i);
+                stopCaching(halPropId);
+            }
+        }
+        for (int i = 0; i < halRates.size(); i++) {
+            int halPropId = halRates.keyAt(i);
+            float rate = halRates.valueAt(i);
+            Float subscribedRate = mSubscribedRates.get(halPropId);
+            if (subscribedRate == null || subscribedRate != rate) {
+                if (mDbg) {
+                    Log.d(mTag, "subscribe 0x" + toHexString(halPropId) + " at " + rate);
+                }
+                mVehicleHal.subscribeProperty(this, halPropId, rate);
+                mSubscribedRates.put(halPropId, rate);
+                if (mOnChangeProps.contains(halPropId)) {
+                    mCachedProps.add(halPropId);
+                }
+            }
+        }
+    }
+
+    // Values received after this are not cached anymore, as the property may change unnoticed.
+    private void stopCaching(int halPropId) {
+        if (mCachedProps.remove(halPropId)) {
+            mValueCache.removeProperty(halToManagerPropId(halPropId));
+        }
+    }
+
     public List<CarPropertyConfig> getPropertyList() {
         return new ArrayList<>(mProps.values());
     }
 
+    /** Returns manager property id of a HAL property, or {@link #NOT_SUPPORTED_PROPERTY}. */
+    public int toManagerPropId(int halPropId) {
+        return halToManagerPropId(halPropId);
+    }
+
+    /** Returns whether properties were taken from the vehicle HAL, i.e. the HAL is initialized. */
+    public boolean hasProperties() {
+        return !mProps.isEmpty();
+    }
+
+    /** Returns whether the manager property is handled by this service and the vehicle HAL. */
+    public boolean isPropertySupported(int mgrPropId) {
+        int halPropId = managerToHalPropId(mgrPropId);
+        return halPropId != NOT_SUPPORTED_PROPERTY && mProps.containsKey(halPropId);
+    }
+
     /**
      * Returns property or null if property is not ready yet.
      */
@@ -88,29 +198,61 @@ public abstract class PropertyHalServiceBase extends HalServiceBase {
             throw new IllegalArgumentException("Invalid property Id : 0x" + toHexString(mgrPropId));
         }
 
+        boolean cached = mCachedProps.contains(halPropId);
+        long generation = 0;
+        if (cached) {
+            CarPropertyValue<?> cachedValue = mValueCache.get(mgrPropId, areaId);
+            if (cachedValue != null) {
+                return cachedValue;
+            }
+            generation = mValueCache.getGeneration();
+        }
+
         VehiclePropValue value = null;
         try {
             value = mVehicleHal.get(halPropId, areaId);
         } catch (PropertyTimeoutException e) {
             Log.e(CarLog.TAG_PROPERTY, "get, property not ready 0x" + toHexString(halPropId), e);
         }
+        if (value == null) {
+            return null;
+        }
 
-        return value == null ? null : toCarPropertyValue(value, mgrPropId);
+        CarPropertyValue<?> propVal = toCarPropertyValue(value, mgrPropId);
+        if (cached) {
+            mValueCache.putIfUnchanged(propVal, generation);
+        }
+        return propVal;
     }
 
+    /**
+     * Sets the property without waiting for vehicle HAL, which may be busy. A later set of the
+     * same property and area replaces this one if it was not sent yet. Failures, including values
+     * rejected by vehicle HAL and timeouts, are reported with
+     * {@link PropertyHalListener#onPropertySetError(int, int)}.
+     *
+     * @throws IllegalArgumentException if the property is not supported.
+     */
     public void setProperty(CarPropertyValue prop) {
-        int halPropId = managerToHalPropId(prop.getPropertyId());
+        int mgrPropId = prop.getPropertyId();
+        int areaId = prop.getAreaId();
+        int halPropId = managerToHalPropId(mgrPropId);
         if (halPropId == NOT_SUPPORTED_PROPERTY) {
             throw new IllegalArgumentException("Invalid property Id : 0x"
-                    + toHexString(prop.getPropertyId()));
+                    + toHexString(mgrPropId));
         }
         VehiclePropValue halProp = toVehiclePropValue(prop, halPropId);
-        try {
-            mVehicleHal.set(halProp);
-        } catch (PropertyTimeoutException e) {
-            Log.e(CarLog.TAG_PROPERTY, "set, property not ready 0x" + toHexString(halPropId), e);
-            throw new RuntimeException(e);
-        }
+        // The new value is read back from the HAL, or comes with the next event.
+        mValueCache.remove(mgrPropId, areaId);
+        mVehicleHal.setAsync(halProp, SystemClock.elapsedRealtime() + SET_TIMEOUT_MS,
+                (status, value) -> {
+                    mValueCache.remove(mgrPropId, areaId);
+                    if (status != StatusCode.OK) {
+                        Log.e(CarLog.TAG_PROPERTY, "set, failed for 0x" + toHexString(halPropId)
+                                + ", area: 0x" + toHexString(areaId) + ", status: " + status);
+                        handlePropertySetError(halPropId, areaId);
+                    }
+                });
     }
 
     @Override
@@ -118,9 +260,9 @@ public abstract class PropertyHalServiceBase extends HalServiceBase {
         if (mDbg) {
             Log.d(mTag, "init()");
         }
-        // Subscribe to each of the properties
-        for (Integer prop : mProps.keySet()) {
-            mVehicleHal.subscribeProperty(this, prop);
+        // Properties are subscribed on demand, restore what was requested before a reinit.
+        synchronized (mSubscriptionLock) {
+            applySubscriptionsLocked();
         }
     }
 
@@ -130,9 +272,15 @@ public abstract class PropertyHalServiceBase extends HalServiceBase {
             Log.d(mTag, "release()");
         }
 
-        for (Integer prop : mProps.keySet()) {
-            mVehicleHal.unsubscribeProperty(this, prop);
+        synchronized (mSubscriptionLock) {
+            for (int i = 0; i < mSubscribedRates.size(); i++) {
+                mVehicleHal.unsubscribeProperty(this, mSubscribedRates.keyAt(i));
+            }
+            mSubscribedRates.clear();
         }
+        mCachedProps.clear();
+        mOnChangeProps.clear();
+        mValueCache.clear();
 
         // Clear the property list
         mProps.clear();
@@ -158,6 +306,11 @@ public abstract class PropertyHalServiceBase extends HalServiceBase {
 
             taken.add(p);
             mProps.put(p.prop, config);
+            if (p.changeMode == VehiclePropertyChangeMode.STATIC) {
+                mCachedProps.add(p.prop);
+            } else if (p.changeMode == VehiclePropertyChangeMode.ON_CHANGE) {
+                mOnChangeProps.add(p.prop);
+            }
 
             if (mDbg) {
                 Log.d(mTag, "takeSupportedProperties: " + toHexString(p.prop));
@@ -173,6 +326,7 @@ public abstract class PropertyHalServiceBase extends HalServiceBase {
             listener = mListener;
         }
         if (listener != null) {
+            List<CarPropertyEvent> events = new ArrayList<>(values.size());
             for (VehiclePropValue v : values) {
                 int prop = v.prop;
                 int mgrPropId = halToManagerPropId(prop);
@@ -182,16 +336,22 @@ public abstract class PropertyHalServiceBase extends HalServiceBase {
                     continue;
                 }
 
-                CarPropertyEvent event;
                 CarPropertyValue<?> propVal = toCarPropertyValue(v, mgrPropId);
+                if (mCachedProps.contains(prop)) {
+                    mValueCache.putEvent(propVal);
+                }
+                CarPropertyEvent event;
                 event = new CarPropertyEvent(CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE,
                         propVal);
 
-                listener.onPropertyChange(event);
+                events.add(event);
                 if (mDbg) {
                     Log.d(mTag, "handleHalEvents event: " + event);
                 }
             }
+            if (!events.isEmpty()) {
+                listener.onPropertyChange(events);
+            }
         }
     }
 
@@ -201,6 +361,10 @@ public abstract class PropertyHalServiceBase extends HalServiceBase {
         synchronized (mLock) {
             listener = mListener;
         }
+        int mgrPropId = halToManagerPropId(property);
+        if (mgrPropId != NOT_SUPPORTED_PROPERTY) {
+            mValueCache.remove(mgrPropId, area);
+        }
         if (listener != null) {
             listener.onPropertySetError(property, area);
         }
@@ -213,6 +377,14 @@ public abstract class PropertyHalServiceBase extends HalServiceBase {
         for (CarPropertyConfig prop : mProps.values()) {
             writer.println("    " + prop.toString());
         }
+        synchronized (mSubscriptionLock) {
+            writer.println("  Properties subscribed:");
+            for (int i = 0; i < mSubscribedRates.size(); i++) {
+                writer.println("    0x" + toHexString(mSubscribedRates.keyAt(i)) + " rate:"
+                        + mSubscribedRates.valueAt(i));
+            }
+        }
+        writer.println("  Cached values: " + mValueCache.size());
     }
 
     /**
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import android.annotation.Nullable;
+import android.hardware.automotive.vehicle.V2_0.SubscribeOptions;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable snapshot of vehicle HAL property routing: config, owning {@link HalServiceBase} and
+ * current subscription for every property, keyed by primitive property id.
+ *
+ * <p>Instances are never modified after construction. Writers create a new table through the
+ * {@code with*} methods and publish it by replacing a volatile reference, so readers on the event
+ * path never block and never observe a partially updated table.
+ */
+final class PropertyRoutingTable {
+
+    static final PropertyRoutingTable EMPTY =
+            new PropertyRoutingTable(new int[0], new Route[0]);
+
+    /** Sorted property ids. */
+    private final int[] mProps;
+    /** Route for the property at the same index in {@link #mProps}. */
+    private final Route[] mRoutes;
+
+    private PropertyRoutingTable(int[] props, Route[] routes) {
+        mProps = props;
+        mRoutes = routes;
+    }
+
+    /** Returns route for given property or {@code null} if property is not supported. */
+    @Nullable
+    Route getRoute(int prop) {
+        int index = Arrays.binarySearch(mProps, prop);
+        return index >= 0 ? mRoutes[index] : null;
+    }
+
+    @Nullable
+    HalServiceBase getHandler(int prop) {
+        Route route = getRoute(prop);
+        return route != null ? route.handler : null;
+    }
+
+    @Nullable
+    VehiclePropConfig getConfig(int prop) {
+        Route route = getRoute(prop);
+        return route != null ? route.config : null;
+    }
+
+    int size() {
+        return mProps.length;
+    }
+
+    Route routeAt(int index) {
+        return mRoutes[index];
+    }
+
+    List<VehiclePropConfig> getConfigs() {
+        List<VehiclePropConfig> configs = new ArrayList<>(mRoutes.length);
+        for (Route route : mRoutes) {
+            configs.add(route.config);
+        }
+        return configs;
+    }
+
+    SubscribeOptions[] getSubscriptions() {
+        List<SubscribeOptions> subscriptions = new ArrayList<>();
+        for (Route route : mRoutes) {
+            if (route.subscription != null) {
+                subscriptions.add(route.subscription);
+            }
+        }
+        return subscriptions.toArray(new SubscribeOptions[subscriptions.size()]);
+    }
+
+    /** Returns a table which contains only given configs, without handlers or subscriptions. */
+    static PropertyRoutingTable create(Collection<VehiclePropConfig> configs) {
+        VehiclePropConfig[] sorted = configs.toArray(new VehiclePropConfig[configs.size()]);
+        Arrays.sort(sorted, (a, b) -> Integer.compare(a.prop, b.prop));
+        int[] props = new int[sorted.length];
+        Route[] routes = new Route[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            props[i] = sorted[i].prop;
+            routes[i] = new Route(sorted[i], null, null, new EventStats());
+        }
+        return new PropertyRoutingTable(props, routes);
+    }
+
+    /** Returns a copy of this table where given properties are owned by given service. */
+    PropertyRoutingTable withHandler(HalServiceBase service, Collection<VehiclePropConfig> taken) {
+        Route[] routes = mRoutes.clone();
+        for (VehiclePropConfig config : taken) {
+            int index = Arrays.binarySearch(mProps, config.prop);
+            if (index >= 0) {
+                Route old = routes[index];
+                routes[index] = new Route(old.config, service, old.subscription, old.stats);
+            }
+        }
+        return new PropertyRoutingTable(mProps, routes);
+    }
+
+    /**
+     * Returns a copy of this table with given subscription for the property, or {@code this} if
+     * property is not supported. {@code null} subscription means unsubscribed.
+     */
+    PropertyRoutingTable withSubscription(int prop, @Nullable SubscribeOptions subscription) {
+        int index = Arrays.binarySearch(mProps, prop);
+        if (index < 0) {
+            return this;
+        }
+        Route[] routes = mRoutes.clone();
+        Route old = routes[index];
+        routes[index] = new Route(old.config, old.handler, subscription, old.stats);
+        return new PropertyRoutingTable(mProps, routes);
+    }
+
+    /** Routing information of single property. */
+    static final class Route {
+        final VehiclePropConfig config;
+        @Nullable final HalServiceBase handler;
+        @Nullable final SubscribeOptions subscription;
+        /** Shared between snapshots so statistics survive subscription changes. */
+        final EventStats stats;
+
+        private Route(VehiclePropConfig config, @Nullable HalServiceBase handler,
+                @Nullable SubscribeOptions subscription, EventStats stats) {
+            this.config = config;
+            this.handler = handler;
+            this.subscription = subscription;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * Event statistics for dump. Updated from the vehicle HAL callback thread and from threads
+     * injecting events, read by dump without locking, so values might be slightly stale.
+     */
+    static final class EventStats {
+        final AtomicInteger eventCount = new AtomicInteger();
+        volatile VehiclePropValue lastEvent;
+
+        void addNewEvent(VehiclePropValue event) {
+            eventCount.incrementAndGet();
+            lastEvent = event;
+        }
+    }
+}
@@ -34,7 +34,7 @@ import android.util.SparseIntArray;
 import com.android.car.CarLog;
 import com.android.car.CarSensorEventFactory;
 import java.io.PrintWriter;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -49,7 +49,8 @@ public class SensorHalService extends SensorHalServiceBase {
      */
     public interface SensorListener {
         /**
-         * Sensor events are available.
+         * Sensor events are available. Ownership of the events is passed to the listener, the
+         * list itself is owned by the caller and reused after this call returns.
          * @param events
          */
         void onSensorEvents(List<CarSensorEvent> events);
@@ -113,7 +114,7 @@ public class SensorHalService extends SensorHalServiceBase {
     }
 
     // Should be used only inside handleHalEvents method.
-    private final LinkedList<CarSensorEvent> mEventsToDispatch = new LinkedList<>();
+    private final ArrayList<CarSensorEvent> mEventsToDispatch = new ArrayList<>();
     @Override
     public void handleHalEvents(List<VehiclePropValue> values) {
         for (VehiclePropValue v : values) {
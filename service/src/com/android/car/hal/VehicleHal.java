@@ -36,9 +36,7 @@ import android.hardware.automotive.vehicle.V2_0.VehiclePropertyChangeMode;
 import android.os.HandlerThread;
 import android.os.RemoteException;
 import android.os.SystemClock;
-import android.util.ArraySet;
 import android.util.Log;
-import android.util.SparseArray;
 
 import com.google.android.collect.Lists;
 
@@ -51,7 +49,6 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -69,6 +66,13 @@ public class VehicleHal extends IVehicleCallback.Stub {
     private static final int NO_AREA = -1;
 
     private final HandlerThread mHandlerThread;
+    /** Runs asynchronous sets and gets, see {@link HalClient}. */
+    private HandlerThread mRequestThread;
+    /**
+     * Whether {@link #release()} quit the request and event dispatch threads, which
+     * {@link #init()} starts again.
+     */
+    private boolean mThreadsQuit;
     private final SensorHalService mSensorHal;
     private final InfoHalService mInfoHal;
     private final AudioHalService mAudioHal;
@@ -86,18 +90,23 @@ public class VehicleHal extends IVehicleCallback.Stub {
 
     /** Might be re-assigned if Vehicle HAL is reconnected. */
     private volatile HalClient mHalClient;
+    /** Vehicle HAL used by {@link #mHalClient}, {@code null} for test-only versions. */
+    private IVehicle mVehicle;
 
-    /** Stores handler for each HAL property. Property events are sent to handler. */
-    private final SparseArray<HalServiceBase> mPropertyHandlers = new SparseArray<>();
     /** This is for iterating all HalServices with fixed order. */
     private final ArrayList<HalServiceBase> mAllServices = new ArrayList<>();
-    private final HashMap<Integer, SubscribeOptions> mSubscribedProperties = new HashMap<>();
-    private final HashMap<Integer, VehiclePropConfig> mAllProperties = new HashMap<>();
-    private final HashMap<Integer, VehiclePropertyEventInfo> mEventLog = new HashMap<>();
+    /**
+     * Config, handler and subscription of each HAL property. Replaced as a whole while holding
+     * {@code this}, read without locking. Property events are sent to handler.
+     */
+    private volatile PropertyRoutingTable mRoutingTable = PropertyRoutingTable.EMPTY;
+    private volatile HalEventDispatcher mEventDispatcher;
 
     public VehicleHal(IVehicle vehicle) {
         mHandlerThread = new HandlerThread("VEHICLE-HAL");
         mHandlerThread.start();
+        mRequestThread = startRequestThread();
+        mVehicle = vehicle;
         // passing this should be safe as long as it is just kept and not used in constructor
         mPowerHal = new PowerHalService(this);
         mSensorHal = new SensorHalService(this);
@@ -125,8 +134,10 @@ public class VehicleHal extends IVehicleCallback.Stub {
         if (FeatureConfiguration.ENABLE_VEHICLE_MAP_SERVICE) {
             mAllServices.add(mVmsHal);
         }
+        mEventDispatcher = new HalEventDispatcher(mAllServices, true /* createThreads */);
 
-        mHalClient = new HalClient(vehicle, mHandlerThread.getLooper(), this /*IVehicleCallback*/);
+        mHalClient = new HalClient(vehicle, mHandlerThread.getLooper(),
+                mRequestThread.getLooper(), this /*IVehicleCallback*/);
     }
 
     /** Dummy version only for testing */
@@ -135,6 +146,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
             AudioHalService audioHal, CabinHalService cabinHal,
             RadioHalService radioHal, HvacHalService hvacHal, HalClient halClient) {
         mHandlerThread = null;
+        mRequestThread = null;
         mPowerHal = powerHal;
         mSensorHal = sensorHal;
         mInfoHal = infoHal;
@@ -149,6 +161,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
         if (FeatureConfiguration.ENABLE_VEHICLE_MAP_SERVICE) {
             mVmsHal = null;
         }
+        createTestDispatcher();
 
         mHalClient = halClient;
     }
@@ -160,6 +173,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
             AudioHalService audioHal, CabinHalService cabinHal, DiagnosticHalService diagnosticHal,
             RadioHalService radioHal, HvacHalService hvacHal, HalClient halClient) {
             mHandlerThread = null;
+            mRequestThread = null;
             mPowerHal = powerHal;
             mSensorHal = sensorHal;
             mInfoHal = infoHal;
@@ -173,15 +187,28 @@ public class VehicleHal extends IVehicleCallback.Stub {
             mVmsHal = null;
             mHalClient = halClient;
             mDiagnosticHal = diagnosticHal;
+            createTestDispatcher();
+    }
+
+    /** Test-only versions deliver events synchronously to whatever services were provided. */
+    private void createTestDispatcher() {
+        ArrayList<HalServiceBase> services = new ArrayList<>();
+        for (HalServiceBase service : Arrays.asList(mPowerHal, mSensorHal, mInfoHal, mAudioHal,
+                mCabinHal, mDiagnosticHal, mRadioHal, mHvacHal)) {
+            if (service != null) {
+                services.add(service);
+            }
+        }
+        mEventDispatcher = new HalEventDispatcher(services, false /* createThreads */);
     }
 
     public void vehicleHalReconnected(IVehicle vehicle) {
         synchronized (this) {
+            mVehicle = vehicle;
             mHalClient = new HalClient(vehicle, mHandlerThread.getLooper(),
-                    this /*IVehicleCallback*/);
+                    mRequestThread.getLooper(), this /*IVehicleCallback*/);
 
-            SubscribeOptions[] options = mSubscribedProperties.values()
-                    .toArray(new SubscribeOptions[0]);
+            SubscribeOptions[] options = mRoutingTable.getSubscriptions();
 
             try {
                 mHalClient.subscribe(options);
@@ -192,6 +219,16 @@ public class VehicleHal extends IVehicleCallback.Stub {
     }
 
     public void init() {
+        synchronized (this) {
+            if (mThreadsQuit) {
+                // Reinit after release, requests and events need running loopers again.
+                mRequestThread = startRequestThread();
+                mHalClient = new HalClient(mVehicle, mHandlerThread.getLooper(),
+                        mRequestThread.getLooper(), this /*IVehicleCallback*/);
+                mEventDispatcher = new HalEventDispatcher(mAllServices, true /* createThreads */);
+                mThreadsQuit = false;
+            }
+        }
         Set<VehiclePropConfig> properties;
         try {
             properties = new HashSet<>(mHalClient.getAllPropConfigs());
@@ -201,9 +238,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
 
         synchronized (this) {
             // Create map of all properties
-            for (VehiclePropConfig p : properties) {
-                mAllProperties.put(p.prop, p);
-            }
+            mRoutingTable = PropertyRoutingTable.create(properties);
         }
 
         for (HalServiceBase service: mAllServices) {
@@ -215,9 +250,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
                 Log.i(CarLog.TAG_HAL, "HalService " + service + " take properties " + taken.size());
             }
             synchronized (this) {
-                for (VehiclePropConfig p: taken) {
-                    mPropertyHandlers.append(p.prop, service);
-                }
+                mRoutingTable = mRoutingTable.withHandler(service, taken);
             }
             properties.removeAll(taken);
             service.init();
@@ -230,20 +263,41 @@ public class VehicleHal extends IVehicleCallback.Stub {
             mAllServices.get(i).release();
         }
         synchronized (this) {
-            for (int p : mSubscribedProperties.keySet()) {
+            for (SubscribeOptions options : mRoutingTable.getSubscriptions()) {
                 try {
-                    mHalClient.unsubscribe(p);
+                    mHalClient.unsubscribe(options.propId);
                 } catch (RemoteException e) {
                     //  Ignore exceptions on shutdown path.
                     Log.w(CarLog.TAG_HAL, "Failed to unsubscribe", e);
                 }
             }
-            mSubscribedProperties.clear();
-            mAllProperties.clear();
+            mRoutingTable = PropertyRoutingTable.EMPTY;
+        }
+        HandlerThread requestThread;
+        synchronized (this) {
+            requestThread = mThreadsQuit ? null : mRequestThread;
+            mThreadsQuit = requestThread != null;
+        }
+        if (requestThread != null) {
+            // HAL services are released, and no property is subscribed anymore.
+            mEventDispatcher.release();
+            // Requests made after this fail right away, see HalClient.
+            requestThread.quitSafely();
+            try {
+                requestThread.join(1000);
+            } catch (InterruptedException e) {
+                Log.e(CarLog.TAG_HAL, "Timeout while waiting for request thread to join.");
+            }
         }
         // keep the looper thread as should be kept for the whole life cycle.
     }
 
+    private static HandlerThread startRequestThread() {
+        HandlerThread thread = new HandlerThread("VEHICLE-HAL-REQUEST");
+        thread.start();
+        return thread;
+    }
+
     public SensorHalService getSensorHal() {
         return mSensorHal;
     }
@@ -287,7 +341,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
     public VmsHalService getVmsHal() { return mVmsHal; }
 
     private void assertServiceOwnerLocked(HalServiceBase service, int property) {
-        if (service != mPropertyHandlers.get(property)) {
+        if (service != mRoutingTable.getHandler(property)) {
             throw new IllegalArgumentException("Property 0x" + toHexString(property)
                     + " is not owned by service: " + service);
         }
@@ -328,10 +382,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
             Log.i(CarLog.TAG_HAL, "subscribeProperty, service:" + service
                     + ", property: 0x" + toHexString(property));
         }
-        VehiclePropConfig config;
-        synchronized (this) {
-            config = mAllProperties.get(property);
-        }
+        VehiclePropConfig config = mRoutingTable.getConfig(property);
 
         if (config == null) {
             throw new IllegalArgumentException("subscribe error: config is null for property 0x" +
@@ -343,7 +394,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
             opts.flags = flags;
             synchronized (this) {
                 assertServiceOwnerLocked(service, property);
-                mSubscribedProperties.put(property, opts);
+                mRoutingTable = mRoutingTable.withSubscription(property, opts);
             }
             try {
                 mHalClient.subscribe(opts);
@@ -360,17 +411,14 @@ public class VehicleHal extends IVehicleCallback.Stub {
             Log.i(CarLog.TAG_HAL, "unsubscribeProperty, service:" + service
                     + ", property: 0x" + toHexString(property));
         }
-        VehiclePropConfig config;
-        synchronized (this) {
-            config = mAllProperties.get(property);
-        }
+        VehiclePropConfig config = mRoutingTable.getConfig(property);
 
         if (config == null) {
             Log.e(CarLog.TAG_HAL, "unsubscribeProperty: property " + property + " does not exist");
         } else if (isPropertySubscribable(config)) {
             synchronized (this) {
                 assertServiceOwnerLocked(service, property);
-                mSubscribedProperties.remove(property);
+                mRoutingTable = mRoutingTable.withSubscription(property, null);
             }
             try {
                 mHalClient.unsubscribe(property);
@@ -384,11 +432,11 @@ public class VehicleHal extends IVehicleCallback.Stub {
     }
 
     public boolean isPropertySupported(int propertyId) {
-        return mAllProperties.containsKey(propertyId);
+        return mRoutingTable.getRoute(propertyId) != null;
     }
 
     public Collection<VehiclePropConfig> getAllPropConfigs() {
-        return mAllProperties.values();
+        return mRoutingTable.getConfigs();
     }
 
     public VehiclePropValue get(int propertyId) throws PropertyTimeoutException {
@@ -454,6 +502,23 @@ public class VehicleHal extends IVehicleCallback.Stub {
         mHalClient.setValue(propValue);
     }
 
+    /**
+     * Sets the value without blocking, see {@link HalClient#setValueAsync}. The callback is
+     * called on the request thread.
+     */
+    void setAsync(VehiclePropValue propValue, long deadlineMs, HalClient.ResultCallback callback) {
+        mHalClient.setValueAsync(propValue, deadlineMs, callback);
+    }
+
+    /**
+     * Gets the value without blocking, see {@link HalClient#getValueAsync}. The callback is
+     * called on the request thread.
+     */
+    void getAsync(int propertyId, int areaId, long deadlineMs,
+            HalClient.ResultCallback callback) {
+        mHalClient.getValueAsync(createPropValue(propertyId, areaId), deadlineMs, callback);
+    }
+
     @CheckResult
     VehiclePropValueSetter set(int propId) {
         return new VehiclePropValueSetter(mHalClient, propId, NO_AREA);
@@ -478,34 +543,29 @@ public class VehicleHal extends IVehicleCallback.Stub {
         }
     }
 
-    private final ArraySet<HalServiceBase> mServicesToDispatch = new ArraySet<>();
+    /**
+     * Returns number of events received from vehicle HAL but not yet handled by given service.
+     */
+    public int getPendingEventCount(HalServiceBase service) {
+        return mEventDispatcher.getQueueDepth(service);
+    }
 
     @Override
     public void onPropertyEvent(ArrayList<VehiclePropValue> propValues) {
-        synchronized (this) {
-            for (VehiclePropValue v : propValues) {
-                HalServiceBase service = mPropertyHandlers.get(v.prop);
-                if(service == null) {
-                    Log.e(CarLog.TAG_HAL, "HalService not found for prop: 0x"
-                        + toHexString(v.prop));
-                    continue;
-                }
-                service.getDispatchList().add(v);
-                mServicesToDispatch.add(service);
-                VehiclePropertyEventInfo info = mEventLog.get(v.prop);
-                if (info == null) {
-                    info = new VehiclePropertyEventInfo(v);
-                    mEventLog.put(v.prop, info);
-                } else {
-                    info.addNewEvent(v);
-                }
+        HalEventDispatcher.Batch batch = mEventDispatcher.newBatch();
+        // Single snapshot for the whole batch, subscription changes apply to the next one.
+        PropertyRoutingTable routingTable = mRoutingTable;
+        for (VehiclePropValue v : propValues) {
+            PropertyRoutingTable.Route route = routingTable.getRoute(v.prop);
+            if (route == null || route.handler == null) {
+                Log.e(CarLog.TAG_HAL, "HalService not found for prop: 0x"
+                    + toHexString(v.prop));
+                continue;
             }
+            batch.add(route.handler, v);
+            route.stats.addNewEvent(v);
         }
-        for (HalServiceBase s : mServicesToDispatch) {
-            s.handleHalEvents(s.getDispatchList());
-            s.getDispatchList().clear();
-        }
-        mServicesToDispatch.clear();
+        batch.post();
     }
 
     @Override
@@ -518,7 +578,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
         Log.e(CarLog.TAG_HAL, String.format("onPropertySetError, errorCode: %d, prop: 0x%x, "
                 + "area: 0x%x", errorCode, propId, areaId));
         if (propId != VehicleProperty.INVALID) {
-            HalServiceBase service = mPropertyHandlers.get(propId);
+            HalServiceBase service = mRoutingTable.getHandler(propId);
             if (service != null) {
                 service.handlePropertySetError(propId, areaId);
             }
@@ -531,10 +591,8 @@ public class VehicleHal extends IVehicleCallback.Stub {
             service.dump(writer);
         }
 
-        List<VehiclePropConfig> configList;
-        synchronized (this) {
-            configList = new ArrayList<>(mAllProperties.values());
-        }
+        PropertyRoutingTable routingTable = mRoutingTable;
+        List<VehiclePropConfig> configList = routingTable.getConfigs();
 
         writer.println("**All properties**");
         for (VehiclePropConfig config : configList) {
@@ -559,16 +617,24 @@ public class VehicleHal extends IVehicleCallback.Stub {
         }
         writer.println(String.format("**All Events, now ns:%d**",
                 SystemClock.elapsedRealtimeNanos()));
-        for (VehiclePropertyEventInfo info : mEventLog.values()) {
-            writer.println(String.format("event count:%d, lastEvent:%s",
-                    info.eventCount, dumpVehiclePropValue(info.lastEvent)));
+        for (int i = 0; i < routingTable.size(); i++) {
+            PropertyRoutingTable.EventStats stats = routingTable.routeAt(i).stats;
+            VehiclePropValue lastEvent = stats.lastEvent;
+            if (lastEvent != null) {
+                writer.println(String.format("event count:%d, lastEvent:%s",
+                        stats.eventCount.get(), dumpVehiclePropValue(lastEvent)));
+            }
         }
 
+        mEventDispatcher.dump(writer);
+
         writer.println("**Property handlers**");
-        for (int i = 0; i < mPropertyHandlers.size(); i++) {
-            int propId = mPropertyHandlers.keyAt(i);
-            HalServiceBase service = mPropertyHandlers.valueAt(i);
-            writer.println(String.format("Prop: 0x%08X, service: %s", propId, service));
+        for (int i = 0; i < routingTable.size(); i++) {
+            PropertyRoutingTable.Route route = routingTable.routeAt(i);
+            if (route.handler != null) {
+                writer.println(String.format("Prop: 0x%08X, service: %s", route.config.prop,
+                        route.handler));
+            }
         }
     }
 
@@ -596,21 +662,6 @@ public class VehicleHal extends IVehicleCallback.Stub {
         onPropertyEvent(Lists.newArrayList(v));
     }
 
-    private static class VehiclePropertyEventInfo {
-        private int eventCount;
-        private VehiclePropValue lastEvent;
-
-        private VehiclePropertyEventInfo(VehiclePropValue event) {
-            eventCount = 1;
-            lastEvent = event;
-        }
-
-        private void addNewEvent(VehiclePropValue event) {
-            eventCount++;
-            lastEvent = event;
-        }
-    }
-
     final class VehiclePropValueSetter {
         final WeakReference<HalClient> mClient;
         final VehiclePropValue mPropValue;
@@ -44,11 +44,9 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -75,8 +73,6 @@ public class VmsHalService extends HalServiceBase {
     private final Object mLock = new Object();
     private final VmsRouting mRouting = new VmsRouting();
     @GuardedBy("mLock")
-    private final Map<IBinder, VmsLayersOffering> mOfferings = new HashMap<>();
-    @GuardedBy("mLock")
     private final VmsLayersAvailability mAvailableLayers = new VmsLayersAvailability();
     private final VmsPublishersInfo mPublishersInfo = new VmsPublishersInfo();
 
@@ -181,6 +177,14 @@ public class VmsHalService extends HalServiceBase {
         }
     }
 
+    /**
+     * Returns the listeners for the layer without allocating or locking. The array must not be
+     * modified.
+     */
+    public IVmsSubscriberClient[] getListenerArray(VmsLayer layer) {
+        return mRouting.getListenerArray(layer);
+    }
+
     public Set<IVmsSubscriberClient> getAllListeners() {
         synchronized (mLock) {
             return mRouting.getAllListeners();
@@ -188,9 +192,7 @@ public class VmsHalService extends HalServiceBase {
     }
 
     public boolean isHalSubscribed(VmsLayer layer) {
-        synchronized (mLock) {
-            return mRouting.isHalSubscribed(layer);
-        }
+        return mRouting.isHalSubscribed(layer);
     }
 
     public VmsSubscriptionState getSubscriptionState() {
@@ -263,12 +265,7 @@ public class VmsHalService extends HalServiceBase {
     }
 
     public void setPublisherLayersOffering(IBinder publisherToken, VmsLayersOffering offering){
-        Set<VmsLayer> availableLayers = Collections.EMPTY_SET;
-        synchronized (mLock) {
-            updateOffering(publisherToken, offering);
-            availableLayers = mAvailableLayers.getAvailableLayers();
-        }
-        notifySubscribers(availableLayers);
+        updateOffering(publisherToken, offering);
     }
 
     public Set<VmsLayer> getAvailableLayers() {
@@ -370,7 +367,7 @@ public class VmsHalService extends HalServiceBase {
             }
             switch(messageType) {
                 case VmsMessageType.DATA:
-                    handleDataEvent(vec, toByteArray(v.value.bytes));
+                    handleDataEvent(vec, v.value.bytes);
                     break;
                 case VmsMessageType.SUBSCRIBE:
                     handleSubscribeEvent(vec);
@@ -402,7 +399,7 @@ public class VmsHalService extends HalServiceBase {
      * <li>Payload.
      * </ul>
      */
-    private void handleDataEvent(List<Integer> integerValues, byte[] payload) {
+    private void handleDataEvent(List<Integer> integerValues, List<Byte> payload) {
         int layerId = integerValues.get(VmsSimpleMessageIntegerValuesIndex.VMS_LAYER_ID);
         int layerVersion = integerValues.get(VmsSimpleMessageIntegerValuesIndex.VMS_LAYER_VERSION);
         if (DBG) {
@@ -411,9 +408,17 @@ public class VmsHalService extends HalServiceBase {
                     " Version: " + layerVersion);
         }
 
+        VmsLayer layer = new VmsLayer(layerId, layerVersion);
+        if (mRouting.getListenerArray(layer).length == 0) {
+            // Nobody to deliver to, skip unboxing the payload.
+            return;
+        }
+        // Unboxed once, all subscribers share the array.
+        byte[] payloadArray = toByteArray(payload);
+
         // Send the message.
         for (VmsHalSubscriberListener listener : mSubscriberListeners) {
-            listener.onDataMessage(new VmsLayer(layerId, layerVersion), payload);
+            listener.onDataMessage(layer, payloadArray);
         }
     }
 
@@ -553,10 +558,12 @@ public class VmsHalService extends HalServiceBase {
     private void updateOffering(IBinder publisherToken, VmsLayersOffering offering) {
         Set<VmsLayer> availableLayers = Collections.EMPTY_SET;
         synchronized (mLock) {
-            mOfferings.put(publisherToken, offering);
-
-            // Update layers availability.
-            mAvailableLayers.setPublishersOffering(mOfferings.values());
+            // Update availability of the layers affected by this offering only.
+            VmsLayersAvailability.Delta delta =
+                    mAvailableLayers.setPublisherOffering(publisherToken, offering);
+            if (delta.isEmpty()) {
+                return;
+            }
 
             availableLayers = mAvailableLayers.getAvailableLayers();
         }
@@ -15,6 +15,7 @@
  */
 package com.android.car.pm;
 
+import android.annotation.Nullable;
 import android.app.ActivityManager.StackInfo;
 import android.car.Car;
 import android.car.content.pm.AppBlockingPackageInfo;
@@ -24,10 +25,11 @@ import android.car.content.pm.CarPackageManager;
 import android.car.content.pm.ICarPackageManager;
 import android.car.hardware.CarSensorEvent;
 import android.car.hardware.CarSensorManager;
-import android.car.hardware.ICarSensorEventListener;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -35,6 +37,7 @@ import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
 import android.content.pm.Signature;
 import android.content.res.Resources;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -47,12 +50,14 @@ import com.android.car.CarLog;
 import com.android.car.CarSensorService;
 import com.android.car.CarServiceBase;
 import com.android.car.CarServiceUtils;
+import com.android.car.LocalSensorEventListener;
 import com.android.car.R;
 import com.android.car.SystemActivityMonitoringService;
 import com.android.car.SystemActivityMonitoringService.TopTaskInfoContainer;
 import com.android.car.pm.CarAppMetadataReader.CarAppMetadataInfo;
 import com.android.internal.annotations.GuardedBy;
 
+import java.io.File;
 import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -67,6 +72,8 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
     static final boolean DBG_POLICY_CHECK = false;
     static final boolean DBG_POLICY_ENFORCEMENT = false;
 
+    private static final String SYSTEM_WHITELIST_CACHE_FILE = "system_whitelist_cache";
+
     private final Context mContext;
     private final SystemActivityMonitoringService mSystemActivityMonitoringService;
     private final CarSensorService mSensorService;
@@ -76,6 +83,13 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
     private final PackageHandler mHandler;
 
     private String mDefauiltActivityWhitelist;
+    /** Whitelist from config, accessed only from the HandlerThread. */
+    private HashMap<String, Set<String>> mConfigWhitelist;
+    /** Accessed only from the HandlerThread. */
+    private final SystemWhitelistCache mWhitelistCache;
+    private final PackageChangeReceiver mPackageChangeReceiver = new PackageChangeReceiver();
+    @GuardedBy("this")
+    private boolean mPackageChangeReceiverRegistered;
     /**
      * Hold policy set from policy service or client.
      * Key: packageName of policy service
@@ -106,6 +120,8 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
         mHandlerThread = new HandlerThread(CarLog.TAG_PACKAGE);
         mHandlerThread.start();
         mHandler = new PackageHandler(mHandlerThread.getLooper());
+        mWhitelistCache = new SystemWhitelistCache(
+                new File(context.getFilesDir(), SYSTEM_WHITELIST_CACHE_FILE), Build.FINGERPRINT);
         Resources res = context.getResources();
         mEnableActivityBlocking = res.getBoolean(R.bool.enableActivityBlockingForSafety);
         String blockingActivity = res.getString(R.string.activityBlockingActivity);
@@ -281,6 +297,10 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
                 wait();
             } catch (InterruptedException e) {
             }
+            if (mPackageChangeReceiverRegistered) {
+                mContext.unregisterReceiver(mPackageChangeReceiver);
+                mPackageChangeReceiverRegistered = false;
+            }
             mSystemWhitelists.clear();
             mClientPolicies.clear();
             if (mProxies != null) {
@@ -299,6 +319,8 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
     // run from HandlerThread
     private void doHandleInit() {
         startAppBlockingPolicies();
+        // Registered first so that no change is missed, changes are handled after init.
+        registerPackageChangeReceiver();
         generateSystemWhitelists();
         try {
             mSensorService.registerOrUpdateSensorListener(
@@ -314,6 +336,17 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
         blockTopActivitiesIfNecessary();
     }
 
+    private void registerPackageChangeReceiver() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageChangeReceiver, filter, null, mHandler);
+        synchronized (this) {
+            mPackageChangeReceiverRegistered = true;
+        }
+    }
+
     private synchronized void doHandleRelease() {
         notifyAll();
     }
@@ -479,51 +512,108 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
 
     private void generateSystemWhitelists() {
         HashMap<String, AppBlockingPackageInfoWrapper> systemWhitelists = new HashMap<>();
-        HashMap<String, Set<String>> configWhitelist = parseConfigWhitelist();
+        mConfigWhitelist = parseConfigWhitelist();
+        if (mWhitelistCache.size() == 0) {
+            mWhitelistCache.load();
+        }
+        ArraySet<String> systemPackages = new ArraySet<>();
         // trust all system apps for services and trust all activities with car app meta-data.
         List<PackageInfo> packages = mPackageManager.getInstalledPackages(0);
         for (PackageInfo info : packages) {
-            if (info.applicationInfo != null && (info.applicationInfo.isSystemApp() ||
-                    info.applicationInfo.isUpdatedSystemApp())) {
-                int flags = AppBlockingPackageInfo.FLAG_SYSTEM_APP;
-                Set<String> configActivitiesForPackage =
-                        configWhitelist.get(info.packageName);
-                if (configActivitiesForPackage != null) {
-                    if(configActivitiesForPackage.size() == 0) {
-                        flags |= AppBlockingPackageInfo.FLAG_WHOLE_ACTIVITY;
-                    }
-                } else {
-                    configActivitiesForPackage = new ArraySet<>();
-                }
-                String[] activities = null;
-                // Go through meta data if whole activities are not allowed already
-                if ((flags & AppBlockingPackageInfo.FLAG_WHOLE_ACTIVITY) == 0) {
-                    CarAppMetadataInfo metadataInfo = CarAppMetadataReader.parseMetadata(mContext,
-                            info.packageName);
-                    if (metadataInfo != null) {
-                        if (metadataInfo.useAllActivities) {
-                            flags |= AppBlockingPackageInfo.FLAG_WHOLE_ACTIVITY;
-                        } else if(metadataInfo.activities != null) {
-                            for (String activity : metadataInfo.activities) {
-                                configActivitiesForPackage.add(activity);
-                            }
-                        }
-                    }
-                    if (configActivitiesForPackage.size() > 0) {
-                        activities = configActivitiesForPackage.toArray(
-                                new String[configActivitiesForPackage.size()]);
-                    }
-                }
-                AppBlockingPackageInfo appBlockingInfo = new AppBlockingPackageInfo(
-                        info.packageName, 0, 0, flags, null, activities);
-                AppBlockingPackageInfoWrapper wrapper = new AppBlockingPackageInfoWrapper(
-                        appBlockingInfo, true);
-                systemWhitelists.put(info.packageName, wrapper);
+            if (isSystemPackage(info)) {
+                systemPackages.add(info.packageName);
+                systemWhitelists.put(info.packageName, createSystemWhitelist(info));
             }
         }
+        mWhitelistCache.retainAll(systemPackages);
         synchronized (this) {
             mSystemWhitelists.putAll(systemWhitelists);
         }
+        // Saving is not needed for blocking, do it once init is done.
+        mHandler.requestSavingWhitelistCache();
+    }
+
+    private static boolean isSystemPackage(@Nullable PackageInfo info) {
+        return info != null && info.applicationInfo != null
+                && (info.applicationInfo.isSystemApp()
+                        || info.applicationInfo.isUpdatedSystemApp());
+    }
+
+    // run from HandlerThread
+    private AppBlockingPackageInfoWrapper createSystemWhitelist(PackageInfo info) {
+        int flags = AppBlockingPackageInfo.FLAG_SYSTEM_APP;
+        Set<String> configActivitiesForPackage = mConfigWhitelist.get(info.packageName);
+        if (configActivitiesForPackage != null) {
+            if (configActivitiesForPackage.size() == 0) {
+                flags |= AppBlockingPackageInfo.FLAG_WHOLE_ACTIVITY;
+            }
+            // copied as metadata activities are added, and the config is reused for updates.
+            configActivitiesForPackage = new ArraySet<>(configActivitiesForPackage);
+        } else {
+            configActivitiesForPackage = new ArraySet<>();
+        }
+        String[] activities = null;
+        // Go through meta data if whole activities are not allowed already
+        if ((flags & AppBlockingPackageInfo.FLAG_WHOLE_ACTIVITY) == 0) {
+            SystemWhitelistCache.Entry metadata = getMetadata(info);
+            if (metadata.useAllActivities) {
+                flags |= AppBlockingPackageInfo.FLAG_WHOLE_ACTIVITY;
+            } else if (metadata.activities != null) {
+                for (String activity : metadata.activities) {
+                    configActivitiesForPackage.add(activity);
+                }
+            }
+            if (configActivitiesForPackage.size() > 0) {
+                activities = configActivitiesForPackage.toArray(
+                        new String[configActivitiesForPackage.size()]);
+            }
+        }
+        AppBlockingPackageInfo appBlockingInfo = new AppBlockingPackageInfo(
+                info.packageName, 0, 0, flags, null, activities);
+        return new AppBlockingPackageInfoWrapper(appBlockingInfo, true);
+    }
+
+    /** Reads car app metadata of the package, unless cached for the same package version. */
+    private SystemWhitelistCache.Entry getMetadata(PackageInfo info) {
+        SystemWhitelistCache.Entry entry = mWhitelistCache.get(info.packageName,
+                info.versionCode, info.lastUpdateTime);
+        if (entry != null) {
+            return entry;
+        }
+        CarAppMetadataInfo metadataInfo = CarAppMetadataReader.parseMetadata(mContext,
+                info.packageName);
+        if (metadataInfo != null) {
+            entry = new SystemWhitelistCache.Entry(info.versionCode, info.lastUpdateTime, true,
+                    metadataInfo.useAllActivities, metadataInfo.activities);
+        } else {
+            entry = new SystemWhitelistCache.Entry(info.versionCode, info.lastUpdateTime, false,
+                    false, null);
+        }
+        mWhitelistCache.put(info.packageName, entry);
+        return entry;
+    }
+
+    // run from HandlerThread
+    private void doUpdateSystemWhitelist(String packageName) {
+        PackageInfo info;
+        try {
+            info = mPackageManager.getPackageInfo(packageName, 0);
+        } catch (NameNotFoundException e) {
+            info = null;
+        }
+        if (isSystemPackage(info)) {
+            AppBlockingPackageInfoWrapper wrapper = createSystemWhitelist(info);
+            synchronized (this) {
+                mSystemWhitelists.put(packageName, wrapper);
+            }
+        } else {
+            mWhitelistCache.remove(packageName);
+            synchronized (this) {
+                mSystemWhitelists.remove(packageName);
+            }
+        }
+        mWhitelistCache.save();
+        blockTopActivitiesIfNecessary();
     }
 
     private void startAppBlockingPolicies() {
@@ -603,6 +693,7 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
             writer.println("mEnableActivityBlocking:" + mEnableActivityBlocking);
             writer.println("ActivityRestricted:" + mDrivingStateListener.isRestricted());
             writer.print(dumpPoliciesLocked(true));
+            mWhitelistCache.dump(writer);
         }
     }
 
@@ -685,6 +776,7 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
         private final int MSG_SET_POLICY = 1;
         private final int MSG_UPDATE_POLICY = 2;
         private final int MSG_RELEASE = 3;
+        private final int MSG_SAVE_WHITELIST_CACHE = 4;
 
         private PackageHandler(Looper looper) {
             super(looper);
@@ -703,6 +795,11 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
             sendMessage(msg);
         }
 
+        private void requestSavingWhitelistCache() {
+            Message msg = obtainMessage(MSG_SAVE_WHITELIST_CACHE);
+            sendMessage(msg);
+        }
+
         private void requestPolicySetting() {
             Message msg = obtainMessage(MSG_SET_POLICY);
             sendMessage(msg);
@@ -732,7 +829,31 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
                 case MSG_RELEASE:
                     doHandleRelease();
                     break;
+                case MSG_SAVE_WHITELIST_CACHE:
+                    mWhitelistCache.save();
+                    break;
+            }
+        }
+    }
+
+    /** Keeps system whitelists up to date with installed packages. Runs in the HandlerThread. */
+    private class PackageChangeReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (CarPackageManagerService.this) {
+                if (!mPackageChangeReceiverRegistered) { // released
+                    return;
+                }
+            }
+            if (intent.getData() == null) {
+                return;
+            }
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                    && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                // followed by ACTION_PACKAGE_ADDED for the new version.
+                return;
             }
+            doUpdateSystemWhitelist(intent.getData().getSchemeSpecificPart());
         }
     }
 
@@ -829,7 +950,7 @@ public class CarPackageManagerService extends ICarPackageManager.Stub implements
         }
     }
 
-    private class SensorListener extends ICarSensorEventListener.Stub {
+    private class SensorListener extends LocalSensorEventListener {
         private int mLatestDrivingState;
 
         private void resetState() {
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.pm;
+
+import android.annotation.Nullable;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.car.CarLog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Car application metadata of system packages, keyed by package name and valid as long as the
+ * package version code and last update time do not change.
+ *
+ * <p>Reading the metadata loads the package resources and parses XML, which is too slow to do for
+ * every system package on each boot. The cache is saved to a file in a compact binary format and
+ * tagged with the build fingerprint, so that a system update drops it.
+ *
+ * <p>This class is not thread safe.
+ */
+public class SystemWhitelistCache {
+
+    private static final int FILE_VERSION = 1;
+
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    @Nullable
+    private final AtomicFile mFile;
+    private final String mFingerprint;
+    /** Whether entries changed since loaded or saved. */
+    private boolean mDirty;
+
+    /** Metadata of a package, as read from the package at the given version. */
+    public static class Entry {
+        public final int versionCode;
+        public final long lastUpdateTime;
+        /** Whether the package declares car application metadata at all. */
+        public final boolean hasMetadata;
+        public final boolean useAllActivities;
+        @Nullable
+        public final String[] activities;
+
+        public Entry(int versionCode, long lastUpdateTime, boolean hasMetadata,
+                boolean useAllActivities, @Nullable String[] activities) {
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+            this.hasMetadata = hasMetadata;
+            this.useAllActivities = useAllActivities;
+            this.activities = activities;
+        }
+
+        private boolean isSameVersion(int versionCode, long lastUpdateTime) {
+            return this.versionCode == versionCode && this.lastUpdateTime == lastUpdateTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [versionCode=" + versionCode + ", lastUpdateTime=" + lastUpdateTime
+                    + ", hasMetadata=" + hasMetadata + ", useAllActivities=" + useAllActivities
+                    + ", activities=" + Arrays.toString(activities) + "]";
+        }
+    }
+
+    /**
+     * @param file file to persist entries to, or {@code null} to keep them only in memory.
+     * @param fingerprint build fingerprint, entries saved with another fingerprint are dropped.
+     */
+    public SystemWhitelistCache(@Nullable File file, String fingerprint) {
+        mFile = file != null ? new AtomicFile(file) : null;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * Returns the entry of the package if it was read from the same version of the package,
+     * {@code null} if the package needs to be read again.
+     */
+    @Nullable
+    public Entry get(String packageName, int versionCode, long lastUpdateTime) {
+        Entry entry = mEntries.get(packageName);
+        if (entry == null || !entry.isSameVersion(versionCode, lastUpdateTime)) {
+            return null;
+        }
+        return entry;
+    }
+
+    public void put(String packageName, Entry entry) {
+        mEntries.put(packageName, entry);
+        mDirty = true;
+    }
+
+    public void remove(String packageName) {
+        if (mEntries.remove(packageName) != null) {
+            mDirty = true;
+        }
+    }
+
+    /** Removes entries of packages not in {@code packageNames}. */
+    public void retainAll(Set<String> packageNames) {
+        if (mEntries.retainAll(packageNames)) {
+            mDirty = true;
+        }
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    /** Replaces entries in memory with the saved ones. Returns whether entries were loaded. */
+    public boolean load() {
+        if (mFile == null) {
+            return false;
+        }
+        ArrayMap<String, Entry> entries = new ArrayMap<>();
+        try (DataInputStream in = new DataInputStream(mFile.openRead())) {
+            if (in.readInt() != FILE_VERSION || !mFingerprint.equals(in.readUTF())) {
+                return false;
+            }
+            int count = in.readInt();
+            entries.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                String packageName = in.readUTF();
+                int versionCode = in.readInt();
+                long lastUpdateTime = in.readLong();
+                boolean hasMetadata = in.readBoolean();
+                boolean useAllActivities = in.readBoolean();
+                int activityCount = in.readInt();
+                String[] activities = null;
+                if (activityCount >= 0) {
+                    activities = new String[activityCount];
+                    for (int j = 0; j < activityCount; j++) {
+                        activities[j] = in.readUTF();
+                    }
+                }
+                entries.put(packageName, new Entry(versionCode, lastUpdateTime, hasMetadata,
+                        useAllActivities, activities));
+            }
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.w(CarLog.TAG_PACKAGE, "Cannot read saved system whitelist", e);
+            return false;
+        }
+        mEntries.clear();
+        mEntries.putAll(entries);
+        mDirty = false;
+        return true;
+    }
+
+    /** Saves all entries if they changed since loaded or last saved. */
+    public void save() {
+        if (mFile == null || !mDirty) {
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(FILE_VERSION);
+            dataOut.writeUTF(mFingerprint);
+            dataOut.writeInt(mEntries.size());
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.valueAt(i);
+                dataOut.writeUTF(mEntries.keyAt(i));
+                dataOut.writeInt(entry.versionCode);
+                dataOut.writeLong(entry.lastUpdateTime);
+                dataOut.writeBoolean(entry.hasMetadata);
+                dataOut.writeBoolean(entry.useAllActivities);
+                if (entry.activities == null) {
+                    dataOut.writeInt(-1);
+                } else {
+                    dataOut.writeInt(entry.activities.length);
+                    for (String activity : entry.activities) {
+                        dataOut.writeUTF(activity);
+                    }
+                }
+            }
+            dataOut.flush();
+            mFile.finishWrite(out);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.w(CarLog.TAG_PACKAGE, "Cannot save system whitelist", e);
+            mFile.failWrite(out);
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("**System whitelist cache** entries:" + mEntries.size() + " dirty:"
+                + mDirty);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.car.apitest;
+
+import android.car.hardware.CarDiagnosticEvent;
+import android.car.hardware.CarDiagnosticSensorIndices.Obd2FloatSensorIndex;
+import android.car.hardware.CarDiagnosticSensorIndices.Obd2IntegerSensorIndex;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+@SmallTest
+public class CarDiagnosticEventTest extends AndroidTestCase {
+
+    public void testParcelling() {
+        CarDiagnosticEvent event = CarDiagnosticEvent.Builder.newFreezeFrameBuilder()
+                .atTimestamp(1234)
+                .withIntValue(Obd2IntegerSensorIndex.FUEL_TYPE, 2)
+                .withIntValue(Obd2IntegerSensorIndex.VENDOR_START + 70, 7)
+                .withFloatValue(Obd2FloatSensorIndex.VEHICLE_SPEED, 12.5f)
+                .withDTC("P0010")
+                .build();
+        Parcel parcel = Parcel.obtain();
+        event.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        CarDiagnosticEvent read = CarDiagnosticEvent.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        assertEquals(event, read);
+        assertEquals(event.hashCode(), read.hashCode());
+        assertEquals(2, read.getSystemIntegerSensor(Obd2IntegerSensorIndex.FUEL_TYPE, -1));
+        assertEquals(7, read.getVendorIntegerSensor(Obd2IntegerSensorIndex.VENDOR_START + 70, -1));
+        assertEquals(12.5f, read.getSystemFloatSensor(Obd2FloatSensorIndex.VEHICLE_SPEED, 0f));
+        assertFalse(read.hasIntegerSensor(Obd2IntegerSensorIndex.FUEL_SYSTEM_STATUS));
+        assertNull(read.getSystemFloatSensor(Obd2FloatSensorIndex.ENGINE_RPM));
+    }
+
+    public void testStreamRoundTrip() throws IOException {
+        CarDiagnosticEvent event = CarDiagnosticEvent.Builder.newFreezeFrameBuilder()
+                .atTimestamp(1234)
+                .withIntValue(Obd2IntegerSensorIndex.FUEL_TYPE, 2)
+                .withIntValue(Obd2IntegerSensorIndex.VENDOR_START + 70, 7)
+                .withFloatValue(Obd2FloatSensorIndex.VEHICLE_SPEED, 12.5f)
+                .withDTC("P0010")
+                .build();
+        CarDiagnosticEvent live = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .withFloatValue(Obd2FloatSensorIndex.ENGINE_RPM, 800f)
+                .build();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        event.writeToStream(out);
+        live.writeToStream(out);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(event, CarDiagnosticEvent.readFromStream(in));
+        CarDiagnosticEvent readLive = CarDiagnosticEvent.readFromStream(in);
+        assertEquals(live, readLive);
+        assertNull(readLive.dtc);
+        assertEquals(0, in.available());
+    }
+
+    public void testTruncatedStreamNotRead() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .withIntValue(Obd2IntegerSensorIndex.FUEL_TYPE, 2)
+                .build()
+                .writeToStream(new DataOutputStream(bytes));
+        byte[] data = bytes.toByteArray();
+
+        try {
+            CarDiagnosticEvent.readFromStream(new DataInputStream(
+                    new ByteArrayInputStream(data, 0, data.length - 1)));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testPreallocatedEventEqualsGrownEvent() {
+        CarDiagnosticEvent preallocated = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .withSensorCounts(Obd2IntegerSensorIndex.VENDOR_START + 100,
+                        Obd2FloatSensorIndex.VENDOR_START + 100)
+                .withIntValue(Obd2IntegerSensorIndex.FUEL_TYPE, 2)
+                .withFloatValue(Obd2FloatSensorIndex.VEHICLE_SPEED, 12.5f)
+                .build();
+        CarDiagnosticEvent grown = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .withIntValue(Obd2IntegerSensorIndex.FUEL_TYPE, 2)
+                .withFloatValue(Obd2FloatSensorIndex.VEHICLE_SPEED, 12.5f)
+                .build();
+
+        assertEquals(preallocated, grown);
+        assertEquals(grown, preallocated);
+        assertEquals(preallocated.hashCode(), grown.hashCode());
+        assertFalse(preallocated.hasIntegerSensor(Obd2IntegerSensorIndex.VENDOR_START));
+    }
+
+    public void testBuilderIsSingleUse() {
+        CarDiagnosticEvent.Builder builder = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .withIntValue(Obd2IntegerSensorIndex.FUEL_TYPE, 2);
+        CarDiagnosticEvent event = builder.build();
+        try {
+            builder.withIntValue(Obd2IntegerSensorIndex.FUEL_TYPE, 3);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(2, event.getSystemIntegerSensor(Obd2IntegerSensorIndex.FUEL_TYPE, -1));
+    }
+
+    public void testVendorSensorsRemoved() {
+        CarDiagnosticEvent event = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .withIntValue(Obd2IntegerSensorIndex.FUEL_TYPE, 2)
+                .withIntValue(Obd2IntegerSensorIndex.VENDOR_START, 7)
+                .withFloatValue(Obd2FloatSensorIndex.VENDOR_START + 1, 1f)
+                .build()
+                .withVendorSensorsRemoved();
+
+        assertTrue(event.hasIntegerSensor(Obd2IntegerSensorIndex.FUEL_TYPE));
+        assertFalse(event.hasIntegerSensor(Obd2IntegerSensorIndex.VENDOR_START));
+        assertFalse(event.hasFloatSensor(Obd2FloatSensorIndex.VENDOR_START + 1));
+        assertEquals(CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .withIntValue(Obd2IntegerSensorIndex.FUEL_TYPE, 2).build(), event);
+    }
+}
@@ -18,6 +18,9 @@ package android.car.apitest;
 
 import android.car.hardware.CarPropertyValue;
 import android.graphics.Point;
+import android.os.Parcel;
+
+import java.util.Arrays;
 
 /**
  * Unit tests for {@link CarPropertyValue}
@@ -34,6 +37,58 @@ public class CarPropertyValueTest extends CarPropertyConfigTest {
         assertEquals(10f, valueRead.getValue());
     }
 
+    public void testPrimitiveValues() {
+        CarPropertyValue<Integer> intValue =
+                parcelAndUnparcel(new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER, 42));
+        assertEquals(42, (int) intValue.getValue());
+        assertEquals(PROPERTY_ID, intValue.getPropertyId());
+        assertEquals(WINDOW_DRIVER, intValue.getAreaId());
+
+        CarPropertyValue<Boolean> boolValue =
+                parcelAndUnparcel(new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER, true));
+        assertTrue(boolValue.getValue());
+
+        CarPropertyValue<Long> longValue = parcelAndUnparcel(
+                new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER, Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, (long) longValue.getValue());
+    }
+
+    public void testArrayValues() {
+        CarPropertyValue<Integer[]> intArrayValue = parcelAndUnparcel(
+                new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER, new Integer[] { 1, 2 }));
+        assertTrue(Arrays.equals(new Integer[] { 1, 2 }, intArrayValue.getValue()));
+
+        CarPropertyValue<Float[]> floatArrayValue = parcelAndUnparcel(
+                new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER, new Float[] { 1f, 2f }));
+        assertTrue(Arrays.equals(new Float[] { 1f, 2f }, floatArrayValue.getValue()));
+
+        CarPropertyValue<byte[]> bytesValue = parcelAndUnparcel(
+                new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER, new byte[] { 1, 2 }));
+        assertTrue(Arrays.equals(new byte[] { 1, 2 }, bytesValue.getValue()));
+    }
+
+    public void testStringAndNullValues() {
+        CarPropertyValue<String> stringValue =
+                parcelAndUnparcel(new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER, "value"));
+        assertEquals("value", stringValue.getValue());
+
+        CarPropertyValue<Object> nullValue =
+                parcelAndUnparcel(new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER, null));
+        assertNull(nullValue.getValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> CarPropertyValue<T> parcelAndUnparcel(CarPropertyValue<?> value) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            value.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return CarPropertyValue.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     public void testCarAreaArbitraryParcelable() {
         CarPropertyValue<Point> pointValue =
                 new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER, new Point(30, 40));
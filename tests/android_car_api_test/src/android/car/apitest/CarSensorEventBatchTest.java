@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.car.apitest;
+
+import android.car.hardware.CarSensorEvent;
+import android.car.hardware.CarSensorEventBatch;
+import android.car.hardware.CarSensorManager;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+public class CarSensorEventBatchTest extends AndroidTestCase {
+
+    public void testParcelling() {
+        List<CarSensorEvent> events = new ArrayList<>();
+        events.add(createFloatEvent(CarSensorManager.SENSOR_TYPE_CAR_SPEED, 1, 10f));
+        events.add(createIntEvent(CarSensorManager.SENSOR_TYPE_GEAR, 2, 4));
+        events.add(createFloatEvent(CarSensorManager.SENSOR_TYPE_CAR_SPEED, 3, 11f));
+        CarSensorEventBatch batch = CarSensorEventBatch.create(events);
+
+        Parcel parcel = Parcel.obtain();
+        batch.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        CarSensorEventBatch read = CarSensorEventBatch.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        assertEquals(2, read.getGroupCount());
+        assertEquals(3, read.getEventCount());
+        assertEquals(CarSensorManager.SENSOR_TYPE_CAR_SPEED, read.getSensorType(0));
+        assertEquals(2, read.getEventCount(0));
+        assertEquals(1, read.getTimestamp(0, 0));
+        assertEquals(3, read.getTimestamp(0, 1));
+        assertEquals(CarSensorManager.SENSOR_TYPE_GEAR, read.getSensorType(1));
+
+        CarSensorEvent speed = read.createEvent(0, 1);
+        assertEquals(CarSensorManager.SENSOR_TYPE_CAR_SPEED, speed.sensorType);
+        assertTrue(Arrays.equals(new float[] { 11f }, speed.floatValues));
+        assertEquals(0, speed.intValues.length);
+        CarSensorEvent gear = read.createEvent(1, 0);
+        assertTrue(Arrays.equals(new int[] { 4 }, gear.intValues));
+        assertEquals(0, gear.floatValues.length);
+    }
+
+    public void testEmpty() {
+        CarSensorEventBatch batch = CarSensorEventBatch.create(new ArrayList<>());
+        assertEquals(0, batch.getGroupCount());
+        assertTrue(batch.toList().isEmpty());
+    }
+
+    private static CarSensorEvent createFloatEvent(int type, long timestamp, float value) {
+        CarSensorEvent event = new CarSensorEvent(type, timestamp, 1, 0);
+        event.floatValues[0] = value;
+        return event;
+    }
+
+    private static CarSensorEvent createIntEvent(int type, long timestamp, int value) {
+        CarSensorEvent event = new CarSensorEvent(type, timestamp, 0, 1);
+        event.intValues[0] = value;
+        return event;
+    }
+}
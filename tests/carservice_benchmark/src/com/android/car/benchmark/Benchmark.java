@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.benchmark;
+
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal benchmark harness: runs an operation for a number of warmup and measured iterations and
+ * reports throughput, allocations and latency percentiles.
+ *
+ * <p>Results are written as one JSON file per benchmark to the {@code benchmarks} directory of the
+ * app files dir, and sent as instrumentation status, so that they can be collected and compared
+ * between builds.
+ */
+public final class Benchmark {
+    private static final String TAG = "CarServiceBenchmark";
+    private static final String RESULTS_DIR = "benchmarks";
+
+    /** Operation measured by a benchmark. */
+    public interface Op {
+        void run(int iteration) throws Exception;
+    }
+
+    /** Measurements of one benchmark run. */
+    public static final class Result {
+        public final String name;
+        public final int iterations;
+        public final double opsPerSecond;
+        /** Allocations per operation in all threads, which includes work handed to others. */
+        public final double allocCountPerOp;
+        public final double allocBytesPerOp;
+        public final long p50Ns;
+        public final long p99Ns;
+        public final long p999Ns;
+        public final long maxNs;
+
+        private Result(String name, long[] latenciesNs, long totalNs, long allocCount,
+                long allocBytes) {
+            this.name = name;
+            iterations = latenciesNs.length;
+            opsPerSecond = iterations * 1e9 / totalNs;
+            allocCountPerOp = (double) allocCount / iterations;
+            allocBytesPerOp = (double) allocBytes / iterations;
+            Arrays.sort(latenciesNs);
+            p50Ns = percentile(latenciesNs, 0.50);
+            p99Ns = percentile(latenciesNs, 0.99);
+            p999Ns = percentile(latenciesNs, 0.999);
+            maxNs = latenciesNs[iterations - 1];
+        }
+
+        public JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("name", name)
+                    .put("iterations", iterations)
+                    .put("opsPerSecond", opsPerSecond)
+                    .put("allocCountPerOp", allocCountPerOp)
+                    .put("allocBytesPerOp", allocBytesPerOp)
+                    .put("p50Ns", p50Ns)
+                    .put("p99Ns", p99Ns)
+                    .put("p999Ns", p999Ns)
+                    .put("maxNs", maxNs);
+        }
+
+        private Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putString("name", name);
+            bundle.putDouble(name + "_ops_per_second", opsPerSecond);
+            bundle.putDouble(name + "_alloc_count_per_op", allocCountPerOp);
+            bundle.putDouble(name + "_alloc_bytes_per_op", allocBytesPerOp);
+            bundle.putLong(name + "_p50_ns", p50Ns);
+            bundle.putLong(name + "_p99_ns", p99Ns);
+            bundle.putLong(name + "_p999_ns", p999Ns);
+            return bundle;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + String.format("%.0f", opsPerSecond) + " ops/s, "
+                    + String.format("%.1f", allocCountPerOp) + " allocs/op, p50 " + p50Ns
+                    + "ns, p99 " + p99Ns + "ns, p999 " + p999Ns + "ns";
+        }
+    }
+
+    private final Instrumentation mInstrumentation;
+    private final int mWarmupIterations;
+    private final int mIterations;
+
+    public Benchmark(Instrumentation instrumentation, int warmupIterations, int iterations) {
+        mInstrumentation = instrumentation;
+        mWarmupIterations = warmupIterations;
+        mIterations = iterations;
+    }
+
+    /** Runs the operation, reports the result and returns it. */
+    public Result run(String name, Op op) throws Exception {
+        for (int i = 0; i < mWarmupIterations; i++) {
+            op.run(i);
+        }
+        long[] latenciesNs = new long[mIterations];
+        Debug.resetGlobalAllocCount();
+        Debug.resetGlobalAllocSize();
+        Debug.startAllocCounting();
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        long opStartNs = startNs;
+        for (int i = 0; i < mIterations; i++) {
+            op.run(mWarmupIterations + i);
+            long opEndNs = SystemClock.elapsedRealtimeNanos();
+            latenciesNs[i] = opEndNs - opStartNs;
+            opStartNs = opEndNs;
+        }
+        long totalNs = opStartNs - startNs;
+        Debug.stopAllocCounting();
+        Result result = new Result(name, latenciesNs, totalNs, Debug.getGlobalAllocCount(),
+                Debug.getGlobalAllocSize());
+        report(result);
+        return result;
+    }
+
+    private void report(Result result) throws IOException, JSONException {
+        Log.i(TAG, result.toString());
+        mInstrumentation.sendStatus(0, result.toBundle());
+        File dir = new File(mInstrumentation.getContext().getFilesDir(), RESULTS_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        try (FileOutputStream out = new FileOutputStream(new File(dir, result.name + ".json"))) {
+            out.write(result.toJson().toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.benchmark;
+
+import static org.junit.Assert.assertTrue;
+
+import android.car.hardware.CarSensorEvent;
+import android.car.hardware.CarSensorEventBatch;
+import android.car.hardware.CarSensorManager;
+import android.car.hardware.ICarSensorEventListener;
+import android.car.hardware.property.CarPropertyEvent;
+import android.content.Context;
+import android.hardware.automotive.vehicle.V2_0.VehicleAreaZone;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropertyChangeMode;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.SparseArray;
+
+import com.android.car.CarSensorService;
+import com.android.car.hal.DiagnosticHalService;
+import com.android.car.hal.HvacHalService;
+import com.android.car.hal.PropertyHalServiceBase.PropertyHalListener;
+import com.android.car.hal.VehicleHal;
+import com.android.car.vehiclehal.DiagnosticEventBuilder;
+import com.android.car.vehiclehal.VehiclePropValueBuilder;
+import com.android.car.vehiclehal.test.MockedVehicleHal;
+import com.android.car.vehiclehal.test.VehiclePropConfigBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the vehicle HAL event paths in car service, fed from {@link MockedVehicleHal}.
+ * HAL services are called directly, without the HIDL callback, to measure car service only.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class VehicleHalBenchmark {
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int ITERATIONS = 20000;
+    private static final long TIMEOUT_MS = 3000;
+    private static final int OBD2_LIVE_FRAME =
+            android.hardware.automotive.vehicle.V2_1.VehicleProperty.OBD2_LIVE_FRAME;
+
+    private final MockedVehicleHal mMockedVehicleHal = new MockedVehicleHal();
+    private final Benchmark mBenchmark = new Benchmark(
+            InstrumentationRegistry.getInstrumentation(), WARMUP_ITERATIONS, ITERATIONS);
+    private VehicleHal mVehicleHal;
+    private CarSensorService mSensorService;
+
+    @Before
+    public void setUp() throws Exception {
+        VehiclePropConfig speedConfig = VehiclePropConfigBuilder
+                .newBuilder(VehicleProperty.PERF_VEHICLE_SPEED)
+                .setChangeMode(VehiclePropertyChangeMode.CONTINUOUS)
+                .build();
+        speedConfig.minSampleRate = 1;
+        speedConfig.maxSampleRate = 100;
+        mMockedVehicleHal.addProperties(speedConfig);
+        mMockedVehicleHal.addProperties(VehiclePropConfigBuilder
+                .newBuilder(VehicleProperty.HVAC_TEMPERATURE_SET)
+                .setSupportedAreas(VehicleAreaZone.ROW_1_LEFT)
+                .build());
+        mMockedVehicleHal.addProperties(VehiclePropConfigBuilder
+                .newBuilder(OBD2_LIVE_FRAME)
+                .setConfigArray(Arrays.asList(0, 0))
+                .build());
+
+        mVehicleHal = new VehicleHal(mMockedVehicleHal);
+        mVehicleHal.init();
+        // Sensor service reads its config from car service resources.
+        Context carServiceContext = InstrumentationRegistry.getContext()
+                .createPackageContext("com.android.car", Context.CONTEXT_IGNORE_SECURITY);
+        mSensorService = new CarSensorService(carServiceContext, mVehicleHal.getSensorHal());
+        mSensorService.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Both quit their handler threads, except the vehicle HAL callback thread.
+        mSensorService.release();
+        mVehicleHal.release();
+    }
+
+    /**
+     * VehicleHal.onPropertyEvent -> SensorHalService -> CarSensorService.processSensorData ->
+     * listener, one event at a time. Latency is from the HAL event to the listener callback.
+     */
+    @Test
+    public void sensorEventToListener() throws Exception {
+        SpeedListener listener = new SpeedListener();
+        assertTrue(mSensorService.registerOrUpdateSensorListener(
+                CarSensorManager.SENSOR_TYPE_CAR_SPEED, CarSensorManager.SENSOR_RATE_FASTEST,
+                listener));
+        // Initial value may be dispatched on registration.
+        listener.mReceived.drainPermits();
+        List<ArrayList<VehiclePropValue>> events =
+                buildEvents(VehicleProperty.PERF_VEHICLE_SPEED, 0 /* areaId */);
+
+        mBenchmark.run("sensorEventToListener", iteration -> {
+            mVehicleHal.onPropertyEvent(events.get(iteration));
+            assertTrue(listener.mReceived.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        });
+
+        mSensorService.unregisterSensorListener(CarSensorManager.SENSOR_TYPE_CAR_SPEED, listener);
+    }
+
+    /** PropertyHalServiceBase.handleHalEvents, from HAL value to manager event. */
+    @Test
+    public void propertyHalEvents() throws Exception {
+        HvacHalService hvacHal = mVehicleHal.getHvacHal();
+        int[] eventCount = new int[1];
+        hvacHal.setListener(new PropertyHalListener() {
+            @Override
+            public void onPropertyChange(List<CarPropertyEvent> events) {
+                eventCount[0] += events.size();
+            }
+
+            @Override
+            public void onPropertySetError(int property, int area) {}
+        });
+        hvacHal.setSubscriptions(null);
+        List<ArrayList<VehiclePropValue>> events =
+                buildEvents(VehicleProperty.HVAC_TEMPERATURE_SET, VehicleAreaZone.ROW_1_LEFT);
+
+        mBenchmark.run("propertyHalEvents",
+                iteration -> hvacHal.handleHalEvents(events.get(iteration)));
+
+        assertTrue(eventCount[0] >= ITERATIONS);
+        hvacHal.setSubscriptions(new SparseArray<>());
+        hvacHal.setListener(null);
+    }
+
+    /** DiagnosticHalService.createCarDiagnosticEvent, through handleHalEvents. */
+    @Test
+    public void diagnosticLiveFrame() throws Exception {
+        DiagnosticHalService diagnosticHal = mVehicleHal.getDiagnosticHal();
+        DiagnosticEventBuilder builder =
+                new DiagnosticEventBuilder(OBD2_LIVE_FRAME);
+        for (int i = 0; i < 8; i++) {
+            builder.addIntSensor(i, i);
+            builder.addFloatSensor(i, i);
+        }
+        builder.setDTC("P0010");
+        List<VehiclePropValue> values = Arrays.asList(builder.build());
+
+        mBenchmark.run("diagnosticLiveFrame", iteration -> diagnosticHal.handleHalEvents(values));
+    }
+
+    /**
+     * Builds the single value event of each iteration before running the benchmark, so that only
+     * car service is measured. Values change on each event, as they would coming from the vehicle.
+     */
+    private static List<ArrayList<VehiclePropValue>> buildEvents(int property, int areaId) {
+        List<ArrayList<VehiclePropValue>> events = new ArrayList<>(WARMUP_ITERATIONS + ITERATIONS);
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+            ArrayList<VehiclePropValue> values = new ArrayList<>(1);
+            values.add(VehiclePropValueBuilder.newBuilder(property)
+                    .setAreaId(areaId)
+                    .addFloatValue(i)
+                    .setTimestamp()
+                    .build());
+            events.add(values);
+        }
+        return events;
+    }
+
+    private static class SpeedListener extends ICarSensorEventListener.Stub {
+        private final Semaphore mReceived = new Semaphore(0);
+
+        @Override
+        public void onSensorChanged(List<CarSensorEvent> events) {
+            for (CarSensorEvent event : events) {
+                if (event.sensorType == CarSensorManager.SENSOR_TYPE_CAR_SPEED) {
+                    mReceived.release();
+                }
+            }
+        }
+
+        @Override
+        public void onSensorEventBatch(CarSensorEventBatch batch) {
+            for (int i = 0; i < batch.getGroupCount(); i++) {
+                if (batch.getSensorType(i) == CarSensorManager.SENSOR_TYPE_CAR_SPEED) {
+                    mReceived.release(batch.getEventCount(i));
+                }
+            }
+        }
+    }
+}
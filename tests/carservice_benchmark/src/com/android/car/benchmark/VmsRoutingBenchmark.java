@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.benchmark;
+
+import static org.junit.Assert.assertEquals;
+
+import android.car.vms.IVmsSubscriberClient;
+import android.car.vms.VmsLayer;
+import android.os.SharedMemory;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.car.VmsRouting;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/** Benchmarks of looking up the subscribers of a published VMS message. */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class VmsRoutingBenchmark {
+    private static final int WARMUP_ITERATIONS = 10000;
+    private static final int ITERATIONS = 100000;
+    private static final int LAYER_COUNT = 32;
+    private static final int SUBSCRIBERS_PER_LAYER = 4;
+    private static final int PROMISCUOUS_SUBSCRIBERS = 2;
+
+    private final Benchmark mBenchmark = new Benchmark(
+            InstrumentationRegistry.getInstrumentation(), WARMUP_ITERATIONS, ITERATIONS);
+    private final VmsRouting mRouting = new VmsRouting();
+    private final VmsLayer[] mLayers = new VmsLayer[LAYER_COUNT];
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < LAYER_COUNT; i++) {
+            mLayers[i] = new VmsLayer(i, 1);
+            for (int j = 0; j < SUBSCRIBERS_PER_LAYER; j++) {
+                mRouting.addSubscription(new NoOpSubscriber(), mLayers[i]);
+            }
+        }
+        for (int i = 0; i < PROMISCUOUS_SUBSCRIBERS; i++) {
+            mRouting.addSubscription(new NoOpSubscriber());
+        }
+    }
+
+    @Test
+    public void getListeners() throws Exception {
+        assertEquals(SUBSCRIBERS_PER_LAYER + PROMISCUOUS_SUBSCRIBERS,
+                mRouting.getListeners(mLayers[0]).size());
+
+        mBenchmark.run("vmsRoutingGetListeners",
+                iteration -> mRouting.getListeners(mLayers[iteration % LAYER_COUNT]));
+    }
+
+    @Test
+    public void getListenerArray() throws Exception {
+        assertEquals(SUBSCRIBERS_PER_LAYER + PROMISCUOUS_SUBSCRIBERS,
+                mRouting.getListenerArray(mLayers[0]).length);
+
+        mBenchmark.run("vmsRoutingGetListenerArray",
+                iteration -> mRouting.getListenerArray(mLayers[iteration % LAYER_COUNT]));
+    }
+
+    private static class NoOpSubscriber extends IVmsSubscriberClient.Stub {
+        @Override
+        public void onVmsMessageReceived(VmsLayer layer, byte[] payload) {}
+
+        @Override
+        public void onLayersAvailabilityChange(List<VmsLayer> availableLayers) {}
+
+        @Override
+        public void onVmsSharedMessageReceived(VmsLayer layer, SharedMemory payload,
+                int length) {}
+    }
+}
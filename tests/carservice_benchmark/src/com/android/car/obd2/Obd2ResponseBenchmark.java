@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.obd2;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.car.benchmark.Benchmark;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Benchmark of decoding OBD2 responses, replayed from transcripts recorded with ELM327 dongles.
+ * Responses are fed to {@link Obd2ResponseParser} from memory, so that neither the transport nor
+ * the copy made by {@link Obd2Connection#run(String)} is measured. Every transcript is checked
+ * against its expected decoding before measuring.
+ *
+ * <p>Lives in the package of {@link Obd2ResponseParser}, which is package private.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class Obd2ResponseBenchmark {
+    private static final int WARMUP_ITERATIONS = 10000;
+    private static final int ITERATIONS = 100000;
+
+    private static final Transcript[] TRANSCRIPTS = {
+        new Transcript("010C", "410C1AF8\r\r>", 0x41, 0x0C, 0x1A, 0xF8),
+        new Transcript("010D", "410D32\r\r>", 0x41, 0x0D, 0x32),
+        // first request after a protocol change
+        new Transcript("0105", "SEARCHING...\r41057B\r\r>", 0x41, 0x05, 0x7B),
+        new Transcript("012F", "NO DATA\r\r>"),
+        // adapter ignoring AT S0, two ECUs answering
+        new Transcript(
+                "0100",
+                "41 00 BE 3F A8 13 \r41 00 98 18 80 01 \r\r>",
+                0x41, 0x00, 0xBE, 0x3F, 0xA8, 0x13, 0x41, 0x00, 0x98, 0x18, 0x80, 0x01),
+        // multiple PIDs, as an ISO-TP multi frame response
+        new Transcript(
+                "010C0D11",
+                "008\r0:410C1AF80D32\r1:11330000000000\r\r>",
+                0x41, 0x0C, 0x1A, 0xF8, 0x0D, 0x32, 0x11, 0x33, 0x00, 0x00, 0x00, 0x00, 0x00),
+        new Transcript(
+                "03",
+                "00A\r0:43040133C123\r1:02200420000000\r\r>",
+                0x43, 0x04, 0x01, 0x33, 0xC1, 0x23, 0x02, 0x20, 0x04, 0x20, 0x00, 0x00, 0x00),
+    };
+
+    private final Benchmark mBenchmark = new Benchmark(
+            InstrumentationRegistry.getInstrumentation(), WARMUP_ITERATIONS, ITERATIONS);
+    private final Obd2ResponseParser mParser = new Obd2ResponseParser();
+
+    /** Obd2ResponseParser, from the bytes of the response to the decoded data. */
+    @Test
+    public void parseResponses() throws Exception {
+        for (Transcript transcript : TRANSCRIPTS) {
+            parse(transcript);
+            assertArrayEquals(transcript.mCommand, transcript.mExpected,
+                    Arrays.copyOf(mParser.getData(), mParser.getDataLength()));
+        }
+
+        mBenchmark.run("obd2ParseResponses",
+                iteration -> parse(TRANSCRIPTS[iteration % TRANSCRIPTS.length]));
+    }
+
+    /** Feeds the response to the parser as Obd2Connection does, up to the prompt. */
+    private void parse(Transcript transcript) throws IOException {
+        byte[] response = transcript.mResponse;
+        mParser.start(transcript.mCommand);
+        for (int i = 0; i < response.length && response[i] != '>'; i++) {
+            mParser.accept(response[i] & 0xFF);
+        }
+        mParser.finish();
+        mParser.checkResult();
+    }
+
+    private static class Transcript {
+        private final String mCommand;
+        private final byte[] mResponse;
+        private final int[] mExpected;
+
+        Transcript(String command, String response, int... expected) {
+            mCommand = command;
+            mResponse = response.getBytes(StandardCharsets.US_ASCII);
+            mExpected = expected;
+        }
+    }
+}
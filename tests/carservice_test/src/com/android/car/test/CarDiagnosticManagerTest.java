@@ -47,6 +47,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /** Test the public entry points for the CarDiagnosticManager */
 @MediumTest
@@ -435,7 +436,8 @@ public class CarDiagnosticManagerTest extends MockedCarTestBase {
         mLiveFrameEventBuilder.addIntSensor(
                 Obd2IntegerSensorIndex.IGNITION_SPECIFIC_MONITORS, compressionMonitorsValue);
 
-        timestamp += 1000;
+        // Live frames are sent to each client at its own rate, leave a full NORMAL interval.
+        timestamp += TimeUnit.SECONDS.toNanos(1);
         getMockedVehicleHal().injectEvent(mLiveFrameEventBuilder.build(timestamp));
 
         assertTrue(listener.waitForEvent(timestamp));
@@ -588,7 +590,7 @@ public class CarDiagnosticManagerTest extends MockedCarTestBase {
 
         mCarDiagnosticManager.unregisterListener(listener1);
 
-        time += 1000;
+        time += TimeUnit.SECONDS.toNanos(1);
         getMockedVehicleHal().injectEvent(mLiveFrameEventBuilder.build(time));
         assertFalse(listener1.waitForEvent(time));
         assertTrue(listener2.waitForEvent(time));
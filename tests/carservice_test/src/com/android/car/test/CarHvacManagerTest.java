@@ -47,6 +47,7 @@ public class CarHvacManagerTest extends MockedCarTestBase {
     // Use this semaphore to block until the callback is heard of.
     private Semaphore mAvailable;
 
+    private final HvacPropertyHandler mHandler = new HvacPropertyHandler();
     private CarHvacManager mCarHvacManager;
     private boolean mEventBoolVal;
     private float mEventFloatVal;
@@ -55,14 +56,13 @@ public class CarHvacManagerTest extends MockedCarTestBase {
 
     @Override
     protected synchronized void configureMockedHal() {
-        HvacPropertyHandler handler = new HvacPropertyHandler();
-        addProperty(VehicleProperty.HVAC_DEFROSTER, handler)
+        addProperty(VehicleProperty.HVAC_DEFROSTER, mHandler)
                 .setSupportedAreas(VehicleAreaWindow.FRONT_WINDSHIELD);
-        addProperty(VehicleProperty.HVAC_FAN_SPEED, handler)
+        addProperty(VehicleProperty.HVAC_FAN_SPEED, mHandler)
                 .setSupportedAreas(VehicleAreaZone.ROW_1_LEFT);
-        addProperty(VehicleProperty.HVAC_TEMPERATURE_SET, handler)
+        addProperty(VehicleProperty.HVAC_TEMPERATURE_SET, mHandler)
                 .setSupportedAreas(VehicleAreaZone.ROW_1_LEFT);
-        addProperty(VehicleProperty.HVAC_TEMPERATURE_CURRENT, handler)
+        addProperty(VehicleProperty.HVAC_TEMPERATURE_CURRENT, mHandler)
                 .setChangeMode(VehiclePropertyChangeMode.CONTINUOUS)
                 .setAccess(VehiclePropertyAccess.READ)
                 .setSupportedAreas(VehicleAreaZone.ROW_1);
@@ -193,6 +193,27 @@ public class CarHvacManagerTest extends MockedCarTestBase {
         assertEquals(VehicleAreaZone.ROW_1_LEFT, mEventZoneVal);
     }
 
+    public void testContinuousPropertyNotCached() throws Exception {
+        mCarHvacManager.registerCallback(new EventListener());
+        getMockedVehicleHal().injectEvent(
+                VehiclePropValueBuilder.newBuilder(VehicleProperty.HVAC_TEMPERATURE_CURRENT)
+                        .setAreaId(VehicleAreaZone.ROW_1)
+                        .setTimestamp(SystemClock.elapsedRealtimeNanos())
+                        .addFloatValue(67f)
+                        .build());
+        assertTrue(mAvailable.tryAcquire(2L, TimeUnit.SECONDS));
+
+        // The temperature moves on before the next sample is reported.
+        mHandler.onPropertySet(
+                VehiclePropValueBuilder.newBuilder(VehicleProperty.HVAC_TEMPERATURE_CURRENT)
+                        .setAreaId(VehicleAreaZone.ROW_1)
+                        .setTimestamp(SystemClock.elapsedRealtimeNanos())
+                        .addFloatValue(70f)
+                        .build());
+        assertEquals(70f, mCarHvacManager.getFloatProperty(CarHvacManager.ID_ZONED_TEMP_ACTUAL,
+                VehicleAreaZone.ROW_1), 0);
+    }
+
     private class HvacPropertyHandler implements VehicleHalPropertyHandler {
         HashMap<Integer, VehiclePropValue> mMap = new HashMap<>();
 
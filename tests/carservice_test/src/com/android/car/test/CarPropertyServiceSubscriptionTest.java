@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.test;
+
+import android.car.hardware.hvac.CarHvacManager;
+import android.car.hardware.property.CarPropertyEvent;
+import android.car.hardware.property.ICarPropertyEventListener;
+import android.hardware.automotive.vehicle.V2_0.VehicleAreaZone;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropertyAccess;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropertyChangeMode;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.car.CarHvacService;
+import com.android.car.hal.VehicleHal;
+import com.android.car.vehiclehal.VehiclePropValueBuilder;
+import com.android.car.vehiclehal.test.MockedVehicleHal;
+import com.android.car.vehiclehal.test.MockedVehicleHal.VehicleHalPropertyHandler;
+import com.android.car.vehiclehal.test.VehiclePropConfigBuilder;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests how subscriptions of property listeners to (property, area) pairs are aggregated into
+ * vehicle HAL subscriptions.
+ */
+@MediumTest
+public class CarPropertyServiceSubscriptionTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 3000;
+    private static final int PROP = CarHvacManager.ID_ZONED_TEMP_ACTUAL;
+    private static final int HAL_PROP = VehicleProperty.HVAC_TEMPERATURE_CURRENT;
+    private static final int AREA_LEFT = VehicleAreaZone.ROW_1_LEFT;
+    private static final int AREA_RIGHT = VehicleAreaZone.ROW_1_RIGHT;
+
+    private final MockedVehicleHal mMockedVehicleHal = new MockedVehicleHal();
+    private final SubscriptionRecorder mRecorder = new SubscriptionRecorder();
+    private VehicleHal mVehicleHal;
+    private CarHvacService mHvacService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        VehiclePropConfig config = VehiclePropConfigBuilder.newBuilder(HAL_PROP)
+                .setChangeMode(VehiclePropertyChangeMode.CONTINUOUS)
+                .setAccess(VehiclePropertyAccess.READ)
+                .setSupportedAreas(AREA_LEFT | AREA_RIGHT)
+                .build();
+        config.minSampleRate = 1;
+        config.maxSampleRate = 100;
+        mMockedVehicleHal.addProperty(config, mRecorder);
+        mVehicleHal = new VehicleHal(mMockedVehicleHal);
+        mHvacService = new CarHvacService(getContext(), mVehicleHal.getHvacHal());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHvacService.release();
+        mVehicleHal.release();
+        super.tearDown();
+    }
+
+    private void init() {
+        mVehicleHal.init();
+        mHvacService.init();
+    }
+
+    public void testHighestRateOfAreasIsSubscribed() throws Exception {
+        init();
+        EventListener left = new EventListener();
+        EventListener right = new EventListener();
+
+        mHvacService.subscribe(left, PROP, AREA_LEFT, 5f);
+        assertEquals(5f, mRecorder.getRate(), 0f);
+        mHvacService.subscribe(right, PROP, AREA_RIGHT, 10f);
+        assertEquals(10f, mRecorder.getRate(), 0f);
+        // A lower rate for another area of the same listener does not lower the HAL rate.
+        mHvacService.subscribe(left, PROP, AREA_RIGHT, 1f);
+        assertEquals(10f, mRecorder.getRate(), 0f);
+
+        // Each listener only gets events of its areas.
+        injectEvent(AREA_LEFT);
+        assertTrue(left.mReceived.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(right.mReceived.tryAcquire(200, TimeUnit.MILLISECONDS));
+    }
+
+    public void testUnsubscribe() throws Exception {
+        init();
+        EventListener slow = new EventListener();
+        EventListener fast = new EventListener();
+        mHvacService.subscribe(slow, PROP, AREA_LEFT, 5f);
+        mHvacService.subscribe(fast, PROP, AREA_LEFT, 10f);
+
+        mHvacService.unsubscribe(fast, PROP, AREA_LEFT);
+        assertEquals(5f, mRecorder.getRate(), 0f);
+        injectEvent(AREA_LEFT);
+        assertTrue(slow.mReceived.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(fast.mReceived.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        // The property is unsubscribed in the HAL with its last listener.
+        mHvacService.unsubscribe(slow, PROP, AREA_LEFT);
+        assertFalse(mRecorder.isSubscribed());
+    }
+
+    public void testSubscribeBeforeInit() throws Exception {
+        EventListener listener = new EventListener();
+
+        // Properties are not known yet, the subscription is applied once they are.
+        mHvacService.subscribe(listener, PROP, AREA_LEFT, 5f);
+        assertFalse(mRecorder.isSubscribed());
+        init();
+        assertEquals(5f, mRecorder.getRate(), 0f);
+    }
+
+    public void testSubscribeToUnsupportedProperty() throws Exception {
+        init();
+        try {
+            mHvacService.subscribe(new EventListener(), CarHvacManager.ID_ZONED_FAN_SPEED_RPM,
+                    AREA_LEFT, 0f);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void injectEvent(int area) {
+        VehiclePropValue value = VehiclePropValueBuilder.newBuilder(HAL_PROP)
+                .setAreaId(area)
+                .setTimestamp(SystemClock.elapsedRealtimeNanos())
+                .addFloatValue(20f)
+                .build();
+        mMockedVehicleHal.injectEvent(value);
+    }
+
+    /** Records the rate the property is subscribed at in the vehicle HAL. */
+    private static class SubscriptionRecorder implements VehicleHalPropertyHandler {
+        private boolean mSubscribed;
+        private float mRate;
+
+        @Override
+        public synchronized VehiclePropValue onPropertyGet(VehiclePropValue value) {
+            return value;
+        }
+
+        @Override
+        public synchronized void onPropertySubscribe(int property, int zones, float sampleRate) {
+            mSubscribed = true;
+            mRate = sampleRate;
+        }
+
+        @Override
+        public synchronized void onPropertyUnsubscribe(int property) {
+            mSubscribed = false;
+        }
+
+        synchronized boolean isSubscribed() {
+            return mSubscribed;
+        }
+
+        synchronized float getRate() {
+            assertTrue(mSubscribed);
+            return mRate;
+        }
+    }
+
+    private static class EventListener extends ICarPropertyEventListener.Stub {
+        private final Semaphore mReceived = new Semaphore(0);
+
+        @Override
+        public void onEvent(CarPropertyEvent event) {
+            mReceived.release();
+        }
+
+        @Override
+        public void onEvents(List<CarPropertyEvent> events) {
+            mReceived.release(events.size());
+        }
+    }
+}
@@ -232,6 +232,42 @@ public class CarSensorManagerTest extends MockedCarTestBase {
         assertTrue("Unexpected value", data.isNightMode);
     }
 
+    /**
+     * Events from the car are recycled once replaced by newer ones. Listeners in the car service
+     * process must still be able to keep the events they got.
+     */
+    public void testEventsKeptByLocalListenerAreNotRecycled() throws Exception {
+        SensorListener listener = new SensorListener();
+        mCarSensorManager.registerListener(listener,
+                CarSensorManager.SENSOR_TYPE_NIGHT,
+                CarSensorManager.SENSOR_RATE_FASTEST);
+
+        listener.reset();
+        getMockedVehicleHal().injectEvent(
+                VehiclePropValueBuilder.newBuilder(VehicleProperty.NIGHT_MODE)
+                        .setBooleanValue(true)
+                        .setTimestamp(1L)
+                        .build());
+        assertTrue(listener.waitForSensorChange(1L));
+        CarSensorEvent keptEvent = listener.getLastEvent();
+
+        // Enough newer events to go through the event pool several times.
+        final int eventCount = 200;
+        for (int i = 2; i <= eventCount; i++) {
+            getMockedVehicleHal().injectEvent(
+                    VehiclePropValueBuilder.newBuilder(VehicleProperty.NIGHT_MODE)
+                            .setBooleanValue(i % 2 == 1)
+                            .setTimestamp(i)
+                            .build());
+        }
+        assertTrue(listener.waitForSensorChange(eventCount));
+
+        assertEquals(CarSensorManager.SENSOR_TYPE_NIGHT, keptEvent.sensorType);
+        assertEquals(1L, keptEvent.timestamp);
+        assertEquals(1, keptEvent.intValues[0]);
+        mCarSensorManager.unregisterListener(listener);
+    }
+
     public void testIgnitionState() throws CarNotConnectedException {
         CarSensorEvent event = mCarSensorManager.getLatestSensorEvent(
                 CarSensorManager.SENSOR_TYPE_IGNITION_STATE);
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.test;
+
+import android.car.hardware.CarSensorEvent;
+import android.car.hardware.CarSensorEventBatch;
+import android.car.hardware.CarSensorManager;
+import android.car.hardware.ICarSensorEventListener;
+import android.content.Context;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropertyChangeMode;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.car.CarSensorEventFactory;
+import com.android.car.CarSensorService;
+import com.android.car.LocalSensorEventListener;
+import com.android.car.hal.VehicleHal;
+import com.android.car.vehiclehal.test.MockedVehicleHal;
+import com.android.car.vehiclehal.test.VehiclePropConfigBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests coalescing of continuous sensor events in {@link CarSensorService}, with several HAL
+ * batches received while dispatching is busy.
+ */
+@MediumTest
+public class CarSensorServiceCoalescingTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 3000;
+    private static final int SPEED = CarSensorManager.SENSOR_TYPE_CAR_SPEED;
+
+    private final MockedVehicleHal mMockedVehicleHal = new MockedVehicleHal();
+    private VehicleHal mVehicleHal;
+    private CarSensorService mSensorService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        VehiclePropConfig speedConfig = VehiclePropConfigBuilder
+                .newBuilder(VehicleProperty.PERF_VEHICLE_SPEED)
+                .setChangeMode(VehiclePropertyChangeMode.CONTINUOUS)
+                .build();
+        speedConfig.minSampleRate = 1;
+        speedConfig.maxSampleRate = 100;
+        mMockedVehicleHal.addProperties(speedConfig);
+
+        mVehicleHal = new VehicleHal(mMockedVehicleHal);
+        mVehicleHal.init();
+        Context carServiceContext = getContext()
+                .createPackageContext("com.android.car", Context.CONTEXT_IGNORE_SECURITY);
+        mSensorService = new CarSensorService(carServiceContext, mVehicleHal.getSensorHal(),
+                true /* coalesceContinuousSensorEvents */);
+        mSensorService.init();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSensorService.release();
+        mVehicleHal.release();
+        super.tearDown();
+    }
+
+    public void testOnlyLatestEventDeliveredAfterSeveralBatches() throws Exception {
+        // Far enough apart for every event to pass the UI rate of the client.
+        final long baseTimestamp = SystemClock.elapsedRealtimeNanos();
+        final long intervalNs = TimeUnit.SECONDS.toNanos(1);
+        BlockingListener listener = new BlockingListener(baseTimestamp);
+        assertTrue(mSensorService.registerOrUpdateSensorListener(SPEED,
+                CarSensorManager.SENSOR_RATE_UI, listener));
+
+        // The first batch is dispatched right away, the listener holds the dispatching thread.
+        mSensorService.onSensorEvents(createSpeedEvents(baseTimestamp + intervalNs, 1f));
+        assertTrue(listener.mEntered.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // These batches are queued until the listener returns.
+        for (int i = 2; i <= 5; i++) {
+            mSensorService.onSensorEvents(createSpeedEvents(baseTimestamp + i * intervalNs, i));
+        }
+        listener.mRelease.countDown();
+
+        assertTrue(listener.mEntered.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // Nothing else should follow.
+        assertFalse(listener.mEntered.tryAcquire(200, TimeUnit.MILLISECONDS));
+        synchronized (listener) {
+            assertEquals(Arrays.asList(1f, 5f), listener.mSpeeds);
+        }
+
+        mSensorService.unregisterSensorListener(SPEED, listener);
+    }
+
+    public void testFastestClientSkipsQueue() throws Exception {
+        final long baseTimestamp = SystemClock.elapsedRealtimeNanos();
+        final long intervalNs = TimeUnit.SECONDS.toNanos(1);
+        BlockingListener uiListener = new BlockingListener(baseTimestamp);
+        RecordingListener fastestListener = new RecordingListener(baseTimestamp);
+        assertTrue(mSensorService.registerOrUpdateSensorListener(SPEED,
+                CarSensorManager.SENSOR_RATE_UI, uiListener));
+        assertTrue(mSensorService.registerOrUpdateSensorListener(SPEED,
+                CarSensorManager.SENSOR_RATE_FASTEST, fastestListener));
+
+        // The coalesced client holds the dispatching thread.
+        mSensorService.onSensorEvents(createSpeedEvents(baseTimestamp + intervalNs, 1f));
+        assertTrue(uiListener.mEntered.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 2; i <= 5; i++) {
+            mSensorService.onSensorEvents(createSpeedEvents(baseTimestamp + i * intervalNs, i));
+        }
+
+        // Delivered in the calling thread, without waiting for the queue.
+        synchronized (fastestListener) {
+            assertEquals(Arrays.asList(1f, 2f, 3f, 4f, 5f), fastestListener.mSpeeds);
+        }
+        uiListener.mRelease.countDown();
+        assertTrue(uiListener.mEntered.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        synchronized (uiListener) {
+            assertEquals(Arrays.asList(1f, 5f), uiListener.mSpeeds);
+        }
+
+        mSensorService.unregisterSensorListener(SPEED, uiListener);
+        mSensorService.unregisterSensorListener(SPEED, fastestListener);
+    }
+
+    /** Pooled events are recycled, listeners keeping them must get copies. */
+    public void testRetainingLocalListenerGetsCopies() throws Exception {
+        final long baseTimestamp = SystemClock.elapsedRealtimeNanos();
+        RetainingListener listener = new RetainingListener(baseTimestamp);
+        assertTrue(mSensorService.registerOrUpdateSensorListener(SPEED,
+                CarSensorManager.SENSOR_RATE_FASTEST, listener));
+
+        // One at a time, so that each new event reuses the one replaced before it.
+        final int eventCount = 200;
+        for (int i = 1; i <= eventCount; i++) {
+            mSensorService.onSensorEvents(createSpeedEvents(baseTimestamp + i, i));
+            assertTrue(listener.mReceived.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        synchronized (listener) {
+            for (int i = 0; i < eventCount; i++) {
+                assertEquals(i + 1f, listener.mEvents.get(i).floatValues[0]);
+            }
+        }
+        mSensorService.unregisterSensorListener(SPEED, listener);
+    }
+
+    private static List<CarSensorEvent> createSpeedEvents(long timestamp, float speed) {
+        List<CarSensorEvent> events = new ArrayList<>(1);
+        events.add(CarSensorEventFactory.createFloatEvent(SPEED, timestamp, speed));
+        return events;
+    }
+
+    /** Records speeds, without keeping the events. */
+    private static class RecordingListener extends LocalSensorEventListener {
+        private final long mMinTimestamp;
+        private final List<Float> mSpeeds = new ArrayList<>();
+
+        RecordingListener(long minTimestamp) {
+            mMinTimestamp = minTimestamp;
+        }
+
+        @Override
+        public void onSensorChanged(List<CarSensorEvent> events) {
+            synchronized (this) {
+                for (CarSensorEvent event : events) {
+                    // Skip the initial value which might be sent on registration.
+                    if (event.sensorType == SPEED && event.timestamp > mMinTimestamp) {
+                        mSpeeds.add(event.floatValues[0]);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Keeps every event it gets. */
+    private static class RetainingListener extends LocalSensorEventListener {
+        private final long mMinTimestamp;
+        private final Semaphore mReceived = new Semaphore(0);
+        private final List<CarSensorEvent> mEvents = new ArrayList<>();
+
+        RetainingListener(long minTimestamp) {
+            mMinTimestamp = minTimestamp;
+        }
+
+        @Override
+        public boolean retainsEvents() {
+            return true;
+        }
+
+        @Override
+        public void onSensorChanged(List<CarSensorEvent> events) {
+            synchronized (this) {
+                for (CarSensorEvent event : events) {
+                    // Skip the initial value which might be sent on registration.
+                    if (event.sensorType == SPEED && event.timestamp > mMinTimestamp) {
+                        mEvents.add(event);
+                        mReceived.release();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Blocks in the first callback of the test until released. */
+    private static class BlockingListener extends ICarSensorEventListener.Stub {
+        private final long mMinTimestamp;
+        private final Semaphore mEntered = new Semaphore(0);
+        private final CountDownLatch mRelease = new CountDownLatch(1);
+        private final List<Float> mSpeeds = new ArrayList<>();
+
+        BlockingListener(long minTimestamp) {
+            mMinTimestamp = minTimestamp;
+        }
+
+        @Override
+        public void onSensorChanged(List<CarSensorEvent> events) {
+            boolean received = false;
+            synchronized (this) {
+                for (CarSensorEvent event : events) {
+                    // Skip the initial value which might be sent on registration.
+                    if (event.sensorType == SPEED && event.timestamp > mMinTimestamp) {
+                        mSpeeds.add(event.floatValues[0]);
+                        received = true;
+                    }
+                }
+            }
+            if (!received) {
+                return;
+            }
+            mEntered.release();
+            try {
+                mRelease.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onSensorEventBatch(CarSensorEventBatch batch) {
+            fail("local listener should not get batches");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.hardware.CarPropertyValue;
+import android.car.hardware.property.CarPropertyValueCache;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class CarPropertyValueCacheTest extends AndroidTestCase {
+    private static final int PROP_1 = 0x1001;
+    private static final int PROP_2 = 0x1002;
+    private static final int AREA_1 = 0x1;
+    private static final int AREA_2 = 0x2;
+
+    private CarPropertyValueCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new CarPropertyValueCache();
+    }
+
+    public void testKeyedByPropertyAndArea() {
+        mCache.putEvent(new CarPropertyValue<>(PROP_1, AREA_1, 1));
+        mCache.putEvent(new CarPropertyValue<>(PROP_1, AREA_2, 2));
+        mCache.putEvent(new CarPropertyValue<>(PROP_2, AREA_1, 3));
+
+        assertEquals(1, mCache.get(PROP_1, AREA_1).getValue());
+        assertEquals(2, mCache.get(PROP_1, AREA_2).getValue());
+        assertEquals(3, mCache.get(PROP_2, AREA_1).getValue());
+        assertNull(mCache.get(PROP_2, AREA_2));
+    }
+
+    public void testRepeatedEventIsNotAChange() {
+        assertTrue(mCache.putEvent(new CarPropertyValue<>(PROP_1, AREA_1, 1)));
+        assertFalse(mCache.putEvent(new CarPropertyValue<>(PROP_1, AREA_1, 1)));
+        assertTrue(mCache.putEvent(new CarPropertyValue<>(PROP_1, AREA_1, 2)));
+        assertTrue(mCache.putEvent(new CarPropertyValue<>(PROP_1, AREA_1,
+                new Integer[] { 1, 2 })));
+        assertFalse(mCache.putEvent(new CarPropertyValue<>(PROP_1, AREA_1,
+                new Integer[] { 1, 2 })));
+    }
+
+    public void testEventAfterReadIsAChange() {
+        assertTrue(mCache.putIfUnchanged(new CarPropertyValue<>(PROP_1, AREA_1, 1),
+                mCache.getGeneration()));
+        // Listeners may not have seen the value which was only read.
+        assertTrue(mCache.putEvent(new CarPropertyValue<>(PROP_1, AREA_1, 1)));
+    }
+
+    public void testReadRacingWithEventIsDropped() {
+        long generation = mCache.getGeneration();
+        mCache.putEvent(new CarPropertyValue<>(PROP_1, AREA_1, 2));
+
+        assertFalse(mCache.putIfUnchanged(new CarPropertyValue<>(PROP_1, AREA_1, 1), generation));
+        assertEquals(2, mCache.get(PROP_1, AREA_1).getValue());
+    }
+
+    public void testReadRacingWithSetIsDropped() {
+        long generation = mCache.getGeneration();
+        mCache.remove(PROP_1, AREA_1);
+
+        assertFalse(mCache.putIfUnchanged(new CarPropertyValue<>(PROP_1, AREA_1, 1), generation));
+        assertNull(mCache.get(PROP_1, AREA_1));
+    }
+
+    public void testRemoveProperty() {
+        mCache.putEvent(new CarPropertyValue<>(PROP_1, AREA_1, 1));
+        mCache.putEvent(new CarPropertyValue<>(PROP_1, AREA_2, 2));
+        mCache.putEvent(new CarPropertyValue<>(PROP_2, AREA_1, 3));
+
+        mCache.removeProperty(PROP_1);
+
+        assertNull(mCache.get(PROP_1, AREA_1));
+        assertNull(mCache.get(PROP_1, AREA_2));
+        assertEquals(3, mCache.get(PROP_2, AREA_1).getValue());
+        assertEquals(1, mCache.size());
+    }
+
+    public void testNegativeArea() {
+        mCache.putEvent(new CarPropertyValue<>(PROP_1, -1, 1));
+        mCache.putEvent(new CarPropertyValue<>(PROP_2, AREA_1, 2));
+
+        mCache.removeProperty(PROP_2);
+
+        assertEquals(1, mCache.get(PROP_1, -1).getValue());
+        assertNull(mCache.get(PROP_2, AREA_1));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.hardware.CarSensorEvent;
+import android.car.hardware.CarSensorManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class CarSensorEventFactoryTest extends AndroidTestCase {
+    private static final int SPEED = CarSensorManager.SENSOR_TYPE_CAR_SPEED;
+    private static final int GEAR = CarSensorManager.SENSOR_TYPE_GEAR;
+
+    public void testReturnedEventIsReused() throws Exception {
+        CarSensorEvent event = CarSensorEventFactory.createFloatEvent(SPEED, 1, 10f);
+        CarSensorEventFactory.returnToPool(event);
+
+        CarSensorEvent reused = CarSensorEventFactory.createFloatEvent(SPEED, 2, 20f);
+        assertSame(event, reused);
+        assertEquals(2, reused.timestamp);
+        assertEquals(20f, reused.floatValues[0]);
+    }
+
+    public void testReusedEventTakesNewType() throws Exception {
+        CarSensorEvent event = CarSensorEventFactory.createIntEvent(GEAR, 1, 3);
+        CarSensorEventFactory.returnToPool(event);
+
+        CarSensorEvent reused = CarSensorEventFactory.createBooleanEvent(
+                CarSensorManager.SENSOR_TYPE_PARKING_BRAKE, 2, true);
+        assertSame(event, reused);
+        assertEquals(CarSensorManager.SENSOR_TYPE_PARKING_BRAKE, reused.sensorType);
+        assertEquals(1, reused.intValues[0]);
+    }
+
+    public void testPoolsAreKeptApartByShape() throws Exception {
+        CarSensorEvent intEvent = CarSensorEventFactory.createIntEvent(GEAR, 1, 3);
+        CarSensorEventFactory.returnToPool(intEvent);
+
+        CarSensorEvent floatEvent = CarSensorEventFactory.createFloatEvent(SPEED, 2, 20f);
+        assertNotSame(intEvent, floatEvent);
+        assertEquals(1, floatEvent.floatValues.length);
+        assertEquals(0, floatEvent.intValues.length);
+    }
+
+    public void testOtherShapesAreNotPooled() throws Exception {
+        CarSensorEvent event = new CarSensorEvent(SPEED, 1, 3, 0);
+        CarSensorEventFactory.returnToPool(event);
+
+        CarSensorEvent created = CarSensorEventFactory.createFloatEvent(SPEED, 2, 20f);
+        assertNotSame(event, created);
+        assertEquals(1, created.floatValues.length);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class CarServiceInitializerTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 3000;
+
+    private final List<String> mInitOrder = new ArrayList<>();
+
+    public void testDependenciesInitedFirst() {
+        CarServiceInitializer initializer = new CarServiceInitializer(4);
+        TestService a = new TestService("a");
+        TestService b = new TestService("b");
+        TestService c = new TestService("c");
+        TestService d = new TestService("d");
+        initializer.add(a);
+        initializer.add(b, a);
+        initializer.add(c, a);
+        initializer.add(d, b, c);
+
+        initializer.run("init", CarServiceBase::init);
+
+        assertEquals(4, mInitOrder.size());
+        assertEquals("a", mInitOrder.get(0));
+        assertEquals("d", mInitOrder.get(3));
+    }
+
+    public void testIndependentServicesInitedInParallel() {
+        CarServiceInitializer initializer = new CarServiceInitializer(2);
+        // Each waits for the other to be running, which only works if they run in parallel.
+        CountDownLatch running = new CountDownLatch(2);
+        TestService a = new TestService("a", running);
+        TestService b = new TestService("b", running);
+        initializer.add(a);
+        initializer.add(b);
+
+        initializer.run("init", CarServiceBase::init);
+
+        assertTrue(a.mMetOther);
+        assertTrue(b.mMetOther);
+    }
+
+    public void testFailureSkipsDependents() {
+        CarServiceInitializer initializer = new CarServiceInitializer(1);
+        TestService a = new TestService("a") {
+            @Override
+            public void init() {
+                throw new IllegalStateException("init failed");
+            }
+        };
+        TestService b = new TestService("b");
+        initializer.add(a);
+        initializer.add(b, a);
+
+        try {
+            initializer.run("init", CarServiceBase::init);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue(mInitOrder.isEmpty());
+    }
+
+    public void testUnknownDependency() {
+        CarServiceInitializer initializer = new CarServiceInitializer(1);
+        try {
+            initializer.add(new TestService("a"), new TestService("b"));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testServicesInOrderOfAddition() {
+        CarServiceInitializer initializer = new CarServiceInitializer(2);
+        TestService a = new TestService("a");
+        TestService b = new TestService("b");
+        initializer.add(a);
+        initializer.add(b);
+
+        CarServiceBase[] services = initializer.getServices();
+        assertEquals(2, services.length);
+        assertSame(a, services[0]);
+        assertSame(b, services[1]);
+    }
+
+    private class TestService implements CarServiceBase {
+        private final String mName;
+        private final CountDownLatch mRunning;
+        private volatile boolean mMetOther;
+
+        TestService(String name) {
+            this(name, null);
+        }
+
+        TestService(String name, CountDownLatch running) {
+            mName = name;
+            mRunning = running;
+        }
+
+        @Override
+        public void init() {
+            if (mRunning != null) {
+                mRunning.countDown();
+                try {
+                    mMetOther = mRunning.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (mInitOrder) {
+                mInitOrder.add(mName);
+            }
+        }
+
+        @Override
+        public void release() {}
+
+        @Override
+        public void dump(PrintWriter writer) {}
+    }
+}
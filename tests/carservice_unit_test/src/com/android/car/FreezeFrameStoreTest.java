@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.hardware.CarDiagnosticEvent;
+import android.car.hardware.CarDiagnosticSensorIndices.Obd2FloatSensorIndex;
+import android.car.hardware.CarDiagnosticSensorIndices.Obd2IntegerSensorIndex;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class FreezeFrameStoreTest extends AndroidTestCase {
+    private static final String BOOT_ID = "6f1c2a52-0c5e-4d8e-9a3b-2f7d1e4c8b90";
+    private static final long NO_MAX_AGE = 0;
+    private static final long MAX_AGE_MS = 60000;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "freeze_frame_store_test");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testSortedAndBounded() throws Exception {
+        FreezeFrameStore store = new FreezeFrameStore(3, NO_MAX_AGE, null);
+        for (long timestamp : new long[] { 40, 10, 30, 20, 50 }) {
+            store.put(createFrame(timestamp));
+        }
+
+        assertTrue(Arrays.equals(new long[] { 30, 40, 50 }, store.getTimestamps()));
+        assertNull(store.get(10));
+        assertEquals(2, store.getEvictedCount());
+    }
+
+    public void testOldFramesExpire() throws Exception {
+        FreezeFrameStore store = new FreezeFrameStore(10, MAX_AGE_MS, null);
+        long now = SystemClock.elapsedRealtimeNanos();
+        long expired = now - TimeUnit.MILLISECONDS.toNanos(2 * MAX_AGE_MS);
+        long recent = now - TimeUnit.MILLISECONDS.toNanos(MAX_AGE_MS / 2);
+
+        store.put(createFrame(expired));
+        store.put(createFrame(recent));
+        store.put(createFrame(now));
+
+        assertTrue(store.isExpired(expired));
+        assertFalse(store.isExpired(recent));
+        assertTrue(Arrays.equals(new long[] { recent, now }, store.getTimestamps()));
+        assertEquals(1, store.getExpiredCount());
+        assertEquals(0, store.getEvictedCount());
+    }
+
+    public void testNoMaxAge() throws Exception {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MAX_AGE, null);
+        store.put(createFrame(1));
+
+        assertFalse(store.isExpired(1));
+        assertTrue(Arrays.equals(new long[] { 1 }, store.getTimestamps()));
+    }
+
+    public void testRangeQuery() throws Exception {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MAX_AGE, null);
+        for (long timestamp = 1; timestamp <= 6; timestamp++) {
+            store.put(createFrame(timestamp));
+        }
+
+        List<CarDiagnosticEvent> frames = store.getFrames(2, 5, 3);
+        assertEquals(3, frames.size());
+        assertEquals(5, frames.get(0).timestamp);
+        assertEquals(3, frames.get(2).timestamp);
+
+        frames = store.getFrames(2, frames.get(2).timestamp - 1, 3);
+        assertEquals(1, frames.size());
+        assertEquals(2, frames.get(0).timestamp);
+    }
+
+    public void testRemoveAndRetain() throws Exception {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MAX_AGE, null);
+        for (long timestamp = 1; timestamp <= 4; timestamp++) {
+            store.put(createFrame(timestamp));
+        }
+
+        store.remove(2);
+        assertTrue(Arrays.equals(new long[] { 1, 3, 4 }, store.getTimestamps()));
+        store.retain(new long[] { 4, 1, 7 });
+        assertTrue(Arrays.equals(new long[] { 1, 4 }, store.getTimestamps()));
+        store.remove();
+        assertEquals(0, store.size());
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MAX_AGE, mFile);
+        store.put(createFrame(1));
+        store.put(createFrame(2));
+        store.save(BOOT_ID);
+
+        FreezeFrameStore loaded = new FreezeFrameStore(10, NO_MAX_AGE, mFile);
+        assertTrue(loaded.load(BOOT_ID));
+        assertTrue(Arrays.equals(new long[] { 1, 2 }, loaded.getTimestamps()));
+        assertEquals(store.get(2), loaded.get(2));
+    }
+
+    public void testExpiredFramesNotLoaded() throws Exception {
+        long now = SystemClock.elapsedRealtimeNanos();
+        long expired = now - TimeUnit.MILLISECONDS.toNanos(2 * MAX_AGE_MS);
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MAX_AGE, mFile);
+        store.put(createFrame(expired));
+        store.put(createFrame(now));
+        store.save(BOOT_ID);
+
+        FreezeFrameStore loaded = new FreezeFrameStore(10, MAX_AGE_MS, mFile);
+        assertTrue(loaded.load(BOOT_ID));
+        assertTrue(Arrays.equals(new long[] { now }, loaded.getTimestamps()));
+    }
+
+    public void testCorruptedFileNotLoaded() throws Exception {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MAX_AGE, mFile);
+        store.put(createFrame(1));
+        store.put(createFrame(2));
+        store.save(BOOT_ID);
+        // Cut the last frame short.
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 4);
+        }
+
+        FreezeFrameStore loaded = new FreezeFrameStore(10, NO_MAX_AGE, mFile);
+        loaded.put(createFrame(3));
+        assertFalse(loaded.load(BOOT_ID));
+        // Frames in memory are kept when the file cannot be read.
+        assertTrue(Arrays.equals(new long[] { 3 }, loaded.getTimestamps()));
+    }
+
+    public void testNotLoadedFromOtherBoot() throws Exception {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MAX_AGE, mFile);
+        store.put(createFrame(1));
+        store.save(BOOT_ID);
+
+        FreezeFrameStore loaded = new FreezeFrameStore(10, NO_MAX_AGE, mFile);
+        assertFalse(loaded.load("0b7e4f6d-93a1-4c27-8d35-6a2e9f0c1d44"));
+        assertEquals(0, loaded.size());
+    }
+
+    public void testWriteMarshalledFrames() throws Exception {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MAX_AGE, mFile);
+        store.put(createFrame(1));
+        byte[] data = store.marshall();
+        // Frames added after the snapshot are not written.
+        store.put(createFrame(2));
+        store.write(BOOT_ID, data);
+
+        FreezeFrameStore loaded = new FreezeFrameStore(10, NO_MAX_AGE, mFile);
+        assertTrue(loaded.load(BOOT_ID));
+        assertTrue(Arrays.equals(new long[] { 1 }, loaded.getTimestamps()));
+    }
+
+    public void testNotSavedWithoutBootId() throws Exception {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MAX_AGE, mFile);
+        store.put(createFrame(1));
+        store.save(null);
+
+        assertFalse(mFile.exists());
+        assertFalse(new FreezeFrameStore(10, NO_MAX_AGE, mFile).load(null));
+    }
+
+    private static CarDiagnosticEvent createFrame(long timestamp) {
+        return CarDiagnosticEvent.Builder.newFreezeFrameBuilder()
+                .atTimestamp(timestamp)
+                .withIntValue(Obd2IntegerSensorIndex.FUEL_TYPE, (int) timestamp)
+                .withFloatValue(Obd2FloatSensorIndex.VEHICLE_SPEED, timestamp / 2f)
+                .withDTC("P" + timestamp)
+                .build();
+    }
+}
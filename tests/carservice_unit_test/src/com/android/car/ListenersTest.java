@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.hardware.CarSensorManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.car.Listeners.ClientWithRate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Tests decimation of continuous events in {@link ClientWithRate#shouldDispatch(long)}. */
+@SmallTest
+public class ListenersTest extends AndroidTestCase {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public void testFastestAndNormalClientsOnSameSensor() throws Exception {
+        ClientWithRate<FakeClient> fastest =
+                new ClientWithRate<>(new FakeClient(), CarSensorManager.SENSOR_RATE_FASTEST);
+        ClientWithRate<FakeClient> normal =
+                new ClientWithRate<>(new FakeClient(), CarSensorManager.SENSOR_RATE_NORMAL);
+        List<Long> fastestTimestamps = new ArrayList<>();
+        List<Long> normalTimestamps = new ArrayList<>();
+
+        // 100Hz source, as asked from the HAL for the fastest client.
+        for (long timestamp = 0; timestamp < 3000 * MS; timestamp += 10 * MS) {
+            if (fastest.shouldDispatch(timestamp)) {
+                fastestTimestamps.add(timestamp);
+            }
+            if (normal.shouldDispatch(timestamp)) {
+                normalTimestamps.add(timestamp);
+            }
+        }
+
+        assertEquals(300, fastestTimestamps.size());
+        // The first event at most 1/8 of the interval early is sent.
+        assertTimestamps(normalTimestamps, 0, 880 * MS, 1760 * MS, 2640 * MS);
+    }
+
+    public void testJitterTolerated() throws Exception {
+        ClientWithRate<FakeClient> normal =
+                new ClientWithRate<>(new FakeClient(), CarSensorManager.SENSOR_RATE_NORMAL);
+
+        // 1Hz source, matching the client's rate, with some jitter.
+        assertTrue(normal.shouldDispatch(0));
+        assertTrue(normal.shouldDispatch(950 * MS));
+        assertTrue(normal.shouldDispatch(2010 * MS));
+        assertTrue(normal.shouldDispatch(2990 * MS));
+    }
+
+    public void testEventsFasterThanJitterToleranceDropped() throws Exception {
+        ClientWithRate<FakeClient> normal =
+                new ClientWithRate<>(new FakeClient(), CarSensorManager.SENSOR_RATE_NORMAL);
+
+        // A 1Hz client tolerates 1/8 of its interval.
+        assertTrue(normal.shouldDispatch(0));
+        assertFalse(normal.shouldDispatch(500 * MS));
+        assertFalse(normal.shouldDispatch(870 * MS));
+        assertTrue(normal.shouldDispatch(880 * MS));
+        // Measured from the last dispatched event, not the last seen one.
+        assertFalse(normal.shouldDispatch(1750 * MS));
+        assertTrue(normal.shouldDispatch(1760 * MS));
+    }
+
+    public void testTimestampGoingBackwardsDispatched() throws Exception {
+        ClientWithRate<FakeClient> normal =
+                new ClientWithRate<>(new FakeClient(), CarSensorManager.SENSOR_RATE_NORMAL);
+
+        assertTrue(normal.shouldDispatch(5000 * MS));
+        // Treated as a new source, for example after the HAL restarted.
+        assertTrue(normal.shouldDispatch(100 * MS));
+        assertFalse(normal.shouldDispatch(200 * MS));
+    }
+
+    public void testRateChange() throws Exception {
+        ClientWithRate<FakeClient> client =
+                new ClientWithRate<>(new FakeClient(), CarSensorManager.SENSOR_RATE_NORMAL);
+        assertTrue(client.shouldDispatch(0));
+        assertFalse(client.shouldDispatch(10 * MS));
+
+        client.setRate(CarSensorManager.SENSOR_RATE_FASTEST);
+        assertTrue(client.shouldDispatch(20 * MS));
+        assertTrue(client.shouldDispatch(30 * MS));
+    }
+
+    private static void assertTimestamps(List<Long> actual, long... expected) {
+        assertEquals(actual.toString(), expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], (long) actual.get(i));
+        }
+    }
+
+    private static class FakeClient implements Listeners.IListener {
+        @Override
+        public void release() {}
+
+        @Override
+        public void binderDied() {}
+    }
+}
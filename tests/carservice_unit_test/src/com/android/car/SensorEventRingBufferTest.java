@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.hardware.CarSensorEvent;
+import android.car.hardware.CarSensorManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class SensorEventRingBufferTest extends AndroidTestCase {
+    private static final int SPEED = CarSensorManager.SENSOR_TYPE_CAR_SPEED;
+    private static final int RPM = CarSensorManager.SENSOR_TYPE_RPM;
+    private static final int GEAR = CarSensorManager.SENSOR_TYPE_GEAR;
+    private static final int VENDOR = CarSensorManager.SENSOR_TYPE_VENDOR_EXTENSION_START + 1;
+
+    public void testDrainKeepsOrder() throws Exception {
+        SensorEventRingBuffer queue = new SensorEventRingBuffer(4,
+                SensorEventRingBuffer.OVERFLOW_DROP_OLDEST);
+        queue.offer(createEvent(SPEED, 1));
+        queue.offer(createEvent(RPM, 2));
+        queue.offer(createEvent(SPEED, 3));
+
+        List<CarSensorEvent> events = new ArrayList<>();
+        assertEquals(3, queue.drainTo(events));
+        assertTimestamps(events, 1, 2, 3);
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getOverrunCount());
+    }
+
+    public void testDropOldest() throws Exception {
+        SensorEventRingBuffer queue = new SensorEventRingBuffer(3,
+                SensorEventRingBuffer.OVERFLOW_DROP_OLDEST);
+        for (int i = 1; i <= 5; i++) {
+            queue.offer(createEvent(SPEED, i));
+        }
+
+        List<CarSensorEvent> events = new ArrayList<>();
+        assertEquals(3, queue.drainTo(events));
+        assertTimestamps(events, 3, 4, 5);
+        assertEquals(2, queue.getOverrunCount());
+    }
+
+    public void testKeepLatestPerType() throws Exception {
+        SensorEventRingBuffer queue = new SensorEventRingBuffer(3,
+                SensorEventRingBuffer.OVERFLOW_KEEP_LATEST_PER_TYPE);
+        queue.offer(createEvent(SPEED, 1));
+        queue.offer(createEvent(RPM, 2));
+        // Each replaces the queued event of its type, in its slot.
+        queue.offer(createEvent(RPM, 3));
+        queue.offer(createEvent(SPEED, 4));
+        queue.offer(createEvent(RPM, 5));
+        assertEquals(2, queue.size());
+
+        List<CarSensorEvent> events = new ArrayList<>();
+        assertEquals(2, queue.drainTo(events));
+        assertTimestamps(events, 4, 5);
+        assertEquals(0, queue.getOverrunCount());
+
+        // Draining frees the slots.
+        queue.offer(createEvent(RPM, 6));
+        queue.offer(createEvent(RPM, 7));
+        events.clear();
+        queue.drainTo(events);
+        assertTimestamps(events, 7);
+    }
+
+    public void testKeepLatestPerTypeDropsOldestWhenFull() throws Exception {
+        SensorEventRingBuffer queue = new SensorEventRingBuffer(2,
+                SensorEventRingBuffer.OVERFLOW_KEEP_LATEST_PER_TYPE);
+        queue.offer(createEvent(RPM, 1));
+        queue.offer(createEvent(SPEED, 2));
+        queue.offer(createEvent(GEAR, 3));
+        // The dropped RPM event does not hold a slot anymore.
+        queue.offer(createEvent(RPM, 4));
+
+        List<CarSensorEvent> events = new ArrayList<>();
+        queue.drainTo(events);
+        assertTimestamps(events, 3, 4);
+        assertEquals(2, queue.getOverrunCount());
+    }
+
+    public void testKeepLatestPerVendorType() throws Exception {
+        SensorEventRingBuffer queue = new SensorEventRingBuffer(3,
+                SensorEventRingBuffer.OVERFLOW_KEEP_LATEST_PER_TYPE);
+        queue.offer(createEvent(VENDOR, 1));
+        queue.offer(createEvent(SPEED, 2));
+        queue.offer(createEvent(VENDOR, 3));
+
+        List<CarSensorEvent> events = new ArrayList<>();
+        queue.drainTo(events);
+        assertTimestamps(events, 3, 2);
+
+        queue.offer(createEvent(VENDOR, 4));
+        events.clear();
+        queue.drainTo(events);
+        assertTimestamps(events, 4);
+    }
+
+    public void testWrapAround() throws Exception {
+        SensorEventRingBuffer queue = new SensorEventRingBuffer(2,
+                SensorEventRingBuffer.OVERFLOW_DROP_OLDEST);
+        List<CarSensorEvent> events = new ArrayList<>();
+        queue.offer(createEvent(SPEED, 1));
+        queue.drainTo(events);
+        queue.offer(createEvent(SPEED, 2));
+        queue.offer(createEvent(SPEED, 3));
+
+        events.clear();
+        queue.drainTo(events);
+        assertTimestamps(events, 2, 3);
+    }
+
+    public void testDroppedRecyclableEventIsPooled() throws Exception {
+        SensorEventRingBuffer queue = new SensorEventRingBuffer(1,
+                SensorEventRingBuffer.OVERFLOW_DROP_OLDEST);
+        CarSensorEvent pooled = CarSensorEventFactory.createFloatEvent(SPEED, 1, 1f);
+        queue.offer(pooled, true);
+        queue.offer(createEvent(SPEED, 2), false);
+
+        assertSame(pooled, CarSensorEventFactory.createFloatEvent(SPEED, 3, 3f));
+    }
+
+    public void testReplacedRecyclableEventIsPooled() throws Exception {
+        SensorEventRingBuffer queue = new SensorEventRingBuffer(1,
+                SensorEventRingBuffer.OVERFLOW_KEEP_LATEST_PER_TYPE);
+        CarSensorEvent pooled = CarSensorEventFactory.createFloatEvent(SPEED, 1, 1f);
+        queue.offer(pooled, true);
+        queue.offer(createEvent(SPEED, 2), false);
+
+        assertSame(pooled, CarSensorEventFactory.createFloatEvent(SPEED, 3, 3f));
+    }
+
+    public void testDroppedEventNotFromPoolIsNotPooled() throws Exception {
+        SensorEventRingBuffer queue = new SensorEventRingBuffer(1,
+                SensorEventRingBuffer.OVERFLOW_DROP_OLDEST);
+        CarSensorEvent logical = createEvent(SPEED, 1);
+        queue.offer(logical, false);
+        queue.offer(createEvent(SPEED, 2), false);
+
+        assertNotSame(logical, CarSensorEventFactory.createFloatEvent(SPEED, 3, 3f));
+    }
+
+    private static CarSensorEvent createEvent(int sensorType, long timestamp) {
+        return new CarSensorEvent(sensorType, timestamp, 1, 0);
+    }
+
+    private static void assertTimestamps(List<CarSensorEvent> events, long... timestamps) {
+        assertEquals(timestamps.length, events.size());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertEquals(timestamps[i], events.get(i).timestamp);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.hardware.CarSensorEvent;
+import android.car.hardware.CarSensorManager;
+import android.car.hardware.CarSensorRingReader;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class SensorRingWriterTest extends AndroidTestCase {
+    private static final int SPEED = CarSensorManager.SENSOR_TYPE_CAR_SPEED;
+    private static final int GEAR = CarSensorManager.SENSOR_TYPE_GEAR;
+
+    public void testReadValues() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CarSensorRingReader.getBufferSize(4));
+        SensorRingWriter writer = new SensorRingWriter(buffer, 4);
+        CarSensorRingReader reader = new CarSensorRingReader(buffer);
+
+        assertTrue(writer.write(CarSensorEventFactory.createFloatEvent(SPEED, 1, 12.5f)));
+        assertTrue(writer.write(CarSensorEventFactory.createIntEvent(GEAR, 2, 3)));
+
+        List<CarSensorEvent> events = new ArrayList<>();
+        assertEquals(2, reader.read(events));
+        assertEquals(SPEED, events.get(0).sensorType);
+        assertEquals(1, events.get(0).timestamp);
+        assertEquals(12.5f, events.get(0).floatValues[0]);
+        assertEquals(0, events.get(0).intValues.length);
+        assertEquals(GEAR, events.get(1).sensorType);
+        assertEquals(3, events.get(1).intValues[0]);
+        assertEquals(0, events.get(1).floatValues.length);
+        assertEquals(2, reader.getNextSequence());
+        assertEquals(0, reader.getDroppedCount());
+
+        events.clear();
+        assertEquals(0, reader.read(events));
+    }
+
+    public void testOverwrittenRecordsAreCounted() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CarSensorRingReader.getBufferSize(3));
+        SensorRingWriter writer = new SensorRingWriter(buffer, 3);
+        CarSensorRingReader reader = new CarSensorRingReader(buffer);
+        for (int i = 1; i <= 5; i++) {
+            writer.write(CarSensorEventFactory.createFloatEvent(SPEED, i, i));
+        }
+
+        List<CarSensorEvent> events = new ArrayList<>();
+        assertEquals(3, reader.read(events));
+        assertEquals(3, events.get(0).timestamp);
+        assertEquals(5, events.get(2).timestamp);
+        assertEquals(2, reader.getDroppedCount());
+    }
+
+    public void testUnsupportedEvent() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CarSensorRingReader.getBufferSize(2));
+        SensorRingWriter writer = new SensorRingWriter(buffer, 2);
+        assertFalse(writer.write(new CarSensorEvent(SPEED, 1, 2, 0)));
+        assertEquals(0, writer.getWriteSequence());
+        assertEquals(1, writer.getUnsupportedCount());
+    }
+}
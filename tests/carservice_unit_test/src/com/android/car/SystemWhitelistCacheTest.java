@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArraySet;
+
+import com.android.car.pm.SystemWhitelistCache;
+import com.android.car.pm.SystemWhitelistCache.Entry;
+
+import java.io.File;
+import java.util.Arrays;
+
+@SmallTest
+public class SystemWhitelistCacheTest extends AndroidTestCase {
+    private static final String FINGERPRINT = "build/1";
+    private static final String PACKAGE_1 = "com.example.one";
+    private static final String PACKAGE_2 = "com.example.two";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "system_whitelist_cache_test");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testEntryValidForSameVersionOnly() {
+        SystemWhitelistCache cache = new SystemWhitelistCache(null, FINGERPRINT);
+        cache.put(PACKAGE_1, new Entry(1, 100, true, true, null));
+
+        assertNotNull(cache.get(PACKAGE_1, 1, 100));
+        assertNull(cache.get(PACKAGE_1, 2, 100));
+        assertNull(cache.get(PACKAGE_1, 1, 200));
+        assertNull(cache.get(PACKAGE_2, 1, 100));
+    }
+
+    public void testSaveAndLoad() {
+        SystemWhitelistCache cache = new SystemWhitelistCache(mFile, FINGERPRINT);
+        cache.put(PACKAGE_1, new Entry(1, 100, true, false, new String[] { "a", "b" }));
+        cache.put(PACKAGE_2, new Entry(2, 200, false, false, null));
+        cache.save();
+        assertFalse(cache.isDirty());
+
+        SystemWhitelistCache loaded = new SystemWhitelistCache(mFile, FINGERPRINT);
+        assertTrue(loaded.load());
+        assertEquals(2, loaded.size());
+        Entry entry = loaded.get(PACKAGE_1, 1, 100);
+        assertTrue(entry.hasMetadata);
+        assertFalse(entry.useAllActivities);
+        assertTrue(Arrays.equals(new String[] { "a", "b" }, entry.activities));
+        entry = loaded.get(PACKAGE_2, 2, 200);
+        assertFalse(entry.hasMetadata);
+        assertNull(entry.activities);
+    }
+
+    public void testNotLoadedForOtherBuild() {
+        SystemWhitelistCache cache = new SystemWhitelistCache(mFile, FINGERPRINT);
+        cache.put(PACKAGE_1, new Entry(1, 100, true, true, null));
+        cache.save();
+
+        SystemWhitelistCache loaded = new SystemWhitelistCache(mFile, "build/2");
+        assertFalse(loaded.load());
+        assertEquals(0, loaded.size());
+    }
+
+    public void testRetainAll() {
+        SystemWhitelistCache cache = new SystemWhitelistCache(mFile, FINGERPRINT);
+        cache.put(PACKAGE_1, new Entry(1, 100, true, true, null));
+        cache.put(PACKAGE_2, new Entry(2, 200, false, false, null));
+        cache.save();
+
+        ArraySet<String> installed = new ArraySet<>();
+        installed.add(PACKAGE_2);
+        cache.retainAll(installed);
+
+        assertTrue(cache.isDirty());
+        assertNull(cache.get(PACKAGE_1, 1, 100));
+        assertNotNull(cache.get(PACKAGE_2, 2, 200));
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.vms.IVmsSubscriberClient;
+import android.car.vms.VmsLayer;
+import android.os.SharedMemory;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class VmsDeliveryEngineTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 3000;
+    private static final VmsLayer LAYER_1 = new VmsLayer(1, 1);
+    private static final VmsLayer LAYER_2 = new VmsLayer(2, 1);
+
+    private VmsDeliveryEngine mEngine;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mEngine != null) {
+            mEngine.release();
+        }
+        super.tearDown();
+    }
+
+    private void createEngine(int policy) {
+        createEngine(policy, 1);
+    }
+
+    private void createEngine(int policy, int threadCount) {
+        mEngine = new VmsDeliveryEngine(2, policy, threadCount);
+        mEngine.init();
+    }
+
+    private BlockingSubscriber newSubscriber() {
+        BlockingSubscriber subscriber = new BlockingSubscriber();
+        mEngine.addSubscriber(subscriber);
+        return subscriber;
+    }
+
+    private static VmsPayload payload(int value) {
+        return new VmsPayload(new byte[] { (byte) value });
+    }
+
+    public void testDeliversInOrder() throws Exception {
+        createEngine(VmsDeliveryEngine.POLICY_DROP_OLDEST);
+        BlockingSubscriber subscriber = newSubscriber();
+        subscriber.unblock();
+        IVmsSubscriberClient[] subscribers = new IVmsSubscriberClient[] { subscriber };
+
+        mEngine.deliver(LAYER_1, payload(1), subscribers);
+        mEngine.deliver(LAYER_1, payload(2), subscribers);
+
+        subscriber.awaitMessages(2);
+        assertEquals(1, subscriber.getPayload(0));
+        assertEquals(2, subscriber.getPayload(1));
+        assertEquals(0, mEngine.getDroppedCount(subscriber));
+    }
+
+    public void testDropOldest() throws Exception {
+        createEngine(VmsDeliveryEngine.POLICY_DROP_OLDEST);
+        BlockingSubscriber subscriber = newSubscriber();
+        IVmsSubscriberClient[] subscribers = new IVmsSubscriberClient[] { subscriber };
+
+        // First message is taken by the delivery thread, which blocks in the subscriber.
+        mEngine.deliver(LAYER_1, payload(1), subscribers);
+        subscriber.awaitReceiving();
+        mEngine.deliver(LAYER_1, payload(2), subscribers);
+        mEngine.deliver(LAYER_2, payload(3), subscribers);
+        mEngine.deliver(LAYER_1, payload(4), subscribers);
+        assertEquals(2, mEngine.getPendingCount(subscriber));
+        assertEquals(1, mEngine.getDroppedCount(subscriber));
+
+        subscriber.unblock();
+        subscriber.awaitMessages(3);
+        assertEquals(1, subscriber.getPayload(0));
+        assertEquals(3, subscriber.getPayload(1));
+        assertEquals(4, subscriber.getPayload(2));
+    }
+
+    public void testKeepLatestPerLayer() throws Exception {
+        createEngine(VmsDeliveryEngine.POLICY_KEEP_LATEST_PER_LAYER);
+        BlockingSubscriber subscriber = newSubscriber();
+        IVmsSubscriberClient[] subscribers = new IVmsSubscriberClient[] { subscriber };
+
+        mEngine.deliver(LAYER_1, payload(1), subscribers);
+        subscriber.awaitReceiving();
+        mEngine.deliver(LAYER_1, payload(2), subscribers);
+        mEngine.deliver(LAYER_2, payload(3), subscribers);
+        mEngine.deliver(LAYER_1, payload(4), subscribers);
+        assertEquals(2, mEngine.getPendingCount(subscriber));
+        // Replacing a queued message while there is room is not a drop.
+        assertEquals(0, mEngine.getDroppedCount(subscriber));
+
+        subscriber.unblock();
+        subscriber.awaitMessages(3);
+        assertEquals(1, subscriber.getPayload(0));
+        assertEquals(4, subscriber.getPayload(1));
+        assertEquals(3, subscriber.getPayload(2));
+        assertEquals(3, mEngine.getDeliveredCount(subscriber));
+    }
+
+    public void testKeepLatestPerLayerCountsOverflow() throws Exception {
+        createEngine(VmsDeliveryEngine.POLICY_KEEP_LATEST_PER_LAYER);
+        BlockingSubscriber subscriber = newSubscriber();
+        IVmsSubscriberClient[] subscribers = new IVmsSubscriberClient[] { subscriber };
+
+        mEngine.deliver(LAYER_1, payload(1), subscribers);
+        subscriber.awaitReceiving();
+        mEngine.deliver(LAYER_1, payload(2), subscribers);
+        mEngine.deliver(LAYER_2, payload(3), subscribers);
+        mEngine.deliver(new VmsLayer(3, 1), payload(4), subscribers);
+        assertEquals(2, mEngine.getPendingCount(subscriber));
+        assertEquals(1, mEngine.getDroppedCount(subscriber));
+
+        subscriber.unblock();
+        subscriber.awaitMessages(3);
+        assertEquals(3, subscriber.getPayload(1));
+        assertEquals(4, subscriber.getPayload(2));
+    }
+
+    public void testSlowSubscriberDoesNotDelayOthers() throws Exception {
+        createEngine(VmsDeliveryEngine.POLICY_DROP_OLDEST, 2);
+        BlockingSubscriber slow = newSubscriber();
+        BlockingSubscriber fast = newSubscriber();
+        fast.unblock();
+
+        mEngine.deliver(LAYER_1, payload(1), new IVmsSubscriberClient[] { slow });
+        slow.awaitReceiving();
+        for (int i = 0; i < 2; i++) {
+            mEngine.deliver(LAYER_1, payload(i), new IVmsSubscriberClient[] { fast });
+        }
+
+        // Queues are spread over the delivery threads, so the blocked thread only holds up the
+        // slow subscriber.
+        fast.awaitMessages(2);
+        slow.unblock();
+        slow.awaitMessages(1);
+    }
+
+    public void testRemoveSubscriber() throws Exception {
+        createEngine(VmsDeliveryEngine.POLICY_DROP_OLDEST);
+        BlockingSubscriber subscriber = newSubscriber();
+        IVmsSubscriberClient[] subscribers = new IVmsSubscriberClient[] { subscriber };
+
+        mEngine.deliver(LAYER_1, payload(1), subscribers);
+        subscriber.awaitReceiving();
+        mEngine.deliver(LAYER_1, payload(2), subscribers);
+        mEngine.removeSubscriber(subscriber);
+        assertEquals(0, mEngine.getPendingCount(subscriber));
+    }
+
+    public void testNoQueueForRemovedSubscriber() throws Exception {
+        createEngine(VmsDeliveryEngine.POLICY_DROP_OLDEST);
+        BlockingSubscriber subscriber = newSubscriber();
+        subscriber.unblock();
+        // Subscribers array taken before the removal, as a publisher racing with it would.
+        IVmsSubscriberClient[] subscribers = new IVmsSubscriberClient[] { subscriber };
+
+        mEngine.removeSubscriber(subscriber);
+        mEngine.deliver(LAYER_1, payload(1), subscribers);
+        assertEquals(0, mEngine.getPendingCount(subscriber));
+
+        // Registering again allows delivery.
+        mEngine.addSubscriber(subscriber);
+        mEngine.deliver(LAYER_1, payload(2), subscribers);
+        subscriber.awaitMessages(1);
+        assertEquals(2, subscriber.getPayload(0));
+    }
+
+    public void testDeliverBeforeInit() throws Exception {
+        mEngine = new VmsDeliveryEngine(2, VmsDeliveryEngine.POLICY_DROP_OLDEST, 1);
+        BlockingSubscriber subscriber = newSubscriber();
+
+        // Messages arriving before init are dropped instead of failing the caller.
+        mEngine.deliver(LAYER_1, payload(1), new IVmsSubscriberClient[] { subscriber });
+        mEngine.deliver(LAYER_1, payload(1), (layer, bytes) -> fail());
+        assertEquals(0, mEngine.getPendingCount(subscriber));
+    }
+
+    public void testSink() throws Exception {
+        createEngine(VmsDeliveryEngine.POLICY_DROP_OLDEST);
+        CountDownLatch latch = new CountDownLatch(1);
+        mEngine.deliver(LAYER_1, payload(1), (layer, bytes) -> {
+            assertEquals(LAYER_1, layer);
+            latch.countDown();
+        });
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    public void testLargePayloadToLocalSubscriber() throws Exception {
+        createEngine(VmsDeliveryEngine.POLICY_DROP_OLDEST);
+        BlockingSubscriber subscriber = newSubscriber();
+        subscriber.unblock();
+        byte[] bytes = new byte[VmsDeliveryEngine.SHARED_MEMORY_MIN_PAYLOAD_SIZE];
+        bytes[0] = 7;
+
+        mEngine.deliver(LAYER_1, new VmsPayload(bytes), new IVmsSubscriberClient[] { subscriber });
+
+        subscriber.awaitMessages(1);
+        assertEquals(7, subscriber.getPayload(0));
+    }
+
+    /** Records messages, blocking in delivery until {@link #unblock()} is called. */
+    private static class BlockingSubscriber extends IVmsSubscriberClient.Stub {
+        private final CountDownLatch mUnblock = new CountDownLatch(1);
+        private final CountDownLatch mReceiving = new CountDownLatch(1);
+        private final Semaphore mReceived = new Semaphore(0);
+        private final List<byte[]> mPayloads = new ArrayList<>();
+
+        @Override
+        public void onVmsMessageReceived(VmsLayer layer, byte[] payload) {
+            mReceiving.countDown();
+            try {
+                mUnblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (mPayloads) {
+                mPayloads.add(payload);
+            }
+            mReceived.release();
+        }
+
+        @Override
+        public void onLayersAvailabilityChange(List<VmsLayer> availableLayers) {}
+
+        @Override
+        public void onVmsSharedMessageReceived(VmsLayer layer, SharedMemory payload,
+                int length) {
+            // Not expected, in-process subscribers get the payload array.
+        }
+
+        void unblock() {
+            mUnblock.countDown();
+        }
+
+        void awaitReceiving() throws InterruptedException {
+            assertTrue(mReceiving.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        void awaitMessages(int count) throws InterruptedException {
+            assertTrue(mReceived.tryAcquire(count, TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        int getPayload(int index) {
+            synchronized (mPayloads) {
+                return mPayloads.get(index)[0];
+            }
+        }
+    }
+}
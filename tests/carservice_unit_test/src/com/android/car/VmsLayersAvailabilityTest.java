@@ -255,4 +255,45 @@ public class VmsLayersAvailabilityTest extends AndroidTestCase {
         assertEquals(expectedUnavailableLayers,
             new HashSet<VmsLayer>(mLayersAvailability.getUnavailableLayers()));
     }
-}
\ No newline at end of file
+
+    public void testPublisherOfferingDelta() throws Exception {
+        Object publisher1 = new Object();
+        Object publisher2 = new Object();
+
+        VmsLayersAvailability.Delta delta = mLayersAvailability.setPublisherOffering(publisher1,
+            new VmsLayersOffering(Arrays.asList(X_DEPENDS_ON_Y, Y_DEPENDS_ON_Z)));
+        assertTrue(delta.isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList(LAYER_X, LAYER_Y)),
+            mLayersAvailability.getUnavailableLayers());
+
+        delta = mLayersAvailability.setPublisherOffering(publisher2,
+            new VmsLayersOffering(Arrays.asList(Z_DEPENDS_ON_NOTHING)));
+        assertEquals(new HashSet<>(Arrays.asList(LAYER_X, LAYER_Y, LAYER_Z)),
+            delta.getAddedLayers());
+        assertTrue(delta.getRemovedLayers().isEmpty());
+
+        delta = mLayersAvailability.removePublisherOffering(publisher2);
+        assertTrue(delta.getAddedLayers().isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList(LAYER_X, LAYER_Y, LAYER_Z)),
+            delta.getRemovedLayers());
+        assertTrue(mLayersAvailability.getAvailableLayers().isEmpty());
+    }
+
+    public void testRemovedOfferingDoesNotLeaveCyclicSupport() throws Exception {
+        Object publisher1 = new Object();
+        Object publisher2 = new Object();
+
+        // X is available through Z and then also supports Y, which supports X in turn.
+        mLayersAvailability.setPublisherOffering(publisher1,
+            new VmsLayersOffering(Arrays.asList(X_DEPENDS_ON_Y, Y_DEPENDS_ON_X)));
+        mLayersAvailability.setPublisherOffering(publisher2,
+            new VmsLayersOffering(Arrays.asList(X_DEPENDS_ON_Z, Z_DEPENDS_ON_NOTHING)));
+        assertEquals(new HashSet<>(Arrays.asList(LAYER_X, LAYER_Y, LAYER_Z)),
+            mLayersAvailability.getAvailableLayers());
+
+        VmsLayersAvailability.Delta delta = mLayersAvailability.setPublisherOffering(publisher2,
+            new VmsLayersOffering(Arrays.asList(Z_DEPENDS_ON_NOTHING)));
+        assertEquals(new HashSet<>(Arrays.asList(LAYER_X, LAYER_Y)), delta.getRemovedLayers());
+        assertEquals(Collections.singleton(LAYER_Z), mLayersAvailability.getAvailableLayers());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.os.Parcel;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+@SmallTest
+public class VmsPayloadTest extends AndroidTestCase {
+
+    public void testSharedMemoryHoldsPayload() throws Exception {
+        byte[] bytes = new byte[1024];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        VmsPayload payload = new VmsPayload(bytes);
+        payload.acquire();
+        SharedMemory memory = payload.getSharedMemory();
+        assertSame(memory, payload.getSharedMemory());
+
+        ByteBuffer buffer = memory.mapReadOnly();
+        byte[] read = new byte[bytes.length];
+        buffer.get(read);
+        SharedMemory.unmap(buffer);
+        assertTrue(Arrays.equals(bytes, read));
+        payload.release();
+    }
+
+    public void testSubscriberCannotWriteSharedMemory() throws Exception {
+        VmsPayload payload = new VmsPayload(new byte[] { 1, 2, 3 });
+        payload.acquire();
+        // Same path as binder takes to hand the memory to a subscriber.
+        Parcel parcel = Parcel.obtain();
+        SharedMemory received;
+        try {
+            payload.getSharedMemory().writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            received = SharedMemory.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+
+        try {
+            received.mapReadWrite();
+            fail();
+        } catch (ErrnoException expected) {
+        }
+        assertFalse(received.setProtect(OsConstants.PROT_READ | OsConstants.PROT_WRITE));
+        ByteBuffer buffer = received.mapReadOnly();
+        assertEquals(2, buffer.get(1));
+        SharedMemory.unmap(buffer);
+        received.close();
+        payload.release();
+    }
+
+    public void testSharedMemoryRequiresReference() throws Exception {
+        VmsPayload payload = new VmsPayload(new byte[] { 1 });
+        try {
+            payload.getSharedMemory();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            payload.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testSharedMemoryRecreatedAfterRelease() throws Exception {
+        VmsPayload payload = new VmsPayload(new byte[] { 1 });
+        payload.acquire();
+        SharedMemory memory = payload.getSharedMemory();
+        payload.release();
+        payload.acquire();
+        assertNotSame(memory, payload.getSharedMemory());
+        payload.release();
+    }
+}
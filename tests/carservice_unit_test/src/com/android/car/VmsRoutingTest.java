@@ -19,9 +19,11 @@ package com.android.car;
 import android.car.vms.IVmsSubscriberClient;
 import android.car.vms.VmsLayer;
 import android.car.vms.VmsSubscriptionState;
+import android.os.SharedMemory;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -135,11 +137,44 @@ public class VmsRoutingTest extends AndroidTestCase {
             mRouting.getListeners(LAYER_WITHOUT_SUBSCRIPTION));
     }
 
+    public void testListenerArray() throws Exception {
+        MockVmsListener listenerForLayer = new MockVmsListener();
+        MockVmsListener listenerWithoutLayer = new MockVmsListener();
+        mRouting.addSubscription(listenerForLayer, LAYER_WITH_SUBSCRIPTION_1);
+        mRouting.addSubscription(listenerWithoutLayer);
+        mRouting.addSubscription(listenerWithoutLayer, LAYER_WITH_SUBSCRIPTION_1);
+
+        // Explicit and promiscuous subscribers, each only once.
+        assertEquals(new HashSet<>(Arrays.asList(listenerForLayer, listenerWithoutLayer)),
+                new HashSet<>(Arrays.asList(mRouting.getListenerArray(LAYER_WITH_SUBSCRIPTION_1))));
+        assertEquals(2, mRouting.getListenerArray(LAYER_WITH_SUBSCRIPTION_1).length);
+        assertTrue(Arrays.equals(new IVmsSubscriberClient[] { listenerWithoutLayer },
+                mRouting.getListenerArray(LAYER_WITHOUT_SUBSCRIPTION)));
+
+        mRouting.removeDeadListener(listenerWithoutLayer);
+        assertTrue(Arrays.equals(new IVmsSubscriberClient[] { listenerForLayer },
+                mRouting.getListenerArray(LAYER_WITH_SUBSCRIPTION_1)));
+        assertEquals(0, mRouting.getListenerArray(LAYER_WITHOUT_SUBSCRIPTION).length);
+    }
+
+    public void testHalSubscriptionIndex() throws Exception {
+        mRouting.addHalSubscription(LAYER_WITH_SUBSCRIPTION_1);
+        assertTrue(mRouting.isHalSubscribed(LAYER_WITH_SUBSCRIPTION_1));
+        assertFalse(mRouting.isHalSubscribed(LAYER_WITHOUT_SUBSCRIPTION));
+
+        mRouting.removeHalSubscription(LAYER_WITH_SUBSCRIPTION_1);
+        assertFalse(mRouting.isHalSubscribed(LAYER_WITH_SUBSCRIPTION_1));
+    }
+
     class MockVmsListener extends IVmsSubscriberClient.Stub {
         @Override
         public void onVmsMessageReceived(VmsLayer layer, byte[] payload) {}
 
         @Override
         public void onLayersAvailabilityChange(List<VmsLayer> availableLayers) {}
+
+        @Override
+        public void onVmsSharedMessageReceived(VmsLayer layer, SharedMemory payload,
+                int length) {}
     }
 }
\ No newline at end of file
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import android.hardware.automotive.vehicle.V2_0.IVehicle;
+import android.hardware.automotive.vehicle.V2_0.IVehicleCallback;
+import android.hardware.automotive.vehicle.V2_0.StatusCode;
+import android.hardware.automotive.vehicle.V2_0.SubscribeOptions;
+import android.hardware.automotive.vehicle.V2_0.VehicleAreaZone;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class HalClientTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 3000;
+    private static final int PROP = VehicleProperty.HVAC_FAN_SPEED;
+    private static final int AREA_LEFT = VehicleAreaZone.ROW_1_LEFT;
+    private static final int AREA_RIGHT = VehicleAreaZone.ROW_1_RIGHT;
+
+    private final FakeVehicle mVehicle = new FakeVehicle();
+    private HandlerThread mCallbackThread;
+    private HandlerThread mRequestThread;
+    private HalClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCallbackThread = new HandlerThread("HalClientTest-callback");
+        mCallbackThread.start();
+        mRequestThread = new HandlerThread("HalClientTest-request");
+        mRequestThread.start();
+        mClient = new HalClient(mVehicle, mCallbackThread.getLooper(),
+                mRequestThread.getLooper(), new IVehicleCallback.Stub() {
+                    @Override
+                    public void onPropertyEvent(ArrayList<VehiclePropValue> propValues) {}
+
+                    @Override
+                    public void onPropertySet(VehiclePropValue propValue) {}
+
+                    @Override
+                    public void onPropertySetError(int errorCode, int propId, int areaId) {}
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mVehicle.unblockSets();
+        mRequestThread.quitSafely();
+        mCallbackThread.quitSafely();
+        super.tearDown();
+    }
+
+    public void testSetsOfSamePropertyAndAreaAreCollapsed() throws Exception {
+        VehiclePropValue first = newValue(AREA_LEFT, 1);
+        VehiclePropValue replaced = newValue(AREA_LEFT, 2);
+        VehiclePropValue latest = newValue(AREA_LEFT, 3);
+        VehiclePropValue otherArea = newValue(AREA_RIGHT, 4);
+        ResultRecorder firstResult = new ResultRecorder();
+        ResultRecorder replacedResult = new ResultRecorder();
+        ResultRecorder latestResult = new ResultRecorder();
+        ResultRecorder otherAreaResult = new ResultRecorder();
+
+        mVehicle.blockSets();
+        mClient.setValueAsync(first, deadline(), firstResult);
+        // The first set is being sent, so it is not replaced.
+        assertTrue(mVehicle.mSetStarted.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        mClient.setValueAsync(replaced, deadline(), replacedResult);
+        mClient.setValueAsync(latest, deadline(), latestResult);
+        mClient.setValueAsync(otherArea, deadline(), otherAreaResult);
+        mVehicle.unblockSets();
+
+        firstResult.assertResult(StatusCode.OK, first);
+        replacedResult.assertResult(StatusCode.OK, latest);
+        latestResult.assertResult(StatusCode.OK, latest);
+        otherAreaResult.assertResult(StatusCode.OK, otherArea);
+        assertEquals(3, mVehicle.getSetValues().size());
+        assertSame(first, mVehicle.getSetValues().get(0));
+        assertSame(latest, mVehicle.getSetValues().get(1));
+        assertSame(otherArea, mVehicle.getSetValues().get(2));
+    }
+
+    public void testSetRetriedOnTryAgain() throws Exception {
+        VehiclePropValue value = newValue(AREA_LEFT, 1);
+        mVehicle.setTryAgainCount(2);
+
+        mClient.setValue(value);
+
+        assertEquals(3, mVehicle.getSetValues().size());
+    }
+
+    public void testGetRetriedOnTryAgain() throws Exception {
+        VehiclePropValue requested = newValue(AREA_LEFT, 0);
+        mVehicle.setGetTryAgainCount(2);
+
+        assertSame(requested, mClient.getValue(requested));
+
+        assertEquals(3, mVehicle.getGetCount());
+    }
+
+    public void testSetFailsAfterDeadline() throws Exception {
+        mVehicle.setTryAgainCount(Integer.MAX_VALUE);
+        ResultRecorder result = new ResultRecorder();
+        long start = SystemClock.elapsedRealtime();
+
+        mClient.setValueAsync(newValue(AREA_LEFT, 1), start + 200, result);
+
+        result.assertResult(StatusCode.TRY_AGAIN, null);
+        assertTrue(SystemClock.elapsedRealtime() - start < 1000);
+        assertFalse(mVehicle.getSetValues().isEmpty());
+
+        // A request whose deadline already passed is not sent at all.
+        mVehicle.clearSetValues();
+        ResultRecorder expired = new ResultRecorder();
+        mClient.setValueAsync(newValue(AREA_LEFT, 2), SystemClock.elapsedRealtime() - 1, expired);
+        expired.assertResult(StatusCode.TRY_AGAIN, null);
+        assertTrue(mVehicle.getSetValues().isEmpty());
+    }
+
+    public void testInvalidSetThrows() throws Exception {
+        mVehicle.setStatus(StatusCode.INVALID_ARG);
+        try {
+            mClient.setValue(newValue(AREA_LEFT, 1));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testSetFromCallback() throws Exception {
+        VehiclePropValue first = newValue(AREA_LEFT, 1);
+        VehiclePropValue second = newValue(AREA_LEFT, 2);
+        CountDownLatch done = new CountDownLatch(1);
+        final long[] elapsedMs = new long[1];
+        final Exception[] error = new Exception[1];
+
+        mClient.setValueAsync(first, deadline(), (status, value) -> {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                mClient.setValue(second);
+                mClient.getValue(newValue(AREA_LEFT, 0));
+            } catch (Exception e) {
+                error[0] = e;
+            }
+            elapsedMs[0] = SystemClock.elapsedRealtime() - start;
+            done.countDown();
+        });
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(error[0]);
+        // Does not wait for the request looper, which runs the callback.
+        assertTrue(elapsedMs[0] < 1000);
+        assertEquals(2, mVehicle.getSetValues().size());
+        assertSame(second, mVehicle.getSetValues().get(1));
+    }
+
+    private static long deadline() {
+        return SystemClock.elapsedRealtime() + TIMEOUT_MS;
+    }
+
+    private static VehiclePropValue newValue(int areaId, int fanSpeed) {
+        VehiclePropValue value = new VehiclePropValue();
+        value.prop = PROP;
+        value.areaId = areaId;
+        value.value.int32Values.add(fanSpeed);
+        return value;
+    }
+
+    private static class ResultRecorder implements HalClient.ResultCallback {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private int mStatus;
+        private VehiclePropValue mValue;
+
+        @Override
+        public void onResult(int status, VehiclePropValue value) {
+            mStatus = status;
+            mValue = value;
+            mLatch.countDown();
+        }
+
+        void assertResult(int status, VehiclePropValue value) throws InterruptedException {
+            assertTrue(mLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertEquals(status, mStatus);
+            if (value != null) {
+                assertSame(value, mValue);
+            }
+        }
+    }
+
+    /** Vehicle HAL whose sets can be blocked, or answer with a given status. */
+    private static class FakeVehicle extends IVehicle.Stub {
+        private final Semaphore mSetStarted = new Semaphore(0);
+        private CountDownLatch mSetsBlocked = new CountDownLatch(0);
+        private final List<VehiclePropValue> mSetValues = new ArrayList<>();
+        private int mTryAgainCount;
+        private int mGetTryAgainCount;
+        private int mGetCount;
+        private int mStatus = StatusCode.OK;
+
+        synchronized void blockSets() {
+            mSetsBlocked = new CountDownLatch(1);
+        }
+
+        synchronized void unblockSets() {
+            mSetsBlocked.countDown();
+        }
+
+        synchronized void setTryAgainCount(int count) {
+            mTryAgainCount = count;
+        }
+
+        synchronized void setGetTryAgainCount(int count) {
+            mGetTryAgainCount = count;
+        }
+
+        synchronized int getGetCount() {
+            return mGetCount;
+        }
+
+        synchronized void setStatus(int status) {
+            mStatus = status;
+        }
+
+        synchronized List<VehiclePropValue> getSetValues() {
+            return new ArrayList<>(mSetValues);
+        }
+
+        synchronized void clearSetValues() {
+            mSetValues.clear();
+        }
+
+        @Override
+        public int set(VehiclePropValue propValue) {
+            CountDownLatch blocked;
+            synchronized (this) {
+                blocked = mSetsBlocked;
+            }
+            mSetStarted.release();
+            try {
+                blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                mSetValues.add(propValue);
+                if (mTryAgainCount > 0) {
+                    mTryAgainCount--;
+                    return StatusCode.TRY_AGAIN;
+                }
+                return mStatus;
+            }
+        }
+
+        @Override
+        public void get(VehiclePropValue requestedPropValue, getCallback cb) {
+            synchronized (this) {
+                mGetCount++;
+                if (mGetTryAgainCount > 0) {
+                    mGetTryAgainCount--;
+                    cb.onValues(StatusCode.TRY_AGAIN, null);
+                    return;
+                }
+            }
+            cb.onValues(StatusCode.OK, requestedPropValue);
+        }
+
+        @Override
+        public ArrayList<VehiclePropConfig> getAllPropConfigs() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void getPropConfigs(ArrayList<Integer> props, getPropConfigsCallback cb) {
+            cb.onValues(StatusCode.OK, new ArrayList<>());
+        }
+
+        @Override
+        public int subscribe(IVehicleCallback callback, ArrayList<SubscribeOptions> options) {
+            return StatusCode.OK;
+        }
+
+        @Override
+        public int unsubscribe(IVehicleCallback callback, int propId) {
+            return StatusCode.OK;
+        }
+
+        @Override
+        public String debugDump() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class HalEventDispatcherTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 3000;
+
+    private final RecordingService mFirstService = new RecordingService();
+    private final RecordingService mSecondService = new RecordingService();
+    private HalEventDispatcher mDispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDispatcher = new HalEventDispatcher(
+                Arrays.<HalServiceBase>asList(mFirstService, mSecondService),
+                true /* createThreads */);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFirstService.unblock();
+        mSecondService.unblock();
+        mDispatcher.release();
+        super.tearDown();
+    }
+
+    public void testEventsDeliveredInOrderPerService() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            HalEventDispatcher.Batch batch = mDispatcher.newBatch();
+            batch.add(mFirstService, newValue(2 * i));
+            batch.add(mSecondService, newValue(i));
+            batch.add(mFirstService, newValue(2 * i + 1));
+            batch.post();
+        }
+
+        mFirstService.awaitValues(20);
+        mSecondService.awaitValues(10);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (int) mFirstService.getValues().get(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, (int) mSecondService.getValues().get(i));
+        }
+    }
+
+    public void testSlowServiceDoesNotDelayOthers() throws Exception {
+        mFirstService.block();
+        post(mFirstService, 0);
+        assertTrue(mFirstService.mEntered.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        post(mSecondService, 1);
+        mSecondService.awaitValues(1);
+    }
+
+    public void testQueueDepth() throws Exception {
+        mFirstService.block();
+        post(mFirstService, 0, 1);
+        assertTrue(mFirstService.mEntered.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        post(mFirstService, 2, 3, 4);
+
+        // The batch being handled is still pending.
+        assertEquals(5, mDispatcher.getQueueDepth(mFirstService));
+        assertEquals(0, mDispatcher.getQueueDepth(mSecondService));
+
+        mFirstService.unblock();
+        mFirstService.awaitValues(5);
+        waitForQueueDepth(mFirstService, 0);
+    }
+
+    public void testEventsPostedAfterReleaseAreDropped() throws Exception {
+        mDispatcher.release();
+
+        post(mFirstService, 0, 1);
+
+        // The looper is gone, so the events are not left counted as pending.
+        assertEquals(0, mDispatcher.getQueueDepth(mFirstService));
+        SystemClock.sleep(100);
+        assertTrue(mFirstService.getValues().isEmpty());
+    }
+
+    private void post(HalServiceBase service, int... values) {
+        HalEventDispatcher.Batch batch = mDispatcher.newBatch();
+        for (int value : values) {
+            batch.add(service, newValue(value));
+        }
+        batch.post();
+    }
+
+    private void waitForQueueDepth(HalServiceBase service, int depth) {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        // The depth is updated once handleHalEvents returns.
+        while (mDispatcher.getQueueDepth(service) != depth) {
+            assertTrue(SystemClock.elapsedRealtime() < deadline);
+            SystemClock.sleep(10);
+        }
+    }
+
+    private static VehiclePropValue newValue(int value) {
+        VehiclePropValue propValue = new VehiclePropValue();
+        propValue.value.int32Values.add(value);
+        return propValue;
+    }
+
+    /** Records the values it gets, and can block in handleHalEvents until unblocked. */
+    private static class RecordingService extends HalServiceBase {
+        private final Semaphore mEntered = new Semaphore(0);
+        private final List<Integer> mValues = new ArrayList<>();
+        private CountDownLatch mBlocked = new CountDownLatch(0);
+
+        synchronized void block() {
+            mBlocked = new CountDownLatch(1);
+        }
+
+        synchronized void unblock() {
+            mBlocked.countDown();
+        }
+
+        synchronized List<Integer> getValues() {
+            return new ArrayList<>(mValues);
+        }
+
+        synchronized void awaitValues(int count) throws InterruptedException {
+            long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+            while (mValues.size() < count) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                assertTrue("got " + mValues, remaining > 0);
+                wait(remaining);
+            }
+        }
+
+        @Override
+        public void handleHalEvents(List<VehiclePropValue> values) {
+            CountDownLatch blocked;
+            synchronized (this) {
+                for (VehiclePropValue value : values) {
+                    mValues.add(value.value.int32Values.get(0));
+                }
+                notifyAll();
+                blocked = mBlocked;
+            }
+            mEntered.release();
+            try {
+                blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void init() {}
+
+        @Override
+        public void release() {}
+
+        @Override
+        public void dump(PrintWriter writer) {}
+    }
+}
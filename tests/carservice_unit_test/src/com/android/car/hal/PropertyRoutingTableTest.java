@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import android.hardware.automotive.vehicle.V2_0.SubscribeOptions;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@SmallTest
+public class PropertyRoutingTableTest extends AndroidTestCase {
+    private static final int SPEED = VehicleProperty.PERF_VEHICLE_SPEED;
+    private static final int GEAR = VehicleProperty.GEAR_SELECTION;
+    private static final int FAN_SPEED = VehicleProperty.HVAC_FAN_SPEED;
+    private static final int UNSUPPORTED = VehicleProperty.HVAC_POWER_ON;
+
+    private final VehiclePropConfig mSpeedConfig = newConfig(SPEED);
+    private final VehiclePropConfig mGearConfig = newConfig(GEAR);
+    private final VehiclePropConfig mFanSpeedConfig = newConfig(FAN_SPEED);
+    private final FakeService mService = new FakeService();
+
+    private PropertyRoutingTable mTable;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTable = PropertyRoutingTable.create(
+                Arrays.asList(mFanSpeedConfig, mSpeedConfig, mGearConfig));
+    }
+
+    public void testEmpty() throws Exception {
+        assertEquals(0, PropertyRoutingTable.EMPTY.size());
+        assertNull(PropertyRoutingTable.EMPTY.getRoute(SPEED));
+        assertTrue(PropertyRoutingTable.EMPTY.getConfigs().isEmpty());
+        assertEquals(0, PropertyRoutingTable.EMPTY.getSubscriptions().length);
+    }
+
+    public void testLookups() throws Exception {
+        assertEquals(3, mTable.size());
+        assertSame(mSpeedConfig, mTable.getConfig(SPEED));
+        assertSame(mGearConfig, mTable.getConfig(GEAR));
+        assertSame(mFanSpeedConfig, mTable.getConfig(FAN_SPEED));
+        assertNull(mTable.getHandler(SPEED));
+        assertNull(mTable.getRoute(SPEED).subscription);
+
+        assertNull(mTable.getRoute(UNSUPPORTED));
+        assertNull(mTable.getConfig(UNSUPPORTED));
+        assertNull(mTable.getHandler(UNSUPPORTED));
+    }
+
+    public void testRoutesSortedByProperty() throws Exception {
+        List<VehiclePropConfig> configs = mTable.getConfigs();
+        assertEquals(3, configs.size());
+        for (int i = 0; i < configs.size(); i++) {
+            assertSame(configs.get(i), mTable.routeAt(i).config);
+            if (i > 0) {
+                assertTrue(configs.get(i - 1).prop < configs.get(i).prop);
+            }
+        }
+    }
+
+    public void testWithHandler() throws Exception {
+        PropertyRoutingTable table = mTable.withHandler(mService,
+                Arrays.asList(mSpeedConfig, newConfig(UNSUPPORTED)));
+
+        assertSame(mService, table.getHandler(SPEED));
+        assertNull(table.getHandler(GEAR));
+        assertNull(table.getRoute(UNSUPPORTED));
+        // The previous snapshot is not modified.
+        assertNull(mTable.getHandler(SPEED));
+        assertSame(mTable.getRoute(SPEED).stats, table.getRoute(SPEED).stats);
+    }
+
+    public void testSubscribeAndUnsubscribe() throws Exception {
+        PropertyRoutingTable owned =
+                mTable.withHandler(mService, Collections.singletonList(mSpeedConfig));
+        SubscribeOptions options = new SubscribeOptions();
+        options.propId = SPEED;
+        options.sampleRate = 10f;
+
+        PropertyRoutingTable subscribed = owned.withSubscription(SPEED, options);
+        assertNotSame(owned, subscribed);
+        assertSame(options, subscribed.getRoute(SPEED).subscription);
+        assertSame(mService, subscribed.getHandler(SPEED));
+        assertEquals(1, subscribed.getSubscriptions().length);
+        assertSame(options, subscribed.getSubscriptions()[0]);
+        assertNull(owned.getRoute(SPEED).subscription);
+        assertEquals(0, owned.getSubscriptions().length);
+
+        PropertyRoutingTable unsubscribed = subscribed.withSubscription(SPEED, null);
+        assertNull(unsubscribed.getRoute(SPEED).subscription);
+        assertEquals(0, unsubscribed.getSubscriptions().length);
+        assertSame(mService, unsubscribed.getHandler(SPEED));
+        assertSame(options, subscribed.getRoute(SPEED).subscription);
+
+        // Statistics survive subscription changes.
+        VehiclePropValue event = new VehiclePropValue();
+        subscribed.getRoute(SPEED).stats.addNewEvent(event);
+        assertEquals(1, unsubscribed.getRoute(SPEED).stats.eventCount.get());
+        assertSame(event, mTable.getRoute(SPEED).stats.lastEvent);
+    }
+
+    public void testSubscribeUnsupportedProperty() throws Exception {
+        assertSame(mTable, mTable.withSubscription(UNSUPPORTED, new SubscribeOptions()));
+    }
+
+    private static VehiclePropConfig newConfig(int prop) {
+        VehiclePropConfig config = new VehiclePropConfig();
+        config.prop = prop;
+        return config;
+    }
+
+    private static class FakeService extends HalServiceBase {
+        @Override
+        public void init() {}
+
+        @Override
+        public void release() {}
+
+        @Override
+        public void handleHalEvents(List<VehiclePropValue> values) {}
+
+        @Override
+        public void dump(PrintWriter writer) {}
+    }
+}
@@ -100,13 +100,14 @@ public class MainActivity extends Activity implements StatusNotification {
             notifyNoDongle();
         }
         if (mCollectionTask == null) {
-            mCollectionTask = Obd2CollectionTask.create(this, this, deviceAddress);
+            final int delay = 1000 * getScanDelayFromPreferences(2);
+            mCollectionTask = Obd2CollectionTask.create(this, this, deviceAddress, delay);
             if (null == mCollectionTask) {
                 notifyConnectionFailed();
                 return;
             }
-            final int delay = 1000 * getScanDelayFromPreferences(2);
-            mTimer.scheduleAtFixedRate(mCollectionTask, delay, delay);
+            // Live frame PIDs are polled at their own rates, the delay applies to freeze frames.
+            mTimer.schedule(mCollectionTask, delay, Obd2CollectionTask.CYCLE_PERIOD_MS);
             ((Button) view).setText("Disconnect");
         } else {
             stopConnection();
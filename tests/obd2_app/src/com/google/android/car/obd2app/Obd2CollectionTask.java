@@ -20,33 +20,53 @@ import android.annotation.Nullable;
 import android.content.Context;
 import android.os.Environment;
 import android.os.SystemClock;
-import android.util.JsonWriter;
 import android.util.Log;
 import com.android.car.obd2.Obd2Connection;
 import com.android.car.obd2.Obd2FreezeFrameGenerator;
 import com.android.car.obd2.Obd2LiveFrameGenerator;
+import com.android.car.obd2.Obd2PollingScheduler;
 import com.android.car.obd2.connections.BluetoothConnection;
+import com.android.car.vehiclehal.DiagnosticFrameLogWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.Objects;
 import java.util.TimerTask;
 
+/**
+ * Polls live frame PIDs every {@link #CYCLE_PERIOD_MS} through an {@link Obd2PollingScheduler},
+ * and freeze frames at the scan delay chosen by the user.
+ *
+ * <p>Frames are written to a compressed binary frame log, which is flushed along with freeze
+ * frames and can be converted to JSON with {@link
+ * com.android.car.vehiclehal.DiagnosticFrameLogConverter}.
+ */
 public class Obd2CollectionTask extends TimerTask {
+    /** Period at which the task should be scheduled. */
+    public static final long CYCLE_PERIOD_MS = 250;
+    /** Bus time to spend on live frame PIDs in each cycle, the rest is left to freeze frames. */
+    private static final long LIVE_FRAME_BUDGET_MS = 200;
+
     private final Obd2Connection mConnection;
     private final Obd2LiveFrameGenerator mLiveFrameGenerator;
+    private final Obd2PollingScheduler mPollingScheduler;
     private final Obd2FreezeFrameGenerator mFreezeFrameGenerator;
     private final StatusNotification mStatusNotification;
-    private final JsonWriter mJsonWriter;
+    private final DiagnosticFrameLogWriter mLogWriter;
+    private final long mFreezeFramePeriodMs;
+    private long mNextFreezeFrameMs;
 
     public static @Nullable Obd2CollectionTask create(
-            Context context, StatusNotification statusNotification, String deviceAddress) {
+            Context context,
+            StatusNotification statusNotification,
+            String deviceAddress,
+            long freezeFramePeriodMs) {
         try {
             return new Obd2CollectionTask(
                     Objects.requireNonNull(context),
                     Objects.requireNonNull(statusNotification),
-                    Objects.requireNonNull(deviceAddress));
+                    Objects.requireNonNull(deviceAddress),
+                    freezeFramePeriodMs);
         } catch (IOException | InterruptedException | IllegalStateException e) {
             Log.i(MainActivity.TAG, "Connection failed due to exception", e);
             return null;
@@ -55,11 +75,9 @@ public class Obd2CollectionTask extends TimerTask {
 
     @Override
     public boolean cancel() {
-        synchronized (mJsonWriter) {
+        synchronized (mLogWriter) {
             try {
-                mJsonWriter.endArray();
-                mJsonWriter.flush();
-                mJsonWriter.close();
+                mLogWriter.close();
             } catch (IOException e) {
                 Log.w(MainActivity.TAG, "IOException during close", e);
             }
@@ -77,10 +95,15 @@ public class Obd2CollectionTask extends TimerTask {
         }
 
         try {
-            synchronized (mJsonWriter) {
-                mLiveFrameGenerator.generate(mJsonWriter);
-                mFreezeFrameGenerator.generate(mJsonWriter);
-                mJsonWriter.flush();
+            synchronized (mLogWriter) {
+                mLiveFrameGenerator.generate(mLogWriter, mPollingScheduler, LIVE_FRAME_BUDGET_MS);
+                long now = SystemClock.elapsedRealtime();
+                if (now >= mNextFreezeFrameMs) {
+                    mNextFreezeFrameMs = now + mFreezeFramePeriodMs;
+                    mFreezeFrameGenerator.generate(mLogWriter);
+                    Log.i(MainActivity.TAG, mPollingScheduler.toString());
+                    mLogWriter.flush();
+                }
             }
             mStatusNotification.notifyDataCapture();
         } catch (Exception e) {
@@ -88,7 +111,11 @@ public class Obd2CollectionTask extends TimerTask {
         }
     }
 
-    Obd2CollectionTask(Context context, StatusNotification statusNotification, String deviceAddress)
+    Obd2CollectionTask(
+            Context context,
+            StatusNotification statusNotification,
+            String deviceAddress,
+            long freezeFramePeriodMs)
             throws IOException, InterruptedException {
         if (!isExternalStorageWriteable())
             throw new IOException("Cannot write data to external storage");
@@ -100,12 +127,12 @@ public class Obd2CollectionTask extends TimerTask {
         }
         mConnection = new Obd2Connection(bluetoothConnection);
         mLiveFrameGenerator = new Obd2LiveFrameGenerator(mConnection);
+        mPollingScheduler = mLiveFrameGenerator.createPollingScheduler();
+        mFreezeFramePeriodMs = freezeFramePeriodMs;
         mFreezeFrameGenerator = new Obd2FreezeFrameGenerator(mConnection);
-        mJsonWriter =
-                new JsonWriter(
-                        new OutputStreamWriter(
-                                new FileOutputStream(getFilenameForStorage(context))));
-        mJsonWriter.beginArray();
+        mLogWriter =
+                new DiagnosticFrameLogWriter(
+                        new FileOutputStream(getFilenameForStorage(context)), true);
     }
 
     private static boolean isExternalStorageWriteable() {
@@ -114,7 +141,8 @@ public class Obd2CollectionTask extends TimerTask {
     }
 
     private static File getFilenameForStorage(Context context) {
-        String basename = String.format("obd2app.capture.%d", SystemClock.elapsedRealtimeNanos());
+        String basename =
+                String.format("obd2app.capture.%d.obd2log", SystemClock.elapsedRealtimeNanos());
         return new File(context.getExternalFilesDir(Environment.DIRECTORY_DOCUMENTS), basename);
     }
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2.test;
+
+import static org.junit.Assert.*;
+
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import com.android.car.vehiclehal.DiagnosticFrameLogConverter;
+import com.android.car.vehiclehal.DiagnosticFrameLogReader;
+import com.android.car.vehiclehal.DiagnosticFrameLogWriter;
+import com.android.car.vehiclehal.DiagnosticFrameSink;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class DiagnosticFrameLogTest {
+    private static final String LIVE = "live";
+    private static final String FREEZE = "freeze";
+
+    private static final String JSON_CAPTURE =
+            "[{\"type\":\"live\",\"timestamp\":1000,"
+                    + "\"intValues\":[{\"id\":12,\"value\":1155},{\"id\":13,\"value\":130}],"
+                    + "\"floatValues\":[{\"id\":17,\"value\":12.5}]},"
+                    + "{\"type\":\"freeze\",\"timestamp\":2000,\"stringValue\":\"P0010\","
+                    + "\"intValues\":[{\"id\":12,\"value\":800}],\"floatValues\":[]}]";
+
+    /** Records frames as text, to compare them. */
+    private static class RecordingSink implements DiagnosticFrameSink {
+        final StringBuilder mFrames = new StringBuilder();
+
+        @Override
+        public void beginFrame(String type, long timestamp) {
+            mFrames.append(type).append('@').append(timestamp);
+        }
+
+        @Override
+        public void intValue(int id, int value) {
+            mFrames.append(" i").append(id).append('=').append(value);
+        }
+
+        @Override
+        public void floatValue(int id, float value) {
+            mFrames.append(" f").append(id).append('=').append(value);
+        }
+
+        @Override
+        public void dtc(String dtc) {
+            mFrames.append(" dtc=").append(dtc);
+        }
+
+        @Override
+        public void endFrame() {
+            mFrames.append(';');
+        }
+
+        @Override
+        public String toString() {
+            return mFrames.toString();
+        }
+    }
+
+    /** Returns the bytes written to a buffer so far, and end of stream after them. */
+    private static class GrowingInputStream extends InputStream {
+        private final ByteArrayOutputStream mBuffer;
+        private int mPosition;
+        private int mLimit = Integer.MAX_VALUE;
+
+        GrowingInputStream(ByteArrayOutputStream buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            byte[] data = mBuffer.toByteArray();
+            return mPosition < Math.min(data.length, mLimit) ? data[mPosition++] & 0xFF : -1;
+        }
+    }
+
+    private static void writeFrames(DiagnosticFrameSink sink, int first, int count)
+            throws IOException {
+        for (int i = first; i < first + count; ++i) {
+            sink.beginFrame(i % 10 == 9 ? FREEZE : LIVE, 1000L * i);
+            sink.intValue(0x0C, 800 + i);
+            sink.intValue(0x05, -40 + i % 100);
+            sink.floatValue(0x11, i / 4f);
+            if (i % 10 == 9) {
+                sink.dtc("P0" + (100 + i % 100));
+            }
+            sink.endFrame();
+        }
+    }
+
+    private static String readAll(DiagnosticFrameLogReader reader) throws IOException {
+        RecordingSink sink = new RecordingSink();
+        while (reader.readFrame(sink)) {}
+        return sink.toString();
+    }
+
+    private static void checkRoundTrip(boolean compress) throws IOException {
+        RecordingSink expected = new RecordingSink();
+        writeFrames(expected, 0, 1000);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DiagnosticFrameLogWriter writer = new DiagnosticFrameLogWriter(out, compress, 1024);
+        writeFrames(writer, 0, 1000);
+        writer.close();
+
+        DiagnosticFrameLogReader reader =
+                new DiagnosticFrameLogReader(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(expected.toString(), readAll(reader));
+        assertEquals(0, reader.getSkippedBytes());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        checkRoundTrip(false);
+    }
+
+    @Test
+    public void testRoundTripCompressed() throws Exception {
+        checkRoundTrip(true);
+    }
+
+    @Test
+    public void testReadWhileWriting() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DiagnosticFrameLogWriter writer = new DiagnosticFrameLogWriter(out, true);
+        GrowingInputStream in = new GrowingInputStream(out);
+        DiagnosticFrameLogReader reader = new DiagnosticFrameLogReader(in);
+        RecordingSink expected = new RecordingSink();
+
+        writeFrames(writer, 0, 10);
+        writeFrames(expected, 0, 10);
+        // nothing is written before a flush
+        assertEquals("", readAll(reader));
+        writer.flush();
+        assertEquals(expected.toString(), readAll(reader));
+
+        // a block which is only partially written is read once complete
+        expected = new RecordingSink();
+        writeFrames(writer, 10, 10);
+        writeFrames(expected, 10, 10);
+        writer.flush();
+        in.mLimit = out.size() - 5;
+        assertEquals("", readAll(reader));
+        in.mLimit = Integer.MAX_VALUE;
+        assertEquals(expected.toString(), readAll(reader));
+        assertEquals(0, reader.getSkippedBytes());
+    }
+
+    @Test
+    public void testDamagedBlockSkipped() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DiagnosticFrameLogWriter writer = new DiagnosticFrameLogWriter(out, false);
+        RecordingSink expected = new RecordingSink();
+        writeFrames(writer, 0, 5);
+        writeFrames(expected, 0, 5);
+        writer.flush();
+        int damagedStart = out.size();
+        writeFrames(writer, 5, 5);
+        writer.flush();
+        int damagedEnd = out.size();
+        writeFrames(writer, 10, 5);
+        writeFrames(expected, 10, 5);
+        writer.close();
+
+        byte[] data = out.toByteArray();
+        data[(damagedStart + damagedEnd) / 2] ^= 0x55;
+        DiagnosticFrameLogReader reader =
+                new DiagnosticFrameLogReader(new ByteArrayInputStream(data));
+        assertEquals(expected.toString(), readAll(reader));
+        assertEquals(damagedEnd - damagedStart, reader.getSkippedBytes());
+
+        // garbage before a block, as left by a write cut short
+        byte[] garbage = Arrays.copyOf(new byte[] {1, 2, 3}, 3 + data.length);
+        System.arraycopy(data, 0, garbage, 3, data.length);
+        reader = new DiagnosticFrameLogReader(new ByteArrayInputStream(garbage));
+        assertEquals(expected.toString(), readAll(reader));
+    }
+
+    @Test
+    public void testJsonConversion() throws Exception {
+        RecordingSink expected = new RecordingSink();
+        assertEquals(2, DiagnosticFrameLogConverter.fromJson(
+                new JsonReader(new StringReader(JSON_CAPTURE)), expected));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DiagnosticFrameLogWriter writer = new DiagnosticFrameLogWriter(out, true);
+        DiagnosticFrameLogConverter.fromJson(
+                new JsonReader(new StringReader(JSON_CAPTURE)), writer);
+        writer.close();
+
+        StringWriter json = new StringWriter();
+        assertEquals(2, DiagnosticFrameLogConverter.toJson(
+                new DiagnosticFrameLogReader(new ByteArrayInputStream(out.toByteArray())),
+                new JsonWriter(json)));
+        RecordingSink converted = new RecordingSink();
+        DiagnosticFrameLogConverter.fromJson(
+                new JsonReader(new StringReader(json.toString())), converted);
+        assertEquals(expected.toString(), converted.toString());
+    }
+
+    @Test
+    public void testUnterminatedJsonConversion() throws Exception {
+        // as left by a capture which was not closed
+        String capture =
+                JSON_CAPTURE.substring(0, JSON_CAPTURE.indexOf("{\"type\":\"freeze\"") - 1);
+        RecordingSink sink = new RecordingSink();
+        assertEquals(1, DiagnosticFrameLogConverter.fromJson(
+                new JsonReader(new StringReader(capture)), sink));
+        assertTrue(sink.toString().startsWith("live@1000 "));
+    }
+}
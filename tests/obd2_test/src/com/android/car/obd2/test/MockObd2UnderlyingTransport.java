@@ -36,6 +36,11 @@ public class MockObd2UnderlyingTransport implements Obd2Connection.UnderlyingTra
             if (mStream.hasAtLeast(1)) return mStream.consume();
             else throw new EOFException();
         }
+
+        @Override
+        public int available() {
+            return mStream.residualLength();
+        }
     }
 
     private class MockOutputStream extends OutputStream {
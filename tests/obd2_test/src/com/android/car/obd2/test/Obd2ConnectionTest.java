@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2.test;
+
+import static com.android.car.obd2.test.Utils.concatIntArrays;
+import static com.android.car.obd2.test.Utils.stringsToIntArray;
+import static org.junit.Assert.*;
+
+import com.android.car.obd2.Obd2Connection;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public class Obd2ConnectionTest {
+    private static final String[] EXPECTED_INIT_COMMANDS =
+            new String[] {
+                "ATD\r", "ATZ\r", "AT E0\r", "AT L0\r", "AT S0\r", "AT H0\r", "AT SP 0\r"
+            };
+
+    private static final String OBD2_PROMPT = ">";
+
+    private static final String[] EXPECTED_INIT_RESPONSES =
+            new String[] {
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT
+            };
+
+    private static Obd2Connection createConnection(String command, String response) {
+        MockObd2UnderlyingTransport transport =
+                new MockObd2UnderlyingTransport(
+                        concatIntArrays(
+                                stringsToIntArray(EXPECTED_INIT_COMMANDS),
+                                stringsToIntArray(command + "\r")),
+                        concatIntArrays(
+                                stringsToIntArray(EXPECTED_INIT_RESPONSES),
+                                stringsToIntArray(response, OBD2_PROMPT)));
+        return new Obd2Connection(transport);
+    }
+
+    private static void checkResponse(String command, String response, int... expected)
+            throws Exception {
+        int[] data = createConnection(command, response).run(command);
+        assertTrue(
+                String.format("'%s' decoded as %s", response, Arrays.toString(data)),
+                Arrays.equals(expected, data));
+    }
+
+    @Test
+    public void testResponseDecoding() throws Exception {
+        checkResponse("010C", "410C120F", 0x41, 0x0C, 0x12, 0x0F);
+        checkResponse("010C", "41 0C 12 0F\r\r", 0x41, 0x0C, 0x12, 0x0F);
+        // echo of the command
+        checkResponse("010C", "010C\r41 0C 12 0F\r\r", 0x41, 0x0C, 0x12, 0x0F);
+        checkResponse("010C", "SEARCHING...\r41 0C 12 0F\r\r", 0x41, 0x0C, 0x12, 0x0F);
+        checkResponse("010C", "BUS INIT: ...OK\r41 0C 12 0F\r\r", 0x41, 0x0C, 0x12, 0x0F);
+        // responses of two ECUs
+        checkResponse("010D", "41 0D 82\r41 0D 82\r\r", 0x41, 0x0D, 0x82, 0x41, 0x0D, 0x82);
+    }
+
+    @Test
+    public void testMultiFrameResponseDecoding() throws Exception {
+        checkResponse(
+                "0100",
+                "00C\r0: 41 00 BE 1F B8\r1: 10 41 00 98 18 80\r2: 13 00 00 00 00 00\r\r",
+                0x41, 0x00, 0xBE, 0x1F, 0xB8, 0x10, 0x41, 0x00, 0x98, 0x18, 0x80, 0x13,
+                // padding of the last segment is kept
+                0x00, 0x00, 0x00, 0x00, 0x00);
+    }
+
+    @Test
+    public void testStatusResponses() throws Exception {
+        checkResponse("010C", "OK\r\r", 1);
+        checkResponse("010C0D", "?\r\r", 0);
+        checkResponse("012F", "NO DATA\r\r");
+        checkResponse("012F", "SEARCHING...\rNO DATA\r\r");
+    }
+
+    @Test
+    public void testErrorResponses() throws Exception {
+        for (String response : new String[] {"CAN ERROR\r\r", "UNABLE TO CONNECT\r\r"}) {
+            try {
+                createConnection("010C", response).run("010C");
+                fail("no exception for " + response);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        try {
+            createConnection("010C", "41 0C ZZ\r\r").run("010C");
+            fail("no exception for invalid response");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testSilentAdapterTimesOut() throws Exception {
+        SilentTransport transport = new SilentTransport();
+        // Init commands time out as well, which the connection ignores.
+        Obd2Connection connection = new Obd2Connection(transport, 100);
+        long start = System.currentTimeMillis();
+        try {
+            connection.run("010C");
+            fail("no exception for a silent adapter");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(0, transport.mInput.mReads);
+    }
+
+    @Test
+    public void testDiagnosticTroubleCodes() throws Exception {
+        List<String> codes =
+                createConnection("03", "43 02 01 33 C1 23\r\r").getDiagnosticTroubleCodes();
+        assertEquals(Arrays.asList("P0133", "U0123"), codes);
+    }
+
+    /** An adapter which never answers: nothing is ever available, and reads block forever. */
+    private static class SilentTransport implements Obd2Connection.UnderlyingTransport {
+        private final SilentInputStream mInput = new SilentInputStream();
+        private final OutputStream mOutput = new ByteArrayOutputStream();
+
+        @Override
+        public String getAddress() {
+            return SilentTransport.class.getSimpleName();
+        }
+
+        @Override
+        public boolean reconnect() {
+            return true;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mInput;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutput;
+        }
+    }
+
+    private static class SilentInputStream extends InputStream {
+        private final CountDownLatch mNeverReleased = new CountDownLatch(1);
+        private int mReads;
+
+        @Override
+        public int read() throws IOException {
+            mReads++;
+            try {
+                mNeverReleased.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return -1;
+        }
+    }
+}
@@ -56,28 +56,87 @@ public class Obd2LiveFrameGeneratorTest {
     private static final String[] EXPECTED_DISCOVERY_RESPONSES =
             new String[] {"00 00 00 18 00 00", OBD2_PROMPT, OBD2_PROMPT, OBD2_PROMPT, OBD2_PROMPT};
 
-    private static final String[] EXPECTED_FRAME_COMMANDS = new String[] {"010C\r", "010D\r"};
+    private static final String[] EXPECTED_FRAME_COMMANDS = new String[] {"010C0D\r"};
 
     private static final String[] EXPECTED_FRAME_RESPONSES =
-            new String[] {"41 0C 12 0F", OBD2_PROMPT, "41 0D 82", OBD2_PROMPT};
+            new String[] {"41 0C 12 0F 0D 82", OBD2_PROMPT};
+
+    private static final String[] EXPECTED_SINGLE_PID_FRAME_COMMANDS =
+            new String[] {"010C0D\r", "010C\r", "010D\r"};
+
+    private static final String[] EXPECTED_SINGLE_PID_FRAME_RESPONSES =
+            new String[] {"?", OBD2_PROMPT, "41 0C 12 0F", OBD2_PROMPT, "41 0D 82", OBD2_PROMPT};
+
+    // The second frame only uses single PID requests.
+    private static final String[] EXPECTED_UNANSWERED_MULTI_PID_FRAME_COMMANDS =
+            new String[] {"010C0D\r", "010C\r", "010D\r", "010C\r", "010D\r"};
+
+    private static final String[] EXPECTED_UNANSWERED_MULTI_PID_FRAME_RESPONSES =
+            new String[] {
+                "NO DATA", OBD2_PROMPT,
+                "41 0C 12 0F", OBD2_PROMPT,
+                "41 0D 82", OBD2_PROMPT,
+                "41 0C 12 0F", OBD2_PROMPT,
+                "41 0D 82", OBD2_PROMPT
+            };
+
+    // Nothing is answered in the first frame, so the second one still uses a multi PID request.
+    private static final String[] EXPECTED_SILENT_VEHICLE_FRAME_COMMANDS =
+            new String[] {"010C0D\r", "010C\r", "010D\r", "010C0D\r"};
+
+    private static final String[] EXPECTED_SILENT_VEHICLE_FRAME_RESPONSES =
+            new String[] {
+                "NO DATA", OBD2_PROMPT,
+                "NO DATA", OBD2_PROMPT,
+                "NO DATA", OBD2_PROMPT,
+                "41 0C 12 0F 0D 82", OBD2_PROMPT
+            };
 
     @Test
     public void testObd2LiveFrameGeneration() throws Exception {
+        checkLiveFrameGeneration(EXPECTED_FRAME_COMMANDS, EXPECTED_FRAME_RESPONSES, 1);
+    }
+
+    @Test
+    public void testObd2LiveFrameGenerationWithoutMultiPidRequests() throws Exception {
+        checkLiveFrameGeneration(
+                EXPECTED_SINGLE_PID_FRAME_COMMANDS, EXPECTED_SINGLE_PID_FRAME_RESPONSES, 1);
+    }
+
+    @Test
+    public void testObd2LiveFrameGenerationAfterUnansweredMultiPidRequest() throws Exception {
+        checkLiveFrameGeneration(
+                EXPECTED_UNANSWERED_MULTI_PID_FRAME_COMMANDS,
+                EXPECTED_UNANSWERED_MULTI_PID_FRAME_RESPONSES,
+                2);
+    }
+
+    @Test
+    public void testObd2LiveFrameGenerationWhileVehicleSilent() throws Exception {
+        checkLiveFrameGeneration(
+                EXPECTED_SILENT_VEHICLE_FRAME_COMMANDS, EXPECTED_SILENT_VEHICLE_FRAME_RESPONSES, 2);
+    }
+
+    /** Generates {@code frames} frames, and checks the values of the last one. */
+    private void checkLiveFrameGeneration(
+            String[] frameCommands, String[] frameResponses, int frames) throws Exception {
         MockObd2UnderlyingTransport transport =
                 new MockObd2UnderlyingTransport(
                         concatIntArrays(
                                 stringsToIntArray(EXPECTED_INIT_COMMANDS),
                                 stringsToIntArray(EXPECTED_DISCOVERY_COMMANDS),
-                                stringsToIntArray(EXPECTED_FRAME_COMMANDS)),
+                                stringsToIntArray(frameCommands)),
                         concatIntArrays(
                                 stringsToIntArray(EXPECTED_INIT_RESPONSES),
                                 stringsToIntArray(EXPECTED_DISCOVERY_RESPONSES),
-                                stringsToIntArray(EXPECTED_FRAME_RESPONSES)));
+                                stringsToIntArray(frameResponses)));
         Obd2Connection obd2Connection = new Obd2Connection(transport);
         Obd2LiveFrameGenerator obd2Generator = new Obd2LiveFrameGenerator(obd2Connection);
-        StringWriter stringWriter = new StringWriter(1024);
-        JsonWriter jsonWriter = new JsonWriter(stringWriter);
-        obd2Generator.generate(jsonWriter);
+        StringWriter stringWriter = null;
+        for (int i = 0; i < frames; i++) {
+            stringWriter = new StringWriter(1024);
+            obd2Generator.generate(new JsonWriter(stringWriter));
+        }
         JsonReader jsonReader = new JsonReader(new StringReader(stringWriter.toString()));
         DiagnosticJsonReader diagnosticJsonReader = new DiagnosticJsonReader();
         VehiclePropValue vehiclePropValue = diagnosticJsonReader.build(jsonReader);
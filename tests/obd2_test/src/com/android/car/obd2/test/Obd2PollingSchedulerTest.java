@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2.test;
+
+import static com.android.car.obd2.test.Utils.concatIntArrays;
+import static com.android.car.obd2.test.Utils.stringsToIntArray;
+import static org.junit.Assert.*;
+
+import com.android.car.obd2.Obd2Command;
+import com.android.car.obd2.Obd2Command.LiveFrameCommand;
+import com.android.car.obd2.Obd2Connection;
+import com.android.car.obd2.Obd2PollingScheduler;
+import com.android.car.obd2.Obd2PollingScheduler.Sample;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class Obd2PollingSchedulerTest {
+    private static final String[] EXPECTED_INIT_COMMANDS =
+            new String[] {
+                "ATD\r", "ATZ\r", "AT E0\r", "AT L0\r", "AT S0\r", "AT H0\r", "AT SP 0\r"
+            };
+
+    private static final String OBD2_PROMPT = ">";
+
+    private static final String[] EXPECTED_INIT_RESPONSES =
+            new String[] {
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT
+            };
+
+    private static final int RPM = 0x0C;
+    private static final int SPEED = 0x0D;
+
+    private long mNowMs;
+
+    private Obd2PollingScheduler createScheduler(String[] commands, String[] responses) {
+        MockObd2UnderlyingTransport transport =
+                new MockObd2UnderlyingTransport(
+                        concatIntArrays(
+                                stringsToIntArray(EXPECTED_INIT_COMMANDS),
+                                stringsToIntArray(commands)),
+                        concatIntArrays(
+                                stringsToIntArray(EXPECTED_INIT_RESPONSES),
+                                stringsToIntArray(responses)));
+        Obd2Connection obd2Connection = new Obd2Connection(transport);
+        List<LiveFrameCommand<Integer>> liveFrameCommands =
+                Arrays.asList(
+                        Obd2Command.getLiveFrameCommand(Obd2Command.getIntegerCommand(RPM)),
+                        Obd2Command.getLiveFrameCommand(Obd2Command.getIntegerCommand(SPEED)));
+        return new Obd2PollingScheduler(obd2Connection, liveFrameCommands, () -> mNowMs);
+    }
+
+    @Test
+    public void testPidsPolledAtTheirRates() throws Exception {
+        Obd2PollingScheduler scheduler =
+                createScheduler(
+                        new String[] {"010C0D\r", "010C\r", "010C0D\r"},
+                        new String[] {
+                            "41 0C 12 0F 0D 82", OBD2_PROMPT,
+                            "41 0C 12 0F", OBD2_PROMPT,
+                            "41 0C 12 0F 0D 82", OBD2_PROMPT
+                        });
+        scheduler.setRate(SPEED, 2.5f, Obd2PollingScheduler.PRIORITY_LOW);
+
+        assertEquals(2, scheduler.runCycle(100).size());
+        mNowMs = 100;
+        assertTrue(scheduler.runCycle(100).isEmpty());
+        mNowMs = 200;
+        List<Sample> samples = scheduler.runCycle(100);
+        assertEquals(1, samples.size());
+        assertEquals(RPM, samples.get(0).pid);
+        assertEquals(1155, samples.get(0).value.intValue());
+        mNowMs = 300;
+        assertTrue(scheduler.runCycle(100).isEmpty());
+        mNowMs = 400;
+        assertEquals(2, scheduler.runCycle(100).size());
+
+        assertEquals(5f, scheduler.getAchievedRate(RPM), 0.01f);
+        assertEquals(2.5f, scheduler.getAchievedRate(SPEED), 0.01f);
+    }
+
+    @Test
+    public void testPidWithoutDataDropped() throws Exception {
+        String[] commands = new String[1 + Obd2PollingScheduler.MAX_CONSECUTIVE_NO_DATA];
+        String[] responses = new String[2 * commands.length];
+        commands[0] = "010C0D\r";
+        responses[0] = "41 0C 12 0F 0D 82";
+        responses[1] = OBD2_PROMPT;
+        for (int i = 1; i < commands.length; ++i) {
+            commands[i] = "010D\r";
+            responses[2 * i] = "NO DATA";
+            responses[2 * i + 1] = OBD2_PROMPT;
+        }
+        Obd2PollingScheduler scheduler = createScheduler(commands, responses);
+        scheduler.setRate(RPM, 0.01f, Obd2PollingScheduler.PRIORITY_HIGH);
+
+        assertEquals(2, scheduler.runCycle(100).size());
+        for (int i = 0; i < Obd2PollingScheduler.MAX_CONSECUTIVE_NO_DATA; ++i) {
+            assertFalse(scheduler.isDropped(SPEED));
+            mNowMs += 200;
+            assertTrue(scheduler.runCycle(100).isEmpty());
+        }
+        assertTrue(scheduler.isDropped(SPEED));
+        assertFalse(scheduler.isDropped(RPM));
+
+        // Nothing is requested anymore, the transport would fail on an unexpected command.
+        mNowMs += 1000;
+        assertTrue(scheduler.runCycle(100).isEmpty());
+    }
+}
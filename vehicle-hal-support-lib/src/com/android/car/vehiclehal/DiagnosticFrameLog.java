@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.vehiclehal;
+
+/**
+ * Constants of the binary diagnostic frame log, written by {@link DiagnosticFrameLogWriter} and
+ * read by {@link DiagnosticFrameLogReader}.
+ *
+ * <p>A log is a sequence of blocks, each of which can be decoded on its own:
+ *
+ * <pre>
+ * block:   SYNC_MARKER, version (1 byte), flags (1 byte), payload length (4 bytes),
+ *          stored length (4 bytes), CRC32 of the stored bytes (4 bytes), stored bytes
+ * payload: frames, each prefixed with its length as a varint
+ * frame:   type (1 byte), timestamp delta from the previous frame of the block (zigzag varint),
+ *          int count (varint), [id (varint), value (zigzag varint)]...,
+ *          float count (varint), [id (varint), value (4 bytes)]...,
+ *          DTC length + 1, or 0 for none (varint), DTC bytes (UTF-8)
+ * </pre>
+ *
+ * <p>The stored bytes are the payload, deflated if {@link #FLAG_DEFLATE} is set. Integers are big
+ * endian. Blocks are only written whole, so a log stays readable up to its last complete block
+ * while it is still being written or after a crash, and the sync marker allows reading to resume
+ * after a damaged block.
+ */
+final class DiagnosticFrameLog {
+    static final byte[] SYNC_MARKER = {
+        (byte) 0xD1, (byte) 0xA6, 'O', 'B', 'D', '2', (byte) 0x0D, (byte) 0x0A
+    };
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = SYNC_MARKER.length + 14;
+
+    static final int FLAG_DEFLATE = 1;
+
+    /** Bound on block sizes, so that a damaged length cannot cause a huge allocation. */
+    static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    static final int TYPE_LIVE = 0;
+    static final int TYPE_FREEZE = 1;
+
+    private DiagnosticFrameLog() {}
+
+    static int toTypeCode(String type) {
+        switch (type) {
+            case DiagnosticJsonReader.FRAME_TYPE_LIVE:
+                return TYPE_LIVE;
+            case DiagnosticJsonReader.FRAME_TYPE_FREEZE:
+                return TYPE_FREEZE;
+            default:
+                throw new IllegalArgumentException("unknown frame type " + type);
+        }
+    }
+
+    /** Returns the type of the code, or {@code null} for types of later versions. */
+    static String fromTypeCode(int code) {
+        switch (code) {
+            case TYPE_LIVE:
+                return DiagnosticJsonReader.FRAME_TYPE_LIVE;
+            case TYPE_FREEZE:
+                return DiagnosticJsonReader.FRAME_TYPE_FREEZE;
+            default:
+                return null;
+        }
+    }
+}
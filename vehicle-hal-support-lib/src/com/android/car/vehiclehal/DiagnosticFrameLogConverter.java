@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.vehiclehal;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Converts diagnostic captures between the JSON format, an array of frames as read by {@link
+ * DiagnosticJsonReader}, and the binary frame log.
+ */
+public class DiagnosticFrameLogConverter {
+    private DiagnosticFrameLogConverter() {}
+
+    /**
+     * Writes the frames of a JSON capture to {@code sink}, and returns their number. Captures which
+     * were cut short, without the end of the array, are converted up to their last complete frame.
+     */
+    public static int fromJson(JsonReader jsonReader, DiagnosticFrameSink sink)
+            throws IOException {
+        int count = 0;
+        try {
+            jsonReader.beginArray();
+            while (jsonReader.peek() != JsonToken.END_ARRAY) {
+                DiagnosticJson.build(jsonReader).writeTo(sink);
+                ++count;
+            }
+            jsonReader.endArray();
+        } catch (EOFException e) {
+            // the capture was not closed
+        }
+        return count;
+    }
+
+    /** Writes the frames of a binary log as a JSON capture, and returns their number. */
+    public static int toJson(DiagnosticFrameLogReader reader, JsonWriter jsonWriter)
+            throws IOException {
+        DiagnosticJsonWriter sink = new DiagnosticJsonWriter(jsonWriter);
+        int count = 0;
+        jsonWriter.beginArray();
+        while (reader.readFrame(sink)) {
+            ++count;
+        }
+        jsonWriter.endArray();
+        jsonWriter.flush();
+        return count;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.vehiclehal;
+
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads diagnostic frames from a binary log written by {@link DiagnosticFrameLogWriter}.
+ *
+ * <p>The log may still be being written: once the available data is exhausted, {@link #readFrame}
+ * returns {@code false} and keeps a partially read block, so that it can be called again when more
+ * data was appended. Damaged blocks are skipped up to the next sync marker.
+ *
+ * <p>This class is not thread safe.
+ */
+public class DiagnosticFrameLogReader {
+    public static final String TAG = DiagnosticFrameLogReader.class.getSimpleName();
+
+    private static final int READ_SIZE = 8 * 1024;
+
+    private final InputStream mIn;
+    private final CRC32 mCrc = new CRC32();
+    private final Inflater mInflater = new Inflater();
+    /** Bytes read from the stream and not consumed yet. */
+    private byte[] mInput = new byte[READ_SIZE];
+    private int mInputLength;
+    /** Payload of the current block. */
+    private byte[] mBlock = new byte[DiagnosticFrameLogWriter.DEFAULT_BLOCK_SIZE];
+    private int mBlockLength;
+    private int mPosition;
+    private long mPreviousTimestamp;
+    private long mSkippedBytes;
+
+    public DiagnosticFrameLogReader(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Reads the next frame into {@code sink}. Returns {@code false} if no complete frame is
+     * available, at the end of the log or of the data written so far.
+     */
+    public boolean readFrame(DiagnosticFrameSink sink) throws IOException {
+        String type = null;
+        int frameEnd = 0;
+        long timestamp = 0;
+        while (type == null) {
+            while (mPosition == mBlockLength) {
+                if (!readBlock()) return false;
+            }
+            int frameLength = (int) readVarint();
+            frameEnd = mPosition + frameLength;
+            if (frameLength <= 0 || frameEnd > mBlockLength) {
+                throw new IOException("invalid frame length " + frameLength);
+            }
+            type = DiagnosticFrameLog.fromTypeCode(mBlock[mPosition++] & 0xFF);
+            timestamp = mPreviousTimestamp + unzigzag(readVarint());
+            mPreviousTimestamp = timestamp;
+            if (type == null) {
+                // a frame type of a later version, skip it
+                mPosition = frameEnd;
+            }
+        }
+        sink.beginFrame(type, timestamp);
+        for (int count = (int) readVarint(); count > 0; --count) {
+            int id = (int) readVarint();
+            sink.intValue(id, (int) unzigzag(readVarint()));
+        }
+        for (int count = (int) readVarint(); count > 0; --count) {
+            int id = (int) readVarint();
+            sink.floatValue(id, Float.intBitsToFloat(readInt()));
+        }
+        int dtcLength = (int) readVarint() - 1;
+        if (dtcLength >= 0) {
+            checkAvailable(dtcLength);
+            sink.dtc(new String(mBlock, mPosition, dtcLength, StandardCharsets.UTF_8));
+            mPosition += dtcLength;
+        }
+        sink.endFrame();
+        if (mPosition > frameEnd) {
+            throw new IOException("frame longer than its length");
+        }
+        // fields of later versions
+        mPosition = frameEnd;
+        return true;
+    }
+
+    /** Number of bytes skipped so far because they were not part of a valid block. */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    public void close() throws IOException {
+        mInflater.end();
+        mIn.close();
+    }
+
+    /** Reads the next valid block. Returns {@code false} if no complete block is available. */
+    private boolean readBlock() throws IOException {
+        while (true) {
+            if (!fillInput(DiagnosticFrameLog.HEADER_SIZE)) return false;
+            if (!startsWithSyncMarker()) {
+                skipToSyncMarker();
+                continue;
+            }
+            int offset = DiagnosticFrameLog.SYNC_MARKER.length;
+            int version = mInput[offset] & 0xFF;
+            int flags = mInput[offset + 1] & 0xFF;
+            int length = getInt(mInput, offset + 2);
+            int storedLength = getInt(mInput, offset + 6);
+            int crc = getInt(mInput, offset + 10);
+            if (version != DiagnosticFrameLog.VERSION
+                    || length < 0 || length > DiagnosticFrameLog.MAX_BLOCK_SIZE
+                    || storedLength < 0 || storedLength > DiagnosticFrameLog.MAX_BLOCK_SIZE) {
+                skipBlock("invalid block header");
+                continue;
+            }
+            if (!fillInput(DiagnosticFrameLog.HEADER_SIZE + storedLength)) return false;
+
+            mCrc.reset();
+            mCrc.update(mInput, DiagnosticFrameLog.HEADER_SIZE, storedLength);
+            if ((int) mCrc.getValue() != crc) {
+                skipBlock("block checksum mismatch");
+                continue;
+            }
+            if (mBlock.length < length) {
+                mBlock = new byte[length];
+            }
+            if ((flags & DiagnosticFrameLog.FLAG_DEFLATE) != 0) {
+                if (!inflate(storedLength, length)) {
+                    skipBlock("invalid compressed block");
+                    continue;
+                }
+            } else if (length == storedLength) {
+                System.arraycopy(mInput, DiagnosticFrameLog.HEADER_SIZE, mBlock, 0, length);
+            } else {
+                skipBlock("invalid block length");
+                continue;
+            }
+            consumeInput(DiagnosticFrameLog.HEADER_SIZE + storedLength);
+            mBlockLength = length;
+            mPosition = 0;
+            mPreviousTimestamp = 0;
+            return true;
+        }
+    }
+
+    private boolean inflate(int storedLength, int length) {
+        mInflater.reset();
+        mInflater.setInput(mInput, DiagnosticFrameLog.HEADER_SIZE, storedLength);
+        try {
+            int inflated = 0;
+            while (inflated < length && !mInflater.finished()) {
+                int count = mInflater.inflate(mBlock, inflated, length - inflated);
+                if (count == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) break;
+                inflated += count;
+            }
+            return inflated == length && mInflater.finished();
+        } catch (DataFormatException e) {
+            return false;
+        }
+    }
+
+    /** Reads until at least {@code size} bytes are available, or the data runs out. */
+    private boolean fillInput(int size) throws IOException {
+        if (mInput.length < size) {
+            mInput = Arrays.copyOf(mInput, Math.max(size, 2 * mInput.length));
+        }
+        while (mInputLength < size) {
+            int count = mIn.read(mInput, mInputLength, mInput.length - mInputLength);
+            if (count <= 0) return false;
+            mInputLength += count;
+        }
+        return true;
+    }
+
+    private boolean startsWithSyncMarker() {
+        for (int i = 0; i < DiagnosticFrameLog.SYNC_MARKER.length; ++i) {
+            if (mInput[i] != DiagnosticFrameLog.SYNC_MARKER[i]) return false;
+        }
+        return true;
+    }
+
+    private void skipBlock(String reason) {
+        Log.w(TAG, reason + ", looking for the next block");
+        // the marker of this block is not trusted anymore
+        ++mSkippedBytes;
+        consumeInput(1);
+        skipToSyncMarker();
+    }
+
+    /** Drops input up to the next sync marker, or up to what could be the start of one. */
+    private void skipToSyncMarker() {
+        byte first = DiagnosticFrameLog.SYNC_MARKER[0];
+        int i = 0;
+        for (; i < mInputLength; ++i) {
+            if (mInput[i] != first) continue;
+            int matched = 1;
+            while (matched < DiagnosticFrameLog.SYNC_MARKER.length
+                    && i + matched < mInputLength
+                    && mInput[i + matched] == DiagnosticFrameLog.SYNC_MARKER[matched]) {
+                ++matched;
+            }
+            if (matched == DiagnosticFrameLog.SYNC_MARKER.length || i + matched == mInputLength) {
+                break;
+            }
+        }
+        mSkippedBytes += i;
+        consumeInput(i);
+    }
+
+    private void consumeInput(int count) {
+        System.arraycopy(mInput, count, mInput, 0, mInputLength - count);
+        mInputLength -= count;
+    }
+
+    private void checkAvailable(int count) throws IOException {
+        if (mPosition + count > mBlockLength) {
+            throw new IOException("frame past the end of its block");
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            checkAvailable(1);
+            byte b = mBlock[mPosition++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("invalid varint");
+    }
+
+    private int readInt() throws IOException {
+        checkAvailable(4);
+        int value = getInt(mBlock, mPosition);
+        mPosition += 4;
+        return value;
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 24
+                | (buffer[offset + 1] & 0xFF) << 16
+                | (buffer[offset + 2] & 0xFF) << 8
+                | (buffer[offset + 3] & 0xFF);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
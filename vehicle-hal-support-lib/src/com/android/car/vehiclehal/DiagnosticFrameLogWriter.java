@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.vehiclehal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes diagnostic frames to a binary log, in the format described in {@link DiagnosticFrameLog}.
+ *
+ * <p>Frames are collected into blocks, which are written once they reach the block size or when
+ * the writer is flushed. Frames which were not flushed are lost if the process dies, so callers
+ * trade the number of flushes, each of which writes a block with its header, against the amount
+ * of data they can lose.
+ *
+ * <p>This class is not thread safe.
+ */
+public class DiagnosticFrameLogWriter implements DiagnosticFrameSink, Flushable, Closeable {
+    public static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+
+    /** A byte array output stream which gives access to its buffer, to avoid copies. */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+    }
+
+    private final OutputStream mOut;
+    private final int mBlockSize;
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private final Buffer mFrame = new Buffer(256);
+    private final Buffer mBlock;
+    private final Buffer mStored;
+    private final byte[] mDeflateBuffer = new byte[4096];
+    private long mPreviousTimestamp;
+    private boolean mInFrame;
+    private int mType;
+    private long mTimestamp;
+    private int mIntCount;
+    private int mFloatCount;
+    private final Buffer mIntValues = new Buffer(128);
+    private final Buffer mFloatValues = new Buffer(128);
+    private String mDtc;
+
+    public DiagnosticFrameLogWriter(OutputStream out, boolean compress) {
+        this(out, compress, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param compress whether to deflate blocks. Blocks which do not get smaller are stored as is.
+     * @param blockSize size of the frames at which a block is written without waiting for a flush.
+     */
+    public DiagnosticFrameLogWriter(OutputStream out, boolean compress, int blockSize) {
+        if (blockSize <= 0 || blockSize > DiagnosticFrameLog.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("invalid block size " + blockSize);
+        }
+        mOut = out;
+        mBlockSize = blockSize;
+        mDeflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        mBlock = new Buffer(blockSize + 256);
+        mStored = compress ? new Buffer(blockSize + 256) : null;
+    }
+
+    @Override
+    public void beginFrame(String type, long timestamp) {
+        if (mInFrame) throw new IllegalStateException("frame not ended");
+        mType = DiagnosticFrameLog.toTypeCode(type);
+        mInFrame = true;
+        mTimestamp = timestamp;
+        mIntCount = 0;
+        mIntValues.reset();
+        mFloatCount = 0;
+        mFloatValues.reset();
+        mDtc = null;
+    }
+
+    @Override
+    public void intValue(int id, int value) {
+        checkInFrame();
+        ++mIntCount;
+        mIntValues.writeVarint(id);
+        mIntValues.writeVarint(zigzag(value));
+    }
+
+    @Override
+    public void floatValue(int id, float value) {
+        checkInFrame();
+        ++mFloatCount;
+        mFloatValues.writeVarint(id);
+        mFloatValues.writeInt(Float.floatToIntBits(value));
+    }
+
+    @Override
+    public void dtc(String dtc) {
+        checkInFrame();
+        mDtc = dtc;
+    }
+
+    @Override
+    public void endFrame() throws IOException {
+        checkInFrame();
+        mInFrame = false;
+        mFrame.reset();
+        mFrame.write(mType);
+        mFrame.writeVarint(zigzag(mTimestamp - mPreviousTimestamp));
+        mPreviousTimestamp = mTimestamp;
+        mFrame.writeVarint(mIntCount);
+        mIntValues.writeTo(mFrame);
+        mFrame.writeVarint(mFloatCount);
+        mFloatValues.writeTo(mFrame);
+        if (mDtc == null) {
+            mFrame.writeVarint(0);
+        } else {
+            byte[] dtc = mDtc.getBytes(StandardCharsets.UTF_8);
+            mFrame.writeVarint(dtc.length + 1);
+            mFrame.write(dtc, 0, dtc.length);
+        }
+        mBlock.writeVarint(mFrame.size());
+        mFrame.writeTo(mBlock);
+        if (mBlock.size() >= mBlockSize) {
+            writeBlock();
+        }
+    }
+
+    /** Writes the frames collected so far as a block, and flushes the output stream. */
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (mDeflater != null) mDeflater.end();
+            mOut.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (mBlock.size() == 0) return;
+        Buffer stored = mBlock;
+        int flags = 0;
+        if (mDeflater != null) {
+            mStored.reset();
+            mDeflater.reset();
+            mDeflater.setInput(mBlock.array(), 0, mBlock.size());
+            mDeflater.finish();
+            while (!mDeflater.finished() && mStored.size() < mBlock.size()) {
+                int count = mDeflater.deflate(mDeflateBuffer);
+                mStored.write(mDeflateBuffer, 0, count);
+            }
+            if (mDeflater.finished() && mStored.size() < mBlock.size()) {
+                stored = mStored;
+                flags |= DiagnosticFrameLog.FLAG_DEFLATE;
+            }
+        }
+        mCrc.reset();
+        mCrc.update(stored.array(), 0, stored.size());
+
+        Buffer header = mFrame;
+        header.reset();
+        header.write(DiagnosticFrameLog.SYNC_MARKER, 0, DiagnosticFrameLog.SYNC_MARKER.length);
+        header.write(DiagnosticFrameLog.VERSION);
+        header.write(flags);
+        header.writeInt(mBlock.size());
+        header.writeInt(stored.size());
+        header.writeInt((int) mCrc.getValue());
+        mOut.write(header.array(), 0, header.size());
+        mOut.write(stored.array(), 0, stored.size());
+
+        mBlock.reset();
+        // blocks are decoded on their own, timestamps start over
+        mPreviousTimestamp = 0;
+    }
+
+    private void checkInFrame() {
+        if (!mInFrame) throw new IllegalStateException("frame not begun");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
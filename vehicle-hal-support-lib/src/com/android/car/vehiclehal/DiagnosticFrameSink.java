@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.vehiclehal;
+
+import java.io.IOException;
+
+/**
+ * Receives diagnostic frames one value at a time, as they are collected from a vehicle or read
+ * back from a capture. Values of a frame come between {@link #beginFrame} and {@link #endFrame}.
+ */
+public interface DiagnosticFrameSink {
+    /** @param type one of {@link DiagnosticJsonReader#FRAME_TYPE_LIVE} and FRAME_TYPE_FREEZE. */
+    void beginFrame(String type, long timestamp) throws IOException;
+
+    void intValue(int id, int value) throws IOException;
+
+    void floatValue(int id, float value) throws IOException;
+
+    /** Sets the trouble code of a freeze frame. */
+    void dtc(String dtc) throws IOException;
+
+    void endFrame() throws IOException;
+}
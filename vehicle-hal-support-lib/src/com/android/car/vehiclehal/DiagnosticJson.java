@@ -60,6 +60,21 @@ public class DiagnosticJson {
         return vehiclePropValue;
     }
 
+    /** Writes this frame to {@code sink}. */
+    public void writeTo(DiagnosticFrameSink sink) throws IOException {
+        sink.beginFrame(type, timestamp);
+        for (int i = 0; i < intValues.size(); ++i) {
+            sink.intValue(intValues.keyAt(i), intValues.valueAt(i));
+        }
+        for (int i = 0; i < floatValues.size(); ++i) {
+            sink.floatValue(floatValues.keyAt(i), floatValues.valueAt(i));
+        }
+        if (dtc != null) {
+            sink.dtc(dtc);
+        }
+        sink.endFrame();
+    }
+
     static class Builder {
         public static final String TAG = Builder.class.getSimpleName();
 
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.vehiclehal;
+
+import android.util.JsonWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes diagnostic frames as JSON objects, in the format read by {@link DiagnosticJsonReader}.
+ * Values are held until the end of each frame, as integer and float values are written in separate
+ * arrays.
+ */
+public class DiagnosticJsonWriter implements DiagnosticFrameSink {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final JsonWriter mJsonWriter;
+    private String mType;
+    private long mTimestamp;
+    private String mDtc;
+    private int[] mIntIds = new int[INITIAL_CAPACITY];
+    private int[] mIntValues = new int[INITIAL_CAPACITY];
+    private int mIntCount;
+    private int[] mFloatIds = new int[INITIAL_CAPACITY];
+    private float[] mFloatValues = new float[INITIAL_CAPACITY];
+    private int mFloatCount;
+
+    public DiagnosticJsonWriter(JsonWriter jsonWriter) {
+        mJsonWriter = jsonWriter;
+    }
+
+    @Override
+    public void beginFrame(String type, long timestamp) {
+        mType = type;
+        mTimestamp = timestamp;
+        mDtc = null;
+        mIntCount = 0;
+        mFloatCount = 0;
+    }
+
+    @Override
+    public void intValue(int id, int value) {
+        if (mIntCount == mIntIds.length) {
+            mIntIds = Arrays.copyOf(mIntIds, 2 * mIntCount);
+            mIntValues = Arrays.copyOf(mIntValues, 2 * mIntCount);
+        }
+        mIntIds[mIntCount] = id;
+        mIntValues[mIntCount++] = value;
+    }
+
+    @Override
+    public void floatValue(int id, float value) {
+        if (mFloatCount == mFloatIds.length) {
+            mFloatIds = Arrays.copyOf(mFloatIds, 2 * mFloatCount);
+            mFloatValues = Arrays.copyOf(mFloatValues, 2 * mFloatCount);
+        }
+        mFloatIds[mFloatCount] = id;
+        mFloatValues[mFloatCount++] = value;
+    }
+
+    @Override
+    public void dtc(String dtc) {
+        mDtc = dtc;
+    }
+
+    @Override
+    public void endFrame() throws IOException {
+        mJsonWriter.beginObject();
+        mJsonWriter.name("type").value(mType);
+        mJsonWriter.name("timestamp").value(mTimestamp);
+        if (mDtc != null) {
+            mJsonWriter.name("stringValue").value(mDtc);
+        }
+        mJsonWriter.name("intValues").beginArray();
+        for (int i = 0; i < mIntCount; ++i) {
+            mJsonWriter.beginObject();
+            mJsonWriter.name("id").value(mIntIds[i]);
+            mJsonWriter.name("value").value(mIntValues[i]);
+            mJsonWriter.endObject();
+        }
+        mJsonWriter.endArray();
+        mJsonWriter.name("floatValues").beginArray();
+        for (int i = 0; i < mFloatCount; ++i) {
+            mJsonWriter.beginObject();
+            mJsonWriter.name("id").value(mFloatIds[i]);
+            // as a Float, so that it is not written with the digits of its double value
+            mJsonWriter.name("value").value((Number) mFloatValues[i]);
+            mJsonWriter.endObject();
+        }
+        mJsonWriter.endArray();
+        mJsonWriter.endObject();
+    }
+}